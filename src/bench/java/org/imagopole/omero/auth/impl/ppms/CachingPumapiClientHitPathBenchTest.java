@@ -0,0 +1,217 @@
+/**
+ *
+ */
+package org.imagopole.omero.auth.impl.ppms;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.List;
+
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Element;
+
+import org.databene.contiperf.PerfTest;
+import org.databene.contiperf.junit.ContiPerfRule;
+import org.databene.contiperf.report.CSVSummaryReportModule;
+import org.databene.contiperf.report.HtmlReportModule;
+import org.imagopole.ppms.api.PumapiClient;
+import org.imagopole.ppms.api.PumapiException;
+import org.imagopole.ppms.api.config.PumapiConfig;
+import org.imagopole.ppms.api.dto.PpmsGroup;
+import org.imagopole.ppms.api.dto.PpmsSystem;
+import org.imagopole.ppms.api.dto.PpmsUser;
+import org.imagopole.ppms.api.dto.PpmsUserPrivilege;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache hit path micro-benchmark for the {@link CachingPumapiClient}, against an in-memory delegate.
+ *
+ * Compares typed {@link PumapiCacheKey} lookups on pre-resolved regions with the former
+ * <code>String.format</code> keys and by-name region lookups, in terms of latency (ns/op)
+ * and heap allocation per lookup (bytes/op, as reported by the HotSpot thread MXBean).
+ *
+ * @author seb
+ *
+ */
+public class CachingPumapiClientHitPathBenchTest {
+
+    /** Application logs */
+    private final Logger log = LoggerFactory.getLogger(CachingPumapiClientHitPathBenchTest.class);
+
+    /** Number of lookups for the latency benchmarks. */
+    private static final int HIT_ITERATIONS = 100000;
+
+    /** Number of lookups per allocation measurement. */
+    private static final int ALLOCATION_ITERATIONS = 1000000;
+
+    /** Bench cache region name. */
+    private static final String USER_CACHE_NAME = "pumapiUserCache";
+
+    /** Bench region for the former string keys. */
+    private static final String LEGACY_CACHE_NAME = "pumapiLegacyKeysCache";
+
+    /** Former key format for {@link PumapiClient#getUser(String)} calls. */
+    private static final String LEGACY_USER_KEY = "getUser-%s";
+
+    /** Cached login. */
+    private static final String USERNAME = "bench.user";
+
+    @Rule
+    public ContiPerfRule contiperfRule = new ContiPerfRule(new HtmlReportModule(),
+                                                           new CSVSummaryReportModule());
+
+    private static CacheManager cacheManager;
+
+    private static CachingPumapiClient cachingClient;
+
+    @BeforeClass
+    public static void setUpCaches() {
+        cacheManager = CacheManager.create();
+        cacheManager.addCache(USER_CACHE_NAME);
+        cacheManager.addCache(LEGACY_CACHE_NAME);
+
+        cachingClient = new CachingPumapiClient(new InMemoryPumapiClient(), cacheManager);
+
+        // warm up both regions
+        cachingClient.getUser(USERNAME);
+        cacheManager.getEhcache(LEGACY_CACHE_NAME).put(
+            new Element(String.format(LEGACY_USER_KEY, USERNAME), new PpmsUser()));
+    }
+
+    @AfterClass
+    public static void tearDownCaches() {
+        cacheManager.removeCache(USER_CACHE_NAME);
+        cacheManager.removeCache(LEGACY_CACHE_NAME);
+    }
+
+    @Test
+    @PerfTest(invocations = HIT_ITERATIONS)
+    public void typedKeyHit() {
+        assertNotNull("should exist", cachingClient.getUser(USERNAME));
+    }
+
+    @Test
+    @PerfTest(invocations = HIT_ITERATIONS)
+    public void legacyStringKeyHit() {
+        assertNotNull("should exist", legacyLookup(USERNAME));
+    }
+
+    @Test
+    public void hitPathAllocation() {
+        // warm up (JIT) before measuring
+        measureTypedKeyHits(ALLOCATION_ITERATIONS);
+        measureLegacyKeyHits(ALLOCATION_ITERATIONS);
+
+        double typedBytesPerOp = measureTypedKeyHits(ALLOCATION_ITERATIONS);
+        double legacyBytesPerOp = measureLegacyKeyHits(ALLOCATION_ITERATIONS);
+
+        log.info("[bench] Cache hit allocation - typed keys: {} bytes/op - string keys: {} bytes/op",
+                 typedBytesPerOp, legacyBytesPerOp);
+
+        assertTrue("typed keys should allocate less", typedBytesPerOp < legacyBytesPerOp);
+    }
+
+    private double measureTypedKeyHits(int iterations) {
+        long startBytes = allocatedBytes();
+        long startNanos = System.nanoTime();
+
+        for (int i = 0; i < iterations; ++i) {
+            cachingClient.getUser(USERNAME);
+        }
+
+        return logResults("typed keys", iterations, startBytes, startNanos);
+    }
+
+    private double measureLegacyKeyHits(int iterations) {
+        long startBytes = allocatedBytes();
+        long startNanos = System.nanoTime();
+
+        for (int i = 0; i < iterations; ++i) {
+            legacyLookup(USERNAME);
+        }
+
+        return logResults("string keys", iterations, startBytes, startNanos);
+    }
+
+    private double logResults(String label, int iterations, long startBytes, long startNanos) {
+        double nanosPerOp = (double) (System.nanoTime() - startNanos) / iterations;
+        double bytesPerOp = (double) (allocatedBytes() - startBytes) / iterations;
+
+        log.debug("[bench] {} - {} ns/op - {} bytes/op", label, nanosPerOp, bytesPerOp);
+
+        return bytesPerOp;
+    }
+
+    /** Mirrors the former hit path: formatted key plus region lookup by name. */
+    private Object legacyLookup(String login) {
+        String key = String.format(LEGACY_USER_KEY, login);
+        Element element = cacheManager.getEhcache(LEGACY_CACHE_NAME).get(key);
+
+        return (null == element ? null : element.getObjectValue());
+    }
+
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean threadBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Delegate stub with constant results.
+     *
+     * @author seb
+     *
+     */
+    private static class InMemoryPumapiClient implements PumapiClient {
+
+        @Override
+        public PumapiConfig getConfig() {
+            return null;
+        }
+
+        @Override
+        public void setConfig(PumapiConfig config) {
+            // no-op
+        }
+
+        @Override
+        public List<String> getUsers(Boolean active) throws PumapiException {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public PpmsUser getUser(String login) throws PumapiException {
+            return new PpmsUser();
+        }
+
+        @Override
+        public List<PpmsUserPrivilege> getUserRights(String login) throws PumapiException {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public PpmsGroup getGroup(String unitLogin) throws PumapiException {
+            return new PpmsGroup();
+        }
+
+        @Override
+        public PpmsSystem getSystem(Long systemId) throws PumapiException {
+            return new PpmsSystem();
+        }
+
+        @Override
+        public boolean authenticate(String login, String password) throws PumapiException {
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,132 @@
+/**
+ *
+ */
+package org.imagopole.omero.auth.impl.ppms;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.databene.contiperf.PerfTest;
+import org.databene.contiperf.junit.ContiPerfRule;
+import org.databene.contiperf.report.CSVSummaryReportModule;
+import org.databene.contiperf.report.HtmlReportModule;
+import org.imagopole.ppms.api.dto.PpmsPrivilege;
+import org.imagopole.ppms.api.dto.PpmsUserPrivilege;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Privileges indexing micro-benchmark for {@link PpmsPrivileges}, against the former
+ * map of privileges sets by system.
+ *
+ * Each operation indexes the rights of one user, then checks activation and autonomy
+ * on every granted system.
+ *
+ * @author seb
+ *
+ */
+public class PpmsPrivilegesBenchTest {
+
+    /** Number of users in the bench data set. */
+    private static final int USERS = 5000;
+
+    /** Number of rights per user. */
+    private static final int RIGHTS_PER_USER = 20;
+
+    /** Number of distinct systems. */
+    private static final int SYSTEMS = 300;
+
+    /** Number of data set passes per benchmark (timings reported by ContiPerf). */
+    private static final int PASSES = 20;
+
+    @Rule
+    public ContiPerfRule contiperfRule = new ContiPerfRule(new HtmlReportModule(),
+                                                           new CSVSummaryReportModule());
+
+    private static List<List<PpmsUserPrivilege>> usersRights;
+
+    @BeforeClass
+    public static void setUpRights() {
+        Random random = new Random(1L);
+        PpmsPrivilege[] privileges = PpmsPrivilege.values();
+
+        usersRights = new ArrayList<List<PpmsUserPrivilege>>(USERS);
+        for (int u = 0; u < USERS; ++u) {
+            List<PpmsUserPrivilege> rights = new ArrayList<PpmsUserPrivilege>(RIGHTS_PER_USER);
+            for (int r = 0; r < RIGHTS_PER_USER; ++r) {
+                rights.add(new PpmsUserPrivilege((long) random.nextInt(SYSTEMS),
+                                                 privileges[random.nextInt(privileges.length)]));
+            }
+            usersRights.add(rights);
+        }
+    }
+
+    @Test
+    @PerfTest(invocations = PASSES)
+    public void bitmaskIndex() {
+        assertTrue("should be granted", indexWithBitmasks() > 0);
+    }
+
+    @Test
+    @PerfTest(invocations = PASSES)
+    public void mapOfSetsIndex() {
+        assertTrue("should be granted", indexWithMapOfSets() > 0);
+    }
+
+    private static int indexWithBitmasks() {
+        int result = 0;
+
+        for (List<PpmsUserPrivilege> rights : usersRights) {
+            PpmsPrivileges privileges = PpmsPrivileges.of(rights);
+
+            for (long systemId : privileges.getSystemIds()) {
+                if (privileges.isActivated(systemId)) {
+                    ++result;
+                }
+                if (privileges.isAutonomyGranted(systemId)) {
+                    ++result;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /** Mirrors the former indexing: boxed keys plus one hash set per system. */
+    private static int indexWithMapOfSets() {
+        int result = 0;
+
+        for (List<PpmsUserPrivilege> rights : usersRights) {
+            Map<Long, Set<PpmsPrivilege>> privilegesBySystem = new HashMap<Long, Set<PpmsPrivilege>>();
+
+            for (PpmsUserPrivilege right : rights) {
+                Set<PpmsPrivilege> privileges = privilegesBySystem.get(right.getSystemId());
+                if (null == privileges) {
+                    privileges = new HashSet<PpmsPrivilege>();
+                    privilegesBySystem.put(right.getSystemId(), privileges);
+                }
+                privileges.add(right.getPrivilege());
+            }
+
+            for (Set<PpmsPrivilege> privileges : privilegesBySystem.values()) {
+                if (!privileges.contains(PpmsPrivilege.Deactivated)) {
+                    ++result;
+                }
+                if (privileges.contains(PpmsPrivilege.Autonomous) || privileges.contains(PpmsPrivilege.SuperUser)) {
+                    ++result;
+                }
+            }
+        }
+
+        return result;
+    }
+
+}
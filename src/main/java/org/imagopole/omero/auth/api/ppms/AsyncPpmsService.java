@@ -0,0 +1,84 @@
+/**
+ *
+ */
+package org.imagopole.omero.auth.api.ppms;
+
+import java.util.List;
+
+import org.imagopole.ppms.api.dto.PpmsGroup;
+import org.imagopole.ppms.api.dto.PpmsSystem;
+import org.imagopole.ppms.api.dto.PpmsUser;
+
+/**
+ * Asynchronous counterpart to the {@link PpmsService} lookups.
+ *
+ * Each invocation is submitted for background execution and returns immediately with a
+ * pending result bound to its own deadline, so that callers may overlap independent lookups
+ * and give up on (or cancel) the slow ones.
+ *
+ * @author seb
+ *
+ */
+public interface AsyncPpmsService {
+
+    /**
+     * Retrieves a PPMS user by login.
+     *
+     * @param userName the username / PPMS identifier
+     * @return the pending user attributes (null if not found)
+     * @see PpmsService#findUserByName(String)
+     */
+    PpmsCall<PpmsUser> findUserByName(String userName);
+
+    /**
+     * Retrieves a PPMS user by login, with affiliation details.
+     *
+     * @param userName the username / PPMS identifier
+     * @return the pending user attributes (null if not found)
+     * @see PpmsService#findUserAndGroupByName(String)
+     */
+    PpmsCall<PpmsUserDetails> findUserAndGroupByName(String userName);
+
+    /**
+     * Retrieves the PPMS group (a.k.a Unit) for a PPMS user.
+     *
+     * @param userName the username / PPMS identifier
+     * @return the pending group/unit (null if none found)
+     * @see PpmsService#findGroupByUserName(String)
+     */
+    PpmsCall<PpmsGroup> findGroupByUserName(String userName);
+
+    /**
+     * Retrieves the active PPMS instruments (a.k.a Systems) available to a given user, and
+     * retained by a filter.
+     *
+     * @param userName the username / PPMS identifier
+     * @param systemFilter the systems selection criteria (optional - all systems retained if null)
+     * @return the pending list of instrument attributes
+     * @see PpmsService#findActiveSystemsByUserName(String, PpmsSystemFilter)
+     */
+    PpmsCall<List<PpmsSystem>> findActiveSystemsByUserName(String userName, PpmsSystemFilter systemFilter);
+
+    /**
+     * Retrieves the active PPMS instruments (a.k.a Systems) available to a given user with an
+     * autonomy status (or super user status) on the instrument, and retained by a filter.
+     *
+     * @param userName the username / PPMS identifier
+     * @param systemFilter the systems selection criteria (optional - all systems retained if null)
+     * @return the pending list of granted instrument attributes
+     * @see PpmsService#findActiveSystemsWithAutonomyByUserName(String, PpmsSystemFilter)
+     */
+    PpmsCall<List<PpmsSystem>> findActiveSystemsWithAutonomyByUserName(
+                    String userName,
+                    PpmsSystemFilter systemFilter);
+
+    /**
+     * Retrieves the profile of a PPMS user in one aggregate lookup.
+     *
+     * @param userName the username / PPMS identifier
+     * @return the pending user profile (null if the user is not found)
+     * @see PpmsService#findUserProfile(String)
+     */
+    PpmsCall<PpmsUserProfile> findUserProfile(String userName);
+
+}
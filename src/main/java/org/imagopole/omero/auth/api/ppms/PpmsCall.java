@@ -0,0 +1,36 @@
+/**
+ *
+ */
+package org.imagopole.omero.auth.api.ppms;
+
+import java.util.concurrent.Future;
+
+import org.imagopole.omero.auth.api.ExternalServiceException;
+
+/**
+ * Pending result of an asynchronous PPMS service invocation, bound to a deadline.
+ *
+ * May be cancelled as any {@link Future}, in which case the underlying remote calls are interrupted.
+ *
+ * @author seb
+ *
+ */
+public interface PpmsCall<T> extends Future<T> {
+
+    /**
+     * Returns the deadline for this invocation.
+     *
+     * @return the deadline in milliseconds
+     */
+    long getDeadline();
+
+    /**
+     * Waits for the invocation result until the deadline.
+     *
+     * @return the invocation result
+     * @throws ExternalServiceException in case of an underlying error (API or technical), or if
+     * the deadline elapses (in which case the invocation is cancelled)
+     */
+    T await() throws ExternalServiceException;
+
+}
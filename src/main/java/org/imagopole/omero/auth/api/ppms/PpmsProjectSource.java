@@ -0,0 +1,36 @@
+/**
+ *
+ */
+package org.imagopole.omero.auth.api.ppms;
+
+import java.util.List;
+
+import org.imagopole.omero.auth.api.dto.NamedItem;
+import org.imagopole.ppms.api.PumapiException;
+
+/**
+ * Bulk source for the PPMS projects and their members.
+ *
+ * @author seb
+ *
+ */
+public interface PpmsProjectSource {
+
+    /**
+     * Lists all active PPMS projects.
+     *
+     * @return the projects, identified by their PPMS project reference
+     * @throws PumapiException in case of an underlying error (API or technical)
+     */
+    List<NamedItem> listActiveProjects() throws PumapiException;
+
+    /**
+     * Lists the members of a PPMS project.
+     *
+     * @param projectRef the PPMS project reference
+     * @return the members logins, or an empty list if none
+     * @throws PumapiException in case of an underlying error (API or technical)
+     */
+    List<String> listProjectMembers(String projectRef) throws PumapiException;
+
+}
@@ -40,7 +40,13 @@ public interface PpmsService {
      */
     PpmsUserDetails findUserAndGroupByName(String userName) throws ExternalServiceException;
 
-    // not implemented yet - will likely return a PpmsProject entity later
+    /**
+     * Retrieves the active PPMS projects a PPMS user is a member of.
+     *
+     * @param userName the username / PPMS identifier
+     * @return a list of projects (identified by their PPMS project reference), or an empty list if none found
+     * @throws ExternalServiceException in case of an underlying error (API or technical)
+     */
     List<NamedItem> findProjectsByUserName(String userName) throws ExternalServiceException;
 
     /**
@@ -65,6 +71,22 @@ public interface PpmsService {
      */
     List<PpmsSystem> findActiveSystemsByUserName(String userName) throws ExternalServiceException;
 
+    /**
+     * Retrieves a list of active PPMS instruments (a.k.a Systems) available to a given user with
+     * a status other than deactivated on the instrument, and retained by a filter.
+     *
+     * The instrument's autonomy requirements are not taken into account.
+     * Systems already known to be rejected by the filter may be skipped without any lookup.
+     *
+     * @param userName the username / PPMS identifier
+     * @param systemFilter the systems selection criteria (optional - all systems retained if null)
+     * @return a list of instrument attributes, or an empty list if none found
+     * @throws ExternalServiceException in case of an underlying error (API or technical)
+     */
+    List<PpmsSystem> findActiveSystemsByUserName(
+                    String userName,
+                    PpmsSystemFilter systemFilter) throws ExternalServiceException;
+
     /**
      * Retrieves a list of active PPMS instruments (a.k.a Systems) available to a given user with an
      * autonomy status (or super user status) on the instrument.
@@ -77,6 +99,35 @@ public interface PpmsService {
      */
     List<PpmsSystem> findActiveSystemsWithAutonomyByUserName(String userName) throws ExternalServiceException;
 
+    /**
+     * Retrieves a list of active PPMS instruments (a.k.a Systems) available to a given user with an
+     * autonomy status (or super user status) on the instrument, and retained by a filter.
+     *
+     * The instrument's autonomy requirements are taken into account.
+     * Systems already known to be rejected by the filter may be skipped without any lookup.
+     *
+     * @param userName the username / PPMS identifier
+     * @param systemFilter the systems selection criteria (optional - all systems retained if null)
+     * @return a list of granted instrument attributes, or an empty list if none found
+     * @throws ExternalServiceException in case of an underlying error (API or technical)
+     */
+    List<PpmsSystem> findActiveSystemsWithAutonomyByUserName(
+                    String userName,
+                    PpmsSystemFilter systemFilter) throws ExternalServiceException;
+
+    /**
+     * Retrieves the profile of a PPMS user in one aggregate lookup: user and group attributes,
+     * privileges, and active instruments (a.k.a Systems) with and without autonomy requirements
+     * taken into account.
+     *
+     * Independent underlying lookups may be issued concurrently.
+     *
+     * @param userName the username / PPMS identifier
+     * @return the user profile or null if the user is not found.
+     * @throws ExternalServiceException in case of an underlying error (API or technical)
+     */
+    PpmsUserProfile findUserProfile(String userName) throws ExternalServiceException;
+
     /**
      * Validates password for a PPMS user.
      *
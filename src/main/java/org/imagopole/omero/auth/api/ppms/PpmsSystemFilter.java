@@ -0,0 +1,28 @@
+/**
+ *
+ */
+package org.imagopole.omero.auth.api.ppms;
+
+import org.imagopole.ppms.api.dto.PpmsSystem;
+
+/**
+ * Selection criteria for PPMS instruments (a.k.a Systems) retrieved via the {@link PpmsService}.
+ *
+ * Implementations should only depend on the system's metadata (eg. core facility or type), so
+ * that the service may also apply them to previously known systems details, and skip the lookup
+ * of systems already known to be out of scope.
+ *
+ * @author seb
+ *
+ */
+public interface PpmsSystemFilter {
+
+    /**
+     * Checks whether a PPMS system should be retained.
+     *
+     * @param system the system attributes
+     * @return true if the system should be retained, false otherwise
+     */
+    boolean accept(PpmsSystem system);
+
+}
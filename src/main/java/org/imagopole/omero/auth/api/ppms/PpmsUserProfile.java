@@ -0,0 +1,133 @@
+/**
+ *
+ */
+package org.imagopole.omero.auth.api.ppms;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.imagopole.ppms.api.dto.PpmsGroup;
+import org.imagopole.ppms.api.dto.PpmsPrivilege;
+import org.imagopole.ppms.api.dto.PpmsSystem;
+import org.imagopole.ppms.api.dto.PpmsUser;
+import org.imagopole.ppms.util.Check;
+
+/**
+ * Aggregate information for a PPMS user: basic user attributes, affiliation (retrieved via the
+ * PPMS group information), privileges and granted instruments.
+ *
+ * Immutable: collections are copied upon construction and exposed as read-only views.
+ *
+ * @author seb
+ *
+ */
+public final class PpmsUserProfile {
+
+    /** Basic user information. */
+    private final PpmsUser user;
+
+    /** Extended user information (may be null). */
+    private final PpmsGroup group;
+
+    /** The user's privileges indexed by system identifier. */
+    private final Map<Long, Set<PpmsPrivilege>> privilegesBySystem;
+
+    /** Active systems available to the user, regardless of autonomy. */
+    private final List<PpmsSystem> activeSystems;
+
+    /** Active systems available to the user, taking autonomy requirements into account. */
+    private final List<PpmsSystem> activeSystemsWithAutonomy;
+
+    /**
+     * Full constructor.
+     *
+     * @param user the user attributes
+     * @param group the user's group attributes (optional)
+     * @param privilegesBySystem the user's privileges indexed by system identifier
+     * @param activeSystems the active systems available to the user, regardless of autonomy
+     * @param activeSystemsWithAutonomy the active systems available to the user, taking autonomy
+     * requirements into account
+     */
+    public PpmsUserProfile(
+                    PpmsUser user,
+                    PpmsGroup group,
+                    Map<Long, Set<PpmsPrivilege>> privilegesBySystem,
+                    List<PpmsSystem> activeSystems,
+                    List<PpmsSystem> activeSystemsWithAutonomy) {
+        super();
+
+        Check.notNull(user, "user");
+        Check.notNull(privilegesBySystem, "privilegesBySystem");
+        Check.notNull(activeSystems, "activeSystems");
+        Check.notNull(activeSystemsWithAutonomy, "activeSystemsWithAutonomy");
+
+        Map<Long, Set<PpmsPrivilege>> privileges = new HashMap<Long, Set<PpmsPrivilege>>();
+        for (Map.Entry<Long, Set<PpmsPrivilege>> entry : privilegesBySystem.entrySet()) {
+            privileges.put(entry.getKey(), Collections.unmodifiableSet(new HashSet<PpmsPrivilege>(entry.getValue())));
+        }
+
+        this.user = user;
+        this.group = group;
+        this.privilegesBySystem = Collections.unmodifiableMap(privileges);
+        this.activeSystems = Collections.unmodifiableList(new ArrayList<PpmsSystem>(activeSystems));
+        this.activeSystemsWithAutonomy =
+            Collections.unmodifiableList(new ArrayList<PpmsSystem>(activeSystemsWithAutonomy));
+    }
+
+    /**
+     * Returns the privileges granted to the user on a system.
+     *
+     * @param systemId the system identifier
+     * @return the privileges, or an empty set if none
+     */
+    public Set<PpmsPrivilege> getPrivileges(Long systemId) {
+        Set<PpmsPrivilege> result = privilegesBySystem.get(systemId);
+        return (null == result ? Collections.<PpmsPrivilege>emptySet() : result);
+    }
+
+    /**
+     * Returns user.
+     * @return the user
+     */
+    public PpmsUser getUser() {
+        return user;
+    }
+
+    /**
+     * Returns group.
+     * @return the group
+     */
+    public PpmsGroup getGroup() {
+        return group;
+    }
+
+    /**
+     * Returns privilegesBySystem.
+     * @return the privilegesBySystem
+     */
+    public Map<Long, Set<PpmsPrivilege>> getPrivilegesBySystem() {
+        return privilegesBySystem;
+    }
+
+    /**
+     * Returns activeSystems.
+     * @return the activeSystems
+     */
+    public List<PpmsSystem> getActiveSystems() {
+        return activeSystems;
+    }
+
+    /**
+     * Returns activeSystemsWithAutonomy.
+     * @return the activeSystemsWithAutonomy
+     */
+    public List<PpmsSystem> getActiveSystemsWithAutonomy() {
+        return activeSystemsWithAutonomy;
+    }
+
+}
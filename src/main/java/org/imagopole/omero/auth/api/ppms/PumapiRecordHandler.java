@@ -0,0 +1,27 @@
+/**
+ *
+ */
+package org.imagopole.omero.auth.api.ppms;
+
+/**
+ * Callback for the records of a streamed PUMAPI listing.
+ *
+ * Records are handed over one at a time while the response is being read, so that callbacks
+ * should be short-lived: the underlying connection is held until the listing completes.
+ *
+ * @param <T> the record type
+ *
+ * @author seb
+ *
+ */
+public interface PumapiRecordHandler<T> {
+
+    /**
+     * Handles a single listing record.
+     *
+     * @param record the record
+     * @return true to proceed with the next record, false to stop the listing
+     */
+    boolean handle(T record);
+
+}
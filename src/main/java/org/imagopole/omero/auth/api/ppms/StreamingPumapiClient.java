@@ -0,0 +1,39 @@
+/**
+ *
+ */
+package org.imagopole.omero.auth.api.ppms;
+
+import org.imagopole.ppms.api.PumapiClient;
+import org.imagopole.ppms.api.PumapiException;
+import org.imagopole.ppms.api.dto.PpmsUserPrivilege;
+
+/**
+ * A {@link PumapiClient} which may also hand over bulk listings record by record, so that
+ * they are processed in constant memory instead of being materialized as a whole.
+ *
+ * @author seb
+ *
+ */
+public interface StreamingPumapiClient extends PumapiClient {
+
+    /**
+     * Streams the PPMS users logins.
+     *
+     * @param active the users status filter (optional - all users if null)
+     * @param handler the callback for each login
+     * @return the number of logins handed over
+     * @throws PumapiException in case of an underlying error (API or technical)
+     */
+    int forEachUser(Boolean active, PumapiRecordHandler<String> handler) throws PumapiException;
+
+    /**
+     * Streams a PPMS user's privileges on the PPMS systems.
+     *
+     * @param login the username / PPMS identifier
+     * @param handler the callback for each privilege
+     * @return the number of privileges handed over
+     * @throws PumapiException in case of an underlying error (API or technical)
+     */
+    int forEachUserRight(String login, PumapiRecordHandler<PpmsUserPrivilege> handler) throws PumapiException;
+
+}
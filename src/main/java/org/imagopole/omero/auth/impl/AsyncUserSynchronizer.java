@@ -0,0 +1,493 @@
+/**
+ *
+ */
+package org.imagopole.omero.auth.impl;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ome.security.basic.PrincipalHolder;
+import ome.services.util.Executor;
+import ome.system.Principal;
+import ome.system.ServiceFactory;
+
+import org.hibernate.Session;
+import org.imagopole.omero.auth.api.SynchronizingPasswordProvider;
+import org.imagopole.omero.auth.util.Check;
+import org.imagopole.omero.auth.util.DaemonThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Background accounts synchronization queue, which takes the post-login synchronization off the
+ * authentication critical path.
+ *
+ * Usernames are queued upon successful authentication - once the login transaction has committed,
+ * since a first login creates the account within that transaction - then synchronized by worker threads,
+ * each synchronization being run within its own OMERO executor context (logged in with the
+ * system principal of the login which queued it) and its own {@link ExternalLoginContext}.
+ *
+ * The queue is bounded, and a username already waiting in the queue is not queued twice.
+ * If the queue is full (or stopped), submissions are refused so that callers may fall back
+ * onto a synchronous synchronization.
+ * Upon shutdown, the queued usernames are drained within a bounded delay.
+ *
+ * Disabled by default.
+ *
+ * @author seb
+ *
+ */
+public class AsyncUserSynchronizer {
+
+    /** Application logs. */
+    private final Logger log = LoggerFactory.getLogger(AsyncUserSynchronizer.class);
+
+    /** Provider in charge of the accounts synchronization. */
+    private SynchronizingPasswordProvider synchronizingProvider;
+
+    /** OMERO executor for the synchronization units of work. */
+    private Executor executor;
+
+    /** OMERO current principal holder, for the system principal lookup upon submission. */
+    private PrincipalHolder principalHolder;
+
+    /** Flag to activate the asynchronous synchronization (optional - disabled by default). */
+    private Boolean enabled;
+
+    /** Maximum number of queued usernames. */
+    private int capacity = SyncConfig.DEFAULT_CAPACITY;
+
+    /** Number of worker threads. */
+    private int threads = SyncConfig.DEFAULT_THREADS;
+
+    /** Maximum time in seconds to drain the queue upon shutdown. */
+    private int drainTimeoutSeconds = SyncConfig.DEFAULT_DRAIN_TIMEOUT_SECONDS;
+
+    /** Usernames waiting for synchronization (null if not started). */
+    private volatile BlockingQueue<String> queue;
+
+    /** Usernames currently in the queue, for duplicates coalescing. */
+    private final Set<String> pending = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /** Worker threads (null if not started). */
+    private volatile ExecutorService workers;
+
+    /** Flag raised upon shutdown - workers exit once the queue is drained. */
+    private volatile boolean stopping;
+
+    /** System principal for the workers executor contexts (captured upon first submission). */
+    private volatile Principal systemPrincipal;
+
+    /** Accepted submissions count. */
+    private final AtomicLong submittedCount = new AtomicLong();
+
+    /** Submissions coalesced with an already queued username. */
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    /** Refused submissions count (queue full or stopped). */
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    /** Completed synchronizations count. */
+    private final AtomicLong syncedCount = new AtomicLong();
+
+    /** Failed synchronizations count. */
+    private final AtomicLong failedCount = new AtomicLong();
+
+    protected AsyncUserSynchronizer() {
+        super();
+    }
+
+    public AsyncUserSynchronizer(
+                    SynchronizingPasswordProvider synchronizingProvider,
+                    Executor executor,
+                    PrincipalHolder principalHolder) {
+        super();
+
+        Check.notNull(synchronizingProvider, "synchronizingProvider");
+        Check.notNull(executor, "executor");
+        Check.notNull(principalHolder, "principalHolder");
+        this.synchronizingProvider = synchronizingProvider;
+        this.executor = executor;
+        this.principalHolder = principalHolder;
+    }
+
+    /**
+     * Starts the worker threads, if enabled.
+     */
+    public synchronized void start() {
+        if (null == enabled || !enabled.booleanValue()) {
+            log.debug("[external_auth][sync] Asynchronous synchronization disabled");
+            return;
+        }
+        if (null != workers) {
+            return;
+        }
+
+        stopping = false;
+        queue = new LinkedBlockingQueue<String>(capacity);
+
+        ExecutorService executorService =
+            Executors.newFixedThreadPool(threads, new DaemonThreadFactory(SyncConfig.THREADS_NAME));
+        for (int i = 0; i < threads; ++i) {
+            executorService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            });
+        }
+        workers = executorService;
+
+        log.info("[external_auth][sync] Started asynchronous synchronization [threads:{} - capacity:{}]",
+                 threads, capacity);
+    }
+
+    /**
+     * Stops accepting submissions, and waits for the queued usernames to be synchronized
+     * (up to the drain timeout).
+     */
+    public synchronized void shutdown() {
+        ExecutorService executorService = workers;
+        if (null == executorService) {
+            return;
+        }
+
+        stopping = true;
+        executorService.shutdown();
+
+        log.info("[external_auth][sync] Draining synchronization queue [queued:{}]", getQueuedCount());
+
+        try {
+            if (!executorService.awaitTermination(drainTimeoutSeconds, TimeUnit.SECONDS)) {
+                log.warn("[external_auth][sync] Synchronization queue not drained after {}s - dropping: {}",
+                         drainTimeoutSeconds, getQueuedCount());
+                executorService.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executorService.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        workers = null;
+    }
+
+    /**
+     * Queues a username for synchronization.
+     *
+     * Must be invoked from within an OMERO executor context (ie. upon login), whose principal is
+     * reused for the background synchronizations.
+     *
+     * Within a transaction, the username is only queued once the transaction has committed (and
+     * not at all if it rolls back), so that the workers do not look up an account which is not
+     * visible yet. The queue capacity is checked upfront for the synchronous fallback, but a
+     * username refused upon commit is only synchronized again upon the next login.
+     *
+     * @param username the experimenter login
+     * @return true if the username is (or was already, or will be upon commit) queued, false if
+     * the caller should synchronize it synchronously
+     */
+    public boolean submit(final String username) {
+        Check.notEmpty(username, "username");
+
+        final BlockingQueue<String> currentQueue = queue;
+        if (null == currentQueue || stopping || !captureSystemPrincipal()) {
+            rejectedCount.incrementAndGet();
+            return false;
+        }
+
+        boolean result = true;
+
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            if (!pending.contains(username) && 0 == currentQueue.remainingCapacity()) {
+                rejectedCount.incrementAndGet();
+                result = false;
+
+                log.warn("[external_auth][sync] Synchronization queue full [capacity:{}] - refused user: {}",
+                         capacity, username);
+            } else {
+                TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                    @Override
+                    public void afterCommit() {
+                        if (!enqueue(currentQueue, username)) {
+                            log.warn("[external_auth][sync] Synchronization skipped until next login for user: {}",
+                                     username);
+                        }
+                    }
+                });
+            }
+        } else {
+            result = enqueue(currentQueue, username);
+        }
+
+        return result;
+    }
+
+    private boolean enqueue(BlockingQueue<String> currentQueue, String username) {
+        boolean result = true;
+
+        if (!pending.add(username)) {
+            coalescedCount.incrementAndGet();
+            log.debug("[external_auth][sync] Coalesced synchronization request for user: {}", username);
+        } else if (currentQueue.offer(username)) {
+            submittedCount.incrementAndGet();
+        } else {
+            pending.remove(username);
+            rejectedCount.incrementAndGet();
+            result = false;
+
+            log.warn("[external_auth][sync] Synchronization queue full [capacity:{}] - refused user: {}",
+                     capacity, username);
+        }
+
+        return result;
+    }
+
+    private boolean captureSystemPrincipal() {
+        if (null == systemPrincipal && principalHolder.size() > 0) {
+            systemPrincipal = principalHolder.getLast();
+        }
+
+        return (null != systemPrincipal);
+    }
+
+    private void drain() {
+        BlockingQueue<String> currentQueue = queue;
+
+        while (true) {
+            String username = null;
+
+            try {
+                username = currentQueue.poll(SyncConfig.POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+
+            if (null == username) {
+                if (stopping) {
+                    break;
+                }
+                continue;
+            }
+
+            // from now on, a new login for this user queues a new synchronization
+            pending.remove(username);
+
+            long startTime = System.currentTimeMillis();
+            try {
+                runInSystemContext(username);
+                syncedCount.incrementAndGet();
+
+                log.debug("[external_auth][sync] Synchronized user: {} in {} ms",
+                          username, (System.currentTimeMillis() - startTime));
+            } catch (RuntimeException e) {
+                failedCount.incrementAndGet();
+                log.warn("[external_auth][sync] Failed background synchronization for user: {}", username, e);
+            }
+        }
+    }
+
+    /**
+     * Synchronizes a user within a new OMERO executor context, logged in as the system principal.
+     *
+     * @param username the experimenter login
+     */
+    protected void runInSystemContext(final String username) {
+        executor.execute(systemPrincipal, new Executor.SimpleWork(this, "synchronizeUser", username) {
+            @Override
+            @Transactional(readOnly = false)
+            public Object doWork(Session session, ServiceFactory sf) {
+                synchronizeInLoginContext(username);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Synchronizes a user within its own login context, so that the external source lookups are
+     * memoized as they would be upon login.
+     *
+     * @param username the experimenter login
+     */
+    protected void synchronizeInLoginContext(String username) {
+        ExternalLoginContext.open(username);
+        try {
+            synchronizingProvider.synchronizeUser(username);
+        } finally {
+            ExternalLoginContext.close();
+        }
+    }
+
+    /**
+     * Returns the number of usernames waiting for synchronization.
+     *
+     * @return the queue size
+     */
+    public int getQueuedCount() {
+        BlockingQueue<String> currentQueue = queue;
+        return (null == currentQueue ? 0 : currentQueue.size());
+    }
+
+    /**
+     * Returns the number of accepted submissions.
+     *
+     * @return the submissions count
+     */
+    public long getSubmittedCount() {
+        return submittedCount.get();
+    }
+
+    /**
+     * Returns the number of submissions coalesced with an already queued username.
+     *
+     * @return the coalesced submissions count
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * Returns the number of refused submissions.
+     *
+     * @return the rejected submissions count
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * Returns the number of completed background synchronizations.
+     *
+     * @return the synchronizations count
+     */
+    public long getSyncedCount() {
+        return syncedCount.get();
+    }
+
+    /**
+     * Returns the number of failed background synchronizations.
+     *
+     * @return the failures count
+     */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * Returns enabled.
+     * @return the enabled
+     */
+    public Boolean getEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Sets enabled.
+     * @param enabled the enabled to set
+     */
+    public void setEnabled(Boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Returns capacity.
+     * @return the capacity
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Sets capacity.
+     *
+     * Null or non-positive values are ignored.
+     *
+     * @param capacity the capacity to set
+     */
+    public void setCapacity(Integer capacity) {
+        if (null != capacity && capacity > 0) {
+            this.capacity = capacity;
+        }
+    }
+
+    /**
+     * Returns threads.
+     * @return the threads
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Sets threads.
+     *
+     * Null or non-positive values are ignored.
+     *
+     * @param threads the threads to set
+     */
+    public void setThreads(Integer threads) {
+        if (null != threads && threads > 0) {
+            this.threads = threads;
+        }
+    }
+
+    /**
+     * Returns drainTimeoutSeconds.
+     * @return the drainTimeoutSeconds
+     */
+    public int getDrainTimeoutSeconds() {
+        return drainTimeoutSeconds;
+    }
+
+    /**
+     * Sets drainTimeoutSeconds.
+     *
+     * Null or non-positive values are ignored.
+     *
+     * @param drainTimeoutSeconds the drainTimeoutSeconds to set
+     */
+    public void setDrainTimeoutSeconds(Integer drainTimeoutSeconds) {
+        if (null != drainTimeoutSeconds && drainTimeoutSeconds > 0) {
+            this.drainTimeoutSeconds = drainTimeoutSeconds;
+        }
+    }
+
+    /**
+     * Internal settings for the synchronization queue.
+     *
+     * @author seb
+     *
+     */
+    private final class SyncConfig {
+        /** Default maximum number of queued usernames. */
+        private static final int DEFAULT_CAPACITY              = 1000;
+
+        /** Default number of worker threads. */
+        private static final int DEFAULT_THREADS               = 2;
+
+        /** Default maximum time to drain the queue upon shutdown in seconds. */
+        private static final int DEFAULT_DRAIN_TIMEOUT_SECONDS = 30;
+
+        /** Workers queue polling interval in milliseconds (for shutdown checks). */
+        private static final long POLL_MILLIS                  = 500L;
+
+        /** Worker threads name prefix. */
+        private static final String THREADS_NAME               = "ppms-user-sync";
+
+        /** Constants class. */
+        private SyncConfig() {
+            super();
+        }
+    }
+
+}
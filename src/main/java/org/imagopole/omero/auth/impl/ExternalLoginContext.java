@@ -0,0 +1,173 @@
+/**
+ *
+ */
+package org.imagopole.omero.auth.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.imagopole.omero.auth.util.Check;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Thread-bound scope for a single login, in which the answers from the external source may be
+ * memoized so that the chained providers, new user services and group beans invoked for the same
+ * login do not query the external source repeatedly.
+ *
+ * The context is opened and closed by {@link SynchronizingPasswordProviders} around each password
+ * check. Nested openings on the same thread share the outermost context, which is only cleared
+ * once the outermost scope is closed.
+ *
+ * Not thread-safe: a context is only ever visible to the thread it is bound to.
+ *
+ * @author seb
+ *
+ */
+public final class ExternalLoginContext {
+
+    /** Application logs. */
+    private static final Logger LOG = LoggerFactory.getLogger(ExternalLoginContext.class);
+
+    /** Login context bound to the current thread, if any. */
+    private static final ThreadLocal<ExternalLoginContext> CURRENT = new ThreadLocal<ExternalLoginContext>();
+
+    /** The login username. */
+    private final String userName;
+
+    /** Memoized values, by key. */
+    private final Map<Object, Object> values = new HashMap<Object, Object>();
+
+    /** Number of nested openings on the bound thread. */
+    private int depth;
+
+    private ExternalLoginContext(String userName) {
+        super();
+        this.userName = userName;
+    }
+
+    /**
+     * Binds a new login context to the current thread, or re-enters the already bound context.
+     *
+     * Each call must be matched by a call to {@link #close()} in a <code>finally</code> block.
+     *
+     * @param userName the login username
+     * @return the bound login context
+     */
+    public static ExternalLoginContext open(String userName) {
+        ExternalLoginContext result = CURRENT.get();
+
+        if (null == result) {
+            result = new ExternalLoginContext(userName);
+            CURRENT.set(result);
+
+            LOG.debug("[external_auth][chain] Opened login context for username: {}", userName);
+        }
+        result.depth++;
+
+        return result;
+    }
+
+    /**
+     * Leaves the login context bound to the current thread, and clears it upon leaving the
+     * outermost scope.
+     */
+    public static void close() {
+        ExternalLoginContext context = CURRENT.get();
+
+        if (null != context) {
+            context.depth--;
+
+            if (context.depth <= 0) {
+                CURRENT.remove();
+
+                LOG.debug("[external_auth][chain] Closed login context for username: {} [memoized:{}]",
+                          context.userName, context.values.size());
+                context.values.clear();
+            }
+        }
+    }
+
+    /**
+     * Returns the login context bound to the current thread.
+     *
+     * @return the current login context, or null outside of a login
+     */
+    public static ExternalLoginContext current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Checks whether a value has been memoized for the given key (possibly a null value).
+     *
+     * @param key the value key
+     * @return true if memoized
+     */
+    public boolean contains(Object key) {
+        return values.containsKey(key);
+    }
+
+    /**
+     * Returns the memoized value for the given key.
+     *
+     * @param key the value key
+     * @return the memoized value, or null if none (or if a null value was memoized)
+     */
+    public Object get(Object key) {
+        return values.get(key);
+    }
+
+    /**
+     * Memoizes a value for the remainder of the login.
+     *
+     * @param key the value key
+     * @param value the value (may be null)
+     */
+    public void put(Object key, Object value) {
+        Check.notNull(key, "key");
+        values.put(key, value);
+    }
+
+    /**
+     * Returns a copy of the memoized values, eg. to hand them over to the login thread from a
+     * helper thread which performed lookups on its behalf.
+     *
+     * @return the memoized values, by key
+     */
+    public Map<Object, Object> snapshot() {
+        return new HashMap<Object, Object>(values);
+    }
+
+    /**
+     * Memoizes the given values for the remainder of the login, unless already memoized.
+     *
+     * @param memoized the values to memoize, by key
+     */
+    public void merge(Map<Object, Object> memoized) {
+        Check.notNull(memoized, "memoized");
+
+        for (Map.Entry<Object, Object> entry : memoized.entrySet()) {
+            if (!values.containsKey(entry.getKey())) {
+                values.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Returns the number of memoized values.
+     *
+     * @return the number of memoized values
+     */
+    public int size() {
+        return values.size();
+    }
+
+    /**
+     * Returns userName.
+     * @return the userName
+     */
+    public String getUserName() {
+        return userName;
+    }
+
+}
@@ -3,11 +3,24 @@
  */
 package org.imagopole.omero.auth.impl;
 
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 import ome.security.auth.PasswordChangeException;
 import ome.security.auth.PasswordProvider;
+import ome.security.auth.PasswordUtil;
 
 import org.imagopole.omero.auth.api.SynchronizingPasswordProvider;
 import org.imagopole.omero.auth.util.Check;
+import org.imagopole.omero.auth.util.DaemonThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -27,7 +40,8 @@ import org.slf4j.LoggerFactory;
  * 2 - If the first provider is not responsible for the account, then check the second provider
  * for authentication.
  * 3 - If authentication was successful with either provider, then also synchronize the account via
- * the second provider.
+ * the second provider - either synchronously, or in the background if an {@link AsyncUserSynchronizer}
+ * is configured, in which case returning users do not wait for the synchronization upon login.
  *
  * This chaining logic differs from the default {@link ome.security.auth.PasswordProviders} mostly
  * in:
@@ -41,6 +55,17 @@ import org.slf4j.LoggerFactory;
  * {@link #checkPassword(String, String, boolean)} operation, it may require disabling to avoid
  * double-synching.
  *
+ * Each password check is performed within an {@link ExternalLoginContext} bound to the calling
+ * thread, which allows the external source lookups to be memoized for the duration of the login.
+ *
+ * In (optional) speculative mode, steps 0 and 1 are issued concurrently for accounts which already
+ * exist in OMERO: the second provider's account check runs on a helper thread while the first provider
+ * authenticates on the calling thread, and both results are then combined as above - the first provider's
+ * result being discarded for accounts unknown to the second provider. The login latency is then that of
+ * the slowest of both checks rather than their sum. Logins for accounts not yet known to OMERO always
+ * follow the sequential chain, so that the first provider never initializes an account unknown to the
+ * second one.
+ *
  * Note: this implementation is likely to require the OMERO LDAP configuration to be defined
  * together with the external configuration.
  *
@@ -61,6 +86,21 @@ public class SynchronizingPasswordProviders implements PasswordProvider {
     /** Optional authentication provider to be used as failover if the second one is unavailable. */
     private final PasswordProvider failoverProvider;
 
+    /** Optional background synchronization queue (synchronous synchronization if null or refused). */
+    private AsyncUserSynchronizer userSynchronizer;
+
+    /** Flag to overlap the account check with the primary authentication (optional - disabled by default). */
+    private Boolean speculative;
+
+    /** OMERO accounts lookup, required by the speculative mode (sequential chain if unset). */
+    private PasswordUtil passwordUtil;
+
+    /** Maximum number of concurrent speculative account checks (sequential chain beyond). */
+    private int speculativeThreads = ChainConfig.DEFAULT_THREADS;
+
+    /** Speculative account checks executor - lazily initialized upon first speculative login. */
+    private volatile ExecutorService speculativeExecutor;
+
     /**
      * Full constructor.
      *
@@ -166,14 +206,60 @@ public class SynchronizingPasswordProviders implements PasswordProvider {
             throw new IllegalStateException("This provider is expected to executeCheckPasswordRW");
         }
 
+        // scope the external source lookups to this login, so that the providers, new user service
+        // and group beans share a single answer for each lookup
+        ExternalLoginContext.open(user);
+        try {
+            chainResult = checkPasswordInContext(user, password, readOnly);
+        } finally {
+            ExternalLoginContext.close();
+        }
+
+        return chainResult;
+    }
+
+    /**
+     * Default chain implementation within a login context.
+     * @see #checkPassword(String, String, boolean)
+     */
+    private Boolean checkPasswordInContext(String user, String password, boolean readOnly) {
+        Boolean chainResult = null;
+
         // 0 - check the synchronizing provider "knows" about the user
-        Boolean hasUsername = synchronizingProvider.hasUsername(user);
+        // (speculatively overlapped with the primary authentication if so configured, for existing OMERO
+        // accounts only: the primary provider may otherwise initialize accounts unknown to the second one)
+        boolean isSpeculationAllowed = (isSpeculative() && isOmeroAccount(user));
+        Future<UsernameLookup> usernameLookup = (isSpeculationAllowed ? submitUsernameLookup(user) : null);
+        boolean isSpeculating = (null != usernameLookup);
+
+        Boolean hasUsername = null;
+        Boolean primaryResult = null;
+        RuntimeException primaryFailure = null;
+
+        if (isSpeculating) {
+            log.debug("[external_auth][chain] Chain step-0/1 - speculative primary authentication for user: {}", user);
+            try {
+                primaryResult = primaryProvider.checkPassword(user, password, readOnly);
+            } catch (RuntimeException e) {
+                // only surfaced if the decision table actually relies on the primary result
+                primaryFailure = e;
+            }
+            hasUsername = awaitUsernameLookup(user, usernameLookup);
+        } else {
+            hasUsername = synchronizingProvider.hasUsername(user);
+        }
+
         boolean isSyncProviderAvailable = (null != hasUsername);
         boolean isUsernameSynchronizable = (isSyncProviderAvailable && hasUsername);
 
         if (isUsernameSynchronizable) {
             // the user is present in the reference data source - proceed with the chained password verification
-            chainResult = checkPasswordChain(user, password, readOnly);
+            if (isSpeculating) {
+                Boolean speculativeResult = primaryOutcome(primaryResult, primaryFailure);
+                chainResult = checkPasswordChain(user, password, readOnly, speculativeResult);
+            } else {
+                chainResult = checkPasswordChain(user, password, readOnly);
+            }
         } else {
             // the (reference) synchronizing provider may be disabled, or unable to provide information about
             // this username. Then, if a failover provider is configured, we want to attempt a graceful degradation.
@@ -183,7 +269,17 @@ public class SynchronizingPasswordProviders implements PasswordProvider {
 
             if (shouldFailover) {
                 log.warn("[external_auth][chain] Chain step-0 - Warning: attempting degraded mode for: {}", user);
-                chainResult = failoverProvider.checkPassword(user, password, readOnly);
+
+                // the failover provider may be the primary one, whose answer is then already known
+                boolean isFailoverSpeculated = (isSpeculating && failoverProvider == primaryProvider);
+                if (isFailoverSpeculated) {
+                    chainResult = primaryOutcome(primaryResult, primaryFailure);
+                } else {
+                    chainResult = failoverProvider.checkPassword(user, password, readOnly);
+                }
+            } else if (isSpeculating) {
+                log.debug("[external_auth][chain] Chain step-0 - Discarding speculative primary result: {} for: {}",
+                          primaryResult, user);
             }
 
             log.info("[external_auth][chain] Chain step-0 - Unsynchronizable username result: {} for: {}[{}]",
@@ -198,12 +294,20 @@ public class SynchronizingPasswordProviders implements PasswordProvider {
      * @see #checkPassword(String, String, boolean)
      */
     private Boolean checkPasswordChain(String user, String password, boolean readOnly) {
-        Boolean chainResult = null;
-
         // 1 - check primary (LDAP) provider
         log.debug("[external_auth][chain] Chain step-1 - primary authentication for user: {}", user);
         Boolean primaryResult = primaryProvider.checkPassword(user, password, readOnly);
 
+        return checkPasswordChain(user, password, readOnly, primaryResult);
+    }
+
+    /**
+     * Default chain implementation once the primary authentication has been performed.
+     * @see #checkPassword(String, String, boolean)
+     */
+    private Boolean checkPasswordChain(String user, String password, boolean readOnly, Boolean primaryResult) {
+        Boolean chainResult = null;
+
         // 2 - check external provider if needed
         Boolean externalResult = null;
         if (null == primaryResult) {
@@ -228,12 +332,267 @@ public class SynchronizingPasswordProviders implements PasswordProvider {
         boolean isAuthSuccess = (null != chainResult && chainResult);
         if (isAuthSuccess) {
 
-            log.debug("[external_auth][chain] Chain step-3 - external synchronization for user: {}", user);
-            synchronizingProvider.synchronizeUser(user);
+            boolean isQueued = (null != userSynchronizer && userSynchronizer.submit(user));
+
+            if (isQueued) {
+                log.debug("[external_auth][chain] Chain step-3 - queued external synchronization for user: {}", user);
+            } else {
+                log.debug("[external_auth][chain] Chain step-3 - external synchronization for user: {}", user);
+                synchronizingProvider.synchronizeUser(user);
+            }
 
         }
 
         return chainResult;
     }
 
+    /**
+     * Returns the speculative primary authentication result, or rethrows its failure.
+     */
+    private static Boolean primaryOutcome(Boolean primaryResult, RuntimeException primaryFailure) {
+        if (null != primaryFailure) {
+            throw primaryFailure;
+        }
+
+        return primaryResult;
+    }
+
+    /**
+     * Issues the synchronizing provider's username check on a helper thread.
+     *
+     * @param user the login username
+     * @return the pending username check, or null if no helper thread is idle (ie. no speculation)
+     */
+    private Future<UsernameLookup> submitUsernameLookup(String user) {
+        Future<UsernameLookup> result = null;
+
+        try {
+            result = getSpeculativeExecutor().submit(new UsernameLookup(user));
+        } catch (RejectedExecutionException ree) {
+            log.debug("[external_auth][chain] No idle speculative thread - sequential chain for user: {}", user);
+        }
+
+        return result;
+    }
+
+    /**
+     * Waits for the synchronizing provider's username check, with the same outcome as if it had
+     * been performed on the login thread - including the lookups memoized in the login context.
+     *
+     * @param user the login username
+     * @param usernameLookup the pending username check
+     * @return the username check result (null if the synchronizing provider is unavailable)
+     */
+    private Boolean awaitUsernameLookup(String user, Future<UsernameLookup> usernameLookup) {
+        Boolean result = null;
+
+        try {
+            UsernameLookup lookup = usernameLookup.get();
+            result = lookup.hasUsername;
+
+            ExternalLoginContext loginContext = ExternalLoginContext.current();
+            if (null != loginContext) {
+                loginContext.merge(lookup.memoized);
+            }
+        } catch (InterruptedException ie) {
+            log.warn("[external_auth][chain] Interrupted speculative username check for user: {}", user);
+            usernameLookup.cancel(true);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+
+        return result;
+    }
+
+    private ExecutorService getSpeculativeExecutor() {
+        ExecutorService result = speculativeExecutor;
+
+        if (null == result) {
+            synchronized (this) {
+                result = speculativeExecutor;
+
+                if (null == result) {
+                    // no queueing: a lookup waiting for a busy thread would not overlap anything
+                    result = new ThreadPoolExecutor(
+                                speculativeThreads, speculativeThreads,
+                                0L, TimeUnit.MILLISECONDS,
+                                new SynchronousQueue<Runnable>(),
+                                new DaemonThreadFactory(ChainConfig.THREADS_NAME));
+                    speculativeExecutor = result;
+
+                    log.info("[external_auth][chain] Started speculative username checks executor [threads:{}]",
+                             speculativeThreads);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Stops the speculative username checks threads, if any.
+     */
+    public void shutdown() {
+        ExecutorService checksExecutor = speculativeExecutor;
+
+        if (null != checksExecutor) {
+            log.info("[external_auth][chain] Stopping speculative username checks executor");
+            checksExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Checks whether the speculative mode is active.
+     *
+     * @return true if the username check and the primary authentication may be overlapped
+     */
+    public boolean isSpeculative() {
+        return (null != speculative && speculative.booleanValue());
+    }
+
+    /**
+     * Checks whether the user already has an OMERO account.
+     *
+     * @param user the login username
+     * @return true if known to OMERO, false otherwise (or if the accounts lookup is not configured)
+     */
+    private boolean isOmeroAccount(String user) {
+        boolean result = (null != passwordUtil && null != passwordUtil.userId(user));
+
+        if (!result) {
+            log.debug("[external_auth][chain] Chain step-0 - no speculation for user unknown to OMERO: {}", user);
+        }
+
+        return result;
+    }
+
+    /**
+     * Username check performed on behalf of the login thread, within a login context of its own
+     * whose memoized lookups are then handed over to the login thread.
+     */
+    private final class UsernameLookup implements Callable<UsernameLookup> {
+
+        /** The login username. */
+        private final String user;
+
+        /** The username check result. */
+        private Boolean hasUsername;
+
+        /** The lookups memoized during the username check. */
+        private Map<Object, Object> memoized = Collections.emptyMap();
+
+        private UsernameLookup(String user) {
+            super();
+            this.user = user;
+        }
+
+        @Override
+        public UsernameLookup call() {
+            ExternalLoginContext context = ExternalLoginContext.open(user);
+            try {
+                hasUsername = synchronizingProvider.hasUsername(user);
+                memoized = context.snapshot();
+            } finally {
+                ExternalLoginContext.close();
+            }
+
+            return this;
+        }
+    }
+
+    /**
+     * Returns userSynchronizer.
+     * @return the userSynchronizer
+     */
+    public AsyncUserSynchronizer getUserSynchronizer() {
+        return userSynchronizer;
+    }
+
+    /**
+     * Sets userSynchronizer.
+     * @param userSynchronizer the userSynchronizer to set
+     */
+    public void setUserSynchronizer(AsyncUserSynchronizer userSynchronizer) {
+        this.userSynchronizer = userSynchronizer;
+    }
+
+    /**
+     * Returns speculative.
+     * @return the speculative
+     */
+    public Boolean getSpeculative() {
+        return speculative;
+    }
+
+    /**
+     * Sets speculative.
+     * @param speculative the speculative to set
+     */
+    public void setSpeculative(Boolean speculative) {
+        this.speculative = speculative;
+    }
+
+    /**
+     * Returns passwordUtil.
+     * @return the passwordUtil
+     */
+    public PasswordUtil getPasswordUtil() {
+        return passwordUtil;
+    }
+
+    /**
+     * Sets passwordUtil.
+     * @param passwordUtil the passwordUtil to set
+     */
+    public void setPasswordUtil(PasswordUtil passwordUtil) {
+        this.passwordUtil = passwordUtil;
+    }
+
+    /**
+     * Returns speculativeThreads.
+     * @return the speculativeThreads
+     */
+    public int getSpeculativeThreads() {
+        return speculativeThreads;
+    }
+
+    /**
+     * Sets speculativeThreads.
+     *
+     * Null or non-positive values are ignored.
+     *
+     * @param speculativeThreads the speculativeThreads to set
+     */
+    public void setSpeculativeThreads(Integer speculativeThreads) {
+        if (null != speculativeThreads && speculativeThreads > 0) {
+            this.speculativeThreads = speculativeThreads;
+        }
+    }
+
+    /**
+     * Internal settings for the providers chain.
+     *
+     * @author seb
+     *
+     */
+    private final class ChainConfig {
+        /** Default number of speculative account check threads. */
+        private static final int DEFAULT_THREADS    = 8;
+
+        /** Speculative account check threads name prefix. */
+        private static final String THREADS_NAME    = "ppms-chain-speculative";
+
+        /** Constants class. */
+        private ChainConfig() {
+            super();
+        }
+    }
+
 }
@@ -0,0 +1,231 @@
+/**
+ *
+ */
+package org.imagopole.omero.auth.impl.ppms;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.store.FifoPolicy;
+import net.sf.ehcache.store.LfuPolicy;
+import net.sf.ehcache.store.LruPolicy;
+import net.sf.ehcache.store.MemoryStoreEvictionPolicy;
+import net.sf.ehcache.store.Policy;
+
+import org.imagopole.ppms.util.Check;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runtime overrides for one of the PUMAPI cache regions declared in <code>pumapi-ehcache.xml</code>.
+ *
+ * Allows the cache sizing and expiry settings to be defined with 'bin/omero config' rather than
+ * by editing the Ehcache configuration file bundled within the extension jar.
+ * Any unset (ie. null) value leaves the corresponding Ehcache setting untouched.
+ *
+ * A disabled region is removed from the cache manager, in which case the matching
+ * PUMAPI invocations are passed through to the underlying client.
+ *
+ * @author seb
+ *
+ */
+public class CacheRegionSettings {
+
+    /** Application logs. */
+    private final Logger log = LoggerFactory.getLogger(CacheRegionSettings.class);
+
+    /** Cache region name, as configured in pumapi-ehcache.xml. */
+    private String name;
+
+    /** Flag to (de)activate the cache region (optional - enabled by default). */
+    private Boolean enabled;
+
+    /** Elements TTL override in seconds (optional). */
+    private Long timeToLiveSeconds;
+
+    /** Elements TTI override in seconds (optional). */
+    private Long timeToIdleSeconds;
+
+    /** Maximum number of elements in memory override (optional). */
+    private Integer maxEntries;
+
+    /** Memory store eviction policy name override - one of LRU, LFU or FIFO (optional). */
+    private String evictionPolicy;
+
+    /**
+     * Default constructor.
+     */
+    public CacheRegionSettings() {
+        super();
+    }
+
+    /**
+     * Full constructor.
+     *
+     * @param name the cache region name
+     * @param timeToLiveSeconds the elements TTL override in seconds, or null
+     * @param maxEntries the maximum number of in-memory elements override, or null
+     */
+    public CacheRegionSettings(String name, Long timeToLiveSeconds, Integer maxEntries) {
+        super();
+        this.name = name;
+        this.timeToLiveSeconds = timeToLiveSeconds;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Checks whether the cache region should be kept in the cache manager.
+     *
+     * @return false if the region has been explicitly disabled, true otherwise
+     */
+    public boolean isRegionEnabled() {
+        return (null == enabled || enabled.booleanValue());
+    }
+
+    /**
+     * Applies the non null overrides to the cache region runtime configuration.
+     *
+     * @param cache the cache region matching this configuration's name
+     */
+    public void applyTo(Ehcache cache) {
+        Check.notNull(cache, "cache");
+
+        CacheConfiguration cacheConfig = cache.getCacheConfiguration();
+
+        if (null != timeToLiveSeconds) {
+            cacheConfig.setTimeToLiveSeconds(timeToLiveSeconds);
+        }
+
+        if (null != timeToIdleSeconds) {
+            cacheConfig.setTimeToIdleSeconds(timeToIdleSeconds);
+        }
+
+        if (null != maxEntries) {
+            cacheConfig.setMaxElementsInMemory(maxEntries);
+        }
+
+        if (null != evictionPolicy && cache instanceof Cache) {
+            MemoryStoreEvictionPolicy policyType = MemoryStoreEvictionPolicy.fromString(evictionPolicy);
+            cacheConfig.setMemoryStoreEvictionPolicyFromObject(policyType);
+            ((Cache) cache).setMemoryStoreEvictionPolicy(toPolicy(policyType));
+        }
+
+        log.info("[external_auth][ppms][cache] Configured cache region: {} [ttl:{} - tti:{} - max_entries:{} - policy:{}]",
+                 cache.getName(),
+                 cacheConfig.getTimeToLiveSeconds(),
+                 cacheConfig.getTimeToIdleSeconds(),
+                 cacheConfig.getMaxElementsInMemory(),
+                 cacheConfig.getMemoryStoreEvictionPolicy());
+    }
+
+    private Policy toPolicy(MemoryStoreEvictionPolicy policyType) {
+        Policy result = null;
+
+        if (MemoryStoreEvictionPolicy.LFU.equals(policyType)) {
+            result = new LfuPolicy();
+        } else if (MemoryStoreEvictionPolicy.FIFO.equals(policyType)) {
+            result = new FifoPolicy();
+        } else {
+            result = new LruPolicy();
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns name.
+     * @return the name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Sets name.
+     * @param name the name to set
+     */
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns enabled.
+     * @return the enabled
+     */
+    public Boolean getEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Sets enabled.
+     * @param enabled the enabled to set
+     */
+    public void setEnabled(Boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Returns timeToLiveSeconds.
+     * @return the timeToLiveSeconds
+     */
+    public Long getTimeToLiveSeconds() {
+        return timeToLiveSeconds;
+    }
+
+    /**
+     * Sets timeToLiveSeconds.
+     * @param timeToLiveSeconds the timeToLiveSeconds to set
+     */
+    public void setTimeToLiveSeconds(Long timeToLiveSeconds) {
+        this.timeToLiveSeconds = timeToLiveSeconds;
+    }
+
+    /**
+     * Returns timeToIdleSeconds.
+     * @return the timeToIdleSeconds
+     */
+    public Long getTimeToIdleSeconds() {
+        return timeToIdleSeconds;
+    }
+
+    /**
+     * Sets timeToIdleSeconds.
+     * @param timeToIdleSeconds the timeToIdleSeconds to set
+     */
+    public void setTimeToIdleSeconds(Long timeToIdleSeconds) {
+        this.timeToIdleSeconds = timeToIdleSeconds;
+    }
+
+    /**
+     * Returns maxEntries.
+     * @return the maxEntries
+     */
+    public Integer getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Sets maxEntries.
+     * @param maxEntries the maxEntries to set
+     */
+    public void setMaxEntries(Integer maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Returns evictionPolicy.
+     * @return the evictionPolicy
+     */
+    public String getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
+    /**
+     * Sets evictionPolicy.
+     * @param evictionPolicy the evictionPolicy to set
+     */
+    public void setEvictionPolicy(String evictionPolicy) {
+        this.evictionPolicy = evictionPolicy;
+    }
+
+}
@@ -0,0 +1,228 @@
+/**
+ *
+ */
+package org.imagopole.omero.auth.impl.ppms;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.sf.ehcache.Ehcache;
+
+import org.imagopole.ppms.util.Check;
+
+/**
+ * Usage statistics for a PUMAPI cache region, as seen by the {@link CachingPumapiClient}.
+ *
+ * Load latencies are kept in a fixed-size ring buffer of the most recent delegate invocations,
+ * from which percentiles are computed on demand. Evictions and size are read from the
+ * underlying Ehcache region.
+ *
+ * @author seb
+ *
+ */
+public class CacheRegionStatistics {
+
+    /** Ring buffer size for the load latencies samples. */
+    private static final int LATENCY_SAMPLES = 1024;
+
+    /** Cache region. */
+    private final Ehcache cache;
+
+    /** Number of lookups served from the cache. */
+    private final AtomicLong hitCount = new AtomicLong();
+
+    /** Number of lookups not found in the cache. */
+    private final AtomicLong missCount = new AtomicLong();
+
+    /** Number of cache misses served from the negative cache. */
+    private final AtomicLong negativeHitCount = new AtomicLong();
+
+    /** Number of successful delegate invocations. */
+    private final AtomicLong loadCount = new AtomicLong();
+
+    /** Number of failed delegate invocations. */
+    private final AtomicLong loadFailureCount = new AtomicLong();
+
+    /** Most recent load latencies in nanoseconds. */
+    private final AtomicLongArray latencies = new AtomicLongArray(LATENCY_SAMPLES);
+
+    /** Total number of latency samples recorded. */
+    private final AtomicLong latencySamplesCount = new AtomicLong();
+
+    /**
+     * Full constructor.
+     *
+     * @param cache the cache region
+     */
+    public CacheRegionStatistics(Ehcache cache) {
+        super();
+
+        Check.notNull(cache, "cache");
+        this.cache = cache;
+    }
+
+    /**
+     * Records a cache hit.
+     */
+    public void recordHit() {
+        hitCount.incrementAndGet();
+    }
+
+    /**
+     * Records a cache miss.
+     */
+    public void recordMiss() {
+        missCount.incrementAndGet();
+    }
+
+    /**
+     * Records a cache miss served from the negative cache.
+     */
+    public void recordNegativeHit() {
+        negativeHitCount.incrementAndGet();
+    }
+
+    /**
+     * Records a delegate invocation.
+     *
+     * @param latencyNanos the invocation duration in nanoseconds
+     * @param success false if the invocation failed
+     */
+    public void recordLoad(long latencyNanos, boolean success) {
+        if (success) {
+            loadCount.incrementAndGet();
+        } else {
+            loadFailureCount.incrementAndGet();
+        }
+
+        int sampleIndex = (int) (latencySamplesCount.getAndIncrement() & (LATENCY_SAMPLES - 1));
+        latencies.set(sampleIndex, latencyNanos);
+    }
+
+    /**
+     * Resets all counters.
+     */
+    public void reset() {
+        hitCount.set(0);
+        missCount.set(0);
+        negativeHitCount.set(0);
+        loadCount.set(0);
+        loadFailureCount.set(0);
+        latencySamplesCount.set(0);
+    }
+
+    /**
+     * Computes a load latency percentile over the most recent invocations.
+     *
+     * @param percentile the percentile, within ]0, 100]
+     * @return the latency in milliseconds, or 0 if no invocation has been recorded
+     */
+    public double getLoadLatencyMillis(double percentile) {
+        int samplesCount = (int) Math.min(latencySamplesCount.get(), LATENCY_SAMPLES);
+        if (samplesCount <= 0) {
+            return 0;
+        }
+
+        long[] samples = new long[samplesCount];
+        for (int i = 0; i < samplesCount; ++i) {
+            samples[i] = latencies.get(i);
+        }
+        Arrays.sort(samples);
+
+        int rank = (int) Math.ceil(percentile / 100 * samplesCount) - 1;
+        long latencyNanos = samples[Math.max(0, Math.min(rank, samplesCount - 1))];
+
+        return latencyNanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * Returns the cache region name.
+     * @return the region name
+     */
+    public String getRegionName() {
+        return cache.getName();
+    }
+
+    /**
+     * Returns hitCount.
+     * @return the hitCount
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Returns missCount.
+     * @return the missCount
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Returns negativeHitCount.
+     * @return the negativeHitCount
+     */
+    public long getNegativeHitCount() {
+        return negativeHitCount.get();
+    }
+
+    /**
+     * Returns loadCount.
+     * @return the loadCount
+     */
+    public long getLoadCount() {
+        return loadCount.get();
+    }
+
+    /**
+     * Returns loadFailureCount.
+     * @return the loadFailureCount
+     */
+    public long getLoadFailureCount() {
+        return loadFailureCount.get();
+    }
+
+    /**
+     * Returns the median load latency.
+     * @return the latency in milliseconds
+     */
+    public double getLoadLatencyMedianMillis() {
+        return getLoadLatencyMillis(50);
+    }
+
+    /**
+     * Returns the 90th percentile load latency.
+     * @return the latency in milliseconds
+     */
+    public double getLoadLatency90thMillis() {
+        return getLoadLatencyMillis(90);
+    }
+
+    /**
+     * Returns the 99th percentile load latency.
+     * @return the latency in milliseconds
+     */
+    public double getLoadLatency99thMillis() {
+        return getLoadLatencyMillis(99);
+    }
+
+    /**
+     * Returns the number of entries evicted from the region.
+     * @return the eviction count
+     */
+    public long getEvictionCount() {
+        return cache.getStatistics().getEvictionCount();
+    }
+
+    /**
+     * Returns the current number of entries in the region.
+     * @return the size
+     */
+    public int getSize() {
+        return cache.getSize();
+    }
+
+}
@@ -3,13 +3,32 @@
  */
 package org.imagopole.omero.auth.impl.ppms;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.sf.ehcache.CacheException;
 import net.sf.ehcache.CacheManager;
 import net.sf.ehcache.Ehcache;
 import net.sf.ehcache.Element;
+import net.sf.ehcache.config.CacheConfiguration;
 
+import org.imagopole.omero.auth.impl.ppms.PumapiCacheKey.Invocation;
+import org.imagopole.omero.auth.util.DaemonThreadFactory;
 import org.imagopole.ppms.api.PumapiClient;
 import org.imagopole.ppms.api.PumapiException;
 import org.imagopole.ppms.api.config.PumapiConfig;
@@ -24,8 +43,34 @@ import org.slf4j.LoggerFactory;
 /**
  * A caching wrapper around a {@link PumapiClient}'s implementation.
  *
- * Only a subset of remote invocations are intercepted by the cache - volatile or uncacheable
- * data is passed through the underlying client delegate.
+ * Only a subset of remote invocations are intercepted by the cache - uncacheable data is passed
+ * through the underlying client delegate.
+ * Each cached invocation type has its own cache region (users, groups, systems, rights), with
+ * independent expiry, sizing and eviction settings. An invocation type whose region is not
+ * configured in the cache manager (eg. disabled) is passed through to the delegate as well.
+ *
+ * Lookups for unknown logins, units or systems (ie. null results) are remembered in a separate
+ * short-lived negative cache region, so that repeated logins by non-PPMS accounts do not reach PPMS.
+ * Negative caching is skipped if the region is not configured in the cache manager.
+ *
+ * Concurrent cache misses on the same key are coalesced: only one delegate invocation is
+ * in flight per key, and the other callers wait for (and share) its outcome. Exceptions raised
+ * by the delegate are propagated to all waiting callers and are never cached.
+ *
+ * Optionally, entries read after a given fraction of their lifetime (ie. TTL, or TTI for
+ * regions without TTL) are reloaded in the background while the current value is still
+ * being served (refresh-ahead).
+ *
+ * Optionally, the last known value for each key is kept for a bounded grace period past its
+ * expiry, and served in place of a PUMAPI failure (stale-if-error). A stale value served this way
+ * is cached again for a short retry interval, so that lookups do not pay the PUMAPI timeout on every
+ * call during an outage.
+ *
+ * Cache entries are keyed by immutable {@link PumapiCacheKey} instances, and the cache regions
+ * are resolved once at construction time, so that cache hits only allocate the key itself.
+ *
+ * Optionally, cache misses first fall back onto the entries persisted before the last server
+ * restart (see {@link PumapiCacheSnapshotStore}), before invoking the delegate.
  *
  * @author seb
  *
@@ -43,20 +88,75 @@ public class CachingPumapiClient implements PumapiClient {
     /** Injected {@link CacheManager} used to create various caches. */
     private CacheManager cacheManager;
 
+    /** Cache regions per invocation type, resolved at construction (disabled regions are absent). */
+    private final Map<Invocation, Ehcache> regions = new EnumMap<Invocation, Ehcache>(Invocation.class);
+
+    /** Usage statistics per invocation type (enabled regions only). */
+    private final Map<Invocation, CacheRegionStatistics> statistics =
+        new EnumMap<Invocation, CacheRegionStatistics>(Invocation.class);
+
+    /** Negative results cache region, resolved at construction (null if disabled). */
+    private Ehcache negativeCache;
+
+    /** Last known values cache region, resolved at construction (null if disabled). */
+    private Ehcache staleCache;
+
+    /** Delegate invocations currently in progress, indexed by cache key. */
+    private final ConcurrentMap<PumapiCacheKey, FutureTask<?>> inFlightLoads =
+        new ConcurrentHashMap<PumapiCacheKey, FutureTask<?>>();
+
+    /** Fraction of an entry's lifetime after which it gets refreshed in the background (optional). */
+    private Double refreshAheadRatio;
+
+    /** Maximum number of background refresh threads. */
+    private int refreshAheadThreads = RefreshConfig.DEFAULT_THREADS;
+
+    /** Background refresh executor - lazily initialized upon first refresh. */
+    private volatile ExecutorService refreshExecutor;
+
+    /** Grace period in seconds during which expired values may be served upon PUMAPI failure (optional). */
+    private Integer staleGraceSeconds;
+
+    /** Time to live in seconds of a stale value served upon PUMAPI failure, before PPMS is retried. */
+    private int staleRetrySeconds = StaleConfig.DEFAULT_RETRY_SECONDS;
+
+    /** Number of stale values served upon PUMAPI failure. */
+    private final AtomicLong staleServedCount = new AtomicLong();
+
+    /** Timestamp of the last stale value served upon PUMAPI failure (0 if never). */
+    private volatile long lastStaleServedTime;
+
+    /** Cache contents persisted before the last restart (optional). */
+    private PumapiCacheSnapshotStore snapshotStore;
+
+    /** Systems catalogue, invalidated along with the systems cache entries (optional). */
+    private PpmsSystemCatalogue systemCatalogue;
+
     protected CachingPumapiClient() {
         super();
     }
 
     public CachingPumapiClient(PumapiClient delegate, CacheManager cacheManager) {
+        this(delegate, cacheManager, Collections.<CacheRegionSettings>emptyList());
+    }
+
+    public CachingPumapiClient(
+                    PumapiClient delegate,
+                    CacheManager cacheManager,
+                    List<CacheRegionSettings> regionsSettings) {
         super();
 
         Check.notNull(delegate, "delegate");
         Check.notNull(cacheManager, "cacheManager");
+        Check.notNull(regionsSettings, "regionsSettings");
         this.delegate = delegate;
         this.cacheManager = cacheManager;
 
-        log.debug("[external_auth][ppms][cache] Wrapping pumapiClient delegate: {} with cache: {}",
-                  delegate, cacheManager.getEhcache(CacheConfig.CACHE_NAME));
+        configureRegions(regionsSettings);
+        resolveRegions();
+
+        log.debug("[external_auth][ppms][cache] Wrapping pumapiClient delegate: {} with caches: {}",
+                  delegate, Arrays.asList(cacheManager.getCacheNames()));
     }
 
     /**
@@ -91,20 +191,59 @@ public class CachingPumapiClient implements PumapiClient {
     public PpmsUser getUser(String login) throws PumapiException {
         Check.notEmpty(login, "login");
 
-        PpmsUser result = null;
+        return (PpmsUser) readThrough(PumapiCacheKey.forUser(login));
+    }
 
-        final String key = buildKey(CacheConfig.GET_USER_KEY, login);
-        final Element element = readFromCache(key);
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<PpmsUserPrivilege> getUserRights(String login) throws PumapiException {
+        Check.notEmpty(login, "login");
 
-        if (null == element) {
+        return (List<PpmsUserPrivilege>) readThrough(PumapiCacheKey.forUserRights(login));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PpmsGroup getGroup(String unitLogin) throws PumapiException {
+        Check.notEmpty(unitLogin, "unitLogin");
 
-            result = delegate.getUser(login);
-            writeToCacheIfNotNull(key, result);
+        return (PpmsGroup) readThrough(PumapiCacheKey.forGroup(unitLogin));
+    }
 
-        } else {
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PpmsSystem getSystem(Long systemId) throws PumapiException {
+        Check.notNull(systemId, "systemId");
+
+        return (PpmsSystem) readThrough(PumapiCacheKey.forSystem(systemId));
+    }
+
+    /**
+     * Looks up a system's details from the systems cache region only, without any PPMS call
+     * nor statistics update.
+     *
+     * @param systemId the system identifier
+     * @return the cached system details, or null if not cached (or if the region is disabled)
+     */
+    public PpmsSystem peekSystem(Long systemId) {
+        Check.notNull(systemId, "systemId");
 
-            result = (PpmsUser) element.getObjectValue();
+        PpmsSystem result = null;
+
+        Ehcache cache = regions.get(Invocation.GET_SYSTEM);
+        if (null != cache) {
+            Element element = cache.getQuiet(PumapiCacheKey.forSystem(systemId));
 
+            if (null != element) {
+                result = (PpmsSystem) element.getObjectValue();
+            }
         }
 
         return result;
@@ -114,31 +253,172 @@ public class CachingPumapiClient implements PumapiClient {
      * {@inheritDoc}
      */
     @Override
-    public List<PpmsUserPrivilege> getUserRights(String login) throws PumapiException {
-        // no caching - volatile data
-        return delegate.getUserRights(login);
+    public boolean authenticate(String login, String password) throws PumapiException {
+        // no caching - authentication data!
+        return delegate.authenticate(login, password);
     }
 
     /**
-     * {@inheritDoc}
+     * Stops the background refresh executor, if any.
+     *
+     * Pending refreshes are discarded - the matching entries will be reloaded upon expiry.
      */
-    @Override
-    public PpmsGroup getGroup(String unitLogin) throws PumapiException {
-        Check.notEmpty(unitLogin, "unitLogin");
+    public void shutdown() {
+        ExecutorService executor = refreshExecutor;
+
+        if (null != executor) {
+            log.info("[external_auth][ppms][cache] Stopping background refresh executor");
+
+            List<Runnable> pendingTasks = executor.shutdownNow();
+            for (Runnable pendingTask : pendingTasks) {
+                ((RefreshTask) pendingTask).discard();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of stale values served in place of a PUMAPI failure.
+     *
+     * @return the stale values count since startup
+     */
+    public long getStaleServedCount() {
+        return staleServedCount.get();
+    }
+
+    /**
+     * Returns the time at which a stale value was last served in place of a PUMAPI failure.
+     *
+     * @return the timestamp in milliseconds, or 0 if no stale value has been served
+     */
+    public long getLastStaleServedTime() {
+        return lastStaleServedTime;
+    }
+
+    /**
+     * Returns the usage statistics of the enabled cache regions.
+     *
+     * @return the statistics, in invocation type order
+     */
+    public List<CacheRegionStatistics> getRegionsStatistics() {
+        return new ArrayList<CacheRegionStatistics>(statistics.values());
+    }
+
+    /**
+     * Resets the usage statistics of all cache regions.
+     */
+    public void resetStatistics() {
+        for (CacheRegionStatistics regionStatistics : statistics.values()) {
+            regionStatistics.reset();
+        }
+        staleServedCount.set(0);
+    }
+
+    /**
+     * Discards all cached entries for a PPMS user: details and rights.
+     *
+     * @param login the PPMS user login
+     * @return the number of entries removed
+     */
+    public int evictUser(String login) {
+        Check.notEmpty(login, "login");
+
+        int result = evict(PumapiCacheKey.forUser(login)) + evict(PumapiCacheKey.forUserRights(login));
+        log.info("[external_auth][ppms][cache] Evicted {} cache entries for user: {}", result, login);
+
+        return result;
+    }
+
+    /**
+     * Discards all cached entries for a PPMS system, including its systems catalogue entry.
+     *
+     * @param systemId the PPMS system identifier
+     * @return the number of entries removed
+     */
+    public int evictSystem(Long systemId) {
+        Check.notNull(systemId, "systemId");
+
+        int result = evict(PumapiCacheKey.forSystem(systemId));
+        if (null != systemCatalogue && systemCatalogue.evict(systemId)) {
+            ++result;
+        }
+        log.info("[external_auth][ppms][cache] Evicted {} cache entries for system: {}", result, systemId);
+
+        return result;
+    }
+
+    /**
+     * Discards all cached entries from a cache region, including the matching negative,
+     * stale and persisted entries (and the systems catalogue for the systems region).
+     *
+     * @param regionName the cache region name
+     * @return the number of entries removed
+     * @throws IllegalArgumentException if the region is unknown or disabled
+     */
+    public int evictRegion(String regionName) {
+        Check.notEmpty(regionName, "regionName");
+
+        int result = 0;
 
-        PpmsGroup result = null;
+        for (Map.Entry<Invocation, Ehcache> region : regions.entrySet()) {
+            Ehcache cache = region.getValue();
 
-        final String key = buildKey(CacheConfig.GET_GROUP_KEY, unitLogin);
-        final Element element = readFromCache(key);
+            if (regionName.equals(cache.getName())) {
+                Invocation invocation = region.getKey();
+
+                result = cache.getSize();
+                cache.removeAll();
+                removeKeys(negativeCache, invocation);
+                removeKeys(staleCache, invocation);
+                if (null != snapshotStore) {
+                    snapshotStore.discard(invocation);
+                }
+                if (null != systemCatalogue && Invocation.GET_SYSTEM == invocation) {
+                    result += systemCatalogue.evictAll();
+                }
+
+                log.info("[external_auth][ppms][cache] Evicted {} cache entries from region: {}", result, regionName);
+                return result;
+            }
+        }
+
+        throw new IllegalArgumentException("Unknown cache region: " + regionName);
+    }
+
+    /**
+     * Cache-aside lookup: reads from the cache, or invokes the delegate and caches the result on a miss.
+     */
+    private final Object readThrough(PumapiCacheKey key) throws PumapiException {
+        Object result = null;
+
+        final Ehcache cache = regions.get(key.getInvocation());
+        if (null == cache) {
+            // region disabled: pass through
+            return invoke(key);
+        }
+
+        final CacheRegionStatistics regionStatistics = statistics.get(key.getInvocation());
+        Element element = readFromCache(cache, key);
+
+        if (null == element && null != snapshotStore) {
+            // first lookup since the last restart
+            element = snapshotStore.restore(cache, key);
+        }
 
         if (null == element) {
 
-            result = delegate.getGroup(unitLogin);
-            writeToCacheIfNotNull(key, result);
+            regionStatistics.recordMiss();
+            if (isNegativelyCached(key)) {
+                regionStatistics.recordNegativeHit();
+            } else {
+                result = loadOnce(cache, key);
+            }
 
         } else {
 
-            result = (PpmsGroup) element.getObjectValue();
+            regionStatistics.recordHit();
+            result = element.getObjectValue();
+            touchStaleCopy(key, element);
+            refreshAheadIfDue(cache, key, element);
 
         }
 
@@ -146,75 +426,582 @@ public class CachingPumapiClient implements PumapiClient {
     }
 
     /**
-     * {@inheritDoc}
+     * Performs the actual delegate invocation matching the cache key.
      */
-    @Override
-    public PpmsSystem getSystem(Long systemId) throws PumapiException {
-        Check.notNull(systemId, "systemId");
+    private final Object invoke(PumapiCacheKey key) throws PumapiException {
+        Object result = null;
 
-        PpmsSystem result = null;
+        switch (key.getInvocation()) {
+            case GET_USER:
+                result = delegate.getUser(key.getLogin());
+                break;
+            case GET_GROUP:
+                result = delegate.getGroup(key.getLogin());
+                break;
+            case GET_SYSTEM:
+                result = delegate.getSystem(key.getId());
+                break;
+            case GET_USER_RIGHTS:
+                result = delegate.getUserRights(key.getLogin());
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported invocation: " + key.getInvocation());
+        }
 
-        final String key = buildKey(CacheConfig.GET_SYSTEM_KEY, systemId);
-        final Element element = readFromCache(key);
+        return result;
+    }
 
-        if (null == element) {
+    /**
+     * Invokes the delegate unless an invocation for the same key is already in progress,
+     * in which case the outcome of the latter is awaited and shared.
+     */
+    private final Object loadOnce(Ehcache cache, PumapiCacheKey key) throws PumapiException {
+        Object result = null;
+
+        FutureTask<Object> load = new FutureTask<Object>(new CacheLoad(cache, key, false));
+        FutureTask<?> inFlight = inFlightLoads.putIfAbsent(key, load);
 
-            result = delegate.getSystem(systemId);
-            writeToCacheIfNotNull(key, result);
+        if (null == inFlight) {
+
+            try {
+                load.run();
+            } finally {
+                inFlightLoads.remove(key, load);
+            }
+            result = awaitLoad(key, load);
 
         } else {
+            log.debug("[external_auth][ppms][cache] Awaiting in-flight invocation for key: {}", key);
+
+            try {
+                result = awaitLoad(key, inFlight);
+            } catch (PumapiException e) {
+                // the joined invocation may be a refresh-ahead, which does not fall back onto stale values
+                Element staleElement = readFromStaleCache(key);
+                if (null == staleElement) {
+                    throw e;
+                }
+                result = serveStale(cache, key, staleElement, e);
+            }
+        }
 
-            result = (PpmsSystem) element.getObjectValue();
+        return result;
+    }
+
+    private final Object awaitLoad(PumapiCacheKey key, FutureTask<?> load) throws PumapiException {
+        try {
 
+            return load.get();
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PumapiException("Interrupted while awaiting PUMAPI invocation for key: " + key);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Schedules a background reload of the element if it has been read after the configured
+     * fraction of its lifetime, unless a load for the same key is already in progress.
+     */
+    private final void refreshAheadIfDue(Ehcache cache, PumapiCacheKey key, Element element) {
+        if (!isRefreshAheadEnabled() || !isRefreshDue(cache, element)) {
+            return;
+        }
+
+        FutureTask<Object> refresh = new FutureTask<Object>(new CacheLoad(cache, key, true));
+        FutureTask<?> inFlight = inFlightLoads.putIfAbsent(key, refresh);
+
+        if (null == inFlight) {
+            log.debug("[external_auth][ppms][cache] Scheduling refresh-ahead for key: {}", key);
+
+            try {
+                getRefreshExecutor().execute(new RefreshTask(key, refresh));
+            } catch (RejectedExecutionException e) {
+                // too many pending refreshes (or shutting down): the entry will be reloaded upon expiry
+                log.debug("[external_auth][ppms][cache] Skipping refresh-ahead for key: {}", key);
+                inFlightLoads.remove(key, refresh);
+            }
+        }
+    }
+
+    private final boolean isRefreshAheadEnabled() {
+        return (null != refreshAheadRatio && refreshAheadRatio > 0 && refreshAheadRatio < 1);
+    }
+
+    private final boolean isRefreshDue(Ehcache cache, Element element) {
+        boolean result = false;
+
+        long lifetimeMillis = TimeUnit.SECONDS.toMillis(getLifetimeSeconds(cache, element));
+        if (lifetimeMillis > 0) {
+            long ageMillis = System.currentTimeMillis() - element.getLatestOfCreationAndUpdateTime();
+            result = (ageMillis >= refreshAheadRatio * lifetimeMillis);
+        }
+
+        return result;
+    }
+
+    private final long getLifetimeSeconds(Ehcache cache, Element element) {
+        long ttl = 0;
+        long tti = 0;
+
+        if (null != element && element.isLifespanSet()) {
+            ttl = element.getTimeToLive();
+            tti = element.getTimeToIdle();
+        } else {
+            CacheConfiguration cacheConfig = cache.getCacheConfiguration();
+            ttl = cacheConfig.getTimeToLiveSeconds();
+            tti = cacheConfig.getTimeToIdleSeconds();
+        }
+
+        return (ttl > 0 ? ttl : tti);
+    }
+
+    private final ExecutorService getRefreshExecutor() {
+        ExecutorService result = refreshExecutor;
+
+        if (null == result) {
+            synchronized (this) {
+                result = refreshExecutor;
+
+                if (null == result) {
+                    result = new ThreadPoolExecutor(
+                                refreshAheadThreads, refreshAheadThreads,
+                                0L, TimeUnit.MILLISECONDS,
+                                new ArrayBlockingQueue<Runnable>(RefreshConfig.QUEUE_CAPACITY),
+                                new DaemonThreadFactory(RefreshConfig.THREADS_NAME));
+                    refreshExecutor = result;
+
+                    log.info("[external_auth][ppms][cache] Started background refresh executor [ratio:{} - threads:{}]",
+                             refreshAheadRatio, refreshAheadThreads);
+                }
+            }
         }
 
         return result;
     }
 
+    private final boolean isStaleIfErrorEnabled() {
+        return (null != staleGraceSeconds && staleGraceSeconds > 0);
+    }
+
     /**
-     * {@inheritDoc}
+     * Keeps the last known value past the region expiry: the stale copy outlives the live entry
+     * by the grace period, whether the region expires entries on their age (TTL) or on their
+     * idle time (TTI), in which case the stale copy is idle-based too (see {@link #touchStaleCopy}).
      */
-    @Override
-    public boolean authenticate(String login, String password) throws PumapiException {
-        // no caching - authentication data!
-        return delegate.authenticate(login, password);
+    private final void writeToStaleCache(Ehcache cache, PumapiCacheKey key, Object value) {
+        if (isStaleIfErrorEnabled() && null != staleCache) {
+            CacheConfiguration cacheConfig = cache.getCacheConfiguration();
+            long ttl = cacheConfig.getTimeToLiveSeconds();
+            long tti = cacheConfig.getTimeToIdleSeconds();
+
+            Element element = new Element(key, value);
+            if (ttl > 0 || tti <= 0) {
+                element.setTimeToLive((int) Math.min(ttl + staleGraceSeconds, Integer.MAX_VALUE));
+            }
+            if (tti > 0) {
+                element.setTimeToIdle((int) Math.min(tti + staleGraceSeconds, Integer.MAX_VALUE));
+            }
+            staleCache.put(element);
+        }
+    }
+
+    /**
+     * Resets the idle time of the stale copy upon a live entry hit in a TTI region, so that
+     * the stale copy does not expire while the live entry is still being read.
+     */
+    private final void touchStaleCopy(PumapiCacheKey key, Element element) {
+        // stale values served upon PUMAPI failure only carry a retry TTL
+        if (isStaleIfErrorEnabled() && null != staleCache && element.getTimeToIdle() > 0) {
+            staleCache.get(key);
+        }
     }
 
-    private final Element readFromCache(String key) throws IllegalStateException, CacheException {
-        Ehcache cache = getCacheOrFail();
+    private final Element readFromStaleCache(PumapiCacheKey key) {
+        Element result = null;
+
+        if (isStaleIfErrorEnabled() && null != staleCache) {
+            result = staleCache.get(key);
+        }
+
+        return result;
+    }
+
+    private final Object serveStale(Ehcache cache, PumapiCacheKey key, Element staleElement, PumapiException cause) {
+        staleServedCount.incrementAndGet();
+        lastStaleServedTime = System.currentTimeMillis();
+
+        log.warn("[external_auth][ppms][cache] Serving stale value for key: {} upon PUMAPI failure - {}",
+                 key, cause.getMessage());
+
+        // avoid paying the PUMAPI failure on every call until the retry interval has elapsed
+        Element element = new Element(key, staleElement.getObjectValue());
+        element.setTimeToLive(staleRetrySeconds);
+        cache.put(element);
+
+        return staleElement.getObjectValue();
+    }
+
+    private final Element readFromCache(Ehcache cache, PumapiCacheKey key) throws IllegalStateException, CacheException {
         Element result = cache.get(key);
-        boolean isEmpty = (null == result);
 
-        log.debug("[external_auth][ppms][cache] Loading cache for key: {} [empty:{}]", key, isEmpty);
+        if (log.isDebugEnabled()) {
+            log.debug("[external_auth][ppms][cache] Loading cache {} for key: {} [empty:{}]",
+                      cache.getName(), key, (null == result));
+        }
+
         return result;
     }
 
-    private final void writeToCacheIfNotNull(String key, Object value) {
+    private final void writeToCacheOrNegativeCache(Ehcache cache, PumapiCacheKey key, Object value) {
         if (null != value) {
 
-            writeToCacheAlways(key, value);
+            log.trace("[external_auth][ppms][cache] Writing to cache {} for key: {}", cache.getName(), key);
+            cache.put(new Element(key, value));
 
         } else {
             log.debug("[external_auth][ppms][cache] Skipping cache write for null value with key: {}", key);
+            writeToNegativeCache(key);
         }
     }
 
-    private final void writeToCacheAlways(String key, Object value) {
-        log.trace("[external_auth][ppms][cache] Writing to cache for key: {}", key);
-        Ehcache cache = getCacheOrFail();
-        Element element = new Element(key, value);
-        cache.put(element);
+    private final int evict(PumapiCacheKey key) {
+        int result = 0;
+
+        Ehcache cache = regions.get(key.getInvocation());
+        if (null != cache && cache.remove(key)) {
+            ++result;
+        }
+        if (null != negativeCache) {
+            negativeCache.remove(key);
+        }
+        if (null != staleCache) {
+            staleCache.remove(key);
+        }
+        if (null != snapshotStore) {
+            snapshotStore.discard(key);
+        }
+
+        return result;
+    }
+
+    private final void removeKeys(Ehcache cache, Invocation invocation) {
+        if (null != cache) {
+            for (Object key : cache.getKeys()) {
+                if (key instanceof PumapiCacheKey && invocation == ((PumapiCacheKey) key).getInvocation()) {
+                    cache.remove(key);
+                }
+            }
+        }
+    }
+
+    private final void removeFromCache(Ehcache cache, PumapiCacheKey key) {
+        log.trace("[external_auth][ppms][cache] Removing from cache {} key: {}", cache.getName(), key);
+        cache.remove(key);
+    }
+
+    private final boolean isNegativelyCached(PumapiCacheKey key) {
+        boolean result = false;
+
+        if (null != negativeCache) {
+            result = (null != negativeCache.get(key));
+
+            if (log.isDebugEnabled()) {
+                log.debug("[external_auth][ppms][cache] Loading negative cache for key: {} [found:{}]", key, result);
+            }
+        }
+
+        return result;
+    }
+
+    private final void writeToNegativeCache(PumapiCacheKey key) {
+        if (null != negativeCache) {
+            log.trace("[external_auth][ppms][cache] Writing to negative cache for key: {}", key);
+            // the key presence acts as the "not found" marker
+            negativeCache.put(new Element(key, null));
+        }
+    }
+
+    private final void configureRegions(List<CacheRegionSettings> regionsSettings) {
+        for (CacheRegionSettings settings : regionsSettings) {
+            Ehcache cache = cacheManager.getEhcache(settings.getName());
+
+            if (null != cache) {
+
+                if (settings.isRegionEnabled()) {
+                    settings.applyTo(cache);
+                } else {
+                    log.info("[external_auth][ppms][cache] Disabling cache region: {}", settings.getName());
+                    cacheManager.removeCache(settings.getName());
+                }
+
+            } else {
+                log.warn("[external_auth][ppms][cache] Ignoring settings for unknown cache region: {}",
+                         settings.getName());
+            }
+        }
+    }
+
+    private final void resolveRegions() {
+        putRegionIfEnabled(Invocation.GET_USER, CacheConfig.USER_CACHE_NAME);
+        putRegionIfEnabled(Invocation.GET_GROUP, CacheConfig.GROUP_CACHE_NAME);
+        putRegionIfEnabled(Invocation.GET_SYSTEM, CacheConfig.SYSTEM_CACHE_NAME);
+        putRegionIfEnabled(Invocation.GET_USER_RIGHTS, CacheConfig.RIGHTS_CACHE_NAME);
+
+        this.negativeCache = cacheManager.getEhcache(CacheConfig.NEGATIVE_CACHE_NAME);
+        this.staleCache = cacheManager.getEhcache(CacheConfig.STALE_CACHE_NAME);
     }
 
-    private final Ehcache getCacheOrFail() {
-        Ehcache cache = cacheManager.getEhcache(CacheConfig.CACHE_NAME);
-        Check.notNull(cache, "cache");
+    private final void putRegionIfEnabled(Invocation invocation, String cacheName) {
+        Ehcache cache = cacheManager.getEhcache(cacheName);
 
-        return cache;
+        if (null != cache) {
+            regions.put(invocation, cache);
+            statistics.put(invocation, new CacheRegionStatistics(cache));
+        }
     }
 
-    private final String buildKey(String keyFormat, Object... args) {
-        return String.format(keyFormat, args);
+    /**
+     * Returns refreshAheadRatio.
+     * @return the refreshAheadRatio
+     */
+    public Double getRefreshAheadRatio() {
+        return refreshAheadRatio;
+    }
+
+    /**
+     * Sets refreshAheadRatio.
+     *
+     * Values outside of the ]0, 1[ range disable refresh-ahead.
+     *
+     * @param refreshAheadRatio the refreshAheadRatio to set
+     */
+    public void setRefreshAheadRatio(Double refreshAheadRatio) {
+        this.refreshAheadRatio = refreshAheadRatio;
+    }
+
+    /**
+     * Returns refreshAheadThreads.
+     * @return the refreshAheadThreads
+     */
+    public int getRefreshAheadThreads() {
+        return refreshAheadThreads;
+    }
+
+    /**
+     * Sets refreshAheadThreads.
+     *
+     * Null or non-positive values are ignored.
+     *
+     * @param refreshAheadThreads the refreshAheadThreads to set
+     */
+    public void setRefreshAheadThreads(Integer refreshAheadThreads) {
+        if (null != refreshAheadThreads && refreshAheadThreads > 0) {
+            this.refreshAheadThreads = refreshAheadThreads;
+        }
+    }
+
+    /**
+     * Returns staleGraceSeconds.
+     * @return the staleGraceSeconds
+     */
+    public Integer getStaleGraceSeconds() {
+        return staleGraceSeconds;
+    }
+
+    /**
+     * Sets staleGraceSeconds.
+     *
+     * Null or non-positive values disable stale-if-error.
+     *
+     * @param staleGraceSeconds the staleGraceSeconds to set
+     */
+    public void setStaleGraceSeconds(Integer staleGraceSeconds) {
+        this.staleGraceSeconds = staleGraceSeconds;
+    }
+
+    /**
+     * Returns staleRetrySeconds.
+     * @return the staleRetrySeconds
+     */
+    public int getStaleRetrySeconds() {
+        return staleRetrySeconds;
+    }
+
+    /**
+     * Sets staleRetrySeconds.
+     *
+     * Null or non-positive values are ignored.
+     *
+     * @param staleRetrySeconds the staleRetrySeconds to set
+     */
+    public void setStaleRetrySeconds(Integer staleRetrySeconds) {
+        if (null != staleRetrySeconds && staleRetrySeconds > 0) {
+            this.staleRetrySeconds = staleRetrySeconds;
+        }
+    }
+
+    /**
+     * Returns snapshotStore.
+     * @return the snapshotStore
+     */
+    public PumapiCacheSnapshotStore getSnapshotStore() {
+        return snapshotStore;
+    }
+
+    /**
+     * Sets snapshotStore.
+     *
+     * Inactive stores are ignored.
+     *
+     * @param snapshotStore the snapshotStore to set
+     */
+    public void setSnapshotStore(PumapiCacheSnapshotStore snapshotStore) {
+        this.snapshotStore = (null != snapshotStore && snapshotStore.isActive() ? snapshotStore : null);
+    }
+
+    /**
+     * Returns systemCatalogue.
+     * @return the systemCatalogue
+     */
+    public PpmsSystemCatalogue getSystemCatalogue() {
+        return systemCatalogue;
+    }
+
+    /**
+     * Sets systemCatalogue.
+     *
+     * Inactive catalogues are ignored.
+     *
+     * @param systemCatalogue the systemCatalogue to set
+     */
+    public void setSystemCatalogue(PpmsSystemCatalogue systemCatalogue) {
+        this.systemCatalogue = (null != systemCatalogue && systemCatalogue.isActive() ? systemCatalogue : null);
+    }
+
+    /**
+     * A single delegate invocation, with its result written to the cache before being
+     * handed over to any waiting callers.
+     *
+     * @author seb
+     *
+     */
+    private final class CacheLoad implements Callable<Object> {
+
+        /** Target cache region. */
+        private final Ehcache cache;
+
+        /** Cache key. */
+        private final PumapiCacheKey key;
+
+        /** Flag to force the delegate invocation even if the key is already cached. */
+        private final boolean refresh;
+
+        private CacheLoad(Ehcache cache, PumapiCacheKey key, boolean refresh) {
+            super();
+            this.cache = cache;
+            this.key = key;
+            this.refresh = refresh;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Object call() throws Exception {
+            if (!refresh) {
+                // a concurrent load may have completed between the cache read and this invocation
+                Element element = readFromCache(cache, key);
+                if (null != element) {
+                    return element.getObjectValue();
+                }
+                if (isNegativelyCached(key)) {
+                    return null;
+                }
+            }
+
+            Object result = null;
+            CacheRegionStatistics regionStatistics = statistics.get(key.getInvocation());
+            long startTime = System.nanoTime();
+
+            try {
+                result = invoke(key);
+                regionStatistics.recordLoad(System.nanoTime() - startTime, true);
+            } catch (PumapiException e) {
+                regionStatistics.recordLoad(System.nanoTime() - startTime, false);
+
+                Element staleElement = (refresh ? null : readFromStaleCache(key));
+                if (null == staleElement) {
+                    throw e;
+                }
+                return serveStale(cache, key, staleElement, e);
+            }
+
+            if (refresh && null == result) {
+                // the entry has disappeared from PPMS since the previous load
+                removeFromCache(cache, key);
+            }
+            writeToCacheOrNegativeCache(cache, key, result);
+
+            if (null != result) {
+                writeToStaleCache(cache, key, result);
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * A background refresh, which releases its key from the in-flight registry once done.
+     *
+     * @author seb
+     *
+     */
+    private final class RefreshTask implements Runnable {
+
+        /** Cache key. */
+        private final PumapiCacheKey key;
+
+        /** Refreshing delegate invocation. */
+        private final FutureTask<?> refresh;
+
+        private RefreshTask(PumapiCacheKey key, FutureTask<?> refresh) {
+            super();
+            this.key = key;
+            this.refresh = refresh;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void run() {
+            try {
+                refresh.run();
+                awaitLoad(key, refresh);
+            } catch (RuntimeException e) {
+                // keep serving the current value until expiry
+                log.warn("[external_auth][ppms][cache] Failed refresh-ahead for key: {} - {}", key, e.getMessage());
+            } finally {
+                inFlightLoads.remove(key, refresh);
+            }
+        }
+
+        /** Cancels a refresh which will never run, releasing any waiting caller. */
+        private void discard() {
+            refresh.cancel(false);
+            inFlightLoads.remove(key, refresh);
+        }
     }
 
     /**
@@ -224,17 +1011,23 @@ public class CachingPumapiClient implements PumapiClient {
      *
      */
     private final class CacheConfig {
-        /** Main cache name, as configured in pumapi-ehcache.xml. */
-        private static final String CACHE_NAME     = "pumapiClientCache";
+        /** Users cache name, as configured in pumapi-ehcache.xml. */
+        private static final String USER_CACHE_NAME     = "pumapiUserCache";
+
+        /** Groups (units) cache name, as configured in pumapi-ehcache.xml. */
+        private static final String GROUP_CACHE_NAME    = "pumapiGroupCache";
+
+        /** Systems cache name, as configured in pumapi-ehcache.xml. */
+        private static final String SYSTEM_CACHE_NAME   = "pumapiSystemCache";
 
-        /** Key format for {@link PumapiClient#getUser(String)} calls. */
-        private static final String GET_USER_KEY   = "getUser-%s";
+        /** User rights cache name, as configured in pumapi-ehcache.xml. */
+        private static final String RIGHTS_CACHE_NAME   = "pumapiRightsCache";
 
-        /** Key format for {@link PumapiClient#getGroup(String)} calls. */
-        private static final String GET_GROUP_KEY  = "getGroup-%s";
+        /** Negative results cache name, as configured in pumapi-ehcache.xml. */
+        private static final String NEGATIVE_CACHE_NAME = "pumapiNegativeCache";
 
-        /** Key format for {@link PumapiClient#getSystem(Long)} calls. */
-        private static final String GET_SYSTEM_KEY = "getSystem-%d";
+        /** Last known values cache name, as configured in pumapi-ehcache.xml. */
+        private static final String STALE_CACHE_NAME    = "pumapiStaleCache";
 
         /** Constants class. */
         private CacheConfig() {
@@ -242,4 +1035,42 @@ public class CachingPumapiClient implements PumapiClient {
         }
     }
 
+    /**
+     * Internal settings for background refreshes.
+     *
+     * @author seb
+     *
+     */
+    private final class RefreshConfig {
+        /** Default number of background refresh threads. */
+        private static final int DEFAULT_THREADS   = 2;
+
+        /** Maximum number of pending background refreshes. */
+        private static final int QUEUE_CAPACITY    = 1000;
+
+        /** Background refresh threads name prefix. */
+        private static final String THREADS_NAME   = "ppms-cache-refresh";
+
+        /** Constants class. */
+        private RefreshConfig() {
+            super();
+        }
+    }
+
+    /**
+     * Internal settings for stale-if-error.
+     *
+     * @author seb
+     *
+     */
+    private final class StaleConfig {
+        /** Default time to live in seconds of a stale value served upon PUMAPI failure. */
+        private static final int DEFAULT_RETRY_SECONDS = 60;
+
+        /** Constants class. */
+        private StaleConfig() {
+            super();
+        }
+    }
+
 }
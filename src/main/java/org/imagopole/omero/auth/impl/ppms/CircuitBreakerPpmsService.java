@@ -0,0 +1,633 @@
+/**
+ *
+ */
+package org.imagopole.omero.auth.impl.ppms;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.imagopole.omero.auth.api.ExternalServiceException;
+import org.imagopole.omero.auth.api.dto.NamedItem;
+import org.imagopole.omero.auth.api.ppms.PpmsService;
+import org.imagopole.omero.auth.api.ppms.PpmsSystemFilter;
+import org.imagopole.omero.auth.api.ppms.PpmsUserDetails;
+import org.imagopole.omero.auth.api.ppms.PpmsUserProfile;
+import org.imagopole.omero.auth.util.Check;
+import org.imagopole.ppms.api.dto.PpmsGroup;
+import org.imagopole.ppms.api.dto.PpmsSystem;
+import org.imagopole.ppms.api.dto.PpmsUser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Circuit breaker decorator for a {@link PpmsService}, so that logins fail fast rather than
+ * wait for the PUMAPI socket timeout while PPMS is slow or down.
+ *
+ * States:
+ * - closed: calls are delegated, and their outcomes recorded in a sliding window. The breaker
+ * opens once the failure rate over the window reaches the threshold (provided a minimum number
+ * of calls have been recorded).
+ * - open: calls fail fast with an {@link ExternalServiceException} - which the password providers
+ * handle as an unavailable service (eg. {@link org.imagopole.omero.auth.impl.SynchronizingPasswordProviders}
+ * then proceeds with its failover provider, if any) - until the cool-down period elapses.
+ * - half-open: a single trial call is delegated, the others failing fast. The breaker closes if the
+ * trial succeeds, and opens again otherwise.
+ *
+ * Each call is tagged with the breaker generation (incremented upon every state change) at which
+ * it was let through, and only outcomes from the current generation affect the state: a slow call
+ * issued before the breaker opened may not close or reopen it while the half-open trial is in flight.
+ *
+ * Only {@link ExternalServiceException}s count as failures: "not found" results, failed password
+ * checks or argument errors do not.
+ *
+ * State changes are logged, and exposed together with the calls statistics over JMX.
+ *
+ * @author seb
+ *
+ */
+public class CircuitBreakerPpmsService implements PpmsService, CircuitBreakerPpmsServiceMXBean {
+
+    /** Application logs. */
+    private final Logger log = LoggerFactory.getLogger(CircuitBreakerPpmsService.class);
+
+    /** Breaker states. */
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    /** Decorated PPMS service. */
+    private PpmsService ppmsService;
+
+    /** Failure rate percentage over the sliding window at which the breaker opens. */
+    private int failureRateThreshold = BreakerConfig.DEFAULT_FAILURE_RATE;
+
+    /** Minimum number of recorded calls before the failure rate is evaluated. */
+    private int minimumCalls = BreakerConfig.DEFAULT_MINIMUM_CALLS;
+
+    /** Time in seconds the breaker stays open before a trial call is let through. */
+    private int coolDownSeconds = BreakerConfig.DEFAULT_COOL_DOWN;
+
+    /** Outcomes of the last calls (true for failures) - guarded by this. */
+    private boolean[] outcomes = new boolean[BreakerConfig.DEFAULT_WINDOW_SIZE];
+
+    /** Number of outcomes recorded in the sliding window - guarded by this. */
+    private int recordedCalls;
+
+    /** Next outcome slot in the sliding window - guarded by this. */
+    private int nextOutcome;
+
+    /** Number of failures recorded in the sliding window - guarded by this. */
+    private int recordedFailures;
+
+    /** Current state - guarded by this. */
+    private State state = State.CLOSED;
+
+    /** Time at which the breaker last opened - guarded by this. */
+    private long openedAtMillis;
+
+    /** Whether the half-open trial call is in flight - guarded by this. */
+    private boolean trialInFlight;
+
+    /** Breaker generation, incremented upon state changes - guarded by this. */
+    private long generation;
+
+    /** Calls statistics - guarded by this. */
+    private long successCount;
+    private long failureCount;
+    private long rejectedCount;
+    private long openedCount;
+
+    /**
+     * Vanilla constructor.
+     */
+    protected CircuitBreakerPpmsService() {
+        super();
+    }
+
+    /**
+     * Full constructor.
+     *
+     * @param ppmsService the decorated PPMS service
+     */
+    public CircuitBreakerPpmsService(PpmsService ppmsService) {
+        super();
+
+        Check.notNull(ppmsService, "ppmsService");
+        this.ppmsService = ppmsService;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PpmsUser findUserByName(final String userName) throws ExternalServiceException {
+        return invoke("findUserByName", new Callable<PpmsUser>() {
+            @Override
+            public PpmsUser call() throws ExternalServiceException {
+                return ppmsService.findUserByName(userName);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PpmsUserDetails findUserAndGroupByName(final String userName) throws ExternalServiceException {
+        return invoke("findUserAndGroupByName", new Callable<PpmsUserDetails>() {
+            @Override
+            public PpmsUserDetails call() throws ExternalServiceException {
+                return ppmsService.findUserAndGroupByName(userName);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<NamedItem> findProjectsByUserName(final String userName) throws ExternalServiceException {
+        return invoke("findProjectsByUserName", new Callable<List<NamedItem>>() {
+            @Override
+            public List<NamedItem> call() throws ExternalServiceException {
+                return ppmsService.findProjectsByUserName(userName);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PpmsGroup findGroupByUserName(final String userName) throws ExternalServiceException {
+        return invoke("findGroupByUserName", new Callable<PpmsGroup>() {
+            @Override
+            public PpmsGroup call() throws ExternalServiceException {
+                return ppmsService.findGroupByUserName(userName);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<PpmsSystem> findActiveSystemsByUserName(final String userName) throws ExternalServiceException {
+        return invoke("findActiveSystemsByUserName", new Callable<List<PpmsSystem>>() {
+            @Override
+            public List<PpmsSystem> call() throws ExternalServiceException {
+                return ppmsService.findActiveSystemsByUserName(userName);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<PpmsSystem> findActiveSystemsByUserName(
+                    final String userName,
+                    final PpmsSystemFilter systemFilter) throws ExternalServiceException {
+        return invoke("findActiveSystemsByUserName", new Callable<List<PpmsSystem>>() {
+            @Override
+            public List<PpmsSystem> call() throws ExternalServiceException {
+                return ppmsService.findActiveSystemsByUserName(userName, systemFilter);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<PpmsSystem> findActiveSystemsWithAutonomyByUserName(
+                    final String userName) throws ExternalServiceException {
+        return invoke("findActiveSystemsWithAutonomyByUserName", new Callable<List<PpmsSystem>>() {
+            @Override
+            public List<PpmsSystem> call() throws ExternalServiceException {
+                return ppmsService.findActiveSystemsWithAutonomyByUserName(userName);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<PpmsSystem> findActiveSystemsWithAutonomyByUserName(
+                    final String userName,
+                    final PpmsSystemFilter systemFilter) throws ExternalServiceException {
+        return invoke("findActiveSystemsWithAutonomyByUserName", new Callable<List<PpmsSystem>>() {
+            @Override
+            public List<PpmsSystem> call() throws ExternalServiceException {
+                return ppmsService.findActiveSystemsWithAutonomyByUserName(userName, systemFilter);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PpmsUserProfile findUserProfile(final String userName) throws ExternalServiceException {
+        return invoke("findUserProfile", new Callable<PpmsUserProfile>() {
+            @Override
+            public PpmsUserProfile call() throws ExternalServiceException {
+                return ppmsService.findUserProfile(userName);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean checkAuthentication(final String userName, final String password) throws ExternalServiceException {
+        return invoke("checkAuthentication", new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws ExternalServiceException {
+                return ppmsService.checkAuthentication(userName, password);
+            }
+        });
+    }
+
+    private <T> T invoke(String operation, Callable<T> call) throws ExternalServiceException {
+        Long permit = acquirePermission();
+        if (null == permit) {
+            throw new ExternalServiceException(
+                String.format("PPMS circuit breaker open - failing fast on: %s", operation));
+        }
+
+        T result = null;
+        boolean isRecorded = false;
+
+        try {
+            result = call.call();
+
+            onSuccess(permit);
+            isRecorded = true;
+        } catch (ExternalServiceException e) {
+            onFailure(permit, operation, e);
+            isRecorded = true;
+
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            // not expected from the PPMS service signatures
+            throw new ExternalServiceException(e);
+        } finally {
+            if (!isRecorded) {
+                onIgnored(permit);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Lets a call through if the breaker state allows it.
+     *
+     * @return the breaker generation the call belongs to, or null if the call should fail fast
+     */
+    private synchronized Long acquirePermission() {
+        Long result = null;
+
+        switch (state) {
+            case CLOSED:
+                result = generation;
+                break;
+
+            case OPEN:
+                long elapsedMillis = currentTimeMillis() - openedAtMillis;
+                if (elapsedMillis >= TimeUnit.SECONDS.toMillis(coolDownSeconds)) {
+                    transitionTo(State.HALF_OPEN);
+                    trialInFlight = true;
+                    result = generation;
+                }
+                break;
+
+            case HALF_OPEN:
+                if (!trialInFlight) {
+                    trialInFlight = true;
+                    result = generation;
+                }
+                break;
+
+            default:
+                break;
+        }
+
+        if (null == result) {
+            ++rejectedCount;
+        }
+
+        return result;
+    }
+
+    private synchronized void onSuccess(long permit) {
+        ++successCount;
+
+        if (isStale(permit)) {
+            log.debug("[external_auth][ppms] Circuit breaker ignoring stale success in state: {}", state);
+        } else if (State.HALF_OPEN == state) {
+            transitionTo(State.CLOSED);
+        } else if (State.CLOSED == state) {
+            record(false);
+        }
+    }
+
+    private synchronized void onFailure(long permit, String operation, ExternalServiceException failure) {
+        ++failureCount;
+
+        if (isStale(permit)) {
+            log.debug("[external_auth][ppms] Circuit breaker ignoring stale failure in state: {} - {} - {}",
+                      state, operation, failure.getMessage());
+        } else if (State.HALF_OPEN == state) {
+            log.warn("[external_auth][ppms] Circuit breaker trial call failed: {} - {}", operation, failure.getMessage());
+            transitionTo(State.OPEN);
+        } else if (State.CLOSED == state) {
+            record(true);
+
+            int windowMinimum = Math.min(minimumCalls, outcomes.length);
+            if (recordedCalls >= windowMinimum && getFailureRate() >= failureRateThreshold) {
+                log.warn("[external_auth][ppms] Circuit breaker failure rate: {}% over {} calls - last failure: {} - {}",
+                         getFailureRate(), recordedCalls, operation, failure.getMessage());
+                transitionTo(State.OPEN);
+            }
+        }
+    }
+
+    private synchronized void onIgnored(long permit) {
+        // let another trial call through rather than staying half-open forever
+        if (!isStale(permit) && State.HALF_OPEN == state) {
+            trialInFlight = false;
+        }
+    }
+
+    /** Whether a call was let through before the last state change (hence not the half-open trial). */
+    private boolean isStale(long permit) {
+        return (permit != generation);
+    }
+
+    private void record(boolean isFailure) {
+        if (recordedCalls == outcomes.length) {
+            if (outcomes[nextOutcome]) {
+                --recordedFailures;
+            }
+        } else {
+            ++recordedCalls;
+        }
+
+        outcomes[nextOutcome] = isFailure;
+        if (isFailure) {
+            ++recordedFailures;
+        }
+        nextOutcome = (nextOutcome + 1) % outcomes.length;
+    }
+
+    private void clearWindow() {
+        outcomes = new boolean[outcomes.length];
+        recordedCalls = 0;
+        nextOutcome = 0;
+        recordedFailures = 0;
+    }
+
+    private void transitionTo(State newState) {
+        State oldState = state;
+        state = newState;
+        trialInFlight = false;
+        ++generation;
+
+        switch (newState) {
+            case OPEN:
+                openedAtMillis = currentTimeMillis();
+                ++openedCount;
+                log.warn("[external_auth][ppms] Circuit breaker state change: {} -> {} - failing fast for {}s",
+                         oldState, newState, coolDownSeconds);
+                break;
+
+            case HALF_OPEN:
+                log.info("[external_auth][ppms] Circuit breaker state change: {} -> {} - trial call allowed",
+                         oldState, newState);
+                break;
+
+            case CLOSED:
+                clearWindow();
+                log.info("[external_auth][ppms] Circuit breaker state change: {} -> {}", oldState, newState);
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Returns the current time - overridable for tests.
+     *
+     * @return the current time in milliseconds
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the current breaker state.
+     *
+     * @return the state
+     */
+    public synchronized State getCurrentState() {
+        return state;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized String getState() {
+        return state.name();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized double getFailureRate() {
+        double result = 0;
+
+        if (recordedCalls > 0) {
+            result = (100.0 * recordedFailures) / recordedCalls;
+        }
+
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized int getRecordedCalls() {
+        return recordedCalls;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized long getSuccessCount() {
+        return successCount;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized long getFailureCount() {
+        return failureCount;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized long getOpenedCount() {
+        return openedCount;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void reset() {
+        if (State.CLOSED != state) {
+            transitionTo(State.CLOSED);
+        } else {
+            // calls in flight may not record outcomes into the cleared window
+            ++generation;
+        }
+        clearWindow();
+
+        successCount = 0;
+        failureCount = 0;
+        rejectedCount = 0;
+        openedCount = 0;
+    }
+
+    /**
+     * Returns failureRateThreshold.
+     * @return the failureRateThreshold
+     */
+    public int getFailureRateThreshold() {
+        return failureRateThreshold;
+    }
+
+    /**
+     * Sets failureRateThreshold.
+     *
+     * Null values or values outside of the 1-100 range are ignored.
+     *
+     * @param failureRateThreshold the failureRateThreshold to set
+     */
+    public void setFailureRateThreshold(Integer failureRateThreshold) {
+        if (null != failureRateThreshold && failureRateThreshold > 0 && failureRateThreshold <= 100) {
+            this.failureRateThreshold = failureRateThreshold;
+        }
+    }
+
+    /**
+     * Returns minimumCalls.
+     * @return the minimumCalls
+     */
+    public int getMinimumCalls() {
+        return minimumCalls;
+    }
+
+    /**
+     * Sets minimumCalls.
+     *
+     * Null or non-positive values are ignored.
+     *
+     * @param minimumCalls the minimumCalls to set
+     */
+    public void setMinimumCalls(Integer minimumCalls) {
+        if (null != minimumCalls && minimumCalls > 0) {
+            this.minimumCalls = minimumCalls;
+        }
+    }
+
+    /**
+     * Returns windowSize.
+     * @return the windowSize
+     */
+    public synchronized int getWindowSize() {
+        return outcomes.length;
+    }
+
+    /**
+     * Sets windowSize.
+     *
+     * Null or non-positive values are ignored. The recorded outcomes are cleared.
+     *
+     * @param windowSize the windowSize to set
+     */
+    public synchronized void setWindowSize(Integer windowSize) {
+        if (null != windowSize && windowSize > 0) {
+            this.outcomes = new boolean[windowSize];
+            clearWindow();
+        }
+    }
+
+    /**
+     * Returns coolDownSeconds.
+     * @return the coolDownSeconds
+     */
+    public int getCoolDownSeconds() {
+        return coolDownSeconds;
+    }
+
+    /**
+     * Sets coolDownSeconds.
+     *
+     * Null or non-positive values are ignored.
+     *
+     * @param coolDownSeconds the coolDownSeconds to set
+     */
+    public void setCoolDownSeconds(Integer coolDownSeconds) {
+        if (null != coolDownSeconds && coolDownSeconds > 0) {
+            this.coolDownSeconds = coolDownSeconds;
+        }
+    }
+
+    /**
+     * Internal settings for the circuit breaker.
+     *
+     * @author seb
+     *
+     */
+    private final class BreakerConfig {
+        /** Default failure rate percentage threshold. */
+        private static final int DEFAULT_FAILURE_RATE    = 50;
+
+        /** Default minimum number of recorded calls. */
+        private static final int DEFAULT_MINIMUM_CALLS   = 10;
+
+        /** Default sliding window size. */
+        private static final int DEFAULT_WINDOW_SIZE     = 20;
+
+        /** Default cool-down in seconds. */
+        private static final int DEFAULT_COOL_DOWN       = 30;
+
+        /** Constants class. */
+        private BreakerConfig() {
+            super();
+        }
+    }
+
+}
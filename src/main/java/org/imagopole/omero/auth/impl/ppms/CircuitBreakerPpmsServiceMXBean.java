@@ -0,0 +1,68 @@
+/**
+ *
+ */
+package org.imagopole.omero.auth.impl.ppms;
+
+/**
+ * JMX monitoring interface for the PPMS service circuit breaker.
+ *
+ * @author seb
+ *
+ */
+public interface CircuitBreakerPpmsServiceMXBean {
+
+    /**
+     * Returns the current breaker state.
+     *
+     * @return the state name (<code>CLOSED</code>, <code>OPEN</code> or <code>HALF_OPEN</code>)
+     */
+    String getState();
+
+    /**
+     * Returns the failure rate over the calls recorded since the breaker last closed.
+     *
+     * @return the failure rate percentage (within the sliding window)
+     */
+    double getFailureRate();
+
+    /**
+     * Returns the number of calls recorded in the sliding window.
+     *
+     * @return the recorded calls count
+     */
+    int getRecordedCalls();
+
+    /**
+     * Returns the number of successful calls since startup (or the last reset).
+     *
+     * @return the successful calls count
+     */
+    long getSuccessCount();
+
+    /**
+     * Returns the number of failed calls since startup (or the last reset).
+     *
+     * @return the failed calls count
+     */
+    long getFailureCount();
+
+    /**
+     * Returns the number of calls failed fast while the breaker was open since startup (or the last reset).
+     *
+     * @return the rejected calls count
+     */
+    long getRejectedCount();
+
+    /**
+     * Returns the number of times the breaker opened since startup (or the last reset).
+     *
+     * @return the openings count
+     */
+    long getOpenedCount();
+
+    /**
+     * Closes the breaker and resets the statistics.
+     */
+    void reset();
+
+}
@@ -0,0 +1,275 @@
+/**
+ *
+ */
+package org.imagopole.omero.auth.impl.ppms;
+
+import java.io.Serializable;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.spec.KeySpec;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+
+import org.imagopole.ppms.util.Check;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Short-lived cache of successful PPMS credentials checks, to spare the PUMAPI authentication
+ * round trip to clients which repeatedly open sessions with the same credentials (eg. importers,
+ * batch scripts).
+ *
+ * Only a salted, slow-hashed verifier (PBKDF2) of each successful (username, password) pair is kept
+ * - never the password itself. Failed authentications are never cached, and verifiers are
+ * invalidated as soon as PPMS reports the user as inactive or unknown.
+ *
+ * Disabled by default.
+ *
+ * @author seb
+ *
+ */
+public class CredentialsVerifierCache {
+
+    /** Application logs. */
+    private final Logger log = LoggerFactory.getLogger(CredentialsVerifierCache.class);
+
+    /** Verifiers cache region (null if not configured). */
+    private Ehcache cache;
+
+    /** Salts generator. */
+    private final SecureRandom random = new SecureRandom();
+
+    /** Flag to activate credentials caching (optional - disabled by default). */
+    private Boolean enabled;
+
+    /** Verifiers TTL override in seconds (optional - defaults to the cache region's TTL). */
+    private Integer timeToLiveSeconds;
+
+    /** Number of PBKDF2 iterations. */
+    private int iterations = VerifierConfig.DEFAULT_ITERATIONS;
+
+    protected CredentialsVerifierCache() {
+        super();
+    }
+
+    public CredentialsVerifierCache(CacheManager cacheManager) {
+        super();
+
+        Check.notNull(cacheManager, "cacheManager");
+        this.cache = cacheManager.getEhcache(VerifierConfig.CACHE_NAME);
+
+        if (null == cache) {
+            log.warn("[external_auth][ppms][cache] Missing credentials cache region: {}", VerifierConfig.CACHE_NAME);
+        }
+    }
+
+    /**
+     * Checks whether credentials caching is active.
+     *
+     * @return true if enabled and the cache region is configured
+     */
+    public boolean isActive() {
+        return (null != enabled && enabled.booleanValue() && null != cache);
+    }
+
+    /**
+     * Checks the credentials against the verifier of a previous successful authentication, if any.
+     *
+     * @param userName the PPMS user name
+     * @param password the candidate password
+     * @return true if a verifier was found and matches the password, false otherwise
+     */
+    public boolean matches(String userName, String password) {
+        Check.notEmpty(userName, "userName");
+        Check.notEmpty(password, "password");
+
+        boolean result = false;
+
+        if (isActive()) {
+            Element element = cache.get(userName);
+
+            if (null != element) {
+                Verifier verifier = (Verifier) element.getObjectValue();
+                byte[] candidateHash = hash(password, verifier.salt, verifier.iterations);
+
+                result = MessageDigest.isEqual(verifier.hash, candidateHash);
+            }
+
+            log.debug("[external_auth][ppms][cache] Credentials verifier lookup for username: {} [found:{} - matched:{}]",
+                      userName, (null != element), result);
+        }
+
+        return result;
+    }
+
+    /**
+     * Stores a verifier for a successful authentication.
+     *
+     * @param userName the PPMS user name
+     * @param password the password just validated by PPMS
+     */
+    public void store(String userName, String password) {
+        Check.notEmpty(userName, "userName");
+        Check.notEmpty(password, "password");
+
+        if (isActive()) {
+            byte[] salt = new byte[VerifierConfig.SALT_LENGTH];
+            random.nextBytes(salt);
+
+            Verifier verifier = new Verifier(salt, iterations, hash(password, salt, iterations));
+            Element element = new Element(userName, verifier);
+            if (null != timeToLiveSeconds && timeToLiveSeconds > 0) {
+                element.setTimeToLive(timeToLiveSeconds);
+            }
+
+            log.trace("[external_auth][ppms][cache] Writing credentials verifier for username: {}", userName);
+            cache.put(element);
+        }
+    }
+
+    /**
+     * Discards the verifier stored for a user, if any.
+     *
+     * @param userName the PPMS user name
+     */
+    public void invalidate(String userName) {
+        Check.notEmpty(userName, "userName");
+
+        if (null != cache && cache.remove(userName)) {
+            log.debug("[external_auth][ppms][cache] Invalidated credentials verifier for username: {}", userName);
+        }
+    }
+
+    private byte[] hash(String password, byte[] salt, int iterationsCount) {
+        KeySpec keySpec =
+            new PBEKeySpec(password.toCharArray(), salt, iterationsCount, VerifierConfig.HASH_LENGTH_BITS);
+
+        try {
+
+            SecretKeyFactory keyFactory = SecretKeyFactory.getInstance(VerifierConfig.ALGORITHM);
+            return keyFactory.generateSecret(keySpec).getEncoded();
+
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to compute credentials verifier", e);
+        }
+    }
+
+    /**
+     * Returns enabled.
+     * @return the enabled
+     */
+    public Boolean getEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Sets enabled.
+     * @param enabled the enabled to set
+     */
+    public void setEnabled(Boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Returns timeToLiveSeconds.
+     * @return the timeToLiveSeconds
+     */
+    public Integer getTimeToLiveSeconds() {
+        return timeToLiveSeconds;
+    }
+
+    /**
+     * Sets timeToLiveSeconds.
+     *
+     * Null or non-positive values default to the cache region's TTL.
+     *
+     * @param timeToLiveSeconds the timeToLiveSeconds to set
+     */
+    public void setTimeToLiveSeconds(Integer timeToLiveSeconds) {
+        this.timeToLiveSeconds = timeToLiveSeconds;
+    }
+
+    /**
+     * Returns iterations.
+     * @return the iterations
+     */
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * Sets iterations.
+     *
+     * Null or non-positive values are ignored.
+     *
+     * @param iterations the iterations to set
+     */
+    public void setIterations(Integer iterations) {
+        if (null != iterations && iterations > 0) {
+            this.iterations = iterations;
+        }
+    }
+
+    /**
+     * A salted password hash, together with its derivation parameters.
+     *
+     * @author seb
+     *
+     */
+    private static final class Verifier implements Serializable {
+
+        /** Serial version UID. */
+        private static final long serialVersionUID = 1L;
+
+        /** Random salt. */
+        private final byte[] salt;
+
+        /** Number of PBKDF2 iterations. */
+        private final int iterations;
+
+        /** Derived key. */
+        private final byte[] hash;
+
+        private Verifier(byte[] salt, int iterations, byte[] hash) {
+            super();
+            this.salt = salt;
+            this.iterations = iterations;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * Internal settings for verifiers creation/lookup.
+     *
+     * @author seb
+     *
+     */
+    private final class VerifierConfig {
+        /** Credentials cache name, as configured in pumapi-ehcache.xml. */
+        private static final String CACHE_NAME       = "pumapiCredentialsCache";
+
+        /** Key derivation algorithm. */
+        private static final String ALGORITHM        = "PBKDF2WithHmacSHA1";
+
+        /** Default number of key derivation iterations. */
+        private static final int DEFAULT_ITERATIONS  = 10000;
+
+        /** Salt length in bytes. */
+        private static final int SALT_LENGTH         = 16;
+
+        /** Derived key length in bits. */
+        private static final int HASH_LENGTH_BITS    = 160;
+
+        /** Constants class. */
+        private VerifierConfig() {
+            super();
+        }
+    }
+
+}
@@ -0,0 +1,274 @@
+/**
+ *
+ */
+package org.imagopole.omero.auth.impl.ppms;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.imagopole.omero.auth.api.ExternalServiceException;
+import org.imagopole.omero.auth.api.ppms.AsyncPpmsService;
+import org.imagopole.omero.auth.api.ppms.PpmsCall;
+import org.imagopole.omero.auth.api.ppms.PpmsService;
+import org.imagopole.omero.auth.api.ppms.PpmsSystemFilter;
+import org.imagopole.omero.auth.api.ppms.PpmsUserDetails;
+import org.imagopole.omero.auth.api.ppms.PpmsUserProfile;
+import org.imagopole.omero.auth.util.Check;
+import org.imagopole.ppms.api.PumapiException;
+import org.imagopole.ppms.api.dto.PpmsGroup;
+import org.imagopole.ppms.api.dto.PpmsSystem;
+import org.imagopole.ppms.api.dto.PpmsUser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Asynchronous facade to a {@link PpmsService}, backed by a dedicated lookups executor.
+ *
+ * Each invocation is bound to a deadline computed upon submission from the executor's timeout.
+ * Note that lookups run on the executor threads, hence outside of any login-scoped memoization.
+ *
+ * @author seb
+ *
+ */
+public class DefaultAsyncPpmsService implements AsyncPpmsService {
+
+    /** Application logs. */
+    private final Logger log = LoggerFactory.getLogger(DefaultAsyncPpmsService.class);
+
+    /** Synchronous PPMS service layer. */
+    private PpmsService ppmsService;
+
+    /** Executor for the service invocations. */
+    private PpmsLookupsExecutor lookupsExecutor;
+
+    /**
+     * Vanilla constructor.
+     */
+    protected DefaultAsyncPpmsService() {
+        super();
+    }
+
+    /**
+     * Full constructor.
+     *
+     * @param ppmsService the synchronous PPMS service layer
+     * @param lookupsExecutor the executor for the service invocations
+     */
+    public DefaultAsyncPpmsService(PpmsService ppmsService, PpmsLookupsExecutor lookupsExecutor) {
+        super();
+
+        Check.notNull(ppmsService, "ppmsService");
+        Check.notNull(lookupsExecutor, "lookupsExecutor");
+
+        this.ppmsService = ppmsService;
+        this.lookupsExecutor = lookupsExecutor;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PpmsCall<PpmsUser> findUserByName(final String userName) {
+        Check.notEmpty(userName, "userName");
+
+        return submit(new Callable<PpmsUser>() {
+            @Override
+            public PpmsUser call() throws ExternalServiceException {
+                return ppmsService.findUserByName(userName);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PpmsCall<PpmsUserDetails> findUserAndGroupByName(final String userName) {
+        Check.notEmpty(userName, "userName");
+
+        return submit(new Callable<PpmsUserDetails>() {
+            @Override
+            public PpmsUserDetails call() throws ExternalServiceException {
+                return ppmsService.findUserAndGroupByName(userName);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PpmsCall<PpmsGroup> findGroupByUserName(final String userName) {
+        Check.notEmpty(userName, "userName");
+
+        return submit(new Callable<PpmsGroup>() {
+            @Override
+            public PpmsGroup call() throws ExternalServiceException {
+                return ppmsService.findGroupByUserName(userName);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PpmsCall<List<PpmsSystem>> findActiveSystemsByUserName(
+                    final String userName,
+                    final PpmsSystemFilter systemFilter) {
+        Check.notEmpty(userName, "userName");
+
+        return submit(new Callable<List<PpmsSystem>>() {
+            @Override
+            public List<PpmsSystem> call() throws ExternalServiceException {
+                return ppmsService.findActiveSystemsByUserName(userName, systemFilter);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PpmsCall<List<PpmsSystem>> findActiveSystemsWithAutonomyByUserName(
+                    final String userName,
+                    final PpmsSystemFilter systemFilter) {
+        Check.notEmpty(userName, "userName");
+
+        return submit(new Callable<List<PpmsSystem>>() {
+            @Override
+            public List<PpmsSystem> call() throws ExternalServiceException {
+                return ppmsService.findActiveSystemsWithAutonomyByUserName(userName, systemFilter);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PpmsCall<PpmsUserProfile> findUserProfile(final String userName) {
+        Check.notEmpty(userName, "userName");
+
+        return submit(new Callable<PpmsUserProfile>() {
+            @Override
+            public PpmsUserProfile call() throws ExternalServiceException {
+                return ppmsService.findUserProfile(userName);
+            }
+        });
+    }
+
+    private <T> PpmsCall<T> submit(Callable<T> invocation) {
+        long deadline = lookupsExecutor.newDeadline();
+        Future<T> pendingResult = lookupsExecutor.submit(invocation);
+
+        return new DeadlineCall<T>(pendingResult, deadline, lookupsExecutor);
+    }
+
+    /**
+     * Returns ppmsService.
+     * @return the ppmsService
+     */
+    public PpmsService getPpmsService() {
+        return ppmsService;
+    }
+
+    /**
+     * Sets ppmsService.
+     * @param ppmsService the ppmsService to set
+     */
+    public void setPpmsService(PpmsService ppmsService) {
+        this.ppmsService = ppmsService;
+    }
+
+    /**
+     * Returns lookupsExecutor.
+     * @return the lookupsExecutor
+     */
+    public PpmsLookupsExecutor getLookupsExecutor() {
+        return lookupsExecutor;
+    }
+
+    /**
+     * Sets lookupsExecutor.
+     * @param lookupsExecutor the lookupsExecutor to set
+     */
+    public void setLookupsExecutor(PpmsLookupsExecutor lookupsExecutor) {
+        this.lookupsExecutor = lookupsExecutor;
+    }
+
+    /**
+     * Pending service invocation bound to a deadline.
+     *
+     * @author seb
+     *
+     */
+    private final class DeadlineCall<T> implements PpmsCall<T> {
+
+        /** The pending invocation result. */
+        private final Future<T> pendingResult;
+
+        /** The invocation deadline in milliseconds. */
+        private final long deadline;
+
+        /** The executor running the invocation. */
+        private final PpmsLookupsExecutor executor;
+
+        private DeadlineCall(Future<T> pendingResult, long deadline, PpmsLookupsExecutor executor) {
+            super();
+            this.pendingResult = pendingResult;
+            this.deadline = deadline;
+            this.executor = executor;
+        }
+
+        @Override
+        public long getDeadline() {
+            return deadline;
+        }
+
+        @Override
+        public T await() throws ExternalServiceException {
+            T result = null;
+
+            try {
+                result = executor.await(pendingResult, deadline);
+            } catch (PumapiException pe) {
+                // timeouts and interruptions - service failures are already translated
+                log.warn("[external_auth][ppms] Asynchronous PPMS lookup failed: {}", pe.getMessage());
+                throw new ExternalServiceException(pe.getMessage(), pe);
+            }
+
+            return result;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return pendingResult.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return pendingResult.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            return pendingResult.isDone();
+        }
+
+        @Override
+        public T get() throws InterruptedException, ExecutionException {
+            return pendingResult.get();
+        }
+
+        @Override
+        public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            return pendingResult.get(timeout, unit);
+        }
+    }
+
+}
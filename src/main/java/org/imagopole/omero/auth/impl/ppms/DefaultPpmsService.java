@@ -7,21 +7,22 @@ import static org.imagopole.omero.auth.util.Check.empty;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 import org.imagopole.omero.auth.api.ExternalServiceException;
 import org.imagopole.omero.auth.api.dto.NamedItem;
 import org.imagopole.omero.auth.api.ppms.PpmsService;
+import org.imagopole.omero.auth.api.ppms.PpmsSystemFilter;
 import org.imagopole.omero.auth.api.ppms.PpmsUserDetails;
+import org.imagopole.omero.auth.api.ppms.PpmsUserProfile;
+import org.imagopole.omero.auth.impl.ExternalLoginContext;
 import org.imagopole.omero.auth.util.Check;
 import org.imagopole.ppms.api.PumapiClient;
 import org.imagopole.ppms.api.PumapiException;
 import org.imagopole.ppms.api.dto.PpmsGroup;
-import org.imagopole.ppms.api.dto.PpmsPrivilege;
 import org.imagopole.ppms.api.dto.PpmsSystem;
 import org.imagopole.ppms.api.dto.PpmsUser;
 import org.imagopole.ppms.api.dto.PpmsUserPrivilege;
@@ -38,12 +39,33 @@ import org.slf4j.LoggerFactory;
  */
 public class DefaultPpmsService implements PpmsService {
 
+    /** Fallback lookups strategy for the user profiles, if none is set. */
+    private static final PpmsLookupsExecutor SEQUENTIAL_LOOKUPS = PpmsLookupsExecutor.sequential();
+
     /** Application logs. */
     private final Logger log = LoggerFactory.getLogger(DefaultPpmsService.class);
 
     /** PPMS web client. */
     private PumapiClient ppmsClient;
 
+    /** Verifiers of recent successful authentications (optional). */
+    private CredentialsVerifierCache credentialsCache;
+
+    /** Systems details lookups strategy (optional - sequential lookups if unset). */
+    private PpmsSystemsLoader systemsLoader;
+
+    /** In-memory systems catalogue (optional - takes precedence over the systems loader if active). */
+    private PpmsSystemCatalogue systemCatalogue;
+
+    /** PUMAPI cache whose systems region is peeked at for systems filtering (optional). */
+    private CachingPumapiClient systemsCacheClient;
+
+    /** Concurrent lookups for the user profiles (optional - sequential lookups if unset). */
+    private PpmsLookupsExecutor lookupsExecutor;
+
+    /** In-memory project memberships (optional - projects lookups unsupported if unset). */
+    private PpmsProjectIndex projectIndex;
+
     /**
      * Default constructor.
      */
@@ -72,6 +94,7 @@ public class DefaultPpmsService implements PpmsService {
     private PpmsUser findUserByNameCall(String userName) throws PumapiException {
         // lookup the user basic info
         PpmsUser ppmsUser = getPpmsClient().getUser(userName);
+        invalidateCredentialsIfInactive(userName, ppmsUser);
 
         return ppmsUser;
     }
@@ -96,11 +119,31 @@ public class DefaultPpmsService implements PpmsService {
     }
 
     private boolean checkAuthenticationCall(String userName, String password) throws PumapiException {
+        boolean isCacheActive = (null != credentialsCache && credentialsCache.isActive());
+
+        if (isCacheActive && credentialsCache.matches(userName, password)) {
+            log.debug("[external_auth][ppms] Credentials verified from cache for username: {}", userName);
+            return true;
+        }
+
         Boolean success = getPpmsClient().authenticate(userName, password);
 
+        // only successful checks are remembered
+        if (isCacheActive && null != success && success) {
+            credentialsCache.store(userName, password);
+        }
+
         return success;
     }
 
+    private void invalidateCredentialsIfInactive(String userName, PpmsUser ppmsUser) {
+        boolean isActiveUser = (null != ppmsUser && null != ppmsUser.getActive() && ppmsUser.getActive());
+
+        if (null != credentialsCache && !isActiveUser) {
+            credentialsCache.invalidate(userName);
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -108,6 +151,10 @@ public class DefaultPpmsService implements PpmsService {
     public List<NamedItem> findProjectsByUserName(String userName) throws ExternalServiceException {
         Check.notEmpty(userName, "userName");
 
+        if (null == projectIndex) {
+            throw new ExternalServiceException("Projects lookup by login requires a projects index");
+        }
+
         List<NamedItem> result = Collections.emptyList();
 
         try {
@@ -120,7 +167,14 @@ public class DefaultPpmsService implements PpmsService {
     }
 
     private List<NamedItem> findProjectsByUserNameCall(String userName) throws PumapiException {
-        throw new UnsupportedOperationException("Projects lookup by login not implemented");
+        // resolved from the in-memory memberships, without any per-project lookup
+        List<NamedItem> result = projectIndex.findProjectsByUserName(userName);
+
+        if (result.isEmpty()) {
+            log.debug("[external_auth][ppms] No active projects for username: {}", userName);
+        }
+
+        return result;
     }
 
     /**
@@ -179,6 +233,7 @@ public class DefaultPpmsService implements PpmsService {
 
         // lookup the user basic info
         PpmsUser ppmsUser = getPpmsClient().getUser(userName);
+        invalidateCredentialsIfInactive(userName, ppmsUser);
 
         // extract the PPMS group ID the user belongs to
         if (null != ppmsUser) {
@@ -215,12 +270,22 @@ public class DefaultPpmsService implements PpmsService {
      */
     @Override
     public List<PpmsSystem> findActiveSystemsByUserName(String userName) throws ExternalServiceException {
+        return findActiveSystemsByUserName(userName, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<PpmsSystem> findActiveSystemsByUserName(
+                    String userName,
+                    PpmsSystemFilter systemFilter) throws ExternalServiceException {
         Check.notEmpty(userName, "userName");
 
         List<PpmsSystem> result = Collections.emptyList();
 
         try {
-            result = this.findActiveSystemsByUserNameCall(userName);
+            result = this.findActiveSystemsByUserNameCall(userName, systemFilter);
         } catch (PumapiException pe) {
             translateAndRethrow(pe);
         }
@@ -228,38 +293,26 @@ public class DefaultPpmsService implements PpmsService {
         return result;
     }
 
-    private List<PpmsSystem> findActiveSystemsByUserNameCall(String userName) throws PumapiException {
+    private List<PpmsSystem> findActiveSystemsByUserNameCall(
+                    String userName,
+                    PpmsSystemFilter systemFilter) throws PumapiException {
         List<PpmsSystem> result = new ArrayList<PpmsSystem>();
 
         // get the list of PPMS "systems" IDs available to the user
-        Map<Long, Set<PpmsPrivilege>> privilegesBySystem = getPrivilegesIndexedBySystem(userName);
+        PpmsPrivileges privileges = getPrivileges(userName);
 
         // include them regardless of his/her autonomy status (may be autonomous,
         // superuser, novice or deactivated)
-        if (null != privilegesBySystem && !privilegesBySystem.isEmpty()) {
-
-            for (Long systemId : privilegesBySystem.keySet()) {
-                Set<PpmsPrivilege> systemPrivileges = privilegesBySystem.get(systemId);
+        if (!privileges.isEmpty()) {
 
-                boolean isUserActivated = !systemPrivileges.contains(PpmsPrivilege.Deactivated);
+            // exclude deactivated users for each system, then skip the systems already known to be out of scope
+            List<Long> activatedSystemIds =
+                excludeFilteredSystems(listActivatedSystemIds(privileges), systemFilter);
 
-                // exclude deactivated users for this system
-                if (isUserActivated) {
-                    // lookup the systems' details (name, description...)
-                    PpmsSystem system = getPpmsClient().getSystem(systemId);
+            // lookup the systems' details (name, description...)
+            List<PpmsSystem> systems = lookupSystems(activatedSystemIds);
 
-                    if (null != system) {
-                        boolean isSystemActive = (null != system.getActive() && system.getActive());
-
-                        if (isSystemActive) {
-                            result.add(system);
-                        } else {
-                            log.warn("[external_auth][ppms] Inactive system: {}-{} granted to username: {}",
-                                     system.getSystemId(), system.getName(), userName);
-                        }
-                    }
-                }
-            }
+            result = retainActiveSystems(userName, systems, systemFilter);
 
         } else {
             log.warn("[external_auth][ppms] No granted rights for username: {}", userName);
@@ -273,12 +326,22 @@ public class DefaultPpmsService implements PpmsService {
      */
     @Override
     public List<PpmsSystem> findActiveSystemsWithAutonomyByUserName(String userName) throws ExternalServiceException {
+        return findActiveSystemsWithAutonomyByUserName(userName, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<PpmsSystem> findActiveSystemsWithAutonomyByUserName(
+                    String userName,
+                    PpmsSystemFilter systemFilter) throws ExternalServiceException {
         Check.notEmpty(userName, "userName");
 
         List<PpmsSystem> result = Collections.emptyList();
 
         try {
-            result = this.findActiveSystemsWithAutonomyByUserNameCall(userName);
+            result = this.findActiveSystemsWithAutonomyByUserNameCall(userName, systemFilter);
         } catch (PumapiException pe) {
             translateAndRethrow(pe);
         }
@@ -286,101 +349,336 @@ public class DefaultPpmsService implements PpmsService {
         return result;
     }
 
-    private List<PpmsSystem> findActiveSystemsWithAutonomyByUserNameCall(String userName) throws PumapiException {
+    private List<PpmsSystem> findActiveSystemsWithAutonomyByUserNameCall(
+                    String userName,
+                    PpmsSystemFilter systemFilter) throws PumapiException {
         List<PpmsSystem> result = new ArrayList<PpmsSystem>();
 
         // get the list of PPMS "systems" IDs available to the user
-        Map<Long, Set<PpmsPrivilege>> privilegesBySystem = getPrivilegesIndexedBySystem(userName);
+        PpmsPrivileges privileges = getPrivileges(userName);
 
         // include them taking into account both his/her autonomy status and the autonomy requirements
         // defined on the instrument itself
-        if (null != privilegesBySystem && !privilegesBySystem.isEmpty()) {
-
-            for (Long systemId : privilegesBySystem.keySet()) {
-                Set<PpmsPrivilege> systemPrivileges = privilegesBySystem.get(systemId);
-
-                boolean isUserActivated = !systemPrivileges.contains(PpmsPrivilege.Deactivated);
-                boolean isAutonomyGranted =
-                    systemPrivileges.contains(PpmsPrivilege.Autonomous)
-                    || systemPrivileges.contains(PpmsPrivilege.SuperUser);
-
-                // exclude deactivated users for this system
-                if (isUserActivated) {
-                    // lookup the systems' details (name, description...)
-                    PpmsSystem system = getPpmsClient().getSystem(systemId);
-
-                    if (null != system) {
-
-                        boolean isSystemActive =
-                            (null != system.getActive() && system.getActive());
-                        boolean isAutonomyRequired =
-                            (null != system.getAutonomyRequired() && system.getAutonomyRequired());
-
-                        log.debug(
-                            "[external_auth][ppms] Autonomy filters for: {} on system: {}-{} [required:{} - granted:{} - activated:{} - active:{}]",
-                            userName, systemId, system.getName(), isAutonomyRequired, isAutonomyGranted, isUserActivated, isSystemActive);
-
-                        if (isSystemActive) {
-                            // the instrument on this facility requires autonomy before user access
-                            if (isAutonomyRequired) {
-                                if (isAutonomyGranted) {
-                                    result.add(system);
-                                }
-                            } else {
-                                // any activated user may access this instrument, regardless of whether they are autonomous
-                                result.add(system);
-                            }
-                        } else {
-                            log.warn("[external_auth][ppms] Inactive system: {}-{} granted to username: {}",
-                                     system.getSystemId(), system.getName(), userName);
-                        }
+        if (!privileges.isEmpty()) {
 
-                    }
+            // exclude deactivated users for each system, then skip the systems already known to be out of scope
+            List<Long> activatedSystemIds =
+                excludeFilteredSystems(listActivatedSystemIds(privileges), systemFilter);
+
+            // lookup the systems' details (name, description...)
+            List<PpmsSystem> systems = lookupSystems(activatedSystemIds);
+
+            result = retainActiveSystemsWithAutonomy(
+                            userName, privileges, activatedSystemIds, systems, systemFilter);
+
+        } else {
+            log.warn("[external_auth][ppms] No granted rights for username: {}", userName);
+        }
+
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PpmsUserProfile findUserProfile(String userName) throws ExternalServiceException {
+        Check.notEmpty(userName, "userName");
+
+        PpmsUserProfile result = null;
+
+        try {
+            result = this.findUserProfileCall(userName);
+        } catch (PumapiException pe) {
+            translateAndRethrow(pe);
+        }
+
+        return result;
+    }
+
+    private PpmsUserProfile findUserProfileCall(final String userName) throws PumapiException {
+        PpmsUserProfile result = null;
+
+        // two independent lookup chains, each step being issued as soon as its key is known:
+        // - rights then systems (via the granted systems IDs), in the background
+        // - user then unit (via the "unitlogin"), on the calling thread
+        ExternalLoginContext loginContext = ExternalLoginContext.current();
+        SystemsLookup systemsLookup = new SystemsLookup(userName, loginContext);
+
+        PpmsLookupsExecutor lookups = (null == lookupsExecutor ? SEQUENTIAL_LOOKUPS : lookupsExecutor);
+        long deadline = lookups.newDeadline();
+        Future<SystemsLookup> pendingSystems = lookups.submit(systemsLookup);
+
+        try {
+
+            PpmsUser ppmsUser = findUserByNameCall(userName);
+
+            if (null != ppmsUser) {
+                PpmsGroup ppmsGroup = lookupGroup(userName, ppmsUser);
+                SystemsLookup completedLookup = lookups.await(pendingSystems, deadline);
+                GrantedSystems grantedSystems = completedLookup.grantedSystems;
+
+                // hand the background lookups over to the remainder of the login
+                if (null != loginContext) {
+                    loginContext.merge(completedLookup.memoized);
                 }
+
+                result = new PpmsUserProfile(
+                                ppmsUser,
+                                ppmsGroup,
+                                grantedSystems.privileges.toPrivilegesBySystem(),
+                                retainActiveSystems(userName, grantedSystems.systems, null),
+                                retainActiveSystemsWithAutonomy(
+                                    userName, grantedSystems.privileges,
+                                    grantedSystems.systemIds, grantedSystems.systems, null));
+            } else {
+                log.warn("[external_auth][ppms] Null PPMS user details for username: {}", userName);
+            }
+
+        } finally {
+            // no use completing the systems lookups if the user is unknown or the unit lookup failed
+            pendingSystems.cancel(true);
+        }
+
+        return result;
+    }
+
+    private PpmsGroup lookupGroup(String userName, PpmsUser ppmsUser) throws PumapiException {
+        PpmsGroup result = null;
+
+        String ppmsGroupKey = ppmsUser.getUnitlogin();
+        if (!empty(ppmsGroupKey)) {
+
+            result = getPpmsClient().getGroup(ppmsGroupKey);
+            if (null == result) {
+                log.warn("[external_auth][ppms] Null PPMS group details for username: {}", userName);
             }
 
         } else {
-            log.warn("[external_auth][ppms] No granted rights for username: {}", userName);
+            log.warn("[external_auth][ppms] Empty PPMS group key (unitlogin) for username: {}", userName);
         }
 
         return result;
     }
 
+    private GrantedSystems lookupGrantedSystems(String userName) throws PumapiException {
+        PpmsPrivileges privileges = getPrivileges(userName);
+
+        List<Long> activatedSystemIds = listActivatedSystemIds(privileges);
+        List<PpmsSystem> systems = lookupSystems(activatedSystemIds);
+
+        return new GrantedSystems(privileges, activatedSystemIds, systems);
+    }
+
     /**
-     * Performs a remote lookup to retrieve the instruments granted to the user, and indexes
-     * the user privileges by instrument id.
+     * Lists the systems for which the user has not been deactivated.
      *
-     * @param userName the experimenter name
-     * @return an instrument id to granted privileges map if any, or an empty map if none granted.
-     * @throws PumapiException  in case of an underlying error (API or technical)
+     * @param privileges the user's privileges indexed by system identifier
+     * @return the activated systems identifiers, in rights list order
      */
-    private Map<Long, Set<PpmsPrivilege>> getPrivilegesIndexedBySystem(String userName) throws PumapiException {
-        Map<Long, Set<PpmsPrivilege>> result = new HashMap<Long, Set<PpmsPrivilege>>();
+    private List<Long> listActivatedSystemIds(PpmsPrivileges privileges) {
+        List<Long> result = new ArrayList<Long>(privileges.size());
 
-        // get the list of PPMS "systems" IDs available to the user
-        List<PpmsUserPrivilege> grantedIntruments = getPpmsClient().getUserRights(userName);
+        for (long systemId : privileges.getSystemIds()) {
+            boolean isUserActivated = privileges.isActivated(systemId);
+            if (isUserActivated) {
+                result.add(systemId);
+            }
+        }
+
+        return result;
+    }
 
-        if (null != grantedIntruments && !grantedIntruments.isEmpty()) {
+    /**
+     * Retains the active systems, regardless of the user's autonomy status.
+     *
+     * @param userName the username / PPMS identifier
+     * @param systems the systems details (with null elements for unknown systems)
+     * @param systemFilter the systems selection criteria (optional)
+     * @return the active systems
+     */
+    private List<PpmsSystem> retainActiveSystems(
+                    String userName,
+                    List<PpmsSystem> systems,
+                    PpmsSystemFilter systemFilter) {
+        List<PpmsSystem> result = new ArrayList<PpmsSystem>();
 
-            for (PpmsUserPrivilege grantedSystem : grantedIntruments) {
-                Long systemId = grantedSystem.getSystemId();
-                PpmsPrivilege systemPrivilege = grantedSystem.getPrivilege();
+        for (PpmsSystem system : systems) {
+            if (null != system && isAccepted(system, systemFilter)) {
+                boolean isSystemActive = (null != system.getActive() && system.getActive());
 
-                if (result.containsKey(systemId)) {
-                    Set<PpmsPrivilege> privilegesForSystem = result.get(systemId);
-                    privilegesForSystem.add(systemPrivilege);
+                if (isSystemActive) {
+                    result.add(system);
                 } else {
-                    Set<PpmsPrivilege> privilegesForSystem = new HashSet<PpmsPrivilege>();
-                    privilegesForSystem.add(systemPrivilege);
-                    result.put(systemId, privilegesForSystem);
+                    log.warn("[external_auth][ppms] Inactive system: {}-{} granted to username: {}",
+                             system.getSystemId(), system.getName(), userName);
                 }
             }
+        }
+
+        return result;
+    }
+
+    /**
+     * Retains the active systems, taking into account both the user's autonomy status and the
+     * autonomy requirements defined on the instrument itself.
+     *
+     * @param userName the username / PPMS identifier
+     * @param privileges the user's privileges indexed by system identifier
+     * @param systemIds the systems identifiers
+     * @param systems the systems details in the order of <code>systemIds</code> (with null elements
+     * for unknown systems)
+     * @param systemFilter the systems selection criteria (optional)
+     * @return the active systems granted to the user
+     */
+    private List<PpmsSystem> retainActiveSystemsWithAutonomy(
+                    String userName,
+                    PpmsPrivileges privileges,
+                    List<Long> systemIds,
+                    List<PpmsSystem> systems,
+                    PpmsSystemFilter systemFilter) {
+        List<PpmsSystem> result = new ArrayList<PpmsSystem>();
 
+        for (int i = 0; i < systemIds.size(); ++i) {
+            Long systemId = systemIds.get(i);
+            PpmsSystem system = systems.get(i);
+
+            if (null != system && isAccepted(system, systemFilter)) {
+                boolean isAutonomyGranted = privileges.isAutonomyGranted(systemId);
+                boolean isSystemActive =
+                    (null != system.getActive() && system.getActive());
+                boolean isAutonomyRequired =
+                    (null != system.getAutonomyRequired() && system.getAutonomyRequired());
+
+                log.debug(
+                    "[external_auth][ppms] Autonomy filters for: {} on system: {}-{} [required:{} - granted:{} - active:{}]",
+                    userName, systemId, system.getName(), isAutonomyRequired, isAutonomyGranted, isSystemActive);
+
+                if (isSystemActive) {
+                    // the instrument on this facility requires autonomy before user access
+                    if (isAutonomyRequired) {
+                        if (isAutonomyGranted) {
+                            result.add(system);
+                        }
+                    } else {
+                        // any activated user may access this instrument, regardless of whether they are autonomous
+                        result.add(system);
+                    }
+                } else {
+                    log.warn("[external_auth][ppms] Inactive system: {}-{} granted to username: {}",
+                             system.getSystemId(), system.getName(), userName);
+                }
+            }
         }
 
         return result;
     }
 
+    /**
+     * Removes the systems whose cached or catalogued details are rejected by the filter, so that
+     * they are neither looked up nor mapped.
+     *
+     * Systems neither cached nor catalogued are always retained, and checked against the filter once
+     * looked up.
+     *
+     * @param systemIds the systems identifiers
+     * @param systemFilter the systems selection criteria (optional)
+     * @return the systems identifiers which may be in scope, in the order of <code>systemIds</code>
+     */
+    private List<Long> excludeFilteredSystems(List<Long> systemIds, PpmsSystemFilter systemFilter) {
+        List<Long> result = systemIds;
+
+        boolean hasKnownSystems =
+            (null != systemsCacheClient || (null != systemCatalogue && systemCatalogue.isActive()));
+
+        if (null != systemFilter && hasKnownSystems) {
+            result = new ArrayList<Long>(systemIds.size());
+
+            for (Long systemId : systemIds) {
+                PpmsSystem knownSystem = peekSystem(systemId);
+
+                if (null == knownSystem || systemFilter.accept(knownSystem)) {
+                    result.add(systemId);
+                }
+            }
+
+            log.debug("[external_auth][ppms] Skipped {} out of scope systems among {} granted systems",
+                      systemIds.size() - result.size(), systemIds.size());
+        }
+
+        return result;
+    }
+
+    /**
+     * Looks up a system's details from the PUMAPI cache, then from the systems catalogue,
+     * without any PPMS call.
+     *
+     * @param systemId the system identifier
+     * @return the known system details, or null if neither cached nor catalogued
+     */
+    private PpmsSystem peekSystem(Long systemId) {
+        PpmsSystem result = null;
+
+        if (null != systemsCacheClient) {
+            result = systemsCacheClient.peekSystem(systemId);
+        }
+
+        if (null == result && null != systemCatalogue && systemCatalogue.isActive()) {
+            result = systemCatalogue.peekSystem(systemId);
+        }
+
+        return result;
+    }
+
+    private static boolean isAccepted(PpmsSystem system, PpmsSystemFilter systemFilter) {
+        return (null == systemFilter || systemFilter.accept(system));
+    }
+
+    /**
+     * Looks up the systems details, from the systems catalogue or in parallel if so configured.
+     *
+     * @param systemIds the systems identifiers
+     * @return the systems details in the order of <code>systemIds</code>, with null elements for unknown systems
+     * @throws PumapiException  in case of an underlying error (API or technical)
+     */
+    private List<PpmsSystem> lookupSystems(List<Long> systemIds) throws PumapiException {
+        List<PpmsSystem> result = null;
+
+        if (null != systemCatalogue && systemCatalogue.isActive()) {
+
+            result = systemCatalogue.getSystems(systemIds);
+
+        } else if (null != systemsLoader) {
+
+            result = systemsLoader.loadSystems(getPpmsClient(), systemIds);
+
+        } else {
+
+            result = new ArrayList<PpmsSystem>(systemIds.size());
+            for (Long systemId : systemIds) {
+                result.add(getPpmsClient().getSystem(systemId));
+            }
+
+        }
+
+        return result;
+    }
+
+    /**
+     * Performs a remote lookup to retrieve the instruments granted to the user, and indexes
+     * the user privileges by instrument id.
+     *
+     * @param userName the experimenter name
+     * @return the granted privileges by instrument id, or an empty index if none granted.
+     * @throws PumapiException  in case of an underlying error (API or technical)
+     */
+    private PpmsPrivileges getPrivileges(String userName) throws PumapiException {
+        // get the list of PPMS "systems" IDs available to the user
+        List<PpmsUserPrivilege> grantedIntruments = getPpmsClient().getUserRights(userName);
+
+        return PpmsPrivileges.of(grantedIntruments);
+    }
+
     /**
      * Programmatic exception translation utility.
      *
@@ -409,4 +707,183 @@ public class DefaultPpmsService implements PpmsService {
         this.ppmsClient = ppmsClient;
     }
 
+    /**
+     * Returns credentialsCache.
+     * @return the credentialsCache
+     */
+    public CredentialsVerifierCache getCredentialsCache() {
+        return credentialsCache;
+    }
+
+    /**
+     * Sets credentialsCache.
+     * @param credentialsCache the credentialsCache to set
+     */
+    public void setCredentialsCache(CredentialsVerifierCache credentialsCache) {
+        this.credentialsCache = credentialsCache;
+    }
+
+    /**
+     * Returns systemsLoader.
+     * @return the systemsLoader
+     */
+    public PpmsSystemsLoader getSystemsLoader() {
+        return systemsLoader;
+    }
+
+    /**
+     * Sets systemsLoader.
+     * @param systemsLoader the systemsLoader to set
+     */
+    public void setSystemsLoader(PpmsSystemsLoader systemsLoader) {
+        this.systemsLoader = systemsLoader;
+    }
+
+    /**
+     * Returns systemCatalogue.
+     * @return the systemCatalogue
+     */
+    public PpmsSystemCatalogue getSystemCatalogue() {
+        return systemCatalogue;
+    }
+
+    /**
+     * Sets systemCatalogue.
+     * @param systemCatalogue the systemCatalogue to set
+     */
+    public void setSystemCatalogue(PpmsSystemCatalogue systemCatalogue) {
+        this.systemCatalogue = systemCatalogue;
+    }
+
+    /**
+     * Returns systemsCacheClient.
+     * @return the systemsCacheClient
+     */
+    public PumapiClient getSystemsCacheClient() {
+        return systemsCacheClient;
+    }
+
+    /**
+     * Sets systemsCacheClient.
+     *
+     * PUMAPI clients other than a {@link CachingPumapiClient} are ignored.
+     *
+     * @param systemsCacheClient the systemsCacheClient to set
+     */
+    public void setSystemsCacheClient(PumapiClient systemsCacheClient) {
+        this.systemsCacheClient =
+            (systemsCacheClient instanceof CachingPumapiClient ? (CachingPumapiClient) systemsCacheClient : null);
+    }
+
+    /**
+     * Returns lookupsExecutor.
+     * @return the lookupsExecutor
+     */
+    public PpmsLookupsExecutor getLookupsExecutor() {
+        return lookupsExecutor;
+    }
+
+    /**
+     * Sets lookupsExecutor.
+     * @param lookupsExecutor the lookupsExecutor to set
+     */
+    public void setLookupsExecutor(PpmsLookupsExecutor lookupsExecutor) {
+        this.lookupsExecutor = lookupsExecutor;
+    }
+
+    /**
+     * Returns projectIndex.
+     * @return the projectIndex
+     */
+    public PpmsProjectIndex getProjectIndex() {
+        return projectIndex;
+    }
+
+    /**
+     * Sets projectIndex.
+     * @param projectIndex the projectIndex to set
+     */
+    public void setProjectIndex(PpmsProjectIndex projectIndex) {
+        this.projectIndex = projectIndex;
+    }
+
+    /**
+     * Background lookup of the systems granted to a user, performed within a login context of its own
+     * (seeded with the calling thread's memoized lookups) whose memoized lookups are then handed over
+     * to the calling thread.
+     *
+     * @author seb
+     *
+     */
+    private final class SystemsLookup implements Callable<SystemsLookup> {
+
+        /** The PPMS username. */
+        private final String userName;
+
+        /** The calling thread's login username, or null outside of a login. */
+        private final String loginUserName;
+
+        /** The lookups memoized by the calling thread upon submission. */
+        private final Map<Object, Object> seed;
+
+        /** The granted systems lookup result. */
+        private GrantedSystems grantedSystems;
+
+        /** The lookups memoized during the granted systems lookup. */
+        private Map<Object, Object> memoized = Collections.emptyMap();
+
+        private SystemsLookup(String userName, ExternalLoginContext loginContext) {
+            super();
+            this.userName = userName;
+            this.loginUserName = (null == loginContext ? null : loginContext.getUserName());
+            this.seed = (null == loginContext ? Collections.<Object, Object>emptyMap() : loginContext.snapshot());
+        }
+
+        @Override
+        public SystemsLookup call() throws PumapiException {
+            if (null == loginUserName) {
+                grantedSystems = lookupGrantedSystems(userName);
+            } else {
+                ExternalLoginContext context = ExternalLoginContext.open(loginUserName);
+                try {
+                    context.merge(seed);
+                    grantedSystems = lookupGrantedSystems(userName);
+                    memoized = context.snapshot();
+                } finally {
+                    ExternalLoginContext.close();
+                }
+            }
+
+            return this;
+        }
+    }
+
+    /**
+     * The systems granted to a user, as looked up for a user profile.
+     *
+     * @author seb
+     *
+     */
+    private static final class GrantedSystems {
+
+        /** The user's privileges indexed by system identifier. */
+        private final PpmsPrivileges privileges;
+
+        /** The systems identifiers for which the user is activated. */
+        private final List<Long> systemIds;
+
+        /** The systems details, in the order of <code>systemIds</code>. */
+        private final List<PpmsSystem> systems;
+
+        private GrantedSystems(
+                        PpmsPrivileges privileges,
+                        List<Long> systemIds,
+                        List<PpmsSystem> systems) {
+            super();
+            this.privileges = privileges;
+            this.systemIds = systemIds;
+            this.systems = systems;
+        }
+    }
+
 }
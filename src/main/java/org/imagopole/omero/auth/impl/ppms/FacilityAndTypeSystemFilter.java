@@ -0,0 +1,95 @@
+/**
+ *
+ */
+package org.imagopole.omero.auth.impl.ppms;
+
+import java.util.List;
+
+import org.imagopole.omero.auth.api.ppms.PpmsSystemFilter;
+import org.imagopole.ppms.api.dto.PpmsSystem;
+import org.imagopole.ppms.util.Check;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link PpmsSystemFilter} which only retains systems belonging to whitelists of enabled
+ * core facilities and system types.
+ *
+ * @author seb
+ *
+ */
+public class FacilityAndTypeSystemFilter implements PpmsSystemFilter {
+
+    /** Application logs. */
+    private final Logger log = LoggerFactory.getLogger(FacilityAndTypeSystemFilter.class);
+
+    /** Whitelist of core facilities identifiers. */
+    private final List<Long> includeFacilities;
+
+    /** Whitelist of system types. */
+    private final List<String> includeTypes;
+
+    /**
+     * Full constructor.
+     *
+     * @param includeFacilities the core facilities identifiers to retain
+     * @param includeTypes the system types to retain
+     */
+    public FacilityAndTypeSystemFilter(List<Long> includeFacilities, List<String> includeTypes) {
+        super();
+        Check.notNull(includeFacilities, "includeFacilities");
+        Check.notNull(includeTypes, "includeTypes");
+
+        this.includeFacilities = includeFacilities;
+        this.includeTypes = includeTypes;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean accept(PpmsSystem system) {
+        Check.notNull(system, "system");
+
+        Long systemFacility = system.getCoreFacilityRef();
+        String systemType = system.getType();
+
+        boolean isFacilityIncluded = includeFacilities.contains(systemFacility);
+        boolean isSystemTypeIncluded = includeTypes.contains(systemType);
+        boolean includeSystem = isFacilityIncluded && isSystemTypeIncluded;
+
+        if (!includeSystem) {
+            log.debug(
+                "[external_auth][ppms] skipping PPMS system: {}-{} [{}] of facility: {} and type: {} [{}:{}]",
+                system.getSystemId(), system.getName(), system.getActive(), systemFacility,
+                systemType, isFacilityIncluded, isSystemTypeIncluded);
+        }
+
+        return includeSystem;
+    }
+
+    /**
+     * Returns includeFacilities.
+     * @return the includeFacilities
+     */
+    public List<Long> getIncludeFacilities() {
+        return includeFacilities;
+    }
+
+    /**
+     * Returns includeTypes.
+     * @return the includeTypes
+     */
+    public List<String> getIncludeTypes() {
+        return includeTypes;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return String.format("facilities: %s and types: %s", includeFacilities, includeTypes);
+    }
+
+}
@@ -0,0 +1,197 @@
+/**
+ *
+ */
+package org.imagopole.omero.auth.impl.ppms;
+
+import java.util.List;
+
+import org.imagopole.omero.auth.impl.ExternalLoginContext;
+import org.imagopole.ppms.api.PumapiClient;
+import org.imagopole.ppms.api.PumapiException;
+import org.imagopole.ppms.api.config.PumapiConfig;
+import org.imagopole.ppms.api.dto.PpmsGroup;
+import org.imagopole.ppms.api.dto.PpmsSystem;
+import org.imagopole.ppms.api.dto.PpmsUser;
+import org.imagopole.ppms.api.dto.PpmsUserPrivilege;
+import org.imagopole.ppms.util.Check;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link PumapiClient} decorator which memoizes the users, groups, rights and systems lookups
+ * for the duration of a single login, as scoped by the {@link ExternalLoginContext} bound
+ * to the current thread.
+ *
+ * This allows the providers chain, the new user service and the group beans to query PPMS for
+ * the same login without issuing duplicate remote (or cache) invocations.
+ * Null results are memoized, failures are not. Authentication requests and invocations made
+ * outside of a login context are always delegated.
+ *
+ * @author seb
+ *
+ */
+public class LoginScopedPumapiClient implements PumapiClient {
+
+    /** Application logs. */
+    private final Logger log = LoggerFactory.getLogger(LoginScopedPumapiClient.class);
+
+    /** The decorated PUMAPI client. */
+    private PumapiClient delegate;
+
+    /**
+     * Default constructor.
+     */
+    protected LoginScopedPumapiClient() {
+        super();
+    }
+
+    /**
+     * Full constructor.
+     *
+     * @param delegate the decorated PUMAPI client
+     */
+    public LoginScopedPumapiClient(PumapiClient delegate) {
+        super();
+
+        Check.notNull(delegate, "delegate");
+        this.delegate = delegate;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PumapiConfig getConfig() {
+        return delegate.getConfig();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setConfig(PumapiConfig config) {
+        delegate.setConfig(config);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getUsers(Boolean active) throws PumapiException {
+        return delegate.getUsers(active);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PpmsUser getUser(String login) throws PumapiException {
+        ExternalLoginContext context = ExternalLoginContext.current();
+        PumapiCacheKey key = (null == context ? null : PumapiCacheKey.forUser(login));
+
+        PpmsUser result = null;
+
+        if (isMemoized(context, key)) {
+            result = (PpmsUser) context.get(key);
+        } else {
+            result = delegate.getUser(login);
+            memoize(context, key, result);
+        }
+
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<PpmsUserPrivilege> getUserRights(String login) throws PumapiException {
+        ExternalLoginContext context = ExternalLoginContext.current();
+        PumapiCacheKey key = (null == context ? null : PumapiCacheKey.forUserRights(login));
+
+        List<PpmsUserPrivilege> result = null;
+
+        if (isMemoized(context, key)) {
+            result = (List<PpmsUserPrivilege>) context.get(key);
+        } else {
+            result = delegate.getUserRights(login);
+            memoize(context, key, result);
+        }
+
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PpmsGroup getGroup(String unitLogin) throws PumapiException {
+        ExternalLoginContext context = ExternalLoginContext.current();
+        PumapiCacheKey key = (null == context ? null : PumapiCacheKey.forGroup(unitLogin));
+
+        PpmsGroup result = null;
+
+        if (isMemoized(context, key)) {
+            result = (PpmsGroup) context.get(key);
+        } else {
+            result = delegate.getGroup(unitLogin);
+            memoize(context, key, result);
+        }
+
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PpmsSystem getSystem(Long systemId) throws PumapiException {
+        ExternalLoginContext context = ExternalLoginContext.current();
+        PumapiCacheKey key = (null == context || null == systemId ? null : PumapiCacheKey.forSystem(systemId));
+
+        PpmsSystem result = null;
+
+        if (isMemoized(context, key)) {
+            result = (PpmsSystem) context.get(key);
+        } else {
+            result = delegate.getSystem(systemId);
+            memoize(context, key, result);
+        }
+
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean authenticate(String login, String password) throws PumapiException {
+        return delegate.authenticate(login, password);
+    }
+
+    private boolean isMemoized(ExternalLoginContext context, PumapiCacheKey key) {
+        boolean result = (null != key && context.contains(key));
+
+        if (result) {
+            log.trace("[external_auth][ppms] Login-scoped hit for: {}", key);
+        }
+
+        return result;
+    }
+
+    private void memoize(ExternalLoginContext context, PumapiCacheKey key, Object value) {
+        if (null != key) {
+            context.put(key, value);
+        }
+    }
+
+    /**
+     * Returns delegate.
+     * @return the delegate
+     */
+    public PumapiClient getDelegate() {
+        return delegate;
+    }
+
+}
@@ -0,0 +1,490 @@
+/**
+ *
+ */
+package org.imagopole.omero.auth.impl.ppms;
+
+import static org.imagopole.omero.auth.impl.ppms.PumapiCsvReader.columnOf;
+import static org.imagopole.omero.auth.impl.ppms.PumapiCsvReader.valueAt;
+import static org.imagopole.omero.auth.util.Check.empty;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ResponseHandler;
+import org.imagopole.omero.auth.api.ppms.PumapiRecordHandler;
+import org.imagopole.omero.auth.api.ppms.StreamingPumapiClient;
+import org.imagopole.ppms.api.PumapiException;
+import org.imagopole.ppms.api.config.PumapiConfig;
+import org.imagopole.ppms.api.dto.PpmsGroup;
+import org.imagopole.ppms.api.dto.PpmsPrivilege;
+import org.imagopole.ppms.api.dto.PpmsSystem;
+import org.imagopole.ppms.api.dto.PpmsUser;
+import org.imagopole.ppms.api.dto.PpmsUserPrivilege;
+import org.imagopole.ppms.util.Check;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-module PUMAPI client issuing its requests over the pooled PUMAPI HTTP transport.
+ *
+ * Responses are parsed incrementally, one CSV record at a time, straight from the (possibly
+ * gzip-compressed) response stream: the users and rights listings may be streamed to a callback
+ * in constant memory, and the single-record lookups stop reading after the first record.
+ * Columns are resolved by header name.
+ *
+ * Unknown users, groups and systems are looked up as null, like the default PUMAPI client.
+ *
+ * @author seb
+ *
+ */
+public class NativePumapiClient implements StreamingPumapiClient {
+
+    /** Application logs. */
+    private final Logger log = LoggerFactory.getLogger(NativePumapiClient.class);
+
+    /** Pooled PUMAPI HTTP transport. */
+    private PumapiHttpTransport transport;
+
+    protected NativePumapiClient() {
+        super();
+    }
+
+    public NativePumapiClient(PumapiHttpTransport transport) {
+        super();
+
+        Check.notNull(transport, "transport");
+        this.transport = transport;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PumapiConfig getConfig() {
+        return transport.getConfig();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setConfig(PumapiConfig config) {
+        transport.setConfig(config);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getUsers(Boolean active) throws PumapiException {
+        final List<String> result = new ArrayList<String>();
+
+        forEachUser(active, new PumapiRecordHandler<String>() {
+            @Override
+            public boolean handle(String login) {
+                return result.add(login);
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int forEachUser(Boolean active, PumapiRecordHandler<String> handler) throws PumapiException {
+        Check.notNull(handler, "handler");
+
+        Map<String, String> params = new LinkedHashMap<String, String>();
+        if (null != active) {
+            params.put(PumapiKeys.ACTIVE, active.toString());
+        }
+
+        return stream(PumapiKeys.GET_USERS_ACTION, params, false, new RecordMapper<String>() {
+            @Override
+            public String map(String[] header, String[] record) {
+                String login = valueAt(record, 0);
+                return (empty(login) ? null : login);
+            }
+        }, handler);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PpmsUser getUser(String login) throws PumapiException {
+        Check.notEmpty(login, "login");
+
+        return readFirst(PumapiKeys.GET_USER_ACTION, Collections.singletonMap(PumapiKeys.LOGIN, login),
+                         new RecordMapper<PpmsUser>() {
+            @Override
+            public PpmsUser map(String[] header, String[] record) {
+                PpmsUser result = new PpmsUser();
+                result.setLogin(valueOf(header, record, PumapiKeys.LOGIN));
+                result.setLname(valueOf(header, record, PumapiKeys.LAST_NAME));
+                result.setFname(valueOf(header, record, PumapiKeys.FIRST_NAME));
+                result.setEmail(valueOf(header, record, PumapiKeys.EMAIL));
+                result.setUnitlogin(valueOf(header, record, PumapiKeys.UNIT_LOGIN));
+                result.setActive(booleanOf(header, record, PumapiKeys.ACTIVE));
+                return result;
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<PpmsUserPrivilege> getUserRights(String login) throws PumapiException {
+        final List<PpmsUserPrivilege> result = new ArrayList<PpmsUserPrivilege>();
+
+        forEachUserRight(login, new PumapiRecordHandler<PpmsUserPrivilege>() {
+            @Override
+            public boolean handle(PpmsUserPrivilege privilege) {
+                return result.add(privilege);
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int forEachUserRight(String login, PumapiRecordHandler<PpmsUserPrivilege> handler)
+        throws PumapiException {
+
+        Check.notEmpty(login, "login");
+        Check.notNull(handler, "handler");
+
+        // one "<privilege code>:<system id>" record per line, without header
+        return stream(PumapiKeys.GET_USER_RIGHTS_ACTION, Collections.singletonMap(PumapiKeys.LOGIN, login),
+                      false, new RecordMapper<PpmsUserPrivilege>() {
+            @Override
+            public PpmsUserPrivilege map(String[] header, String[] record) {
+                return parseRight(record[0]);
+            }
+        }, handler);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PpmsGroup getGroup(String unitLogin) throws PumapiException {
+        Check.notEmpty(unitLogin, "unitLogin");
+
+        return readFirst(PumapiKeys.GET_GROUP_ACTION, Collections.singletonMap(PumapiKeys.UNIT_LOGIN, unitLogin),
+                         new RecordMapper<PpmsGroup>() {
+            @Override
+            public PpmsGroup map(String[] header, String[] record) {
+                PpmsGroup result = new PpmsGroup();
+                result.setUnitlogin(valueOf(header, record, PumapiKeys.UNIT_LOGIN));
+                result.setUnitname(valueOf(header, record, PumapiKeys.UNIT_NAME));
+                result.setActive(booleanOf(header, record, PumapiKeys.ACTIVE));
+                result.setExt(booleanOf(header, record, PumapiKeys.EXTERNAL));
+                return result;
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PpmsSystem getSystem(Long systemId) throws PumapiException {
+        Check.notNull(systemId, "systemId");
+
+        return readFirst(PumapiKeys.GET_SYSTEM_ACTION, Collections.singletonMap(PumapiKeys.ID, systemId.toString()),
+                         new RecordMapper<PpmsSystem>() {
+            @Override
+            public PpmsSystem map(String[] header, String[] record) {
+                PpmsSystem result = new PpmsSystem();
+                result.setSystemId(longOf(header, record, PumapiKeys.SYSTEM_ID));
+                result.setCoreFacilityRef(longOf(header, record, PumapiKeys.CORE_FACILITY_REF));
+                result.setName(valueOf(header, record, PumapiKeys.NAME));
+                result.setType(valueOf(header, record, PumapiKeys.TYPE));
+                result.setLocalisation(valueOf(header, record, PumapiKeys.LOCALISATION));
+                result.setActive(booleanOf(header, record, PumapiKeys.ACTIVE));
+                result.setAutonomyRequired(booleanOf(header, record, PumapiKeys.AUTONOMY_REQUIRED));
+                return result;
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean authenticate(final String login, String password) throws PumapiException {
+        Check.notEmpty(login, "login");
+        Check.notEmpty(password, "password");
+
+        Map<String, String> params = new LinkedHashMap<String, String>();
+        params.put(PumapiKeys.LOGIN, login);
+        params.put(PumapiKeys.PASSWORD, password);
+
+        // PUMAPI echoes the login upon successful authentication
+        Boolean result = readFirst(PumapiKeys.AUTH_ACTION, params, false, new RecordMapper<Boolean>() {
+            @Override
+            public Boolean map(String[] header, String[] record) {
+                return login.equalsIgnoreCase(valueAt(record, 0));
+            }
+        });
+
+        return Boolean.TRUE.equals(result);
+    }
+
+    private <T> T readFirst(String action, Map<String, String> params, RecordMapper<T> mapper)
+        throws PumapiException {
+
+        return readFirst(action, params, true, mapper);
+    }
+
+    private <T> T readFirst(String action,
+                            Map<String, String> params,
+                            boolean withHeader,
+                            RecordMapper<T> mapper) throws PumapiException {
+
+        final List<T> result = new ArrayList<T>(1);
+
+        stream(action, params, withHeader, mapper, new PumapiRecordHandler<T>() {
+            @Override
+            public boolean handle(T record) {
+                result.add(record);
+                return false;
+            }
+        });
+
+        return (result.isEmpty() ? null : result.get(0));
+    }
+
+    private <T> int stream(final String action,
+                           Map<String, String> params,
+                           final boolean withHeader,
+                           final RecordMapper<T> mapper,
+                           final PumapiRecordHandler<? super T> handler) throws PumapiException {
+
+        Integer result = transport.post(action, params, new ResponseHandler<Integer>() {
+            @Override
+            public Integer handleResponse(HttpResponse response) throws IOException {
+                int count = 0;
+
+                HttpEntity entity = response.getEntity();
+                if (null != entity) {
+                    PumapiCsvReader reader = new PumapiCsvReader(entity);
+                    try {
+                        String[] header = (withHeader ? reader.readRecord() : null);
+                        String[] record = null;
+                        boolean proceed = true;
+
+                        while (proceed && null != (record = reader.readRecord())) {
+                            T item = mapper.map(header, record);
+
+                            if (null != item) {
+                                ++count;
+                                proceed = handler.handle(item);
+                            } else {
+                                log.debug("[external_auth][ppms] Skipping invalid {} record: {}", action, (Object) record);
+                            }
+                        }
+                    } finally {
+                        reader.close();
+                    }
+                }
+
+                return count;
+            }
+        });
+
+        return result;
+    }
+
+    private static PpmsUserPrivilege parseRight(String value) {
+        PpmsUserPrivilege result = null;
+
+        int separator = (null == value ? -1 : value.indexOf(PumapiKeys.RIGHT_SEPARATOR));
+        if (separator > 0) {
+            PpmsPrivilege privilege = privilegeOf(value.substring(0, separator).trim());
+            Long systemId = parseLong(value.substring(separator + 1).trim());
+
+            if (null != privilege && null != systemId) {
+                result = new PpmsUserPrivilege(systemId, privilege);
+            }
+        }
+
+        return result;
+    }
+
+    private static PpmsPrivilege privilegeOf(String code) {
+        PpmsPrivilege result = null;
+
+        if ("N".equalsIgnoreCase(code)) {
+            result = PpmsPrivilege.Novice;
+        } else if ("A".equalsIgnoreCase(code)) {
+            result = PpmsPrivilege.Autonomous;
+        } else if ("S".equalsIgnoreCase(code)) {
+            result = PpmsPrivilege.SuperUser;
+        } else if ("D".equalsIgnoreCase(code)) {
+            result = PpmsPrivilege.Deactivated;
+        }
+
+        return result;
+    }
+
+    private static String valueOf(String[] header, String[] record, String columnName) {
+        String result = valueAt(record, columnOf(header, columnName, -1));
+        return (empty(result) ? null : result);
+    }
+
+    private static Boolean booleanOf(String[] header, String[] record, String columnName) {
+        String value = valueOf(header, record, columnName);
+        return (null == value ? null : Boolean.valueOf(value));
+    }
+
+    private static Long longOf(String[] header, String[] record, String columnName) {
+        return parseLong(valueOf(header, record, columnName));
+    }
+
+    private static Long parseLong(String value) {
+        Long result = null;
+
+        if (!empty(value)) {
+            try {
+                result = Long.valueOf(value);
+            } catch (NumberFormatException e) {
+                result = null;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns transport.
+     * @return the transport
+     */
+    public PumapiHttpTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Sets transport.
+     * @param transport the transport to set
+     */
+    public void setTransport(PumapiHttpTransport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Maps a CSV record to a PUMAPI object.
+     *
+     * @param <T> the mapped type
+     *
+     * @author seb
+     *
+     */
+    private interface RecordMapper<T> {
+
+        /**
+         * Maps a record.
+         *
+         * @param header the header record (null for headerless responses)
+         * @param record the record values
+         * @return the mapped object, or null if the record is invalid
+         */
+        T map(String[] header, String[] record);
+    }
+
+    /**
+     * PUMAPI request parameters and response columns.
+     *
+     * @author seb
+     *
+     */
+    private final class PumapiKeys {
+        /** Users listing action. */
+        private static final String GET_USERS_ACTION       = "getusers";
+
+        /** User lookup action. */
+        private static final String GET_USER_ACTION        = "getuser";
+
+        /** User rights listing action. */
+        private static final String GET_USER_RIGHTS_ACTION = "getuserrights";
+
+        /** Group lookup action. */
+        private static final String GET_GROUP_ACTION       = "getgroup";
+
+        /** System lookup action. */
+        private static final String GET_SYSTEM_ACTION      = "getsystem";
+
+        /** Authentication action. */
+        private static final String AUTH_ACTION            = "auth";
+
+        /** Login parameter and column. */
+        private static final String LOGIN                  = "login";
+
+        /** Password parameter. */
+        private static final String PASSWORD               = "pwd";
+
+        /** Unit login parameter and column. */
+        private static final String UNIT_LOGIN             = "unitlogin";
+
+        /** System identifier parameter. */
+        private static final String ID                     = "id";
+
+        /** Active status parameter and column. */
+        private static final String ACTIVE                 = "active";
+
+        /** Last name column. */
+        private static final String LAST_NAME              = "lname";
+
+        /** First name column. */
+        private static final String FIRST_NAME             = "fname";
+
+        /** Email column. */
+        private static final String EMAIL                  = "email";
+
+        /** Unit name column. */
+        private static final String UNIT_NAME              = "unitname";
+
+        /** External unit column. */
+        private static final String EXTERNAL               = "ext";
+
+        /** System identifier column. */
+        private static final String SYSTEM_ID              = "System id";
+
+        /** Core facility reference column. */
+        private static final String CORE_FACILITY_REF      = "Core facility ref";
+
+        /** System name column. */
+        private static final String NAME                   = "Name";
+
+        /** System type column. */
+        private static final String TYPE                   = "Type";
+
+        /** System location column. */
+        private static final String LOCALISATION           = "Localisation";
+
+        /** System autonomy column. */
+        private static final String AUTONOMY_REQUIRED      = "Autonomy Required";
+
+        /** Privilege code and system identifier separator in rights records. */
+        private static final char RIGHT_SEPARATOR          = ':';
+
+        /** Constants class. */
+        private PumapiKeys() {
+            super();
+        }
+    }
+
+}
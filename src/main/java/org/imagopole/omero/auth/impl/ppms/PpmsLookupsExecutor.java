@@ -0,0 +1,271 @@
+/**
+ *
+ */
+package org.imagopole.omero.auth.impl.ppms;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.imagopole.omero.auth.util.DaemonThreadFactory;
+import org.imagopole.ppms.api.PumapiException;
+import org.imagopole.ppms.util.Check;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs independent PPMS lookups in the background, so that aggregate lookups (eg. user profiles)
+ * may issue several PUMAPI calls concurrently instead of serially.
+ *
+ * All background lookups for a given aggregate share an overall deadline. When the parallel mode
+ * is disabled, lookups are run on the calling thread upon submission.
+ *
+ * Parallel by default.
+ *
+ * @author seb
+ *
+ */
+public class PpmsLookupsExecutor {
+
+    /** Application logs. */
+    private final Logger log = LoggerFactory.getLogger(PpmsLookupsExecutor.class);
+
+    /** Flag to activate the background lookups. */
+    private boolean parallel = true;
+
+    /** Maximum number of lookup threads shared by all callers. */
+    private int threads = ExecutorConfig.DEFAULT_THREADS;
+
+    /** Overall timeout in milliseconds for an aggregate lookup. */
+    private long timeoutMillis = ExecutorConfig.DEFAULT_TIMEOUT_MILLIS;
+
+    /** Lookups executor - lazily initialized upon first parallel submission. */
+    private volatile ExecutorService executor;
+
+    /**
+     * Default constructor.
+     */
+    public PpmsLookupsExecutor() {
+        super();
+    }
+
+    /**
+     * Creates an executor which runs all lookups on the calling thread.
+     *
+     * @return a sequential lookups executor
+     */
+    public static PpmsLookupsExecutor sequential() {
+        PpmsLookupsExecutor result = new PpmsLookupsExecutor();
+        result.parallel = false;
+
+        return result;
+    }
+
+    /**
+     * Computes the deadline for an aggregate lookup starting now.
+     *
+     * @return the deadline in milliseconds
+     */
+    public long newDeadline() {
+        return System.currentTimeMillis() + timeoutMillis;
+    }
+
+    /**
+     * Submits a lookup, to be run in the background in parallel mode, or on the calling thread
+     * otherwise.
+     *
+     * @param lookup the lookup
+     * @return the pending lookup result
+     */
+    public <T> Future<T> submit(Callable<T> lookup) {
+        Check.notNull(lookup, "lookup");
+
+        Future<T> result = null;
+
+        if (parallel) {
+
+            try {
+                result = getExecutor().submit(lookup);
+            } catch (RejectedExecutionException e) {
+                log.warn("[external_auth][ppms] Lookups executor unavailable - running lookup on calling thread");
+            }
+
+        }
+
+        if (null == result) {
+            FutureTask<T> task = new FutureTask<T>(lookup);
+            task.run();
+            result = task;
+        }
+
+        return result;
+    }
+
+    /**
+     * Waits for a pending lookup result until the given deadline.
+     *
+     * @param pendingLookup the pending lookup
+     * @param deadline the deadline in milliseconds
+     * @return the lookup result
+     * @throws PumapiException if the lookup failed, or if the deadline elapses (in which case the
+     * lookup is cancelled)
+     */
+    public <T> T await(Future<T> pendingLookup, long deadline) throws PumapiException {
+        Check.notNull(pendingLookup, "pendingLookup");
+
+        T result = null;
+
+        try {
+
+            long remainingMillis = Math.max(0L, deadline - System.currentTimeMillis());
+            result = pendingLookup.get(remainingMillis, TimeUnit.MILLISECONDS);
+
+        } catch (TimeoutException e) {
+            pendingLookup.cancel(true);
+            throw new PumapiException("Timed out after " + timeoutMillis + " ms while waiting for PPMS lookups");
+        } catch (InterruptedException e) {
+            pendingLookup.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new PumapiException("Interrupted while waiting for PPMS lookups");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new PumapiException("PPMS lookup failed", cause);
+        }
+
+        return result;
+    }
+
+    /**
+     * Stops the lookups executor, if any.
+     */
+    public void shutdown() {
+        ExecutorService lookupsExecutor = executor;
+
+        if (null != lookupsExecutor) {
+            log.info("[external_auth][ppms] Stopping lookups executor");
+            lookupsExecutor.shutdownNow();
+        }
+    }
+
+    private ExecutorService getExecutor() {
+        ExecutorService result = executor;
+
+        if (null == result) {
+            synchronized (this) {
+                result = executor;
+
+                if (null == result) {
+                    result = new ThreadPoolExecutor(
+                                threads, threads,
+                                0L, TimeUnit.MILLISECONDS,
+                                new LinkedBlockingQueue<Runnable>(),
+                                new DaemonThreadFactory(ExecutorConfig.THREADS_NAME));
+                    executor = result;
+
+                    log.info("[external_auth][ppms] Started lookups executor [threads:{}]", threads);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns parallel.
+     * @return the parallel
+     */
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    /**
+     * Sets parallel.
+     *
+     * Null values are ignored.
+     *
+     * @param parallel the parallel to set
+     */
+    public void setParallel(Boolean parallel) {
+        if (null != parallel) {
+            this.parallel = parallel;
+        }
+    }
+
+    /**
+     * Returns threads.
+     * @return the threads
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Sets threads.
+     *
+     * Null or non-positive values are ignored.
+     *
+     * @param threads the threads to set
+     */
+    public void setThreads(Integer threads) {
+        if (null != threads && threads > 0) {
+            this.threads = threads;
+        }
+    }
+
+    /**
+     * Returns timeoutMillis.
+     * @return the timeoutMillis
+     */
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * Sets timeoutMillis.
+     *
+     * Null or non-positive values are ignored.
+     *
+     * @param timeoutMillis the timeoutMillis to set
+     */
+    public void setTimeoutMillis(Long timeoutMillis) {
+        if (null != timeoutMillis && timeoutMillis > 0) {
+            this.timeoutMillis = timeoutMillis;
+        }
+    }
+
+    /**
+     * Internal settings for the background lookups.
+     *
+     * @author seb
+     *
+     */
+    private final class ExecutorConfig {
+        /** Default number of lookup threads. */
+        private static final int DEFAULT_THREADS            = 4;
+
+        /** Default overall timeout in milliseconds. */
+        private static final long DEFAULT_TIMEOUT_MILLIS    = 10000L;
+
+        /** Lookup threads name prefix. */
+        private static final String THREADS_NAME            = "ppms-lookups";
+
+        /** Constants class. */
+        private ExecutorConfig() {
+            super();
+        }
+    }
+
+}
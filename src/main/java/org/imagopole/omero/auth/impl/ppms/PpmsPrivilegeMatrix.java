@@ -0,0 +1,249 @@
+/**
+ *
+ */
+package org.imagopole.omero.auth.impl.ppms;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.imagopole.ppms.api.dto.PpmsPrivilege;
+import org.imagopole.ppms.util.Check;
+
+/**
+ * Dense users x systems privileges matrix, for bulk processing over many PPMS users
+ * (eg. synchronizing the members of all instrument groups).
+ *
+ * Each privilege is stored as one bit plane, laid out by system: the bits for all users on a
+ * given system are contiguous, so that per-system queries (activated or autonomous users)
+ * are word-wise mask operations.
+ *
+ * The users and systems dimensions are fixed upon construction. Not thread-safe while being
+ * populated: rows should be filled in with {@link #put(String, PpmsPrivileges)} before the
+ * matrix is shared for reading.
+ *
+ * @author seb
+ *
+ */
+public class PpmsPrivilegeMatrix {
+
+    /** Privileges enumerated in bit order. */
+    private static final PpmsPrivilege[] PRIVILEGES = PpmsPrivilege.values();
+
+    /** Users logins by row. */
+    private final String[] logins;
+
+    /** Rows indexed by user login. */
+    private final Map<String, Integer> rows;
+
+    /** Systems identifiers by column (sorted). */
+    private final long[] systemIds;
+
+    /** Number of 64-bits words per column. */
+    private final int wordsPerColumn;
+
+    /** One bit plane per privilege, with <code>wordsPerColumn</code> words for each system. */
+    private final long[][] planes;
+
+    /**
+     * Full constructor.
+     *
+     * @param logins the users logins (matrix rows)
+     * @param systemIds the systems identifiers (matrix columns)
+     */
+    public PpmsPrivilegeMatrix(List<String> logins, long[] systemIds) {
+        super();
+
+        Check.notNull(logins, "logins");
+        Check.notNull(systemIds, "systemIds");
+
+        this.logins = logins.toArray(new String[logins.size()]);
+        this.rows = new HashMap<String, Integer>();
+        for (int row = 0; row < this.logins.length; ++row) {
+            this.rows.put(this.logins[row], row);
+        }
+
+        this.systemIds = systemIds.clone();
+        Arrays.sort(this.systemIds);
+
+        this.wordsPerColumn = (this.logins.length + 63) >>> 6;
+        this.planes = new long[PRIVILEGES.length][wordsPerColumn * this.systemIds.length];
+    }
+
+    /**
+     * Stores a user's privileges, ignoring systems outside of the matrix columns.
+     *
+     * @param login the user login
+     * @param privileges the user's privileges
+     * @return true if the user is one of the matrix rows
+     */
+    public boolean put(String login, PpmsPrivileges privileges) {
+        Check.notNull(privileges, "privileges");
+
+        Integer row = rows.get(login);
+        boolean result = (null != row);
+
+        if (result) {
+            int word = row >>> 6;
+            long bit = 1L << (row & 63);
+
+            for (int column = 0; column < systemIds.length; ++column) {
+                int mask = privileges.getMask(systemIds[column]);
+                int offset = column * wordsPerColumn + word;
+
+                for (int p = 0; p < PRIVILEGES.length; ++p) {
+                    if (0 != (mask & (1 << p))) {
+                        planes[p][offset] |= bit;
+                    } else {
+                        planes[p][offset] &= ~bit;
+                    }
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the privileges mask for a user on a system.
+     *
+     * @param login the user login
+     * @param systemId the system identifier
+     * @return the privileges mask (see {@link PpmsPrivileges#maskOf(PpmsPrivilege)}), or zero if
+     * none granted or if the user or system is not part of the matrix
+     */
+    public int getMask(String login, long systemId) {
+        int result = 0;
+
+        Integer row = rows.get(login);
+        int column = Arrays.binarySearch(systemIds, systemId);
+
+        if (null != row && column >= 0) {
+            int offset = column * wordsPerColumn + (row >>> 6);
+            long bit = 1L << (row & 63);
+
+            for (int p = 0; p < PRIVILEGES.length; ++p) {
+                if (0 != (planes[p][offset] & bit)) {
+                    result |= (1 << p);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Checks whether a privilege is granted to a user on a system.
+     *
+     * @param login the user login
+     * @param systemId the system identifier
+     * @param privilege the privilege
+     * @return true if granted
+     */
+    public boolean has(String login, long systemId, PpmsPrivilege privilege) {
+        return 0 != (getMask(login, systemId) & PpmsPrivileges.maskOf(privilege));
+    }
+
+    /**
+     * Lists the users with any privilege on a system, and who have not been deactivated.
+     *
+     * @param systemId the system identifier
+     * @return the activated users logins, in rows order
+     */
+    public List<String> listActivatedUsers(long systemId) {
+        List<String> result = new ArrayList<String>();
+
+        int column = Arrays.binarySearch(systemIds, systemId);
+        if (column >= 0) {
+            int deactivated = PpmsPrivilege.Deactivated.ordinal();
+
+            for (int w = 0; w < wordsPerColumn; ++w) {
+                int offset = column * wordsPerColumn + w;
+
+                long granted = 0L;
+                for (int p = 0; p < PRIVILEGES.length; ++p) {
+                    granted |= planes[p][offset];
+                }
+                collectUsers(result, w, granted & ~planes[deactivated][offset]);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Lists the users who are autonomous (or super user) on a system.
+     *
+     * @param systemId the system identifier
+     * @return the autonomous users logins, in rows order
+     */
+    public List<String> listAutonomousUsers(long systemId) {
+        List<String> result = new ArrayList<String>();
+
+        int column = Arrays.binarySearch(systemIds, systemId);
+        if (column >= 0) {
+            long[] autonomous = planes[PpmsPrivilege.Autonomous.ordinal()];
+            long[] superUser = planes[PpmsPrivilege.SuperUser.ordinal()];
+
+            for (int w = 0; w < wordsPerColumn; ++w) {
+                int offset = column * wordsPerColumn + w;
+                collectUsers(result, w, autonomous[offset] | superUser[offset]);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Counts the users holding a privilege on a system.
+     *
+     * @param systemId the system identifier
+     * @param privilege the privilege
+     * @return the number of users
+     */
+    public int countUsers(long systemId, PpmsPrivilege privilege) {
+        int result = 0;
+
+        int column = Arrays.binarySearch(systemIds, systemId);
+        if (column >= 0) {
+            long[] plane = planes[privilege.ordinal()];
+
+            for (int w = 0; w < wordsPerColumn; ++w) {
+                result += Long.bitCount(plane[column * wordsPerColumn + w]);
+            }
+        }
+
+        return result;
+    }
+
+    private void collectUsers(List<String> users, int word, long bits) {
+        long remaining = bits;
+
+        while (0L != remaining) {
+            int row = (word << 6) + Long.numberOfTrailingZeros(remaining);
+            users.add(logins[row]);
+            remaining &= (remaining - 1);
+        }
+    }
+
+    /**
+     * Returns the number of users (matrix rows).
+     *
+     * @return the number of users
+     */
+    public int getUsersCount() {
+        return logins.length;
+    }
+
+    /**
+     * Returns the number of systems (matrix columns).
+     *
+     * @return the number of systems
+     */
+    public int getSystemsCount() {
+        return systemIds.length;
+    }
+
+}
@@ -0,0 +1,248 @@
+/**
+ *
+ */
+package org.imagopole.omero.auth.impl.ppms;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.imagopole.ppms.api.dto.PpmsPrivilege;
+import org.imagopole.ppms.api.dto.PpmsUserPrivilege;
+
+/**
+ * Immutable index of the privileges granted to a PPMS user, by system.
+ *
+ * The privileges for each system are stored as a bitmask (one bit per {@link PpmsPrivilege}),
+ * in an open-addressing table keyed by primitive system identifiers, so that activation and
+ * autonomy checks are mask tests without any boxing nor per-system set allocation.
+ *
+ * Systems are enumerated in the order in which they first appear in the PUMAPI rights list.
+ *
+ * @author seb
+ *
+ */
+public final class PpmsPrivileges {
+
+    /** Privileges index without any system. */
+    public static final PpmsPrivileges EMPTY = new PpmsPrivileges(0);
+
+    /** Mask for the deactivated users. */
+    public static final int DEACTIVATED_MASK = maskOf(PpmsPrivilege.Deactivated);
+
+    /** Mask for the users with autonomy (or super user status). */
+    public static final int AUTONOMY_MASK = maskOf(PpmsPrivilege.Autonomous) | maskOf(PpmsPrivilege.SuperUser);
+
+    /** Systems identifiers in insertion order. */
+    private long[] systemIds;
+
+    /** Open-addressing table keys (systems identifiers). */
+    private final long[] keys;
+
+    /** Open-addressing table values (privileges masks - zero for empty slots). */
+    private final int[] masks;
+
+    private PpmsPrivileges(int expectedSize) {
+        super();
+
+        int capacity = Integer.highestOneBit(Math.max(2, expectedSize * 2 - 1)) << 1;
+        this.systemIds = new long[expectedSize];
+        this.keys = new long[capacity];
+        this.masks = new int[capacity];
+    }
+
+    /**
+     * Builds the privileges index from a PUMAPI rights list.
+     *
+     * @param userRights the user's rights (may be null)
+     * @return the privileges index
+     */
+    public static PpmsPrivileges of(List<PpmsUserPrivilege> userRights) {
+        PpmsPrivileges result = EMPTY;
+
+        if (null != userRights && !userRights.isEmpty()) {
+            result = new PpmsPrivileges(userRights.size());
+            int size = 0;
+
+            for (PpmsUserPrivilege userRight : userRights) {
+                Long systemId = userRight.getSystemId();
+                PpmsPrivilege privilege = userRight.getPrivilege();
+
+                if (null != systemId && null != privilege) {
+                    if (result.grant(systemId, maskOf(privilege))) {
+                        result.systemIds[size++] = systemId;
+                    }
+                }
+            }
+
+            if (size < result.systemIds.length) {
+                result.systemIds = Arrays.copyOf(result.systemIds, size);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Adds privileges to a system - only used while building the index.
+     *
+     * @return true if the system was not indexed yet
+     */
+    private boolean grant(long systemId, int mask) {
+        int capacity = keys.length;
+        int slot = indexFor(systemId);
+        while (0 != masks[slot] && keys[slot] != systemId) {
+            slot = (slot + 1) & (capacity - 1);
+        }
+
+        boolean result = (0 == masks[slot]);
+        keys[slot] = systemId;
+        masks[slot] |= mask;
+
+        return result;
+    }
+
+    /**
+     * Returns the bit for a given privilege.
+     *
+     * @param privilege the privilege
+     * @return the privilege bit
+     */
+    public static int maskOf(PpmsPrivilege privilege) {
+        return 1 << privilege.ordinal();
+    }
+
+    /**
+     * Returns the privileges mask for a system.
+     *
+     * @param systemId the system identifier
+     * @return the privileges mask, or zero if no privilege is granted on this system
+     */
+    public int getMask(long systemId) {
+        int result = 0;
+
+        int capacity = keys.length;
+        int slot = indexFor(systemId);
+        while (0 != masks[slot]) {
+            if (keys[slot] == systemId) {
+                result = masks[slot];
+                break;
+            }
+            slot = (slot + 1) & (capacity - 1);
+        }
+
+        return result;
+    }
+
+    /**
+     * Checks whether a privilege is granted on a system.
+     *
+     * @param systemId the system identifier
+     * @param privilege the privilege
+     * @return true if granted
+     */
+    public boolean has(long systemId, PpmsPrivilege privilege) {
+        return 0 != (getMask(systemId) & maskOf(privilege));
+    }
+
+    /**
+     * Checks whether the user has any privilege on a system, and has not been deactivated.
+     *
+     * @param systemId the system identifier
+     * @return true if activated
+     */
+    public boolean isActivated(long systemId) {
+        return isActivatedMask(getMask(systemId));
+    }
+
+    /**
+     * Checks whether the user is autonomous (or super user) on a system.
+     *
+     * @param systemId the system identifier
+     * @return true if autonomy is granted
+     */
+    public boolean isAutonomyGranted(long systemId) {
+        return isAutonomyMask(getMask(systemId));
+    }
+
+    /**
+     * Checks whether a privileges mask grants activated access.
+     *
+     * @param mask the privileges mask
+     * @return true if activated
+     */
+    public static boolean isActivatedMask(int mask) {
+        return 0 != mask && 0 == (mask & DEACTIVATED_MASK);
+    }
+
+    /**
+     * Checks whether a privileges mask grants autonomy.
+     *
+     * @param mask the privileges mask
+     * @return true if autonomy is granted
+     */
+    public static boolean isAutonomyMask(int mask) {
+        return 0 != (mask & AUTONOMY_MASK);
+    }
+
+    /**
+     * Returns the identifiers of the systems with any privilege, in rights list order.
+     *
+     * @return the systems identifiers (a copy)
+     */
+    public long[] getSystemIds() {
+        return systemIds.clone();
+    }
+
+    /**
+     * Returns the number of systems with any privilege.
+     *
+     * @return the number of systems
+     */
+    public int size() {
+        return systemIds.length;
+    }
+
+    /**
+     * Checks whether no privilege is granted on any system.
+     *
+     * @return true if empty
+     */
+    public boolean isEmpty() {
+        return 0 == systemIds.length;
+    }
+
+    /**
+     * Converts the privileges index to sets of privileges indexed by system.
+     *
+     * @return the privileges by system, in rights list order
+     */
+    public Map<Long, Set<PpmsPrivilege>> toPrivilegesBySystem() {
+        Map<Long, Set<PpmsPrivilege>> result = new LinkedHashMap<Long, Set<PpmsPrivilege>>();
+
+        for (long systemId : systemIds) {
+            int mask = getMask(systemId);
+            Set<PpmsPrivilege> privileges = EnumSet.noneOf(PpmsPrivilege.class);
+
+            for (PpmsPrivilege privilege : PpmsPrivilege.values()) {
+                if (0 != (mask & maskOf(privilege))) {
+                    privileges.add(privilege);
+                }
+            }
+            result.put(systemId, Collections.unmodifiableSet(privileges));
+        }
+
+        return result;
+    }
+
+    private int indexFor(long systemId) {
+        // spread the (usually sequential) identifiers over the table
+        long hash = systemId * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & (keys.length - 1);
+    }
+
+}
@@ -0,0 +1,386 @@
+/**
+ *
+ */
+package org.imagopole.omero.auth.impl.ppms;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.imagopole.omero.auth.api.dto.NamedItem;
+import org.imagopole.omero.auth.api.ppms.PpmsProjectSource;
+import org.imagopole.omero.auth.util.DaemonThreadFactory;
+import org.imagopole.ppms.api.PumapiException;
+import org.imagopole.ppms.util.Check;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-memory PPMS project memberships index, so that resolving a user's projects does not
+ * require one PPMS call per project.
+ *
+ * The index is loaded in bulk upon first use, then refreshed incrementally in the background:
+ * each refresh lists the active projects (one PPMS call), loads the members of new projects,
+ * drops the inactive ones, and reloads the members of a bounded batch of the least recently
+ * loaded projects - so that all memberships are eventually refreshed without reloading them
+ * all at once.
+ *
+ * Each update builds a new immutable index (project to members, plus member to projects) which
+ * replaces the previous one atomically, so that readers never block nor see a partial update.
+ *
+ * @author seb
+ *
+ */
+public class PpmsProjectIndex {
+
+    /** Application logs. */
+    private final Logger log = LoggerFactory.getLogger(PpmsProjectIndex.class);
+
+    /** PPMS projects source. */
+    private PpmsProjectSource projectSource;
+
+    /** Interval between two incremental refreshes in seconds. */
+    private int refreshIntervalSeconds = IndexConfig.DEFAULT_REFRESH_SECONDS;
+
+    /** Maximum number of known projects whose members are reloaded upon each refresh. */
+    private int refreshBatchSize = IndexConfig.DEFAULT_REFRESH_BATCH_SIZE;
+
+    /** Current memberships index - null until first loaded, then replaced as a whole upon each update. */
+    private volatile ProjectIndex index;
+
+    /** Periodic refreshes scheduler (null if not started). */
+    private volatile ScheduledExecutorService scheduler;
+
+    protected PpmsProjectIndex() {
+        super();
+    }
+
+    public PpmsProjectIndex(PpmsProjectSource projectSource) {
+        super();
+
+        Check.notNull(projectSource, "projectSource");
+        this.projectSource = projectSource;
+    }
+
+    /**
+     * Lists the active projects a user is a member of, loading the index first if need be.
+     *
+     * @param userName the username / PPMS identifier
+     * @return the user's projects, or an empty list if none
+     * @throws PumapiException in case of an underlying error (API or technical) upon first load
+     */
+    public List<NamedItem> findProjectsByUserName(String userName) throws PumapiException {
+        Check.notEmpty(userName, "userName");
+
+        return getIndex().findByMember(userName);
+    }
+
+    /**
+     * Lists the members of a project, loading the index first if need be.
+     *
+     * @param projectRef the PPMS project reference
+     * @return the project members logins, or an empty list if none or if the project is inactive
+     * @throws PumapiException in case of an underlying error (API or technical) upon first load
+     */
+    public List<String> findMembersByProject(String projectRef) throws PumapiException {
+        Check.notEmpty(projectRef, "projectRef");
+
+        return getIndex().findMembers(projectRef);
+    }
+
+    /**
+     * Checks whether the index has been loaded.
+     *
+     * @return true if loaded
+     */
+    public boolean isLoaded() {
+        return (null != index);
+    }
+
+    /**
+     * Returns the number of indexed projects.
+     *
+     * @return the number of projects
+     */
+    public int size() {
+        ProjectIndex currentIndex = index;
+        return (null == currentIndex ? 0 : currentIndex.size());
+    }
+
+    /**
+     * Loads all active projects and their members from PPMS, and replaces the index atomically.
+     *
+     * @throws PumapiException in case of an underlying error (API or technical), in which case
+     * the current index is kept
+     */
+    public synchronized void reload() throws PumapiException {
+        long startTime = System.currentTimeMillis();
+
+        Map<String, ProjectEntry> entries = new LinkedHashMap<String, ProjectEntry>();
+        for (NamedItem project : projectSource.listActiveProjects()) {
+            entries.put(project.getIdentifier(), loadEntry(project));
+        }
+
+        index = new ProjectIndex(entries);
+
+        log.info("[external_auth][ppms] Loaded projects index in {} ms [projects:{}]",
+                 (System.currentTimeMillis() - startTime), index.size());
+    }
+
+    /**
+     * Refreshes the index incrementally: loads new projects, drops inactive ones, and reloads the
+     * members of the least recently loaded projects (up to the refresh batch size).
+     *
+     * Performs a full load if the index has not been loaded yet.
+     *
+     * @throws PumapiException in case of an underlying error (API or technical), in which case
+     * the current index is kept
+     */
+    public synchronized void refresh() throws PumapiException {
+        ProjectIndex currentIndex = index;
+        if (null == currentIndex) {
+            reload();
+            return;
+        }
+
+        long startTime = System.currentTimeMillis();
+
+        Map<String, NamedItem> activeProjects = new LinkedHashMap<String, NamedItem>();
+        for (NamedItem project : projectSource.listActiveProjects()) {
+            activeProjects.put(project.getIdentifier(), project);
+        }
+
+        // known projects first, from the least to the most recently loaded
+        Map<String, ProjectEntry> refreshed = new LinkedHashMap<String, ProjectEntry>();
+        List<ProjectEntry> reloaded = new ArrayList<ProjectEntry>();
+        int added = 0;
+
+        for (ProjectEntry entry : currentIndex.entries()) {
+            NamedItem project = activeProjects.get(entry.project.getIdentifier());
+
+            if (null != project) {
+                if (reloaded.size() < refreshBatchSize) {
+                    reloaded.add(loadEntry(project));
+                } else {
+                    refreshed.put(project.getIdentifier(), new ProjectEntry(project, entry.members));
+                }
+            }
+        }
+
+        // then the newly active projects
+        for (NamedItem project : activeProjects.values()) {
+            if (!currentIndex.contains(project.getIdentifier())) {
+                reloaded.add(loadEntry(project));
+                ++added;
+            }
+        }
+
+        // the reloaded projects become the most recently loaded ones
+        for (ProjectEntry entry : reloaded) {
+            refreshed.put(entry.project.getIdentifier(), entry);
+        }
+
+        index = new ProjectIndex(refreshed);
+
+        log.info("[external_auth][ppms] Refreshed projects index in {} ms [projects:{} - added:{} - dropped:{} - reloaded:{}]",
+                 (System.currentTimeMillis() - startTime), index.size(), added,
+                 currentIndex.size() + added - index.size(), reloaded.size() - added);
+    }
+
+    /**
+     * Stops the periodic index refreshes, if any.
+     */
+    public void shutdown() {
+        ScheduledExecutorService executor = scheduler;
+
+        if (null != executor) {
+            executor.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    private ProjectIndex getIndex() throws PumapiException {
+        ProjectIndex result = index;
+
+        if (null == result) {
+            synchronized (this) {
+                if (null == index) {
+                    reload();
+                    scheduleRefreshes();
+                }
+                result = index;
+            }
+        }
+
+        return result;
+    }
+
+    private void scheduleRefreshes() {
+        ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory(IndexConfig.THREADS_NAME));
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refresh();
+                } catch (PumapiException e) {
+                    log.warn("[external_auth][ppms] Failed to refresh projects index - keeping {} projects: {}",
+                             size(), e.getMessage());
+                }
+            }
+        }, refreshIntervalSeconds, refreshIntervalSeconds, TimeUnit.SECONDS);
+        scheduler = executor;
+    }
+
+    private ProjectEntry loadEntry(NamedItem project) throws PumapiException {
+        List<String> members = projectSource.listProjectMembers(project.getIdentifier());
+        return new ProjectEntry(project, members);
+    }
+
+    /**
+     * Returns refreshIntervalSeconds.
+     * @return the refreshIntervalSeconds
+     */
+    public int getRefreshIntervalSeconds() {
+        return refreshIntervalSeconds;
+    }
+
+    /**
+     * Sets refreshIntervalSeconds.
+     *
+     * Null or non-positive values are ignored.
+     *
+     * @param refreshIntervalSeconds the refreshIntervalSeconds to set
+     */
+    public void setRefreshIntervalSeconds(Integer refreshIntervalSeconds) {
+        if (null != refreshIntervalSeconds && refreshIntervalSeconds > 0) {
+            this.refreshIntervalSeconds = refreshIntervalSeconds;
+        }
+    }
+
+    /**
+     * Returns refreshBatchSize.
+     * @return the refreshBatchSize
+     */
+    public int getRefreshBatchSize() {
+        return refreshBatchSize;
+    }
+
+    /**
+     * Sets refreshBatchSize.
+     *
+     * Null or negative values are ignored.
+     *
+     * @param refreshBatchSize the refreshBatchSize to set
+     */
+    public void setRefreshBatchSize(Integer refreshBatchSize) {
+        if (null != refreshBatchSize && refreshBatchSize >= 0) {
+            this.refreshBatchSize = refreshBatchSize;
+        }
+    }
+
+    /**
+     * A project and its members.
+     *
+     * @author seb
+     *
+     */
+    private static final class ProjectEntry {
+
+        /** The project. */
+        private final NamedItem project;
+
+        /** The project members logins. */
+        private final List<String> members;
+
+        private ProjectEntry(NamedItem project, List<String> members) {
+            super();
+            this.project = project;
+            this.members = Collections.unmodifiableList(new ArrayList<String>(members));
+        }
+    }
+
+    /**
+     * Immutable memberships index, by project and by member.
+     *
+     * @author seb
+     *
+     */
+    private static final class ProjectIndex {
+
+        /** Projects entries, from the least to the most recently loaded. */
+        private final Map<String, ProjectEntry> byProject;
+
+        /** Projects by member login. */
+        private final Map<String, List<NamedItem>> byMember;
+
+        private ProjectIndex(Map<String, ProjectEntry> entries) {
+            super();
+
+            this.byProject = entries;
+            this.byMember = new HashMap<String, List<NamedItem>>();
+
+            for (ProjectEntry entry : entries.values()) {
+                for (String member : entry.members) {
+                    List<NamedItem> projects = byMember.get(member);
+                    if (null == projects) {
+                        projects = new ArrayList<NamedItem>();
+                        byMember.put(member, projects);
+                    }
+                    projects.add(entry.project);
+                }
+            }
+        }
+
+        private List<NamedItem> findByMember(String login) {
+            List<NamedItem> result = byMember.get(login);
+            return (null == result ? Collections.<NamedItem>emptyList() : Collections.unmodifiableList(result));
+        }
+
+        private List<String> findMembers(String projectRef) {
+            ProjectEntry entry = byProject.get(projectRef);
+            return (null == entry ? Collections.<String>emptyList() : entry.members);
+        }
+
+        private boolean contains(String projectRef) {
+            return byProject.containsKey(projectRef);
+        }
+
+        private Iterable<ProjectEntry> entries() {
+            return byProject.values();
+        }
+
+        private int size() {
+            return byProject.size();
+        }
+    }
+
+    /**
+     * Internal settings for the projects index.
+     *
+     * @author seb
+     *
+     */
+    private final class IndexConfig {
+        /** Default interval between two incremental refreshes in seconds. */
+        private static final int DEFAULT_REFRESH_SECONDS    = 900;
+
+        /** Default maximum number of known projects reloaded upon each refresh. */
+        private static final int DEFAULT_REFRESH_BATCH_SIZE = 50;
+
+        /** Refresh threads name prefix. */
+        private static final String THREADS_NAME            = "ppms-projects-index";
+
+        /** Constants class. */
+        private IndexConfig() {
+            super();
+        }
+    }
+
+}
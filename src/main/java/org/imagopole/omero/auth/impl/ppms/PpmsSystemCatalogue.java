@@ -0,0 +1,603 @@
+/**
+ *
+ */
+package org.imagopole.omero.auth.impl.ppms;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.imagopole.omero.auth.util.DaemonThreadFactory;
+import org.imagopole.ppms.api.PumapiClient;
+import org.imagopole.ppms.api.PumapiException;
+import org.imagopole.ppms.api.dto.PpmsSystem;
+import org.imagopole.ppms.util.Check;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-memory catalogue of the PPMS systems, so that resolving the systems granted to a user
+ * is pure in-memory work once their rights are known.
+ *
+ * PUMAPI does not list all systems at once: systems are added to the catalogue upon their
+ * first lookup, then the whole catalogue is periodically reloaded from PPMS in the background.
+ * Each reload builds a new immutable index - keyed by primitive system identifier, with
+ * secondary indexes by core facility and system type - which replaces the previous one atomically,
+ * so that readers never block nor see a partially updated catalogue.
+ *
+ * Systems unknown to PPMS are remembered as negative entries, so that they are not looked up
+ * again before the next reload.
+ *
+ * The catalogue is expected to look systems up from an uncached PPMS client (being a cache itself),
+ * and may be invalidated along with the PUMAPI cache entries for the systems.
+ *
+ * Disabled by default.
+ *
+ * @author seb
+ *
+ */
+public class PpmsSystemCatalogue {
+
+    /** Application logs. */
+    private final Logger log = LoggerFactory.getLogger(PpmsSystemCatalogue.class);
+
+    /** Negative entry marker for systems unknown to PPMS. */
+    private static final PpmsSystem UNKNOWN_SYSTEM = new PpmsSystem();
+
+    /** PPMS client. */
+    private PumapiClient ppmsClient;
+
+    /** Systems details lookups strategy (optional - sequential lookups if unset). */
+    private PpmsSystemsLoader systemsLoader;
+
+    /** Flag to activate the catalogue (optional - disabled by default). */
+    private Boolean enabled;
+
+    /** Interval between two catalogue reloads in seconds. */
+    private int refreshIntervalSeconds = CatalogueConfig.DEFAULT_REFRESH_SECONDS;
+
+    /** Current catalogue index - replaced as a whole upon each update. */
+    private volatile SystemIndex index = SystemIndex.EMPTY;
+
+    /** Periodic reloads scheduler (null if not started). */
+    private volatile ScheduledExecutorService scheduler;
+
+    protected PpmsSystemCatalogue() {
+        super();
+    }
+
+    public PpmsSystemCatalogue(PumapiClient ppmsClient) {
+        super();
+
+        Check.notNull(ppmsClient, "ppmsClient");
+        this.ppmsClient = ppmsClient;
+    }
+
+    /**
+     * Checks whether the catalogue is active.
+     *
+     * @return true if enabled
+     */
+    public boolean isActive() {
+        return (null != enabled && enabled.booleanValue());
+    }
+
+    /**
+     * Schedules the periodic catalogue reloads, if enabled.
+     */
+    public void start() {
+        if (!isActive()) {
+            log.debug("[external_auth][ppms] Systems catalogue disabled");
+            return;
+        }
+
+        ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory(CatalogueConfig.THREADS_NAME));
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refresh();
+                } catch (PumapiException e) {
+                    log.warn("[external_auth][ppms] Failed to reload systems catalogue - keeping {} systems: {}",
+                             index.size(), e.getMessage());
+                }
+            }
+        }, refreshIntervalSeconds, refreshIntervalSeconds, TimeUnit.SECONDS);
+        scheduler = executor;
+    }
+
+    /**
+     * Stops the periodic catalogue reloads, if any.
+     */
+    public void shutdown() {
+        ScheduledExecutorService executor = scheduler;
+
+        if (null != executor) {
+            executor.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Looks up systems details, from the catalogue or from PPMS for systems not yet catalogued.
+     *
+     * @param systemIds the systems identifiers
+     * @return the systems details in the order of <code>systemIds</code>, with null elements
+     * for unknown systems
+     * @throws PumapiException in case of an underlying error (API or technical)
+     */
+    public List<PpmsSystem> getSystems(List<Long> systemIds) throws PumapiException {
+        Check.notNull(systemIds, "systemIds");
+
+        SystemIndex currentIndex = index;
+        List<PpmsSystem> result = new ArrayList<PpmsSystem>(systemIds.size());
+        List<Long> missingIds = null;
+        List<Integer> missingPositions = null;
+
+        for (Long systemId : systemIds) {
+            PpmsSystem system = currentIndex.get(systemId);
+
+            if (null == system) {
+                if (null == missingIds) {
+                    missingIds = new ArrayList<Long>();
+                    missingPositions = new ArrayList<Integer>();
+                }
+                missingIds.add(systemId);
+                missingPositions.add(result.size());
+            }
+            result.add(system == UNKNOWN_SYSTEM ? null : system);
+        }
+
+        if (null != missingIds) {
+            List<PpmsSystem> missingSystems = load(missingIds);
+            addAll(missingIds, missingSystems);
+
+            for (int i = 0; i < missingPositions.size(); ++i) {
+                result.set(missingPositions.get(i), missingSystems.get(i));
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Looks up a system's details, from the catalogue or from PPMS if not yet catalogued.
+     *
+     * @param systemId the system identifier
+     * @return the system details, or null if unknown
+     * @throws PumapiException in case of an underlying error (API or technical)
+     */
+    public PpmsSystem getSystem(long systemId) throws PumapiException {
+        return getSystems(Collections.singletonList(systemId)).get(0);
+    }
+
+    /**
+     * Looks up a system's details from the catalogue only, without any PPMS call.
+     *
+     * @param systemId the system identifier
+     * @return the catalogued system details, or null if not yet catalogued
+     */
+    public PpmsSystem peekSystem(long systemId) {
+        PpmsSystem result = index.get(systemId);
+        return (result == UNKNOWN_SYSTEM ? null : result);
+    }
+
+    /**
+     * Lists the catalogued systems for a core facility.
+     *
+     * @param coreFacilityRef the core facility identifier
+     * @return the catalogued systems (possibly empty)
+     */
+    public List<PpmsSystem> findByFacility(long coreFacilityRef) {
+        return index.findByFacility(coreFacilityRef);
+    }
+
+    /**
+     * Lists the catalogued systems of a given type.
+     *
+     * @param type the system type
+     * @return the catalogued systems (possibly empty)
+     */
+    public List<PpmsSystem> findByType(String type) {
+        return index.findByType(type);
+    }
+
+    /**
+     * Lists the catalogued systems matching both any of the given facilities and any of the given types.
+     *
+     * @param coreFacilityRefs the core facilities identifiers
+     * @param types the systems types
+     * @return the catalogued systems (possibly empty)
+     */
+    public List<PpmsSystem> findByFacilitiesAndTypes(Collection<Long> coreFacilityRefs, Collection<String> types) {
+        Check.notNull(coreFacilityRefs, "coreFacilityRefs");
+        Check.notNull(types, "types");
+
+        List<PpmsSystem> result = new ArrayList<PpmsSystem>();
+        SystemIndex currentIndex = index;
+
+        for (Long coreFacilityRef : coreFacilityRefs) {
+            if (null != coreFacilityRef) {
+                for (PpmsSystem system : currentIndex.findByFacility(coreFacilityRef)) {
+                    if (types.contains(system.getType())) {
+                        result.add(system);
+                    }
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the number of catalogued systems.
+     *
+     * @return the catalogue size
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Discards a catalogued system (or negative entry), so that it is looked up again from PPMS
+     * upon next use.
+     *
+     * @param systemId the system identifier
+     * @return true if the system was catalogued
+     */
+    public synchronized boolean evict(long systemId) {
+        boolean result = (null != index.get(systemId));
+
+        if (result) {
+            List<PpmsSystem> systems = new ArrayList<PpmsSystem>(index.values());
+            Set<Long> unknownIds = new HashSet<Long>(index.unknownIds());
+
+            unknownIds.remove(systemId);
+            Iterator<PpmsSystem> it = systems.iterator();
+            while (it.hasNext()) {
+                if (systemId == it.next().getSystemId().longValue()) {
+                    it.remove();
+                }
+            }
+
+            index = new SystemIndex(systems, unknownIds);
+        }
+
+        return result;
+    }
+
+    /**
+     * Discards all catalogued systems and negative entries.
+     *
+     * @return the number of systems discarded
+     */
+    public synchronized int evictAll() {
+        int result = index.size();
+
+        index = SystemIndex.EMPTY;
+
+        return result;
+    }
+
+    /**
+     * Reloads all catalogued systems from PPMS, and replaces the catalogue atomically.
+     *
+     * Systems which have disappeared from PPMS are remembered as unknown, and systems previously
+     * unknown are looked up again.
+     *
+     * @throws PumapiException in case of an underlying error (API or technical), in which case
+     * the current catalogue is kept
+     */
+    public void refresh() throws PumapiException {
+        long startTime = System.currentTimeMillis();
+
+        List<Long> systemIds = index.systemIds();
+        systemIds.addAll(index.unknownIds());
+        if (systemIds.isEmpty()) {
+            return;
+        }
+
+        List<PpmsSystem> systems = load(systemIds);
+
+        synchronized (this) {
+            Map<Long, PpmsSystem> refreshed = new LinkedHashMap<Long, PpmsSystem>();
+            Set<Long> unknownIds = new HashSet<Long>();
+            merge(systemIds, systems, refreshed, unknownIds);
+
+            // keep the systems catalogued while the reload was in progress
+            Set<Long> requestedIds = new HashSet<Long>(systemIds);
+            for (PpmsSystem system : index.values()) {
+                if (!requestedIds.contains(system.getSystemId())) {
+                    refreshed.put(system.getSystemId(), system);
+                }
+            }
+            for (Long unknownId : index.unknownIds()) {
+                if (!requestedIds.contains(unknownId)) {
+                    unknownIds.add(unknownId);
+                }
+            }
+
+            index = new SystemIndex(refreshed.values(), unknownIds);
+        }
+
+        log.info("[external_auth][ppms] Reloaded systems catalogue in {} ms [requested:{} - catalogued:{}]",
+                 (System.currentTimeMillis() - startTime), systemIds.size(), index.size());
+    }
+
+    private List<PpmsSystem> load(List<Long> systemIds) throws PumapiException {
+        List<PpmsSystem> result = null;
+
+        if (null != systemsLoader) {
+
+            result = systemsLoader.loadSystems(ppmsClient, systemIds);
+
+        } else {
+
+            result = new ArrayList<PpmsSystem>(systemIds.size());
+            for (Long systemId : systemIds) {
+                result.add(ppmsClient.getSystem(systemId));
+            }
+
+        }
+
+        return result;
+    }
+
+    private synchronized void addAll(List<Long> systemIds, List<PpmsSystem> systems) {
+        Map<Long, PpmsSystem> merged = new LinkedHashMap<Long, PpmsSystem>();
+        Set<Long> unknownIds = new HashSet<Long>(index.unknownIds());
+
+        for (PpmsSystem system : index.values()) {
+            merged.put(system.getSystemId(), system);
+        }
+        merge(systemIds, systems, merged, unknownIds);
+
+        if (merged.size() != index.size() || unknownIds.size() != index.unknownIds().size()) {
+            index = new SystemIndex(merged.values(), unknownIds);
+        }
+    }
+
+    /**
+     * Adds looked up systems to <code>systemsById</code>, and the identifiers of the systems
+     * unknown to PPMS to <code>unknownIds</code>.
+     */
+    private static void merge(
+                    List<Long> systemIds,
+                    List<PpmsSystem> systems,
+                    Map<Long, PpmsSystem> systemsById,
+                    Set<Long> unknownIds) {
+
+        for (int i = 0; i < systemIds.size(); ++i) {
+            Long systemId = systemIds.get(i);
+            PpmsSystem system = systems.get(i);
+
+            if (null != system && null != system.getSystemId()) {
+                systemsById.put(system.getSystemId(), system);
+                unknownIds.remove(system.getSystemId());
+            } else if (null == system && null != systemId) {
+                unknownIds.add(systemId);
+                systemsById.remove(systemId);
+            }
+        }
+    }
+
+    /**
+     * Returns systemsLoader.
+     * @return the systemsLoader
+     */
+    public PpmsSystemsLoader getSystemsLoader() {
+        return systemsLoader;
+    }
+
+    /**
+     * Sets systemsLoader.
+     * @param systemsLoader the systemsLoader to set
+     */
+    public void setSystemsLoader(PpmsSystemsLoader systemsLoader) {
+        this.systemsLoader = systemsLoader;
+    }
+
+    /**
+     * Returns enabled.
+     * @return the enabled
+     */
+    public Boolean getEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Sets enabled.
+     * @param enabled the enabled to set
+     */
+    public void setEnabled(Boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Returns refreshIntervalSeconds.
+     * @return the refreshIntervalSeconds
+     */
+    public int getRefreshIntervalSeconds() {
+        return refreshIntervalSeconds;
+    }
+
+    /**
+     * Sets refreshIntervalSeconds.
+     *
+     * Null or non-positive values are ignored.
+     *
+     * @param refreshIntervalSeconds the refreshIntervalSeconds to set
+     */
+    public void setRefreshIntervalSeconds(Integer refreshIntervalSeconds) {
+        if (null != refreshIntervalSeconds && refreshIntervalSeconds > 0) {
+            this.refreshIntervalSeconds = refreshIntervalSeconds;
+        }
+    }
+
+    /**
+     * Immutable systems index: open addressing hash table keyed by primitive system identifier
+     * (linear probing), plus secondary indexes by core facility and system type.
+     *
+     * Systems unknown to PPMS occupy a slot holding the negative entry marker, but are left out
+     * of the catalogued values and secondary indexes.
+     *
+     * @author seb
+     *
+     */
+    private static final class SystemIndex {
+
+        /** Empty catalogue. */
+        private static final SystemIndex EMPTY =
+            new SystemIndex(Collections.<PpmsSystem>emptyList(), Collections.<Long>emptySet());
+
+        /** Systems identifiers slots. */
+        private final long[] keys;
+
+        /** Systems slots (null for free slots). */
+        private final PpmsSystem[] slots;
+
+        /** Systems in insertion order. */
+        private final List<PpmsSystem> values;
+
+        /** Identifiers of the systems unknown to PPMS. */
+        private final Set<Long> unknownIds;
+
+        /** Systems by core facility identifier. */
+        private final Map<Long, List<PpmsSystem>> byFacility;
+
+        /** Systems by type. */
+        private final Map<String, List<PpmsSystem>> byType;
+
+        private SystemIndex(Collection<PpmsSystem> systems, Collection<Long> unknownSystemIds) {
+            super();
+
+            int entries = systems.size() + unknownSystemIds.size();
+            int capacity = Integer.highestOneBit(Math.max(2, entries * 2 - 1)) << 1;
+            this.keys = new long[capacity];
+            this.slots = new PpmsSystem[capacity];
+            this.values = Collections.unmodifiableList(new ArrayList<PpmsSystem>(systems));
+            this.unknownIds = Collections.unmodifiableSet(new HashSet<Long>(unknownSystemIds));
+
+            Map<Long, List<PpmsSystem>> facilities = new HashMap<Long, List<PpmsSystem>>();
+            Map<String, List<PpmsSystem>> types = new HashMap<String, List<PpmsSystem>>();
+
+            for (PpmsSystem system : systems) {
+                put(system.getSystemId(), system);
+
+                addTo(facilities, system.getCoreFacilityRef(), system);
+                addTo(types, system.getType(), system);
+            }
+            for (Long unknownId : unknownIds) {
+                put(unknownId, UNKNOWN_SYSTEM);
+            }
+
+            this.byFacility = facilities;
+            this.byType = types;
+        }
+
+        private void put(long systemId, PpmsSystem system) {
+            int slot = indexFor(systemId);
+            while (null != slots[slot]) {
+                slot = (slot + 1) & (keys.length - 1);
+            }
+            keys[slot] = systemId;
+            slots[slot] = system;
+        }
+
+        private static <K> void addTo(Map<K, List<PpmsSystem>> map, K key, PpmsSystem system) {
+            if (null != key) {
+                List<PpmsSystem> systems = map.get(key);
+                if (null == systems) {
+                    systems = new ArrayList<PpmsSystem>();
+                    map.put(key, systems);
+                }
+                systems.add(system);
+            }
+        }
+
+        private int indexFor(long systemId) {
+            // spread the (usually sequential) identifiers over the table
+            long hash = systemId * 0x9E3779B97F4A7C15L;
+            return (int) (hash ^ (hash >>> 32)) & (keys.length - 1);
+        }
+
+        private PpmsSystem get(Long systemId) {
+            if (null == systemId) {
+                return null;
+            }
+
+            long key = systemId.longValue();
+            int slot = indexFor(key);
+
+            while (null != slots[slot]) {
+                if (keys[slot] == key) {
+                    return slots[slot];
+                }
+                slot = (slot + 1) & (keys.length - 1);
+            }
+
+            return null;
+        }
+
+        private List<PpmsSystem> findByFacility(long coreFacilityRef) {
+            List<PpmsSystem> result = byFacility.get(coreFacilityRef);
+            return (null == result ? Collections.<PpmsSystem>emptyList() : Collections.unmodifiableList(result));
+        }
+
+        private List<PpmsSystem> findByType(String type) {
+            List<PpmsSystem> result = byType.get(type);
+            return (null == result ? Collections.<PpmsSystem>emptyList() : Collections.unmodifiableList(result));
+        }
+
+        private List<Long> systemIds() {
+            List<Long> result = new ArrayList<Long>(values.size());
+            for (PpmsSystem system : values) {
+                result.add(system.getSystemId());
+            }
+            return result;
+        }
+
+        private List<PpmsSystem> values() {
+            return values;
+        }
+
+        private Set<Long> unknownIds() {
+            return unknownIds;
+        }
+
+        private int size() {
+            return values.size();
+        }
+    }
+
+    /**
+     * Internal settings for the systems catalogue.
+     *
+     * @author seb
+     *
+     */
+    private final class CatalogueConfig {
+        /** Default interval between two catalogue reloads in seconds. */
+        private static final int DEFAULT_REFRESH_SECONDS    = 3600;
+
+        /** Reload threads name prefix. */
+        private static final String THREADS_NAME            = "ppms-systems-catalogue";
+
+        /** Constants class. */
+        private CatalogueConfig() {
+            super();
+        }
+    }
+
+}
@@ -0,0 +1,327 @@
+/**
+ *
+ */
+package org.imagopole.omero.auth.impl.ppms;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.imagopole.omero.auth.util.DaemonThreadFactory;
+import org.imagopole.ppms.api.PumapiClient;
+import org.imagopole.ppms.api.PumapiException;
+import org.imagopole.ppms.api.dto.PpmsSystem;
+import org.imagopole.ppms.util.Check;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Looks up the details of several PPMS systems at once, so that users granted many instruments
+ * do not pay one sequential PUMAPI round trip per system on a cold cache.
+ *
+ * In parallel mode, the lookups for a given call are spread over at most <code>maxPerLogin</code>
+ * workers of a shared executor, and the whole call is bounded by an overall timeout.
+ * Results are always returned in the order of the requested identifiers, regardless of the
+ * lookups completion order.
+ *
+ * Sequential by default.
+ *
+ * @author seb
+ *
+ */
+public class PpmsSystemsLoader {
+
+    /** Application logs. */
+    private final Logger log = LoggerFactory.getLogger(PpmsSystemsLoader.class);
+
+    /** Flag to activate the parallel lookups (optional - sequential by default). */
+    private Boolean parallel;
+
+    /** Maximum number of lookup threads shared by all callers. */
+    private int threads = LoaderConfig.DEFAULT_THREADS;
+
+    /** Maximum number of concurrent lookups for a single call. */
+    private int maxPerLogin = LoaderConfig.DEFAULT_MAX_PER_LOGIN;
+
+    /** Overall timeout in milliseconds for a single call. */
+    private long timeoutMillis = LoaderConfig.DEFAULT_TIMEOUT_MILLIS;
+
+    /** Lookups executor - lazily initialized upon first parallel call. */
+    private volatile ExecutorService executor;
+
+    /**
+     * Default constructor.
+     */
+    public PpmsSystemsLoader() {
+        super();
+    }
+
+    /**
+     * Checks whether the parallel lookups are active.
+     *
+     * @return true if enabled
+     */
+    public boolean isParallel() {
+        return (null != parallel && parallel.booleanValue());
+    }
+
+    /**
+     * Looks up the systems details.
+     *
+     * @param ppmsClient the PPMS client
+     * @param systemIds the systems identifiers
+     * @return the systems details, in the order of <code>systemIds</code> (with null elements
+     * for unknown systems)
+     * @throws PumapiException in case of an underlying error (API or technical), or if the
+     * overall timeout elapses
+     */
+    public List<PpmsSystem> loadSystems(PumapiClient ppmsClient, List<Long> systemIds) throws PumapiException {
+        Check.notNull(ppmsClient, "ppmsClient");
+        Check.notNull(systemIds, "systemIds");
+
+        List<PpmsSystem> result = null;
+
+        if (isParallel() && systemIds.size() > 1) {
+            result = loadInParallel(ppmsClient, systemIds);
+        } else {
+            result = loadSequentially(ppmsClient, systemIds);
+        }
+
+        return result;
+    }
+
+    /**
+     * Stops the lookups executor, if any.
+     */
+    public void shutdown() {
+        ExecutorService lookupsExecutor = executor;
+
+        if (null != lookupsExecutor) {
+            log.info("[external_auth][ppms] Stopping systems lookups executor");
+            lookupsExecutor.shutdownNow();
+        }
+    }
+
+    private List<PpmsSystem> loadSequentially(PumapiClient ppmsClient, List<Long> systemIds) throws PumapiException {
+        List<PpmsSystem> result = new ArrayList<PpmsSystem>(systemIds.size());
+
+        for (Long systemId : systemIds) {
+            result.add(ppmsClient.getSystem(systemId));
+        }
+
+        return result;
+    }
+
+    private List<PpmsSystem> loadInParallel(
+                    final PumapiClient ppmsClient,
+                    final List<Long> systemIds) throws PumapiException {
+
+        final int size = systemIds.size();
+        final AtomicReferenceArray<PpmsSystem> systems = new AtomicReferenceArray<PpmsSystem>(size);
+        final AtomicInteger nextIndex = new AtomicInteger();
+        final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+
+        int workersCount = Math.min(maxPerLogin, size);
+        final CountDownLatch completion = new CountDownLatch(workersCount);
+        List<Future<?>> workers = new ArrayList<Future<?>>(workersCount);
+
+        // each worker pulls the next pending identifier until none is left (or a lookup failed)
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int index = nextIndex.getAndIncrement();
+
+                    while (index < size && null == failure.get()) {
+                        systems.set(index, ppmsClient.getSystem(systemIds.get(index)));
+                        index = nextIndex.getAndIncrement();
+                    }
+                } catch (RuntimeException e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    completion.countDown();
+                }
+            }
+        };
+
+        try {
+
+            ExecutorService lookupsExecutor = getExecutor();
+            for (int i = 0; i < workersCount; ++i) {
+                workers.add(lookupsExecutor.submit(worker));
+            }
+
+            if (!completion.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                cancel(workers);
+                throw new PumapiException(
+                    "Timed out after " + timeoutMillis + " ms while looking up systems: " + systemIds);
+            }
+
+        } catch (InterruptedException e) {
+            cancel(workers);
+            Thread.currentThread().interrupt();
+            throw new PumapiException("Interrupted while looking up systems: " + systemIds);
+        } catch (RejectedExecutionException e) {
+            cancel(workers);
+            throw new PumapiException("Systems lookups executor unavailable", e);
+        }
+
+        if (null != failure.get()) {
+            throw failure.get();
+        }
+
+        PpmsSystem[] result = new PpmsSystem[size];
+        for (int i = 0; i < size; ++i) {
+            result[i] = systems.get(i);
+        }
+
+        log.debug("[external_auth][ppms] Looked up {} systems with {} concurrent workers", size, workersCount);
+
+        return Arrays.asList(result);
+    }
+
+    private void cancel(List<Future<?>> workers) {
+        for (Future<?> worker : workers) {
+            worker.cancel(true);
+        }
+    }
+
+    private ExecutorService getExecutor() {
+        ExecutorService result = executor;
+
+        if (null == result) {
+            synchronized (this) {
+                result = executor;
+
+                if (null == result) {
+                    result = new ThreadPoolExecutor(
+                                threads, threads,
+                                0L, TimeUnit.MILLISECONDS,
+                                new LinkedBlockingQueue<Runnable>(),
+                                new DaemonThreadFactory(LoaderConfig.THREADS_NAME));
+                    executor = result;
+
+                    log.info("[external_auth][ppms] Started systems lookups executor [threads:{} - per-login:{}]",
+                             threads, maxPerLogin);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns parallel.
+     * @return the parallel
+     */
+    public Boolean getParallel() {
+        return parallel;
+    }
+
+    /**
+     * Sets parallel.
+     * @param parallel the parallel to set
+     */
+    public void setParallel(Boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    /**
+     * Returns threads.
+     * @return the threads
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Sets threads.
+     *
+     * Null or non-positive values are ignored.
+     *
+     * @param threads the threads to set
+     */
+    public void setThreads(Integer threads) {
+        if (null != threads && threads > 0) {
+            this.threads = threads;
+        }
+    }
+
+    /**
+     * Returns maxPerLogin.
+     * @return the maxPerLogin
+     */
+    public int getMaxPerLogin() {
+        return maxPerLogin;
+    }
+
+    /**
+     * Sets maxPerLogin.
+     *
+     * Null or non-positive values are ignored.
+     *
+     * @param maxPerLogin the maxPerLogin to set
+     */
+    public void setMaxPerLogin(Integer maxPerLogin) {
+        if (null != maxPerLogin && maxPerLogin > 0) {
+            this.maxPerLogin = maxPerLogin;
+        }
+    }
+
+    /**
+     * Returns timeoutMillis.
+     * @return the timeoutMillis
+     */
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * Sets timeoutMillis.
+     *
+     * Null or non-positive values are ignored.
+     *
+     * @param timeoutMillis the timeoutMillis to set
+     */
+    public void setTimeoutMillis(Long timeoutMillis) {
+        if (null != timeoutMillis && timeoutMillis > 0) {
+            this.timeoutMillis = timeoutMillis;
+        }
+    }
+
+    /**
+     * Internal settings for the systems lookups.
+     *
+     * @author seb
+     *
+     */
+    private final class LoaderConfig {
+        /** Default number of lookup threads. */
+        private static final int DEFAULT_THREADS            = 8;
+
+        /** Default maximum number of concurrent lookups per call. */
+        private static final int DEFAULT_MAX_PER_LOGIN      = 4;
+
+        /** Default overall timeout in milliseconds. */
+        private static final long DEFAULT_TIMEOUT_MILLIS    = 10000L;
+
+        /** Lookup threads name prefix. */
+        private static final String THREADS_NAME            = "ppms-systems-lookup";
+
+        /** Constants class. */
+        private LoaderConfig() {
+            super();
+        }
+    }
+
+}
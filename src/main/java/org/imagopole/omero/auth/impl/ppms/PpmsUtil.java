@@ -11,6 +11,7 @@ import ome.model.meta.Experimenter;
 
 import org.imagopole.omero.auth.api.ExternalAuthConfig;
 import org.imagopole.omero.auth.api.dto.NamedItem;
+import org.imagopole.omero.auth.api.ppms.PpmsSystemFilter;
 import org.imagopole.omero.auth.util.ConvertUtil;
 import org.imagopole.ppms.api.dto.PpmsSystem;
 import org.imagopole.ppms.api.dto.PpmsUser;
@@ -43,27 +44,13 @@ public final class PpmsUtil {
 
         if (null != systems && !systems.isEmpty()) {
 
-            List<Long> includeFacilities = listIncludedFacilities(config);
-            List<String> includeTypes = listIncludedSystemTypes(config);
+            PpmsSystemFilter systemFilter = newFacilityAndTypeFilter(config);
 
-            LOG.debug("[external_auth][ppms] filtering PPMS systems for facilities: {} and types: {}",
-                      includeFacilities, includeTypes);
+            LOG.debug("[external_auth][ppms] filtering PPMS systems for {}", systemFilter);
 
             for (PpmsSystem system : systems) {
-                Long systemFacility = system.getCoreFacilityRef();
-                String systemType = system.getType();
-
-                boolean isFacilityIncluded = includeFacilities.contains(systemFacility);
-                boolean isSystemTypeIncluded = includeTypes.contains(systemType);
-                boolean includeSystem = isFacilityIncluded && isSystemTypeIncluded;
-
-                if (includeSystem) {
+                if (systemFilter.accept(system)) {
                     result.add(system);
-                } else {
-                    LOG.debug(
-                        "[external_auth][ppms] skipping PPMS system: {}-{} [{}] of facility: {} and type: {} [{}:{}]",
-                        system.getSystemId(), system.getName(), system.getActive(), systemFacility,
-                        systemType, isFacilityIncluded, isSystemTypeIncluded);
                 }
             }
 
@@ -72,6 +59,11 @@ public final class PpmsUtil {
         return result;
     }
 
+    public static final PpmsSystemFilter newFacilityAndTypeFilter(ExternalAuthConfig config) {
+        Check.notNull(config, "config");
+        return new FacilityAndTypeSystemFilter(listIncludedFacilities(config), listIncludedSystemTypes(config));
+    }
+
     public static final List<Long> listIncludedFacilities(ExternalAuthConfig config) {
         Check.notNull(config, "config");
 
@@ -0,0 +1,194 @@
+/**
+ *
+ */
+package org.imagopole.omero.auth.impl.ppms;
+
+import java.io.Serializable;
+
+import org.imagopole.ppms.api.PumapiClient;
+import org.imagopole.ppms.util.Check;
+
+/**
+ * Immutable cache key for {@link PumapiClient} invocations results.
+ *
+ * Made of an invocation discriminator plus either a login (users, groups, rights) or a numeric
+ * identifier (systems), with a precomputed hash code so as to keep cache lookups cheap. The hash
+ * code only depends on the key contents, so that keys persisted across restarts still match.
+ *
+ * @author seb
+ *
+ */
+public final class PumapiCacheKey implements Serializable {
+
+    /** Serial version UID. */
+    private static final long serialVersionUID = 1L;
+
+    /** The cached PUMAPI invocation types. */
+    public enum Invocation {
+        /** {@link PumapiClient#getUser(String)} */
+        GET_USER("getUser"),
+        /** {@link PumapiClient#getGroup(String)} */
+        GET_GROUP("getGroup"),
+        /** {@link PumapiClient#getSystem(Long)} */
+        GET_SYSTEM("getSystem"),
+        /** {@link PumapiClient#getUserRights(String)} */
+        GET_USER_RIGHTS("getUserRights");
+
+        /** The invocation method name. */
+        private final String methodName;
+
+        private Invocation(String methodName) {
+            this.methodName = methodName;
+        }
+
+        /**
+         * Returns methodName.
+         * @return the methodName
+         */
+        public String getMethodName() {
+            return methodName;
+        }
+    }
+
+    /** The invocation type. */
+    private final Invocation invocation;
+
+    /** The user or unit login (null for systems). */
+    private final String login;
+
+    /** The system identifier (0 for logins). */
+    private final long id;
+
+    /** Precomputed hash code. */
+    private final int hashCode;
+
+    private PumapiCacheKey(Invocation invocation, String login, long id) {
+        super();
+        this.invocation = invocation;
+        this.login = login;
+        this.id = id;
+        this.hashCode = computeHashCode();
+    }
+
+    /**
+     * Key for {@link PumapiClient#getUser(String)} results.
+     *
+     * @param login the PPMS user login
+     * @return the cache key
+     */
+    public static PumapiCacheKey forUser(String login) {
+        Check.notEmpty(login, "login");
+        return new PumapiCacheKey(Invocation.GET_USER, login, 0L);
+    }
+
+    /**
+     * Key for {@link PumapiClient#getGroup(String)} results.
+     *
+     * @param unitLogin the PPMS unit login
+     * @return the cache key
+     */
+    public static PumapiCacheKey forGroup(String unitLogin) {
+        Check.notEmpty(unitLogin, "unitLogin");
+        return new PumapiCacheKey(Invocation.GET_GROUP, unitLogin, 0L);
+    }
+
+    /**
+     * Key for {@link PumapiClient#getSystem(Long)} results.
+     *
+     * @param systemId the PPMS system identifier
+     * @return the cache key
+     */
+    public static PumapiCacheKey forSystem(long systemId) {
+        return new PumapiCacheKey(Invocation.GET_SYSTEM, null, systemId);
+    }
+
+    /**
+     * Key for {@link PumapiClient#getUserRights(String)} results.
+     *
+     * @param login the PPMS user login
+     * @return the cache key
+     */
+    public static PumapiCacheKey forUserRights(String login) {
+        Check.notEmpty(login, "login");
+        return new PumapiCacheKey(Invocation.GET_USER_RIGHTS, login, 0L);
+    }
+
+    /**
+     * Returns invocation.
+     * @return the invocation
+     */
+    public Invocation getInvocation() {
+        return invocation;
+    }
+
+    /**
+     * Returns login.
+     * @return the login (null for system keys)
+     */
+    public String getLogin() {
+        return login;
+    }
+
+    /**
+     * Returns id.
+     * @return the system id (0 for login based keys)
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Recomputes the hash code upon deserialization, eg. for keys persisted by another JVM
+     * or by a previous version of this class.
+     *
+     * @return an equivalent key with a locally computed hash code
+     */
+    private Object readResolve() {
+        return new PumapiCacheKey(invocation, login, id);
+    }
+
+    private int computeHashCode() {
+        final int prime = 31;
+        // the enum identity hash code would differ across JVMs
+        int result = invocation.name().hashCode();
+        result = prime * result + ((login == null) ? 0 : login.hashCode());
+        result = prime * result + (int) (id ^ (id >>> 32));
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof PumapiCacheKey)) {
+            return false;
+        }
+
+        PumapiCacheKey other = (PumapiCacheKey) obj;
+        return hashCode == other.hashCode
+               && invocation == other.invocation
+               && id == other.id
+               && (login == null ? other.login == null : login.equals(other.login));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return invocation.getMethodName() + "-" + (login == null ? String.valueOf(id) : login);
+    }
+
+}
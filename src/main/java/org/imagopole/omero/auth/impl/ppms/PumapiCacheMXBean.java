@@ -0,0 +1,64 @@
+/**
+ *
+ */
+package org.imagopole.omero.auth.impl.ppms;
+
+import java.util.List;
+
+/**
+ * JMX management interface for the PUMAPI client cache.
+ *
+ * @author seb
+ *
+ */
+public interface PumapiCacheMXBean {
+
+    /**
+     * Returns the usage statistics of the enabled cache regions: hits, misses, negative hits,
+     * loads, load latency percentiles, evictions and size.
+     *
+     * @return the statistics per cache region
+     */
+    List<CacheRegionStatistics> getRegionsStatistics();
+
+    /**
+     * Returns the number of stale values served in place of a PUMAPI failure.
+     *
+     * @return the stale values count
+     */
+    long getStaleServedCount();
+
+    /**
+     * Resets the usage statistics of all cache regions.
+     */
+    void resetStatistics();
+
+    /**
+     * Discards all cached entries for a PPMS user, so that they are reloaded from PPMS
+     * upon the next lookup. The user's last synchronization is also forgotten, so that
+     * the next login synchronizes the reloaded profile.
+     *
+     * @param login the PPMS user login
+     * @return the number of entries removed
+     */
+    int evictUser(String login);
+
+    /**
+     * Discards all cached entries for a PPMS system, including its systems catalogue entry,
+     * so that they are reloaded from PPMS upon the next lookup.
+     *
+     * @param systemId the PPMS system identifier
+     * @return the number of entries removed
+     */
+    int evictSystem(long systemId);
+
+    /**
+     * Discards all cached entries from a cache region (and the systems catalogue for the systems
+     * region), so that they are reloaded from PPMS upon the next lookup.
+     *
+     * @param regionName the cache region name
+     * @return the number of entries removed
+     */
+    int evictRegion(String regionName);
+
+}
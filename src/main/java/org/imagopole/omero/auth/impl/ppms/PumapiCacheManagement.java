@@ -0,0 +1,108 @@
+/**
+ *
+ */
+package org.imagopole.omero.auth.impl.ppms;
+
+import java.util.List;
+
+import org.imagopole.omero.auth.impl.user.SyncFreshnessLedger;
+import org.imagopole.ppms.util.Check;
+
+/**
+ * JMX management facade for the {@link CachingPumapiClient}, to monitor the cache efficiency
+ * and force PPMS reloads after directory changes without a server restart.
+ *
+ * @author seb
+ *
+ */
+public class PumapiCacheManagement implements PumapiCacheMXBean {
+
+    /** Managed caching client. */
+    private CachingPumapiClient cachingClient;
+
+    /** Accounts synchronizations ledger, invalidated upon user eviction (optional). */
+    private SyncFreshnessLedger syncLedger;
+
+    protected PumapiCacheManagement() {
+        super();
+    }
+
+    public PumapiCacheManagement(CachingPumapiClient cachingClient) {
+        super();
+
+        Check.notNull(cachingClient, "cachingClient");
+        this.cachingClient = cachingClient;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<CacheRegionStatistics> getRegionsStatistics() {
+        return cachingClient.getRegionsStatistics();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getStaleServedCount() {
+        return cachingClient.getStaleServedCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void resetStatistics() {
+        cachingClient.resetStatistics();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int evictUser(String login) {
+        int result = cachingClient.evictUser(login);
+
+        // the reloaded profile should be synchronized upon next login, within the minimum interval or not
+        if (null != syncLedger) {
+            syncLedger.invalidate(login);
+        }
+
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int evictSystem(long systemId) {
+        return cachingClient.evictSystem(systemId);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int evictRegion(String regionName) {
+        return cachingClient.evictRegion(regionName);
+    }
+
+    /**
+     * Returns syncLedger.
+     * @return the syncLedger
+     */
+    public SyncFreshnessLedger getSyncLedger() {
+        return syncLedger;
+    }
+
+    /**
+     * Sets syncLedger.
+     * @param syncLedger the syncLedger to set
+     */
+    public void setSyncLedger(SyncFreshnessLedger syncLedger) {
+        this.syncLedger = syncLedger;
+    }
+
+}
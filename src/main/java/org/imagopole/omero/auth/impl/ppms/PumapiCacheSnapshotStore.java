@@ -0,0 +1,608 @@
+/**
+ *
+ */
+package org.imagopole.omero.auth.impl.ppms;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+
+import org.imagopole.omero.auth.impl.ppms.PumapiCacheKey.Invocation;
+import org.imagopole.omero.auth.util.DaemonThreadFactory;
+import org.imagopole.ppms.util.Check;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persists the PUMAPI client cache contents across server restarts, so that the directory
+ * lookups following a restart are served locally instead of hitting PPMS.
+ *
+ * The cache regions contents are periodically written to a compact binary snapshot file
+ * (see {@link PumapiSnapshotCodec}) under the OMERO data directory, and once more upon shutdown.
+ * Upon startup, the snapshot is memory-mapped and only indexed by key: entries are decoded
+ * on demand, upon the first cache miss for their key, with their original timestamps so that
+ * the regions TTLs still apply.
+ *
+ * Only the users, groups, systems and rights regions are persisted - never the credentials,
+ * negative or stale regions.
+ *
+ * Disabled by default.
+ *
+ * @author seb
+ *
+ */
+public class PumapiCacheSnapshotStore {
+
+    /** Default persisted regions, as configured in pumapi-ehcache.xml (in invocation type order). */
+    private static final List<String> DEFAULT_REGION_NAMES =
+        Arrays.asList("pumapiUserCache", "pumapiGroupCache", "pumapiSystemCache", "pumapiRightsCache");
+
+    /** Application logs. */
+    private final Logger log = LoggerFactory.getLogger(PumapiCacheSnapshotStore.class);
+
+    /** PPMS cache manager. */
+    private CacheManager cacheManager;
+
+    /** OMERO data directory. */
+    private String dataDir;
+
+    /** Flag to activate the snapshots (optional - disabled by default). */
+    private Boolean enabled;
+
+    /** Snapshot file path (optional - defaults to a file under the OMERO data directory). */
+    private String snapshotFile;
+
+    /** Interval between two periodic snapshots in seconds. */
+    private int intervalSeconds = SnapshotConfig.DEFAULT_INTERVAL_SECONDS;
+
+    /** Names of the cache regions to be persisted. */
+    private List<String> regionNames = DEFAULT_REGION_NAMES;
+
+    /** Snapshot entries not yet restored into the cache, by key. */
+    private final ConcurrentMap<PumapiCacheKey, SnapshotEntry> index =
+        new ConcurrentHashMap<PumapiCacheKey, SnapshotEntry>();
+
+    /** Periodic snapshots scheduler (null if not started). */
+    private volatile ScheduledExecutorService scheduler;
+
+    protected PumapiCacheSnapshotStore() {
+        super();
+    }
+
+    public PumapiCacheSnapshotStore(CacheManager cacheManager, String dataDir) {
+        super();
+
+        Check.notNull(cacheManager, "cacheManager");
+        this.cacheManager = cacheManager;
+        this.dataDir = dataDir;
+    }
+
+    /**
+     * Checks whether the snapshots are active.
+     *
+     * @return true if enabled
+     */
+    public boolean isActive() {
+        return (null != enabled && enabled.booleanValue());
+    }
+
+    /**
+     * Indexes the previous snapshot, if any, and schedules the periodic snapshots, if enabled.
+     */
+    public void start() {
+        if (!isActive()) {
+            log.debug("[external_auth][ppms][cache] Cache snapshots disabled");
+            return;
+        }
+
+        load();
+
+        ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory(SnapshotConfig.THREADS_NAME));
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        scheduler = executor;
+    }
+
+    /**
+     * Stops the periodic snapshots and writes a final snapshot, if enabled.
+     */
+    public void shutdown() {
+        ScheduledExecutorService executor = scheduler;
+
+        if (null != executor) {
+            executor.shutdownNow();
+            scheduler = null;
+
+            write();
+        }
+    }
+
+    /**
+     * Restores a cache entry from the snapshot, if present and not expired.
+     *
+     * Each snapshot entry is restored at most once.
+     *
+     * @param cache the target cache region
+     * @param key the cache key
+     * @return the restored cache element, or null if none
+     */
+    public Element restore(Ehcache cache, PumapiCacheKey key) {
+        Element result = null;
+
+        SnapshotEntry entry = index.remove(key);
+        if (null != entry) {
+
+            try {
+                Element element = entry.decode();
+
+                if (!cache.isExpired(element)) {
+                    // keep the snapshot timestamps, and do not count the restore as a cache access
+                    cache.putQuiet(element);
+                    result = element;
+                }
+            } catch (IOException e) {
+                log.warn("[external_auth][ppms][cache] Ignoring corrupt snapshot entry for key: {} - {}",
+                         key, e.getMessage());
+            }
+
+            if (log.isDebugEnabled()) {
+                log.debug("[external_auth][ppms][cache] Snapshot lookup for key: {} [restored:{}]",
+                          key, (null != result));
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Discards a snapshot entry, so that it is never restored.
+     *
+     * @param key the cache key
+     */
+    public void discard(PumapiCacheKey key) {
+        index.remove(key);
+    }
+
+    /**
+     * Discards all snapshot entries for an invocation type, so that they are never restored.
+     *
+     * @param invocation the invocation type
+     */
+    public void discard(Invocation invocation) {
+        for (PumapiCacheKey key : index.keySet()) {
+            if (invocation == key.getInvocation()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of snapshot entries not yet restored.
+     *
+     * @return the pending entries count
+     */
+    public int getPendingCount() {
+        return index.size();
+    }
+
+    /**
+     * Indexes the snapshot file entries by key, without decoding their values.
+     */
+    protected void load() {
+        File file = getFile();
+        if (!file.isFile()) {
+            log.info("[external_auth][ppms][cache] No cache snapshot found at: {}", file);
+            return;
+        }
+
+        long startTime = System.currentTimeMillis();
+
+        try {
+
+            ByteBuffer buffer = map(file);
+            DataInputStream in = new DataInputStream(new ByteBufferInputStream(buffer));
+
+            if (SnapshotConfig.MAGIC != in.readInt() || SnapshotConfig.VERSION != in.readShort()) {
+                log.warn("[external_auth][ppms][cache] Ignoring cache snapshot with unknown format: {}", file);
+                return;
+            }
+
+            long snapshotTime = in.readLong();
+            int count = in.readInt();
+
+            for (int i = 0; i < count; ++i) {
+                int length = in.readInt();
+                int offset = buffer.position();
+
+                PumapiCacheKey key = PumapiSnapshotCodec.readKey(in);
+                index.put(key, new SnapshotEntry(buffer, offset, length, key));
+
+                buffer.position(offset + length);
+            }
+
+            log.info("[external_auth][ppms][cache] Indexed {} cache snapshot entries from: {} in {} ms [age:{} s]",
+                     count, file, (System.currentTimeMillis() - startTime),
+                     TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - snapshotTime));
+
+        } catch (IOException e) {
+            log.warn("[external_auth][ppms][cache] Ignoring unreadable cache snapshot: {} - {}", file, e.getMessage());
+            index.clear();
+        } catch (RuntimeException e) {
+            // truncated file
+            log.warn("[external_auth][ppms][cache] Ignoring corrupt cache snapshot: {} - {}", file, e.getMessage());
+            index.clear();
+        }
+    }
+
+    /**
+     * Writes the cache regions contents to the snapshot file, together with the snapshot entries
+     * not restored yet.
+     *
+     * @return the number of entries written, or -1 upon failure
+     */
+    protected synchronized int write() {
+        File file = getFile();
+        long startTime = System.currentTimeMillis();
+
+        try {
+
+            ByteArrayOutputStream entriesBytes = new ByteArrayOutputStream();
+            DataOutputStream entriesOut = new DataOutputStream(entriesBytes);
+            ByteArrayOutputStream entryBytes = new ByteArrayOutputStream();
+            DataOutputStream entryOut = new DataOutputStream(entryBytes);
+
+            Set<PumapiCacheKey> writtenKeys = new HashSet<PumapiCacheKey>();
+            int count = 0;
+
+            for (String regionName : regionNames) {
+                Ehcache cache = cacheManager.getEhcache(regionName);
+                if (null == cache) {
+                    continue;
+                }
+
+                for (Object key : cache.getKeys()) {
+                    Element element = cache.getQuiet(key);
+
+                    if (isPersistable(cache, element)) {
+                        entryBytes.reset();
+                        PumapiSnapshotCodec.writeEntry(entryOut, element);
+                        writeEntryBytes(entriesOut, entryBytes);
+
+                        writtenKeys.add((PumapiCacheKey) key);
+                        ++count;
+                    }
+                }
+
+                // carry over the entries which have not been looked up since the last restart
+                for (Map.Entry<PumapiCacheKey, SnapshotEntry> pending : index.entrySet()) {
+                    PumapiCacheKey key = pending.getKey();
+
+                    if (regionName.equals(getRegionName(key)) && !writtenKeys.contains(key)) {
+                        Element element = pending.getValue().decode();
+
+                        if (!cache.isExpired(element)) {
+                            entryBytes.reset();
+                            PumapiSnapshotCodec.writeEntry(entryOut, element);
+                            writeEntryBytes(entriesOut, entryBytes);
+
+                            writtenKeys.add(key);
+                            ++count;
+                        }
+                    }
+                }
+            }
+
+            entriesOut.flush();
+            writeFile(file, entriesBytes, count);
+
+            log.info("[external_auth][ppms][cache] Wrote {} cache snapshot entries to: {} in {} ms",
+                     count, file, (System.currentTimeMillis() - startTime));
+
+            return count;
+
+        } catch (IOException e) {
+            log.warn("[external_auth][ppms][cache] Failed to write cache snapshot: {} - {}", file, e.getMessage());
+            return -1;
+        }
+    }
+
+    private boolean isPersistable(Ehcache cache, Element element) {
+        return null != element
+            && null != element.getObjectValue()
+            && element.getObjectKey() instanceof PumapiCacheKey
+            && !cache.isExpired(element);
+    }
+
+    private void writeEntryBytes(DataOutputStream out, ByteArrayOutputStream entryBytes) throws IOException {
+        out.writeInt(entryBytes.size());
+        entryBytes.writeTo(out);
+    }
+
+    /**
+     * Writes the snapshot to a temporary file via a memory mapping, then moves it over the
+     * previous snapshot so that a crash never leaves a partial snapshot behind.
+     */
+    private void writeFile(File file, ByteArrayOutputStream entriesBytes, int count) throws IOException {
+        File parentDir = file.getAbsoluteFile().getParentFile();
+        if (!parentDir.isDirectory() && !parentDir.mkdirs()) {
+            throw new IOException("Unable to create snapshot directory: " + parentDir);
+        }
+
+        File tempFile = new File(parentDir, file.getName() + SnapshotConfig.TEMP_SUFFIX);
+        RandomAccessFile raf = new RandomAccessFile(tempFile, "rw");
+
+        try {
+
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer =
+                channel.map(MapMode.READ_WRITE, 0, SnapshotConfig.HEADER_LENGTH + entriesBytes.size());
+
+            buffer.putInt(SnapshotConfig.MAGIC);
+            buffer.putShort(SnapshotConfig.VERSION);
+            buffer.putLong(System.currentTimeMillis());
+            buffer.putInt(count);
+            buffer.put(entriesBytes.toByteArray());
+            buffer.force();
+
+        } finally {
+            raf.close();
+        }
+
+        if (!tempFile.renameTo(file)) {
+            // non-atomic fallback for platforms which do not allow replacing an existing file
+            if (!file.delete() || !tempFile.renameTo(file)) {
+                throw new IOException("Unable to replace snapshot file: " + file);
+            }
+        }
+    }
+
+    private ByteBuffer map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+        try {
+            // the mapping remains valid once the file is closed
+            FileChannel channel = raf.getChannel();
+            return channel.map(MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+    }
+
+    private String getRegionName(PumapiCacheKey key) {
+        return regionNames.get(key.getInvocation().ordinal());
+    }
+
+    private File getFile() {
+        File result = null;
+
+        if (null != snapshotFile && !snapshotFile.trim().isEmpty()) {
+            result = new File(snapshotFile);
+        } else {
+            result = new File(new File(dataDir, SnapshotConfig.DEFAULT_DIR_NAME), SnapshotConfig.DEFAULT_FILE_NAME);
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns enabled.
+     * @return the enabled
+     */
+    public Boolean getEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Sets enabled.
+     * @param enabled the enabled to set
+     */
+    public void setEnabled(Boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Returns snapshotFile.
+     * @return the snapshotFile
+     */
+    public String getSnapshotFile() {
+        return snapshotFile;
+    }
+
+    /**
+     * Sets snapshotFile.
+     *
+     * Null or empty values default to <code>ppms/pumapi-cache.snapshot</code> under the OMERO data directory.
+     *
+     * @param snapshotFile the snapshotFile to set
+     */
+    public void setSnapshotFile(String snapshotFile) {
+        this.snapshotFile = snapshotFile;
+    }
+
+    /**
+     * Returns intervalSeconds.
+     * @return the intervalSeconds
+     */
+    public int getIntervalSeconds() {
+        return intervalSeconds;
+    }
+
+    /**
+     * Sets intervalSeconds.
+     *
+     * Null or non-positive values are ignored.
+     *
+     * @param intervalSeconds the intervalSeconds to set
+     */
+    public void setIntervalSeconds(Integer intervalSeconds) {
+        if (null != intervalSeconds && intervalSeconds > 0) {
+            this.intervalSeconds = intervalSeconds;
+        }
+    }
+
+    /**
+     * Returns regionNames.
+     * @return the regionNames
+     */
+    public List<String> getRegionNames() {
+        return regionNames;
+    }
+
+    /**
+     * Sets regionNames.
+     *
+     * The users, groups, systems and rights regions names, in this order.
+     *
+     * @param regionNames the regionNames to set
+     */
+    public void setRegionNames(List<String> regionNames) {
+        Check.notNull(regionNames, "regionNames");
+        if (regionNames.size() != DEFAULT_REGION_NAMES.size()) {
+            throw new IllegalArgumentException("Expected region names: " + DEFAULT_REGION_NAMES);
+        }
+
+        this.regionNames = regionNames;
+    }
+
+    /**
+     * A snapshot entry location within the memory-mapped snapshot file.
+     *
+     * @author seb
+     *
+     */
+    private static final class SnapshotEntry {
+
+        /** Snapshot file mapping. */
+        private final ByteBuffer buffer;
+
+        /** Entry offset within the mapping. */
+        private final int offset;
+
+        /** Entry length in bytes. */
+        private final int length;
+
+        /** Entry key. */
+        private final PumapiCacheKey key;
+
+        private SnapshotEntry(ByteBuffer buffer, int offset, int length, PumapiCacheKey key) {
+            super();
+            this.buffer = buffer;
+            this.offset = offset;
+            this.length = length;
+            this.key = key;
+        }
+
+        private Element decode() throws IOException {
+            ByteBuffer entryBuffer = buffer.duplicate();
+            entryBuffer.position(offset);
+            entryBuffer.limit(offset + length);
+
+            DataInputStream in = new DataInputStream(new ByteBufferInputStream(entryBuffer));
+
+            // skip the key, already decoded upon indexing
+            PumapiSnapshotCodec.readKey(in);
+
+            return PumapiSnapshotCodec.readElement(in, key);
+        }
+    }
+
+    /**
+     * Stream view over a byte buffer, from its current position to its limit.
+     *
+     * @author seb
+     *
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+
+        /** Source buffer. */
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            super();
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return (buffer.hasRemaining() ? (buffer.get() & 0xFF) : -1);
+        }
+
+        @Override
+        public int read(byte[] bytes, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(bytes, off, count);
+
+            return count;
+        }
+    }
+
+    /**
+     * Internal settings for the cache snapshots.
+     *
+     * @author seb
+     *
+     */
+    private final class SnapshotConfig {
+        /** Snapshot file format marker. */
+        private static final int MAGIC                     = 0x50504D53;
+
+        /** Snapshot file format version. */
+        private static final short VERSION                 = 1;
+
+        /** Header length in bytes: magic, version, snapshot time, entries count. */
+        private static final int HEADER_LENGTH             = 4 + 2 + 8 + 4;
+
+        /** Default interval between two periodic snapshots in seconds. */
+        private static final int DEFAULT_INTERVAL_SECONDS  = 300;
+
+        /** Default snapshot directory name, relative to the OMERO data directory. */
+        private static final String DEFAULT_DIR_NAME       = "ppms";
+
+        /** Default snapshot file name. */
+        private static final String DEFAULT_FILE_NAME      = "pumapi-cache.snapshot";
+
+        /** Suffix for snapshots being written. */
+        private static final String TEMP_SUFFIX            = ".tmp";
+
+        /** Snapshot threads name prefix. */
+        private static final String THREADS_NAME           = "ppms-cache-snapshot";
+
+        /** Constants class. */
+        private SnapshotConfig() {
+            super();
+        }
+    }
+
+}
@@ -0,0 +1,334 @@
+/**
+ *
+ */
+package org.imagopole.omero.auth.impl.ppms;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.imagopole.omero.auth.util.DaemonThreadFactory;
+import org.imagopole.omero.auth.util.RateLimiter;
+import org.imagopole.ppms.api.PumapiClient;
+import org.imagopole.ppms.api.PumapiException;
+import org.imagopole.ppms.api.dto.PpmsUser;
+import org.imagopole.ppms.api.dto.PpmsUserPrivilege;
+import org.imagopole.ppms.util.Check;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pre-loads the PUMAPI client cache upon server startup, so that the first logins after a restart
+ * do not all pay the PUMAPI round trips.
+ *
+ * The PPMS active users are enumerated, then each user's details, group (unit) and granted
+ * systems are looked up via the (caching) client, with a bounded number of concurrent lookups
+ * and an overall PUMAPI requests rate limit.
+ * The warm-up runs in the background and is cancelled upon shutdown.
+ *
+ * Disabled by default.
+ *
+ * @author seb
+ *
+ */
+public class PumapiCacheWarmer {
+
+    /** Application logs. */
+    private final Logger log = LoggerFactory.getLogger(PumapiCacheWarmer.class);
+
+    /** PPMS (caching) client to be warmed up. */
+    private PumapiClient ppmsClient;
+
+    /** Flag to activate the warm-up (optional - disabled by default). */
+    private Boolean enabled;
+
+    /** Maximum number of concurrent users lookups. */
+    private int threads = WarmUpConfig.DEFAULT_THREADS;
+
+    /** Maximum number of PUMAPI requests per second. */
+    private double requestsPerSecond = WarmUpConfig.DEFAULT_RATE;
+
+    /** Background warm-up coordinator (null if not started). */
+    private volatile Thread warmUpThread;
+
+    /** Users lookups executor (null if not started). */
+    private volatile ExecutorService executor;
+
+    /** Flag raised upon shutdown. */
+    private volatile boolean cancelled;
+
+    protected PumapiCacheWarmer() {
+        super();
+    }
+
+    public PumapiCacheWarmer(PumapiClient ppmsClient) {
+        super();
+
+        Check.notNull(ppmsClient, "ppmsClient");
+        this.ppmsClient = ppmsClient;
+    }
+
+    /**
+     * Starts the warm-up in the background, if enabled.
+     */
+    public void start() {
+        if (null == enabled || !enabled.booleanValue()) {
+            log.debug("[external_auth][ppms][cache] Cache warm-up disabled");
+            return;
+        }
+
+        Thread thread = new DaemonThreadFactory(WarmUpConfig.THREADS_NAME).newThread(new Runnable() {
+            @Override
+            public void run() {
+                warmUp();
+            }
+        });
+        warmUpThread = thread;
+        thread.start();
+    }
+
+    /**
+     * Cancels the warm-up if still in progress.
+     */
+    public void shutdown() {
+        cancelled = true;
+
+        Thread thread = warmUpThread;
+        if (null != thread && thread.isAlive()) {
+            log.info("[external_auth][ppms][cache] Cancelling cache warm-up");
+            thread.interrupt();
+        }
+
+        ExecutorService lookupsExecutor = executor;
+        if (null != lookupsExecutor) {
+            lookupsExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Performs the warm-up in the calling thread.
+     *
+     * @return the number of users successfully looked up
+     */
+    public int warmUp() {
+        long startTime = System.currentTimeMillis();
+
+        List<String> logins = null;
+        try {
+            logins = ppmsClient.getUsers(Boolean.TRUE);
+        } catch (PumapiException e) {
+            log.warn("[external_auth][ppms][cache] Skipping cache warm-up - unable to list PPMS users: {}",
+                     e.getMessage());
+            return 0;
+        }
+
+        int total = (null == logins ? 0 : logins.size());
+        log.info("[external_auth][ppms][cache] Starting cache warm-up for {} PPMS users [threads:{} - rate:{}/s]",
+                 total, threads, requestsPerSecond);
+
+        if (0 == total) {
+            return 0;
+        }
+
+        final RateLimiter rateLimiter = new RateLimiter(requestsPerSecond);
+        final Semaphore slots = new Semaphore(threads);
+        final ConcurrentMap<Long, Boolean> warmedSystems = new ConcurrentHashMap<Long, Boolean>();
+        final AtomicInteger loadedCount = new AtomicInteger();
+        final AtomicInteger failedCount = new AtomicInteger();
+        final int progressStep = Math.max(1, total / WarmUpConfig.PROGRESS_STEPS);
+
+        ExecutorService lookupsExecutor =
+            Executors.newFixedThreadPool(threads, new DaemonThreadFactory(WarmUpConfig.THREADS_NAME));
+        executor = lookupsExecutor;
+
+        try {
+            int submitted = 0;
+
+            for (final String login : logins) {
+                if (cancelled) {
+                    break;
+                }
+
+                slots.acquire();
+                lookupsExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            warmUpUser(login, rateLimiter, warmedSystems);
+                            loadedCount.incrementAndGet();
+                        } catch (PumapiException e) {
+                            failedCount.incrementAndGet();
+                            log.debug("[external_auth][ppms][cache] Cache warm-up failed for user: {} - {}",
+                                      login, e.getMessage());
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        } finally {
+                            slots.release();
+                        }
+                    }
+                });
+
+                ++submitted;
+                if (0 == submitted % progressStep) {
+                    log.info("[external_auth][ppms][cache] Cache warm-up progress: {}/{} users [loaded:{} - failed:{}]",
+                             submitted, total, loadedCount.get(), failedCount.get());
+                }
+            }
+
+            // wait for the in-flight lookups to complete
+            slots.acquire(threads);
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RejectedExecutionException e) {
+            // executor stopped by a concurrent shutdown
+            log.debug("[external_auth][ppms][cache] Cache warm-up lookups executor stopped");
+        } finally {
+            lookupsExecutor.shutdownNow();
+            executor = null;
+        }
+
+        log.info("[external_auth][ppms][cache] {} cache warm-up in {} ms [loaded:{} - failed:{} - systems:{}]",
+                 (cancelled ? "Cancelled" : "Completed"), (System.currentTimeMillis() - startTime),
+                 loadedCount.get(), failedCount.get(), warmedSystems.size());
+
+        return loadedCount.get();
+    }
+
+    private void warmUpUser(
+                    String login,
+                    RateLimiter rateLimiter,
+                    ConcurrentMap<Long, Boolean> warmedSystems) throws PumapiException, InterruptedException {
+
+        rateLimiter.acquire();
+        PpmsUser user = ppmsClient.getUser(login);
+
+        if (null != user && null != user.getUnitlogin() && !user.getUnitlogin().trim().isEmpty()) {
+            rateLimiter.acquire();
+            ppmsClient.getGroup(user.getUnitlogin());
+        }
+
+        rateLimiter.acquire();
+        List<PpmsUserPrivilege> rights = ppmsClient.getUserRights(login);
+
+        if (null != rights) {
+            for (PpmsUserPrivilege right : rights) {
+                Long systemId = right.getSystemId();
+
+                // systems are shared between users: only load each of them once
+                if (null != systemId && null == warmedSystems.putIfAbsent(systemId, Boolean.TRUE)) {
+                    rateLimiter.acquire();
+                    ppmsClient.getSystem(systemId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for the background warm-up to complete.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit the timeout unit
+     * @return true if the warm-up is not running anymore
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitCompletion(long timeout, TimeUnit unit) throws InterruptedException {
+        Thread thread = warmUpThread;
+
+        if (null != thread) {
+            thread.join(unit.toMillis(timeout));
+        }
+
+        return (null == thread || !thread.isAlive());
+    }
+
+    /**
+     * Returns enabled.
+     * @return the enabled
+     */
+    public Boolean getEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Sets enabled.
+     * @param enabled the enabled to set
+     */
+    public void setEnabled(Boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Returns threads.
+     * @return the threads
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Sets threads.
+     *
+     * Null or non-positive values are ignored.
+     *
+     * @param threads the threads to set
+     */
+    public void setThreads(Integer threads) {
+        if (null != threads && threads > 0) {
+            this.threads = threads;
+        }
+    }
+
+    /**
+     * Returns requestsPerSecond.
+     * @return the requestsPerSecond
+     */
+    public double getRequestsPerSecond() {
+        return requestsPerSecond;
+    }
+
+    /**
+     * Sets requestsPerSecond.
+     *
+     * Null or non-positive values are ignored.
+     *
+     * @param requestsPerSecond the requestsPerSecond to set
+     */
+    public void setRequestsPerSecond(Double requestsPerSecond) {
+        if (null != requestsPerSecond && requestsPerSecond > 0) {
+            this.requestsPerSecond = requestsPerSecond;
+        }
+    }
+
+    /**
+     * Internal settings for the cache warm-up.
+     *
+     * @author seb
+     *
+     */
+    private final class WarmUpConfig {
+        /** Default number of concurrent users lookups. */
+        private static final int DEFAULT_THREADS    = 2;
+
+        /** Default maximum number of PUMAPI requests per second. */
+        private static final double DEFAULT_RATE    = 20;
+
+        /** Number of progress log statements over the whole warm-up. */
+        private static final int PROGRESS_STEPS     = 10;
+
+        /** Warm-up threads name prefix. */
+        private static final String THREADS_NAME    = "ppms-cache-warmup";
+
+        /** Constants class. */
+        private WarmUpConfig() {
+            super();
+        }
+    }
+
+}
@@ -0,0 +1,180 @@
+/**
+ *
+ */
+package org.imagopole.omero.auth.impl.ppms;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.Consts;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentType;
+
+/**
+ * Incremental reader for the PUMAPI CSV responses: records are read one at a time from
+ * the response stream, so that large listings are never held in memory as a whole.
+ *
+ * Values may be enclosed in double quotes, in which case embedded commas, line breaks and
+ * doubled quotes are supported (as per RFC 4180). Blank lines are skipped.
+ *
+ * @author seb
+ *
+ */
+final class PumapiCsvReader implements Closeable {
+
+    /** Underlying response reader. */
+    private final BufferedReader reader;
+
+    /**
+     * Full constructor.
+     *
+     * @param entity the PUMAPI response entity - decoded with its declared charset, or UTF-8
+     * @throws IOException if the response content cannot be read
+     */
+    PumapiCsvReader(HttpEntity entity) throws IOException {
+        super();
+
+        Charset charset = ContentType.getOrDefault(entity).getCharset();
+        this.reader = new BufferedReader(
+            new InputStreamReader(entity.getContent(), null == charset ? Consts.UTF_8 : charset));
+    }
+
+    /**
+     * Reads the next CSV record.
+     *
+     * @return the record values, or null at the end of the response
+     * @throws IOException if the response content cannot be read
+     */
+    String[] readRecord() throws IOException {
+        String[] result = null;
+
+        List<String> values = null;
+        while (null == result && null != (values = readValues(reader))) {
+            if (values.size() > 1 || !values.get(0).isEmpty()) {
+                result = values.toArray(new String[values.size()]);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    /**
+     * Splits a CSV line, with optional double quotes around values.
+     *
+     * @param line the CSV line
+     * @return the values
+     */
+    static String[] parseLine(String line) {
+        List<String> values = null;
+
+        try {
+            values = readValues(new BufferedReader(new StringReader(line)));
+        } catch (IOException e) {
+            // not thrown by string readers
+            throw new IllegalStateException(e);
+        }
+
+        return (null == values ? new String[] { "" } : values.toArray(new String[values.size()]));
+    }
+
+    /**
+     * Reads the values of the next CSV record, which spans several lines when quoted values
+     * contain line breaks.
+     *
+     * @param in the CSV content
+     * @return the record values (a single empty value for blank lines), or null at the end of the content
+     * @throws IOException if the content cannot be read
+     */
+    private static List<String> readValues(BufferedReader in) throws IOException {
+        int c = in.read();
+        if (-1 == c) {
+            return null;
+        }
+
+        List<String> result = new ArrayList<String>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+
+        while (-1 != c) {
+            if (quoted) {
+                if ('"' == c) {
+                    c = in.read();
+                    if ('"' != c) {
+                        // closing quote: process the next character as unquoted
+                        quoted = false;
+                        continue;
+                    }
+                }
+                value.append((char) c);
+            } else if ('"' == c) {
+                quoted = true;
+            } else if (',' == c) {
+                result.add(value.toString().trim());
+                value.setLength(0);
+            } else if ('\n' == c) {
+                break;
+            } else if ('\r' == c) {
+                // CRLF or lone CR line terminator
+                in.mark(1);
+                if ('\n' != in.read()) {
+                    in.reset();
+                }
+                break;
+            } else {
+                value.append((char) c);
+            }
+
+            c = in.read();
+        }
+        result.add(value.toString().trim());
+
+        return result;
+    }
+
+    /**
+     * Looks up a column index by header name (case insensitive).
+     *
+     * @param header the header record
+     * @param columnName the column name
+     * @param defaultColumn the index to use if the column is not found
+     * @return the column index
+     */
+    static int columnOf(String[] header, String columnName, int defaultColumn) {
+        int result = defaultColumn;
+
+        for (int i = 0; i < header.length; ++i) {
+            if (columnName.equalsIgnoreCase(header[i])) {
+                result = i;
+                break;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns a record value, if any.
+     *
+     * @param record the record values
+     * @param column the column index (may be negative)
+     * @return the value, or null if out of range
+     */
+    static String valueAt(String[] record, int column) {
+        return (column >= 0 && column < record.length ? record[column] : null);
+    }
+
+}
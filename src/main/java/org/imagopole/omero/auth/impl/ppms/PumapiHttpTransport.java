@@ -0,0 +1,685 @@
+/**
+ *
+ */
+package org.imagopole.omero.auth.impl.ppms;
+
+import static org.imagopole.omero.auth.util.Check.empty;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.Consts;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.SchemePortResolver;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.routing.HttpRoutePlanner;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.DefaultRoutePlanner;
+import org.apache.http.impl.conn.DefaultSchemePortResolver;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.imagopole.omero.auth.util.DaemonThreadFactory;
+import org.imagopole.ppms.api.PumapiException;
+import org.imagopole.ppms.api.config.PumapiConfig;
+import org.imagopole.ppms.util.Check;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pooled HTTP transport for the PUMAPI requests issued by this module, so that requests reuse
+ * kept-alive connections to PPMS instead of paying for the TCP and TLS setup each time.
+ *
+ * Shares the PUMAPI client configuration (endpoint, API key, proxy and timeouts). Idle and expired
+ * connections are evicted in the background, and a number of connections may optionally be opened
+ * upon startup. Compressed (gzip) responses are decoded transparently.
+ *
+ * @author seb
+ *
+ */
+public class PumapiHttpTransport implements PumapiHttpTransportMXBean {
+
+    /** Application logs. */
+    private final Logger log = LoggerFactory.getLogger(PumapiHttpTransport.class);
+
+    /** PUMAPI configuration settings. */
+    private PumapiConfig config;
+
+    /** Maximum number of pooled connections. */
+    private int maxConnections = TransportConfig.DEFAULT_MAX_CONNECTIONS;
+
+    /** Maximum number of pooled connections per route. */
+    private int maxConnectionsPerRoute = TransportConfig.DEFAULT_MAX_PER_ROUTE;
+
+    /** Maximum time in seconds to keep an idle connection alive (unless the server asks for less). */
+    private int keepAliveSeconds = TransportConfig.DEFAULT_KEEP_ALIVE_SECONDS;
+
+    /** Interval in seconds between two idle connections evictions. */
+    private int idleEvictionSeconds = TransportConfig.DEFAULT_IDLE_EVICTION_SECONDS;
+
+    /** Maximum time in milliseconds to wait for a pooled connection. */
+    private int leaseTimeoutMillis = TransportConfig.DEFAULT_LEASE_TIMEOUT_MILLIS;
+
+    /** Number of connections to open upon startup (optional - none by default). */
+    private int preconnect;
+
+    /** Connections pool (null if not started). */
+    private volatile MeteredConnectionManager connectionManager;
+
+    /** Routes planner shared by the requests and the startup connections (null if not started). */
+    private volatile HttpRoutePlanner routePlanner;
+
+    /** HTTP client on top of the connections pool (null if not started). */
+    private volatile CloseableHttpClient httpClient;
+
+    /** Idle connections evictions scheduler (null if not started). */
+    private volatile ScheduledExecutorService evictor;
+
+    protected PumapiHttpTransport() {
+        super();
+    }
+
+    public PumapiHttpTransport(PumapiConfig config) {
+        super();
+
+        Check.notNull(config, "config");
+        this.config = config;
+    }
+
+    /**
+     * Creates the connections pool, schedules the idle connections evictions, and opens the
+     * startup connections if so configured (in the background).
+     */
+    public synchronized void start() {
+        if (null != httpClient) {
+            return;
+        }
+
+        MeteredConnectionManager pool = new MeteredConnectionManager();
+        pool.setMaxTotal(maxConnections);
+        pool.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+
+        final ConnectionKeepAliveStrategy serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE;
+        ConnectionKeepAliveStrategy boundedKeepAlive = new ConnectionKeepAliveStrategy() {
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                long maxKeepAliveMillis = TimeUnit.SECONDS.toMillis(keepAliveSeconds);
+                long requestedMillis = serverKeepAlive.getKeepAliveDuration(response, context);
+
+                return (requestedMillis > 0 ? Math.min(requestedMillis, maxKeepAliveMillis) : maxKeepAliveMillis);
+            }
+        };
+
+        connectionManager = pool;
+        routePlanner = new DefaultRoutePlanner(getSchemePortResolver());
+        httpClient = HttpClients.custom()
+                        .setConnectionManager(pool)
+                        .setRoutePlanner(routePlanner)
+                        .setKeepAliveStrategy(boundedKeepAlive)
+                        .build();
+
+        ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory(TransportConfig.THREADS_NAME));
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evictIdleConnections();
+            }
+        }, idleEvictionSeconds, idleEvictionSeconds, TimeUnit.SECONDS);
+
+        if (preconnect > 0) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    preconnect();
+                }
+            });
+        }
+        evictor = executor;
+
+        log.info("[external_auth][ppms] Started PUMAPI HTTP transport [max:{} - per_route:{} - keep_alive:{}s]",
+                 maxConnections, maxConnectionsPerRoute, keepAliveSeconds);
+    }
+
+    /**
+     * Closes all pooled connections and stops the evictions.
+     */
+    public synchronized void shutdown() {
+        ScheduledExecutorService executor = evictor;
+        if (null != executor) {
+            executor.shutdownNow();
+            evictor = null;
+        }
+
+        CloseableHttpClient client = httpClient;
+        if (null != client) {
+            log.info("[external_auth][ppms] Stopping PUMAPI HTTP transport");
+
+            try {
+                client.close();
+            } catch (IOException e) {
+                log.warn("[external_auth][ppms] Failed to close PUMAPI HTTP transport: {}", e.getMessage());
+            }
+            httpClient = null;
+            connectionManager = null;
+            routePlanner = null;
+        }
+    }
+
+    /**
+     * Issues a PUMAPI request.
+     *
+     * @param action the PUMAPI action
+     * @param params the action parameters (may be empty)
+     * @param responseHandler the handler for successful (2xx) responses - the connection is
+     * released once the handler returns
+     * @return the handler's result
+     * @throws PumapiException in case of a technical error, of a non-successful HTTP status, or if
+     * no connection could be leased in time
+     */
+    public <T> T post(String action, Map<String, String> params, final ResponseHandler<? extends T> responseHandler)
+        throws PumapiException {
+
+        Check.notEmpty(action, "action");
+        Check.notNull(params, "params");
+        Check.notNull(responseHandler, "responseHandler");
+
+        CloseableHttpClient client = httpClient;
+        if (null == client) {
+            start();
+            client = httpClient;
+        }
+
+        T result = null;
+
+        List<NameValuePair> form = new ArrayList<NameValuePair>(params.size() + 2);
+        form.add(new BasicNameValuePair(TransportConfig.API_KEY_PARAM, config.getApiKey()));
+        form.add(new BasicNameValuePair(TransportConfig.ACTION_PARAM, action));
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            form.add(new BasicNameValuePair(param.getKey(), param.getValue()));
+        }
+
+        HttpPost request = new HttpPost(config.getEndpoint());
+        request.setConfig(newRequestConfig());
+        request.setEntity(new UrlEncodedFormEntity(form, Consts.UTF_8));
+
+        try {
+
+            result = client.execute(request, new ResponseHandler<T>() {
+                @Override
+                public T handleResponse(HttpResponse response) throws ClientProtocolException, IOException {
+                    int status = response.getStatusLine().getStatusCode();
+                    if (status < HttpStatus.SC_OK || status >= HttpStatus.SC_MULTIPLE_CHOICES) {
+                        throw new HttpResponseException(status, response.getStatusLine().getReasonPhrase());
+                    }
+                    return responseHandler.handleResponse(response);
+                }
+            });
+
+        } catch (ConnectionPoolTimeoutException e) {
+            throw new PumapiException("Timed out after " + leaseTimeoutMillis + " ms waiting for a PUMAPI connection", e);
+        } catch (HttpResponseException e) {
+            throw new PumapiException("PUMAPI " + action + " failed with HTTP status: " + e.getStatusCode(), e);
+        } catch (IOException e) {
+            throw new PumapiException("PUMAPI " + action + " failed: " + e.getMessage(), e);
+        }
+
+        return result;
+    }
+
+    private RequestConfig newRequestConfig() {
+        RequestConfig.Builder result = RequestConfig.custom().setConnectionRequestTimeout(leaseTimeoutMillis);
+
+        if (null != config.getConnectTimeout()) {
+            result.setConnectTimeout(config.getConnectTimeout());
+        }
+        if (null != config.getSocketTimeout()) {
+            result.setSocketTimeout(config.getSocketTimeout());
+        }
+        if (!empty(config.getProxyHost()) && null != config.getProxyPort()) {
+            result.setProxy(new HttpHost(config.getProxyHost(), config.getProxyPort()));
+        }
+
+        return result.build();
+    }
+
+    private void evictIdleConnections() {
+        MeteredConnectionManager pool = connectionManager;
+
+        if (null != pool) {
+            pool.closeExpiredConnections();
+            pool.closeIdleConnections(keepAliveSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Opens the startup connections to the PUMAPI endpoint and returns them to the pool.
+     *
+     * Skipped when a proxy is configured (tunnelled connections are only set up upon request).
+     */
+    private void preconnect() {
+        MeteredConnectionManager pool = connectionManager;
+        HttpRoutePlanner planner = routePlanner;
+
+        if (null == pool || null == planner || empty(config.getEndpoint())) {
+            return;
+        }
+        if (!empty(config.getProxyHost())) {
+            log.info("[external_auth][ppms] Skipping PUMAPI connections pre-connect via proxy");
+            return;
+        }
+
+        // plan the route as for requests, so that the startup connections match the requests' pooled route
+        URI endpoint = URI.create(config.getEndpoint());
+        HttpHost target = new HttpHost(endpoint.getHost(), endpoint.getPort(), endpoint.getScheme());
+        HttpRoute route = null;
+        try {
+            route = planner.determineRoute(target, new HttpPost(endpoint), HttpClientContext.create());
+        } catch (HttpException e) {
+            log.warn("[external_auth][ppms] Failed to pre-connect PUMAPI connections: {}", e.getMessage());
+            return;
+        }
+
+        int connectTimeout = (null == config.getConnectTimeout() ? 0 : config.getConnectTimeout());
+        int count = Math.min(preconnect, maxConnectionsPerRoute);
+
+        List<HttpClientConnection> connections = new ArrayList<HttpClientConnection>(count);
+        try {
+
+            for (int i = 0; i < count; ++i) {
+                HttpClientContext context = HttpClientContext.create();
+                HttpClientConnection connection =
+                    pool.requestConnection(route, null).get(leaseTimeoutMillis, TimeUnit.MILLISECONDS);
+                connections.add(connection);
+
+                pool.connect(connection, route, connectTimeout, context);
+                pool.routeComplete(connection, route, context);
+
+                // bind the session buffers, which the stale connection check upon first lease
+                // expects (only done by the first request I/O otherwise)
+                connection.isResponseAvailable(TransportConfig.BIND_TIMEOUT_MILLIS);
+            }
+
+            log.info("[external_auth][ppms] Pre-connected {} PUMAPI connections to: {}", count, route.getTargetHost());
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.warn("[external_auth][ppms] Failed to pre-connect PUMAPI connections: {}", e.getMessage());
+        } catch (IOException e) {
+            log.warn("[external_auth][ppms] Failed to pre-connect PUMAPI connections: {}", e.getMessage());
+        } finally {
+            for (HttpClientConnection connection : connections) {
+                pool.releaseConnection(connection, null, keepAliveSeconds, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    /**
+     * Resolves the default port of the endpoint scheme when the endpoint does not specify any.
+     *
+     * @return the scheme port resolver
+     */
+    protected SchemePortResolver getSchemePortResolver() {
+        return DefaultSchemePortResolver.INSTANCE;
+    }
+
+    private PoolStats getPoolStats() {
+        MeteredConnectionManager pool = connectionManager;
+        return (null == pool ? new PoolStats(0, 0, 0, maxConnections) : pool.getTotalStats());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getLeasedConnections() {
+        return getPoolStats().getLeased();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getAvailableConnections() {
+        return getPoolStats().getAvailable();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getPendingLeases() {
+        return getPoolStats().getPending();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getLeaseCount() {
+        MeteredConnectionManager pool = connectionManager;
+        return (null == pool ? 0L : pool.leaseCount.get());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getLeaseTimeoutCount() {
+        MeteredConnectionManager pool = connectionManager;
+        return (null == pool ? 0L : pool.leaseTimeoutCount.get());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getMeanLeaseWaitMillis() {
+        MeteredConnectionManager pool = connectionManager;
+
+        double result = 0d;
+        if (null != pool) {
+            long leases = pool.leaseCount.get();
+            result = (0L == leases ? 0d : pool.leaseWaitNanos.get() / (leases * 1e6));
+        }
+
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getMaxLeaseWaitMillis() {
+        MeteredConnectionManager pool = connectionManager;
+        return (null == pool ? 0d : pool.maxLeaseWaitNanos.get() / 1e6);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void resetStatistics() {
+        MeteredConnectionManager pool = connectionManager;
+
+        if (null != pool) {
+            pool.leaseCount.set(0L);
+            pool.leaseTimeoutCount.set(0L);
+            pool.leaseWaitNanos.set(0L);
+            pool.maxLeaseWaitNanos.set(0L);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Sets maxConnections.
+     *
+     * Null or non-positive values are ignored.
+     *
+     * @param maxConnections the maxConnections to set
+     */
+    public void setMaxConnections(Integer maxConnections) {
+        if (null != maxConnections && maxConnections > 0) {
+            this.maxConnections = maxConnections;
+        }
+    }
+
+    /**
+     * Returns maxConnectionsPerRoute.
+     * @return the maxConnectionsPerRoute
+     */
+    public int getMaxConnectionsPerRoute() {
+        return maxConnectionsPerRoute;
+    }
+
+    /**
+     * Sets maxConnectionsPerRoute.
+     *
+     * Null or non-positive values are ignored.
+     *
+     * @param maxConnectionsPerRoute the maxConnectionsPerRoute to set
+     */
+    public void setMaxConnectionsPerRoute(Integer maxConnectionsPerRoute) {
+        if (null != maxConnectionsPerRoute && maxConnectionsPerRoute > 0) {
+            this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+        }
+    }
+
+    /**
+     * Returns keepAliveSeconds.
+     * @return the keepAliveSeconds
+     */
+    public int getKeepAliveSeconds() {
+        return keepAliveSeconds;
+    }
+
+    /**
+     * Sets keepAliveSeconds.
+     *
+     * Null or non-positive values are ignored.
+     *
+     * @param keepAliveSeconds the keepAliveSeconds to set
+     */
+    public void setKeepAliveSeconds(Integer keepAliveSeconds) {
+        if (null != keepAliveSeconds && keepAliveSeconds > 0) {
+            this.keepAliveSeconds = keepAliveSeconds;
+        }
+    }
+
+    /**
+     * Returns idleEvictionSeconds.
+     * @return the idleEvictionSeconds
+     */
+    public int getIdleEvictionSeconds() {
+        return idleEvictionSeconds;
+    }
+
+    /**
+     * Sets idleEvictionSeconds.
+     *
+     * Null or non-positive values are ignored.
+     *
+     * @param idleEvictionSeconds the idleEvictionSeconds to set
+     */
+    public void setIdleEvictionSeconds(Integer idleEvictionSeconds) {
+        if (null != idleEvictionSeconds && idleEvictionSeconds > 0) {
+            this.idleEvictionSeconds = idleEvictionSeconds;
+        }
+    }
+
+    /**
+     * Returns leaseTimeoutMillis.
+     * @return the leaseTimeoutMillis
+     */
+    public int getLeaseTimeoutMillis() {
+        return leaseTimeoutMillis;
+    }
+
+    /**
+     * Sets leaseTimeoutMillis.
+     *
+     * Null or non-positive values are ignored.
+     *
+     * @param leaseTimeoutMillis the leaseTimeoutMillis to set
+     */
+    public void setLeaseTimeoutMillis(Integer leaseTimeoutMillis) {
+        if (null != leaseTimeoutMillis && leaseTimeoutMillis > 0) {
+            this.leaseTimeoutMillis = leaseTimeoutMillis;
+        }
+    }
+
+    /**
+     * Returns preconnect.
+     * @return the preconnect
+     */
+    public int getPreconnect() {
+        return preconnect;
+    }
+
+    /**
+     * Sets preconnect.
+     *
+     * Null or negative values are ignored.
+     *
+     * @param preconnect the preconnect to set
+     */
+    public void setPreconnect(Integer preconnect) {
+        if (null != preconnect && preconnect >= 0) {
+            this.preconnect = preconnect;
+        }
+    }
+
+    /**
+     * Returns config.
+     * @return the config
+     */
+    public PumapiConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Sets config.
+     * @param config the config to set
+     */
+    public void setConfig(PumapiConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * Connections pool recording the time spent waiting for a connection.
+     *
+     * @author seb
+     *
+     */
+    private static final class MeteredConnectionManager extends PoolingHttpClientConnectionManager {
+
+        /** Leased connections count. */
+        private final AtomicLong leaseCount = new AtomicLong();
+
+        /** Lease timeouts count. */
+        private final AtomicLong leaseTimeoutCount = new AtomicLong();
+
+        /** Cumulated lease wait in nanoseconds. */
+        private final AtomicLong leaseWaitNanos = new AtomicLong();
+
+        /** Longest lease wait in nanoseconds. */
+        private final AtomicLong maxLeaseWaitNanos = new AtomicLong();
+
+        private MeteredConnectionManager() {
+            super();
+        }
+
+        @Override
+        public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+            final ConnectionRequest request = super.requestConnection(route, state);
+
+            return new ConnectionRequest() {
+                @Override
+                public HttpClientConnection get(long timeout, TimeUnit tunit)
+                    throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+
+                    long startNanos = System.nanoTime();
+
+                    try {
+                        HttpClientConnection result = request.get(timeout, tunit);
+                        record(System.nanoTime() - startNanos);
+                        return result;
+                    } catch (ConnectionPoolTimeoutException e) {
+                        leaseTimeoutCount.incrementAndGet();
+                        throw e;
+                    }
+                }
+
+                @Override
+                public boolean cancel() {
+                    return request.cancel();
+                }
+            };
+        }
+
+        private void record(long waitNanos) {
+            leaseCount.incrementAndGet();
+            leaseWaitNanos.addAndGet(waitNanos);
+
+            long max = maxLeaseWaitNanos.get();
+            while (waitNanos > max && !maxLeaseWaitNanos.compareAndSet(max, waitNanos)) {
+                max = maxLeaseWaitNanos.get();
+            }
+        }
+    }
+
+    /**
+     * Internal settings for the HTTP transport.
+     *
+     * @author seb
+     *
+     */
+    private final class TransportConfig {
+        /** Default maximum number of pooled connections. */
+        private static final int DEFAULT_MAX_CONNECTIONS        = 20;
+
+        /** Default maximum number of pooled connections per route. */
+        private static final int DEFAULT_MAX_PER_ROUTE          = 10;
+
+        /** Default maximum keep-alive duration in seconds. */
+        private static final int DEFAULT_KEEP_ALIVE_SECONDS     = 30;
+
+        /** Default interval between two idle connections evictions in seconds. */
+        private static final int DEFAULT_IDLE_EVICTION_SECONDS  = 10;
+
+        /** Default maximum wait for a pooled connection in milliseconds. */
+        private static final int DEFAULT_LEASE_TIMEOUT_MILLIS   = 3000;
+
+        /** Read timeout used to bind the pre-connected connections in milliseconds. */
+        private static final int BIND_TIMEOUT_MILLIS            = 1;
+
+        /** PUMAPI API key parameter. */
+        private static final String API_KEY_PARAM               = "apikey";
+
+        /** PUMAPI action parameter. */
+        private static final String ACTION_PARAM                = "action";
+
+        /** Evictions threads name prefix. */
+        private static final String THREADS_NAME               = "ppms-http-evictor";
+
+        /** Constants class. */
+        private TransportConfig() {
+            super();
+        }
+    }
+
+}
@@ -0,0 +1,75 @@
+/**
+ *
+ */
+package org.imagopole.omero.auth.impl.ppms;
+
+/**
+ * JMX monitoring interface for the pooled PUMAPI HTTP transport.
+ *
+ * @author seb
+ *
+ */
+public interface PumapiHttpTransportMXBean {
+
+    /**
+     * Returns the maximum number of pooled connections.
+     *
+     * @return the pool capacity
+     */
+    int getMaxConnections();
+
+    /**
+     * Returns the number of connections currently leased to requests.
+     *
+     * @return the leased connections count
+     */
+    int getLeasedConnections();
+
+    /**
+     * Returns the number of idle connections kept alive in the pool.
+     *
+     * @return the available connections count
+     */
+    int getAvailableConnections();
+
+    /**
+     * Returns the number of requests currently waiting for a connection.
+     *
+     * @return the pending leases count
+     */
+    int getPendingLeases();
+
+    /**
+     * Returns the number of connections leased since startup (or the last reset).
+     *
+     * @return the leases count
+     */
+    long getLeaseCount();
+
+    /**
+     * Returns the number of requests which gave up waiting for a connection.
+     *
+     * @return the lease timeouts count
+     */
+    long getLeaseTimeoutCount();
+
+    /**
+     * Returns the mean time spent waiting for a pooled connection.
+     *
+     * @return the mean lease wait in milliseconds
+     */
+    double getMeanLeaseWaitMillis();
+
+    /**
+     * Returns the longest time spent waiting for a pooled connection.
+     *
+     * @return the maximum lease wait in milliseconds
+     */
+    double getMaxLeaseWaitMillis();
+
+    /**
+     * Resets the lease statistics.
+     */
+    void resetStatistics();
+
+}
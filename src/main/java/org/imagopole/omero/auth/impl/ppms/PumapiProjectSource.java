@@ -0,0 +1,194 @@
+/**
+ *
+ */
+package org.imagopole.omero.auth.impl.ppms;
+
+import static org.imagopole.omero.auth.impl.ppms.PumapiCsvReader.columnOf;
+import static org.imagopole.omero.auth.impl.ppms.PumapiCsvReader.valueAt;
+import static org.imagopole.omero.auth.util.Check.empty;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ResponseHandler;
+import org.imagopole.omero.auth.api.dto.NamedItem;
+import org.imagopole.omero.auth.api.ppms.PpmsProjectSource;
+import org.imagopole.ppms.api.PumapiException;
+import org.imagopole.ppms.util.Check;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * PPMS projects source backed by the PUMAPI <code>getprojects</code> and
+ * <code>getprojectmember</code> actions, which the PUMAPI client does not publish.
+ *
+ * Requests are issued over the pooled PUMAPI HTTP transport. Responses are parsed as CSV, with columns resolved by header name.
+ *
+ * @author seb
+ *
+ */
+public class PumapiProjectSource implements PpmsProjectSource {
+
+    /** Application logs. */
+    private final Logger log = LoggerFactory.getLogger(PumapiProjectSource.class);
+
+    /** Pooled PUMAPI HTTP transport. */
+    private PumapiHttpTransport transport;
+
+    protected PumapiProjectSource() {
+        super();
+    }
+
+    public PumapiProjectSource(PumapiHttpTransport transport) {
+        super();
+
+        Check.notNull(transport, "transport");
+        this.transport = transport;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<NamedItem> listActiveProjects() throws PumapiException {
+        Map<String, String> params = new LinkedHashMap<String, String>();
+        params.put(PumapiKeys.ACTIVE, "true");
+
+        List<String[]> rows = post(PumapiKeys.GET_PROJECTS_ACTION, params);
+        List<NamedItem> result = new ArrayList<NamedItem>();
+
+        if (!rows.isEmpty()) {
+            String[] header = rows.get(0);
+            int refColumn = columnOf(header, PumapiKeys.PROJECT_REF_COLUMN, 0);
+            int nameColumn = columnOf(header, PumapiKeys.PROJECT_NAME_COLUMN, 1);
+            int descriptionColumn = columnOf(header, PumapiKeys.PROJECT_DESCRIPTION_COLUMN, -1);
+
+            for (String[] row : rows.subList(1, rows.size())) {
+                String projectRef = valueAt(row, refColumn);
+                String projectName = valueAt(row, nameColumn);
+
+                if (!empty(projectRef) && !empty(projectName)) {
+                    result.add(NamedItem.newItem(projectRef, projectName, valueAt(row, descriptionColumn)));
+                } else {
+                    log.debug("[external_auth][ppms] Skipping incomplete project row: {}", (Object) row);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> listProjectMembers(String projectRef) throws PumapiException {
+        Check.notEmpty(projectRef, "projectRef");
+
+        Map<String, String> params = new LinkedHashMap<String, String>();
+        params.put(PumapiKeys.WITH_ID, projectRef);
+
+        List<String[]> rows = post(PumapiKeys.GET_PROJECT_MEMBER_ACTION, params);
+        List<String> result = new ArrayList<String>();
+
+        if (!rows.isEmpty()) {
+            int loginColumn = columnOf(rows.get(0), PumapiKeys.LOGIN_COLUMN, 0);
+
+            for (String[] row : rows.subList(1, rows.size())) {
+                String login = valueAt(row, loginColumn);
+
+                if (!empty(login)) {
+                    result.add(login);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private List<String[]> post(String action, Map<String, String> params) throws PumapiException {
+        return transport.post(action, params, new ResponseHandler<List<String[]>>() {
+            @Override
+            public List<String[]> handleResponse(HttpResponse response) throws IOException {
+                return readCsv(response.getEntity());
+            }
+        });
+    }
+
+    private static List<String[]> readCsv(HttpEntity entity) throws IOException {
+        List<String[]> result = new ArrayList<String[]>();
+
+        if (null != entity) {
+            PumapiCsvReader reader = new PumapiCsvReader(entity);
+            try {
+                String[] record = null;
+                while (null != (record = reader.readRecord())) {
+                    result.add(record);
+                }
+            } finally {
+                reader.close();
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns transport.
+     * @return the transport
+     */
+    public PumapiHttpTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Sets transport.
+     * @param transport the transport to set
+     */
+    public void setTransport(PumapiHttpTransport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * PUMAPI request parameters and response columns.
+     *
+     * @author seb
+     *
+     */
+    private final class PumapiKeys {
+        /** Active status parameter. */
+        private static final String ACTIVE                       = "active";
+
+        /** Project reference parameter. */
+        private static final String WITH_ID                      = "withid";
+
+        /** Projects listing action. */
+        private static final String GET_PROJECTS_ACTION          = "getprojects";
+
+        /** Project members listing action. */
+        private static final String GET_PROJECT_MEMBER_ACTION    = "getprojectmember";
+
+        /** Project reference column. */
+        private static final String PROJECT_REF_COLUMN           = "ProjectRef";
+
+        /** Project name column. */
+        private static final String PROJECT_NAME_COLUMN          = "ProjectName";
+
+        /** Project description column. */
+        private static final String PROJECT_DESCRIPTION_COLUMN   = "Descr";
+
+        /** Member login column. */
+        private static final String LOGIN_COLUMN                 = "login";
+
+        /** Constants class. */
+        private PumapiKeys() {
+            super();
+        }
+    }
+
+}
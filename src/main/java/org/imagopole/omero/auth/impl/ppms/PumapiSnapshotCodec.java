@@ -0,0 +1,314 @@
+/**
+ *
+ */
+package org.imagopole.omero.auth.impl.ppms;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.sf.ehcache.Element;
+
+import org.imagopole.omero.auth.impl.ppms.PumapiCacheKey.Invocation;
+import org.imagopole.ppms.api.dto.PpmsGroup;
+import org.imagopole.ppms.api.dto.PpmsPrivilege;
+import org.imagopole.ppms.api.dto.PpmsSystem;
+import org.imagopole.ppms.api.dto.PpmsUser;
+import org.imagopole.ppms.api.dto.PpmsUserPrivilege;
+
+/**
+ * Compact binary encoding of PUMAPI cache entries for the cache snapshot file.
+ *
+ * Each entry is written as: key, element timestamps and lifespan, then the value's fields - limited
+ * to the PPMS DTO fields used by the extension.
+ * Java serialization is deliberately avoided so that the snapshot stays small and insensitive
+ * to the PUMAPI client classes versions.
+ *
+ * @author seb
+ *
+ */
+public final class PumapiSnapshotCodec {
+
+    /** Marker for null values. */
+    private static final byte NULL = -1;
+
+    /** Marker for non null values. */
+    private static final byte NOT_NULL = 1;
+
+    /**
+     * Util.
+     */
+    private PumapiSnapshotCodec() {
+        super();
+    }
+
+    /**
+     * Writes a cache element.
+     *
+     * @param out the output
+     * @param element the cache element, with a {@link PumapiCacheKey} key and a non null value
+     * @throws IOException in case of an I/O failure
+     */
+    public static void writeEntry(DataOutput out, Element element) throws IOException {
+        PumapiCacheKey key = (PumapiCacheKey) element.getObjectKey();
+
+        writeKey(out, key);
+
+        out.writeLong(element.getCreationTime());
+        out.writeLong(element.getLastAccessTime());
+        out.writeLong(element.getLastUpdateTime());
+        out.writeBoolean(element.isLifespanSet());
+        out.writeInt(element.getTimeToLive());
+        out.writeInt(element.getTimeToIdle());
+
+        writeValue(out, key.getInvocation(), element.getObjectValue());
+    }
+
+    /**
+     * Reads a cache key.
+     *
+     * @param in the input, positioned at the start of an entry
+     * @return the cache key
+     * @throws IOException in case of an I/O failure or unknown key type
+     */
+    public static PumapiCacheKey readKey(DataInput in) throws IOException {
+        int ordinal = in.readByte();
+        Invocation[] invocations = Invocation.values();
+
+        if (ordinal < 0 || ordinal >= invocations.length) {
+            throw new IOException("Unknown snapshot key type: " + ordinal);
+        }
+
+        PumapiCacheKey result = null;
+
+        switch (invocations[ordinal]) {
+            case GET_USER:
+                result = PumapiCacheKey.forUser(in.readUTF());
+                break;
+            case GET_GROUP:
+                result = PumapiCacheKey.forGroup(in.readUTF());
+                break;
+            case GET_SYSTEM:
+                result = PumapiCacheKey.forSystem(in.readLong());
+                break;
+            case GET_USER_RIGHTS:
+                result = PumapiCacheKey.forUserRights(in.readUTF());
+                break;
+            default:
+                throw new IOException("Unsupported snapshot key type: " + invocations[ordinal]);
+        }
+
+        return result;
+    }
+
+    /**
+     * Reads the remainder of an entry.
+     *
+     * @param in the input, positioned after the key
+     * @param key the entry key
+     * @return the cache element, with its original timestamps and lifespan
+     * @throws IOException in case of an I/O failure
+     */
+    public static Element readElement(DataInput in, PumapiCacheKey key) throws IOException {
+        long creationTime = in.readLong();
+        long lastAccessTime = in.readLong();
+        long lastUpdateTime = in.readLong();
+        boolean isLifespanSet = in.readBoolean();
+        int timeToLive = in.readInt();
+        int timeToIdle = in.readInt();
+
+        Object value = readValue(in, key.getInvocation());
+
+        Element result = new Element(key, value, 1L, creationTime, lastAccessTime, lastUpdateTime, 0L);
+        if (isLifespanSet) {
+            result.setTimeToLive(timeToLive);
+            result.setTimeToIdle(timeToIdle);
+        }
+
+        return result;
+    }
+
+    private static void writeKey(DataOutput out, PumapiCacheKey key) throws IOException {
+        out.writeByte(key.getInvocation().ordinal());
+
+        if (Invocation.GET_SYSTEM == key.getInvocation()) {
+            out.writeLong(key.getId());
+        } else {
+            out.writeUTF(key.getLogin());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writeValue(DataOutput out, Invocation invocation, Object value) throws IOException {
+        switch (invocation) {
+            case GET_USER:
+                writeUser(out, (PpmsUser) value);
+                break;
+            case GET_GROUP:
+                writeGroup(out, (PpmsGroup) value);
+                break;
+            case GET_SYSTEM:
+                writeSystem(out, (PpmsSystem) value);
+                break;
+            case GET_USER_RIGHTS:
+                writeRights(out, (List<PpmsUserPrivilege>) value);
+                break;
+            default:
+                throw new IOException("Unsupported snapshot value type: " + invocation);
+        }
+    }
+
+    private static Object readValue(DataInput in, Invocation invocation) throws IOException {
+        Object result = null;
+
+        switch (invocation) {
+            case GET_USER:
+                result = readUser(in);
+                break;
+            case GET_GROUP:
+                result = readGroup(in);
+                break;
+            case GET_SYSTEM:
+                result = readSystem(in);
+                break;
+            case GET_USER_RIGHTS:
+                result = readRights(in);
+                break;
+            default:
+                throw new IOException("Unsupported snapshot value type: " + invocation);
+        }
+
+        return result;
+    }
+
+    private static void writeUser(DataOutput out, PpmsUser user) throws IOException {
+        writeString(out, user.getLogin());
+        writeString(out, user.getFname());
+        writeString(out, user.getLname());
+        writeString(out, user.getEmail());
+        writeString(out, user.getUnitlogin());
+        writeBoolean(out, user.getActive());
+    }
+
+    private static PpmsUser readUser(DataInput in) throws IOException {
+        PpmsUser user = new PpmsUser();
+        user.setLogin(readString(in));
+        user.setFname(readString(in));
+        user.setLname(readString(in));
+        user.setEmail(readString(in));
+        user.setUnitlogin(readString(in));
+        user.setActive(readBoolean(in));
+
+        return user;
+    }
+
+    private static void writeGroup(DataOutput out, PpmsGroup group) throws IOException {
+        writeString(out, group.getUnitlogin());
+        writeString(out, group.getUnitname());
+        writeBoolean(out, group.getActive());
+        writeBoolean(out, group.getExt());
+    }
+
+    private static PpmsGroup readGroup(DataInput in) throws IOException {
+        PpmsGroup group = new PpmsGroup();
+        group.setUnitlogin(readString(in));
+        group.setUnitname(readString(in));
+        group.setActive(readBoolean(in));
+        group.setExt(readBoolean(in));
+
+        return group;
+    }
+
+    private static void writeSystem(DataOutput out, PpmsSystem system) throws IOException {
+        writeLong(out, system.getSystemId());
+        writeLong(out, system.getCoreFacilityRef());
+        writeString(out, system.getName());
+        writeString(out, system.getType());
+        writeString(out, system.getLocalisation());
+        writeBoolean(out, system.getActive());
+        writeBoolean(out, system.getAutonomyRequired());
+    }
+
+    private static PpmsSystem readSystem(DataInput in) throws IOException {
+        PpmsSystem system = new PpmsSystem();
+        system.setSystemId(readLong(in));
+        system.setCoreFacilityRef(readLong(in));
+        system.setName(readString(in));
+        system.setType(readString(in));
+        system.setLocalisation(readString(in));
+        system.setActive(readBoolean(in));
+        system.setAutonomyRequired(readBoolean(in));
+
+        return system;
+    }
+
+    private static void writeRights(DataOutput out, List<PpmsUserPrivilege> rights) throws IOException {
+        out.writeInt(rights.size());
+
+        for (PpmsUserPrivilege right : rights) {
+            writeLong(out, right.getSystemId());
+            writeString(out, (null == right.getPrivilege() ? null : right.getPrivilege().name()));
+        }
+    }
+
+    private static List<PpmsUserPrivilege> readRights(DataInput in) throws IOException {
+        int size = in.readInt();
+        List<PpmsUserPrivilege> rights = new ArrayList<PpmsUserPrivilege>(size);
+
+        for (int i = 0; i < size; ++i) {
+            Long systemId = readLong(in);
+            String privilegeName = readString(in);
+
+            PpmsPrivilege privilege = null;
+            if (null != privilegeName) {
+                try {
+                    privilege = PpmsPrivilege.valueOf(privilegeName);
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Unknown snapshot privilege: " + privilegeName);
+                }
+            }
+
+            rights.add(new PpmsUserPrivilege(systemId, privilege));
+        }
+
+        return rights;
+    }
+
+    private static void writeString(DataOutput out, String value) throws IOException {
+        if (null == value) {
+            out.writeByte(NULL);
+        } else {
+            out.writeByte(NOT_NULL);
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        return (NULL == in.readByte() ? null : in.readUTF());
+    }
+
+    private static void writeLong(DataOutput out, Long value) throws IOException {
+        if (null == value) {
+            out.writeByte(NULL);
+        } else {
+            out.writeByte(NOT_NULL);
+            out.writeLong(value);
+        }
+    }
+
+    private static Long readLong(DataInput in) throws IOException {
+        return (NULL == in.readByte() ? null : in.readLong());
+    }
+
+    private static void writeBoolean(DataOutput out, Boolean value) throws IOException {
+        out.writeByte(null == value ? NULL : (value ? 1 : 0));
+    }
+
+    private static Boolean readBoolean(DataInput in) throws IOException {
+        byte value = in.readByte();
+        return (NULL == value ? null : Boolean.valueOf(1 == value));
+    }
+
+}
@@ -4,7 +4,7 @@
 package org.imagopole.omero.auth.impl.ppms.group;
 
 
-import static org.imagopole.omero.auth.impl.ppms.PpmsUtil.filterSystemsByFacilityAndType;
+import static org.imagopole.omero.auth.impl.ppms.PpmsUtil.newFacilityAndTypeFilter;
 import static org.imagopole.omero.auth.impl.ppms.PpmsUtil.toNamedItems;
 
 import java.util.List;
@@ -12,6 +12,7 @@ import java.util.List;
 import org.imagopole.omero.auth.api.ExternalAuthConfig;
 import org.imagopole.omero.auth.api.dto.NamedItem;
 import org.imagopole.omero.auth.api.ppms.PpmsService;
+import org.imagopole.omero.auth.api.ppms.PpmsSystemFilter;
 import org.imagopole.omero.auth.impl.group.ConfigurableNameToGroupBean;
 import org.imagopole.ppms.api.dto.PpmsSystem;
 import org.slf4j.Logger;
@@ -54,13 +55,14 @@ public class PpmsSystemAutonomyToGroupBean extends ConfigurableNameToGroupBean {
         log.debug("[external_auth][ppms] looking up active PPMS systems with autonomy for username: {}",
                   username);
 
-        List<PpmsSystem> grantedSystems =
-            getPpmsService().findActiveSystemsWithAutonomyByUserName(username);
-
         // only retain systems which belong to whitelists of enabled facilities and system types
-        List<PpmsSystem> filteredSystems = filterSystemsByFacilityAndType(grantedSystems, config);
+        // (systems known to be out of scope are not looked up)
+        PpmsSystemFilter systemFilter = newFacilityAndTypeFilter(config);
+
+        List<PpmsSystem> grantedSystems =
+            getPpmsService().findActiveSystemsWithAutonomyByUserName(username, systemFilter);
 
-        return toNamedItems(filteredSystems);
+        return toNamedItems(grantedSystems);
     }
 
     /**
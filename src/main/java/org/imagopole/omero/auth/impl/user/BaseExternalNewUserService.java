@@ -70,6 +70,12 @@ public abstract class BaseExternalNewUserService
     /** OMERO Spring application context. */
     private OmeroContext appContext;
 
+    /** Optional ledger of the last synchronizations, to skip the repeated ones. */
+    private SyncFreshnessLedger syncLedger;
+
+    /** Optional fingerprints of the synchronized external profiles, to skip the unchanged ones. */
+    private ExternalProfileFingerprints profileFingerprints;
+
     /** Delimiter for configured group specs. */
     public static final String GROUPSPEC_DELIM = ":";
 
@@ -222,6 +228,14 @@ public abstract class BaseExternalNewUserService
             return;
         }
 
+        // skip users already synchronized within the configured minimum interval
+        boolean isSyncFresh = (null != syncLedger && syncLedger.isFresh(username));
+        if (isSyncFresh) {
+            log.debug("[external_auth] username: {} synchronized within {}s - skipping sync",
+                      username, syncLedger.getMinIntervalSeconds());
+            return;
+        }
+
         Experimenter omeExp = iQuery.findByString(Experimenter.class, OME_NAME, username);
 
         // double check user is already present in OMERO
@@ -242,19 +256,38 @@ public abstract class BaseExternalNewUserService
             return;
         }
 
-        if (syncGroupsOnLogin) {
+        boolean useFingerprints = (null != profileFingerprints && profileFingerprints.isEnabled());
 
-            String grpSpec = config.getNewUserGroup();
-            List<Long> externalGroups = loadExternalGroups(username, grpSpec);
+        // the OMERO memberships are both diffed against the external ones and fingerprinted
+        Set<Long> omeGroupIds = null;
+        if (syncGroupsOnLogin || useFingerprints) {
+            omeGroupIds = loadOmeroGroupIds(omeExp);
+        }
+
+        // skip users whose external profile and OMERO memberships are unchanged since their last synchronization
+        String fingerprint = null;
+        if (useFingerprints) {
+            ExperimenterGroup omeDefaultGroup = getDefaultGroupOrNull(omeExp);
+            Long omeDefaultGroupId = (null == omeDefaultGroup ? null : omeDefaultGroup.getId());
 
-            List<Object[]> omeGroups = iQuery.projection(
-                    SELECT_GROUPS_IDS,
-                    new Parameters().addId(omeExp.getId()));
+            fingerprint = computeProfileFingerprint(
+                username, externalExp, omeGroupIds, omeDefaultGroupId,
+                syncGroupsOnLogin, syncDefaultGroupOnLogin, syncUserOnLogin);
 
-            Set<Long> omeGroupIds = new HashSet<Long>();
-            for (Object[] objs : omeGroups) {
-                omeGroupIds.add((Long) objs[0]);
+            if (profileFingerprints.matches(omeExp.getId(), fingerprint)) {
+                log.debug("[external_auth] username: {} profile unchanged - skipping sync", username);
+
+                if (null != syncLedger) {
+                    syncLedger.recordSyncAfterCommit(username);
+                }
+                return;
             }
+        }
+
+        if (syncGroupsOnLogin) {
+
+            String grpSpec = config.getNewUserGroup();
+            List<Long> externalGroups = loadExternalGroups(username, grpSpec);
 
             // let the subclass decide on membership policy
             // eg. groups from external source take precedence, merge both datasets, etc.
@@ -283,6 +316,107 @@ public abstract class BaseExternalNewUserService
         }
 
         iUpdate.flush();
+
+        if (null != syncLedger) {
+            syncLedger.recordSyncAfterCommit(username);
+        }
+
+        if (null != fingerprint) {
+            profileFingerprints.recordAfterCommit(omeExp.getId(), fingerprint);
+        }
+    }
+
+    /**
+     * Loads the identifiers of the groups the experimenter belongs to in the OMERO database.
+     *
+     * @param omeExp the OMERO user
+     * @return the OMERO group identifiers
+     */
+    private Set<Long> loadOmeroGroupIds(final Experimenter omeExp) {
+        List<Object[]> omeGroups = iQuery.projection(
+                SELECT_GROUPS_IDS,
+                new Parameters().addId(omeExp.getId()));
+
+        Set<Long> result = new HashSet<Long>();
+        for (Object[] objs : omeGroups) {
+            result.add((Long) objs[0]);
+        }
+
+        return result;
+    }
+
+    /**
+     * Computes a fingerprint of the profile parts subject to synchronization.
+     *
+     * The external group names are resolved via the configured group specs without creating
+     * nor looking up any OMERO group (see {@link ExternalProfileFingerprints#newGroupNamesRecorder(List)}).
+     *
+     * The current OMERO memberships and default group are also part of the fingerprint, so that
+     * OMERO-side changes (eg. memberships edited by an administrator) are reconciled on next login.
+     * As the fingerprint is computed before synchronization, a login which modifies the OMERO
+     * memberships is followed by one further synchronization, after which the fingerprints match.
+     *
+     * @param username the experimenter's login
+     * @param externalExp the external user
+     * @param omeGroupIds the groups the user belongs to in the OMERO database
+     * @param omeDefaultGroupId the user's current default group in the OMERO database (may be null)
+     * @param syncGroups true if the groups memberships are synchronized
+     * @param syncDefaultGroup true if the default group is synchronized
+     * @param syncUser true if the experimenter's attributes are synchronized
+     * @return the external profile fingerprint
+     * @throws ExternalServiceException in case of an underlying error during the remote service call
+     */
+    protected String computeProfileFingerprint(
+                    final String username,
+                    final Experimenter externalExp,
+                    final Set<Long> omeGroupIds,
+                    final Long omeDefaultGroupId,
+                    boolean syncGroups,
+                    boolean syncDefaultGroup,
+                    boolean syncUser) throws ExternalServiceException {
+
+        Check.notNull(externalExp, "externalExp");
+        Check.notNull(omeGroupIds, "omeGroupIds");
+
+        List<String> parts = new ArrayList<String>();
+        parts.add(String.format("sync:%s/%s/%s", syncGroups, syncDefaultGroup, syncUser));
+
+        if (syncGroups) {
+            String grpSpec = config.getNewUserGroup();
+            List<String> groupNames = new ArrayList<String>();
+            loadExternalGroups(username, grpSpec, ExternalProfileFingerprints.newGroupNamesRecorder(groupNames));
+
+            // memberships are order-insensitive
+            Collections.sort(groupNames);
+            parts.add(grpSpec);
+            parts.addAll(groupNames);
+
+            List<Long> sortedGroupIds = new ArrayList<Long>(omeGroupIds);
+            Collections.sort(sortedGroupIds);
+            parts.add(sortedGroupIds.toString());
+        }
+
+        if (syncDefaultGroup) {
+            String defaultGroupSpec = config.getDefaultGroup();
+            List<String> defaultGroupNames = new ArrayList<String>();
+            loadExternalGroups(username, defaultGroupSpec,
+                               ExternalProfileFingerprints.newGroupNamesRecorder(defaultGroupNames));
+
+            // the first group is the default one: keep the original order
+            parts.add(defaultGroupSpec);
+            parts.add(config.getDefaultGroupPattern());
+            parts.addAll(defaultGroupNames);
+            parts.add(String.valueOf(omeDefaultGroupId));
+        }
+
+        if (syncUser) {
+            for (String field : EXPERIMENTER_FIELD_NAMES) {
+                parts.add(field);
+                parts.add((String) externalExp.retrieve(field));
+            }
+        }
+
+        return ExternalProfileFingerprints.fingerprint(parts);
     }
 
     /**
@@ -425,7 +559,16 @@ public abstract class BaseExternalNewUserService
      * @see ome.logic.LdapImpl#loadLdapGroups(String, org.springframework.ldap.core.DistinguishedName)
      */
     public List<Long> loadExternalGroups(String username, String grpSpec) throws ExternalServiceException {
+        return loadExternalGroups(username, grpSpec, roleProvider);
+    }
+
+    private List<Long> loadExternalGroups(
+                    String username,
+                    String grpSpec,
+                    RoleProvider groupsProvider) throws ExternalServiceException {
+
         Check.notEmpty(username, "username");
+        Check.notNull(groupsProvider, "groupsProvider");
 
         log.debug("[external_auth] loading externalNewUserGroup from spec: {}", grpSpec);
 
@@ -440,7 +583,7 @@ public abstract class BaseExternalNewUserService
             log.debug("[external_auth] Configuring externalNewUserGroup as literal value: {}", grpSpec);
 
             // The default case is the original logic: use the spec as name
-            groups.add(roleProvider.createGroup(grpSpec, null, false));
+            groups.add(groupsProvider.createGroup(grpSpec, null, false));
             return groups; // EARLY EXIT!
         }
 
@@ -455,7 +598,7 @@ public abstract class BaseExternalNewUserService
             (NewUserGroupBean) appContext.getBean(data, NewUserGroupBean.class);
 
         //note: nulled params for external GroupBeans: LdapConfig, LdapOperations, AttributeSet
-        groups.addAll(bean.groups(username, null, null, roleProvider, null));
+        groups.addAll(bean.groups(username, null, null, groupsProvider, null));
         log.debug("[external_auth] loaded {} external groups for user: {}", groups.size(), username);
 
         return groups;
@@ -576,6 +719,38 @@ public abstract class BaseExternalNewUserService
         this.roles = roles;
     }
 
+    /**
+     * Returns syncLedger.
+     * @return the syncLedger
+     */
+    public SyncFreshnessLedger getSyncLedger() {
+        return syncLedger;
+    }
+
+    /**
+     * Sets syncLedger.
+     * @param syncLedger the syncLedger to set
+     */
+    public void setSyncLedger(SyncFreshnessLedger syncLedger) {
+        this.syncLedger = syncLedger;
+    }
+
+    /**
+     * Returns profileFingerprints.
+     * @return the profileFingerprints
+     */
+    public ExternalProfileFingerprints getProfileFingerprints() {
+        return profileFingerprints;
+    }
+
+    /**
+     * Sets profileFingerprints.
+     * @param profileFingerprints the profileFingerprints to set
+     */
+    public void setProfileFingerprints(ExternalProfileFingerprints profileFingerprints) {
+        this.profileFingerprints = profileFingerprints;
+    }
+
     /**
      * Returns roleProvider.
      * @return the roleProvider
@@ -0,0 +1,241 @@
+/**
+ *
+ */
+package org.imagopole.omero.auth.impl.user;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import ome.security.auth.RoleProvider;
+
+import org.imagopole.omero.auth.util.Check;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Records a fingerprint of each experimenter's external profile as of its last synchronization,
+ * so that synchronizations of unchanged profiles may be skipped.
+ *
+ * The fingerprint is a stable hash over the profile parts (eg. the external experimenter fields
+ * and the sorted external group names). The group names are resolved through the group beans
+ * with a recording {@link RoleProvider}, so that computing a fingerprint does not create nor
+ * look up any OMERO group.
+ *
+ * The current OMERO memberships and default group are fingerprinted alongside, so that changes
+ * made by an administrator are reconciled on next login. Other OMERO-side changes (eg. edited
+ * experimenter details) are only reconciled once the external profile changes again, or after
+ * a server restart (fingerprints are kept in memory).
+ *
+ * Disabled by default.
+ *
+ * @author seb
+ *
+ */
+public class ExternalProfileFingerprints {
+
+    /** Flag to activate the fingerprints (optional - disabled by default). */
+    private Boolean enabled;
+
+    /** Fingerprints as of the last synchronization, by experimenter identifier. */
+    private final ConcurrentMap<Long, String> fingerprints = new ConcurrentHashMap<Long, String>();
+
+    public ExternalProfileFingerprints() {
+        super();
+    }
+
+    /**
+     * Checks whether the fingerprints are in use.
+     *
+     * @return true if enabled
+     */
+    public boolean isEnabled() {
+        return (null != enabled && enabled.booleanValue());
+    }
+
+    /**
+     * Checks whether a profile is unchanged since the experimenter's last synchronization.
+     *
+     * @param experimenterId the OMERO experimenter identifier
+     * @param fingerprint the current external profile fingerprint
+     * @return true if the profile is unchanged
+     */
+    public boolean matches(Long experimenterId, String fingerprint) {
+        Check.notNull(experimenterId, "experimenterId");
+        Check.notNull(fingerprint, "fingerprint");
+
+        return fingerprint.equals(fingerprints.get(experimenterId));
+    }
+
+    /**
+     * Records the profile fingerprint upon successful synchronization.
+     *
+     * @param experimenterId the OMERO experimenter identifier
+     * @param fingerprint the synchronized external profile fingerprint
+     */
+    public void record(Long experimenterId, String fingerprint) {
+        Check.notNull(experimenterId, "experimenterId");
+        Check.notNull(fingerprint, "fingerprint");
+
+        fingerprints.put(experimenterId, fingerprint);
+    }
+
+    /**
+     * Records the profile fingerprint once the current synchronization transaction has committed,
+     * or right away outside of any transaction synchronization.
+     *
+     * @param experimenterId the OMERO experimenter identifier
+     * @param fingerprint the synchronized external profile fingerprint
+     */
+    public void recordAfterCommit(final Long experimenterId, final String fingerprint) {
+        Check.notNull(experimenterId, "experimenterId");
+        Check.notNull(fingerprint, "fingerprint");
+
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    record(experimenterId, fingerprint);
+                }
+            });
+        } else {
+            record(experimenterId, fingerprint);
+        }
+    }
+
+    /**
+     * Forgets an experimenter's fingerprint, so that its next login synchronizes it again.
+     *
+     * @param experimenterId the OMERO experimenter identifier
+     */
+    public void invalidate(Long experimenterId) {
+        Check.notNull(experimenterId, "experimenterId");
+
+        fingerprints.remove(experimenterId);
+    }
+
+    /**
+     * Returns the number of recorded fingerprints.
+     *
+     * @return the fingerprints count
+     */
+    public int size() {
+        return fingerprints.size();
+    }
+
+    /**
+     * Computes a stable SHA-256 hash over the profile parts, in order.
+     *
+     * Each part is length-prefixed, so that distinct lists of parts never hash the same input.
+     *
+     * @param parts the profile parts (null parts are allowed)
+     * @return the hexadecimal hash
+     */
+    public static String fingerprint(List<String> parts) {
+        Check.notNull(parts, "parts");
+
+        MessageDigest digest = null;
+        try {
+            digest = MessageDigest.getInstance(FingerprintConfig.ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        for (String part : parts) {
+            String value = String.valueOf(part);
+            digest.update((value.length() + FingerprintConfig.LENGTH_DELIM + value).getBytes(FingerprintConfig.UTF_8));
+        }
+
+        byte[] hash = digest.digest();
+        StringBuilder result = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            result.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+
+        return result.toString();
+    }
+
+    /**
+     * Creates a {@link RoleProvider} which records the names of the groups a group bean would create,
+     * without accessing the OMERO database.
+     *
+     * Group creations return placeholder (negative) identifiers. Any other operation is unsupported.
+     *
+     * @param groupNames the list to record the group names into
+     * @return the recording provider
+     */
+    public static RoleProvider newGroupNamesRecorder(final List<String> groupNames) {
+        Check.notNull(groupNames, "groupNames");
+
+        return (RoleProvider) Proxy.newProxyInstance(
+            RoleProvider.class.getClassLoader(),
+            new Class<?>[] { RoleProvider.class },
+            new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    Object result = null;
+
+                    if (FingerprintConfig.CREATE_GROUP.equals(method.getName())
+                        && null != args && args.length > 0 && args[0] instanceof String) {
+                        groupNames.add((String) args[0]);
+                        result = Long.valueOf(-groupNames.size());
+                    } else if (method.getDeclaringClass().equals(Object.class)) {
+                        result = method.invoke(this, args);
+                    } else {
+                        throw new UnsupportedOperationException(
+                            "Group names recorder does not support: " + method.getName());
+                    }
+
+                    return result;
+                }
+            });
+    }
+
+    /**
+     * Returns enabled.
+     * @return the enabled
+     */
+    public Boolean getEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Sets enabled.
+     * @param enabled the enabled to set
+     */
+    public void setEnabled(Boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Internal settings for the profile fingerprints.
+     *
+     * @author seb
+     *
+     */
+    private static final class FingerprintConfig {
+        /** Hash algorithm. */
+        private static final String ALGORITHM    = "SHA-256";
+
+        /** Parts encoding. */
+        private static final Charset UTF_8       = Charset.forName("UTF-8");
+
+        /** Part length prefix delimiter. */
+        private static final char LENGTH_DELIM   = ':';
+
+        /** Group creation method name on the role provider. */
+        private static final String CREATE_GROUP = "createGroup";
+
+        /** Constants class. */
+        private FingerprintConfig() {
+            super();
+        }
+    }
+
+}
@@ -0,0 +1,360 @@
+/**
+ *
+ */
+package org.imagopole.omero.auth.impl.user;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.imagopole.omero.auth.util.Check;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Records the time of each user's last successful synchronization from the external source, so
+ * that logins repeated within a minimum interval do not synchronize the same account again.
+ *
+ * The ledger is kept in memory, and may optionally be persisted under the OMERO data directory
+ * (loaded upon startup, written upon shutdown) so that the intervals survive a server restart.
+ * Only entries still within the minimum interval are persisted.
+ *
+ * Inactive by default (no minimum interval).
+ *
+ * @author seb
+ *
+ */
+public class SyncFreshnessLedger {
+
+    /** Application logs. */
+    private final Logger log = LoggerFactory.getLogger(SyncFreshnessLedger.class);
+
+    /** OMERO data directory (for optional persistence). */
+    private String dataDir;
+
+    /** Minimum interval in seconds between two synchronizations of the same user (none if zero). */
+    private int minIntervalSeconds;
+
+    /** Flag to persist the ledger across restarts (optional - disabled by default). */
+    private Boolean persistent;
+
+    /** Last successful synchronization times in milliseconds, by username. */
+    private final ConcurrentMap<String, Long> lastSyncTimes = new ConcurrentHashMap<String, Long>();
+
+    protected SyncFreshnessLedger() {
+        super();
+    }
+
+    public SyncFreshnessLedger(String dataDir) {
+        super();
+
+        Check.notNull(dataDir, "dataDir");
+        this.dataDir = dataDir;
+    }
+
+    /**
+     * Checks whether the ledger is in use.
+     *
+     * @return true if a minimum interval is configured
+     */
+    public boolean isActive() {
+        return minIntervalSeconds > 0;
+    }
+
+    /**
+     * Loads the persisted ledger, if so configured.
+     */
+    public void start() {
+        if (!isActive() || !isPersistent()) {
+            log.debug("[external_auth][sync] Sync ledger persistence disabled [min_interval:{}s]", minIntervalSeconds);
+            return;
+        }
+
+        File file = getFile();
+        if (file.isFile()) {
+            try {
+                int count = read(file);
+                log.info("[external_auth][sync] Loaded {} sync ledger entries from: {}", count, file);
+            } catch (IOException e) {
+                log.warn("[external_auth][sync] Failed to load sync ledger from: {} - {}", file, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Persists the ledger, if so configured.
+     */
+    public void shutdown() {
+        if (!isActive() || !isPersistent()) {
+            return;
+        }
+
+        File file = getFile();
+        try {
+            int count = write(file);
+            log.info("[external_auth][sync] Saved {} sync ledger entries to: {}", count, file);
+        } catch (IOException e) {
+            log.warn("[external_auth][sync] Failed to save sync ledger to: {} - {}", file, e.getMessage());
+        }
+    }
+
+    /**
+     * Checks whether a user has been synchronized within the minimum interval.
+     *
+     * @param username the experimenter login
+     * @return true if the synchronization may be skipped, false otherwise (or if inactive)
+     */
+    public boolean isFresh(String username) {
+        Check.notEmpty(username, "username");
+
+        boolean result = false;
+
+        if (isActive()) {
+            Long lastSyncTime = lastSyncTimes.get(username);
+            result = (null != lastSyncTime && isWithinInterval(lastSyncTime, System.currentTimeMillis()));
+        }
+
+        return result;
+    }
+
+    /**
+     * Records a successful synchronization for a user.
+     *
+     * @param username the experimenter login
+     */
+    public void recordSync(String username) {
+        Check.notEmpty(username, "username");
+
+        if (isActive()) {
+            lastSyncTimes.put(username, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Records a successful synchronization for a user once the current transaction has committed,
+     * so that a rolled back synchronization is attempted again upon the next login.
+     *
+     * Records the synchronization right away outside of any transaction synchronization.
+     *
+     * @param username the experimenter login
+     */
+    public void recordSyncAfterCommit(final String username) {
+        Check.notEmpty(username, "username");
+
+        if (!isActive()) {
+            return;
+        }
+
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    recordSync(username);
+                }
+            });
+        } else {
+            recordSync(username);
+        }
+    }
+
+    /**
+     * Forgets a user's last synchronization, so that the next login synchronizes it again.
+     *
+     * @param username the experimenter login
+     */
+    public void invalidate(String username) {
+        Check.notEmpty(username, "username");
+
+        lastSyncTimes.remove(username);
+    }
+
+    /**
+     * Removes the entries past the minimum interval.
+     *
+     * @return the number of remaining entries
+     */
+    public int prune() {
+        long now = System.currentTimeMillis();
+
+        Iterator<Long> it = lastSyncTimes.values().iterator();
+        while (it.hasNext()) {
+            if (!isWithinInterval(it.next(), now)) {
+                it.remove();
+            }
+        }
+
+        return lastSyncTimes.size();
+    }
+
+    /**
+     * Returns the number of recorded users.
+     *
+     * @return the ledger size
+     */
+    public int size() {
+        return lastSyncTimes.size();
+    }
+
+    private boolean isWithinInterval(long lastSyncTime, long now) {
+        long elapsedMillis = now - lastSyncTime;
+        return (elapsedMillis >= 0 && elapsedMillis < TimeUnit.SECONDS.toMillis(minIntervalSeconds));
+    }
+
+    private boolean isPersistent() {
+        return (null != persistent && persistent.booleanValue());
+    }
+
+    /**
+     * Reads the ledger entries still within the minimum interval.
+     *
+     * @param file the ledger file
+     * @return the number of entries read
+     * @throws IOException in case of read failure, or unknown file format
+     */
+    protected int read(File file) throws IOException {
+        int result = 0;
+        long now = System.currentTimeMillis();
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (LedgerConfig.MAGIC != in.readInt()) {
+                throw new IOException("Unknown sync ledger format");
+            }
+
+            int count = in.readInt();
+            for (int i = 0; i < count; ++i) {
+                String username = in.readUTF();
+                long lastSyncTime = in.readLong();
+
+                if (isWithinInterval(lastSyncTime, now)) {
+                    lastSyncTimes.putIfAbsent(username, lastSyncTime);
+                    ++result;
+                }
+            }
+        } finally {
+            in.close();
+        }
+
+        return result;
+    }
+
+    /**
+     * Writes the ledger entries still within the minimum interval (via a temporary file).
+     *
+     * @param file the ledger file
+     * @return the number of entries written
+     * @throws IOException in case of write failure
+     */
+    protected int write(File file) throws IOException {
+        prune();
+
+        File parent = file.getParentFile();
+        if (null != parent && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create directory: " + parent);
+        }
+
+        Map<String, Long> entries = new HashMap<String, Long>(lastSyncTimes);
+        File tempFile = new File(file.getPath() + LedgerConfig.TEMP_SUFFIX);
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            out.writeInt(LedgerConfig.MAGIC);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Long> entry : entries.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+        } finally {
+            out.close();
+        }
+
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Cannot replace file: " + file);
+        }
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Cannot rename file: " + tempFile);
+        }
+
+        return entries.size();
+    }
+
+    private File getFile() {
+        return new File(new File(dataDir, LedgerConfig.DIR_NAME), LedgerConfig.FILE_NAME);
+    }
+
+    /**
+     * Returns minIntervalSeconds.
+     * @return the minIntervalSeconds
+     */
+    public int getMinIntervalSeconds() {
+        return minIntervalSeconds;
+    }
+
+    /**
+     * Sets minIntervalSeconds.
+     *
+     * Null or negative values are ignored.
+     *
+     * @param minIntervalSeconds the minIntervalSeconds to set
+     */
+    public void setMinIntervalSeconds(Integer minIntervalSeconds) {
+        if (null != minIntervalSeconds && minIntervalSeconds >= 0) {
+            this.minIntervalSeconds = minIntervalSeconds;
+        }
+    }
+
+    /**
+     * Returns persistent.
+     * @return the persistent
+     */
+    public Boolean getPersistent() {
+        return persistent;
+    }
+
+    /**
+     * Sets persistent.
+     * @param persistent the persistent to set
+     */
+    public void setPersistent(Boolean persistent) {
+        this.persistent = persistent;
+    }
+
+    /**
+     * Internal settings for the sync ledger.
+     *
+     * @author seb
+     *
+     */
+    private final class LedgerConfig {
+        /** Ledger file format marker. */
+        private static final int MAGIC            = 0x50504D4C;
+
+        /** Ledger directory under the OMERO data directory. */
+        private static final String DIR_NAME      = "ppms";
+
+        /** Ledger file name. */
+        private static final String FILE_NAME     = "sync-ledger.dat";
+
+        /** Temporary file suffix. */
+        private static final String TEMP_SUFFIX   = ".tmp";
+
+        /** Constants class. */
+        private LedgerConfig() {
+            super();
+        }
+    }
+
+}
@@ -0,0 +1,51 @@
+/**
+ *
+ */
+package org.imagopole.omero.auth.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.imagopole.ppms.util.Check;
+
+/**
+ * Thread factory for the extension's background workers.
+ *
+ * Threads are named after a common prefix to ease identification in thread dumps, and
+ * are flagged as daemons so as to never prevent the OMERO server shutdown.
+ *
+ * @author seb
+ *
+ */
+public class DaemonThreadFactory implements ThreadFactory {
+
+    /** Threads name prefix. */
+    private final String namePrefix;
+
+    /** Created threads counter. */
+    private final AtomicInteger threadsCount = new AtomicInteger();
+
+    /**
+     * Full constructor.
+     *
+     * @param namePrefix the threads name prefix
+     */
+    public DaemonThreadFactory(String namePrefix) {
+        super();
+
+        Check.notEmpty(namePrefix, "namePrefix");
+        this.namePrefix = namePrefix;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, namePrefix + "-" + threadsCount.incrementAndGet());
+        thread.setDaemon(true);
+
+        return thread;
+    }
+
+}
@@ -0,0 +1,59 @@
+/**
+ *
+ */
+package org.imagopole.omero.auth.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Minimal blocking rate limiter: callers are spaced evenly so that no more than the configured
+ * number of permits are handed out per second, across all threads.
+ *
+ * @author seb
+ *
+ */
+public class RateLimiter {
+
+    /** Minimum interval between two permits in nanoseconds. */
+    private final long intervalNanos;
+
+    /** Time at which the next permit becomes available. */
+    private long nextPermitNanos;
+
+    /**
+     * Full constructor.
+     *
+     * @param permitsPerSecond the maximum number of permits per second (strictly positive)
+     */
+    public RateLimiter(double permitsPerSecond) {
+        super();
+
+        if (permitsPerSecond <= 0) {
+            throw new IllegalArgumentException("Strictly positive rate required");
+        }
+        this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+        this.nextPermitNanos = System.nanoTime();
+    }
+
+    /**
+     * Blocks until a permit is available.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void acquire() throws InterruptedException {
+        long waitNanos = reserve();
+
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    private synchronized long reserve() {
+        long now = System.nanoTime();
+        long permitNanos = Math.max(nextPermitNanos, now);
+        nextPermitNanos = permitNanos + intervalNanos;
+
+        return permitNanos - now;
+    }
+
+}
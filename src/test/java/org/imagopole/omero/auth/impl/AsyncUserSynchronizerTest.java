@@ -0,0 +1,215 @@
+package org.imagopole.omero.auth.impl;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import ome.security.basic.PrincipalHolder;
+import ome.services.util.Executor;
+import ome.system.Principal;
+
+import org.imagopole.omero.auth.api.SynchronizingPasswordProvider;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.unitils.UnitilsTestNG;
+import org.unitils.mock.Mock;
+
+public class AsyncUserSynchronizerTest extends UnitilsTestNG {
+
+    /** @TestedObject */
+    private RecordingSynchronizer synchronizer;
+
+    /** Synchronizing provider (not invoked - see RecordingSynchronizer). */
+    private Mock<SynchronizingPasswordProvider> providerMock;
+
+    /** OMERO executor (not invoked - see RecordingSynchronizer). */
+    private Mock<Executor> executorMock;
+
+    /** OMERO principal holder for the login thread. */
+    private Mock<PrincipalHolder> principalHolderMock;
+
+    @BeforeMethod
+    public void setUp() {
+        principalHolderMock.returns(1).size();
+        principalHolderMock.returns(new Principal("internal-uuid", "system", "Sessions")).getLast();
+
+        synchronizer = new RecordingSynchronizer(
+            providerMock.getMock(), executorMock.getMock(), principalHolderMock.getMock());
+        synchronizer.setEnabled(true);
+        synchronizer.setThreads(1);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        synchronizer.release();
+        synchronizer.shutdown();
+    }
+
+    @Test
+    public void submissionsShouldBeRefusedWhenDisabled() {
+        synchronizer.setEnabled(false);
+        synchronizer.start();
+
+        assertFalse(synchronizer.submit("foo"), "Synchronous fallback expected");
+        assertEquals(synchronizer.getRejectedCount(), 1L, "Incorrect rejections count");
+    }
+
+    @Test
+    public void submissionsShouldBeRefusedWithoutSystemPrincipal() {
+        principalHolderMock.resetBehavior();
+        principalHolderMock.returns(0).size();
+        synchronizer.start();
+
+        assertFalse(synchronizer.submit("foo"), "Synchronous fallback expected");
+    }
+
+    @Test
+    public void queuedDuplicatesShouldBeCoalesced() throws InterruptedException {
+        synchronizer.start();
+
+        // run test: "foo" blocks the single worker while "bar" is queued three times
+        assertTrue(synchronizer.submit("foo"), "Submission expected");
+        synchronizer.awaitStarted();
+        assertTrue(synchronizer.submit("bar"), "Submission expected");
+        assertTrue(synchronizer.submit("bar"), "Coalesced submission expected");
+        assertTrue(synchronizer.submit("bar"), "Coalesced submission expected");
+        synchronizer.release();
+        synchronizer.shutdown();
+
+        // assert results
+        assertEquals(synchronizer.synchronizedUsers, Arrays.asList("foo", "bar"), "Incorrect synchronizations");
+        assertEquals(synchronizer.getSubmittedCount(), 2L, "Incorrect submissions count");
+        assertEquals(synchronizer.getCoalescedCount(), 2L, "Incorrect coalesced count");
+        assertEquals(synchronizer.getSyncedCount(), 2L, "Incorrect synchronizations count");
+    }
+
+    @Test
+    public void submissionsShouldBeRefusedWhenQueueFull() throws InterruptedException {
+        synchronizer.setCapacity(1);
+        synchronizer.start();
+
+        // run test
+        assertTrue(synchronizer.submit("foo"), "Submission expected");
+        synchronizer.awaitStarted();
+        assertTrue(synchronizer.submit("bar"), "Submission expected");
+        boolean result = synchronizer.submit("baz");
+
+        // assert results
+        assertFalse(result, "Synchronous fallback expected");
+        assertEquals(synchronizer.getRejectedCount(), 1L, "Incorrect rejections count");
+    }
+
+    @Test
+    public void queueShouldBeDrainedUponShutdown() throws InterruptedException {
+        synchronizer.start();
+
+        assertTrue(synchronizer.submit("foo"), "Submission expected");
+        synchronizer.awaitStarted();
+        synchronizer.submit("bar");
+        synchronizer.submit("baz");
+
+        // run test
+        synchronizer.release();
+        synchronizer.shutdown();
+
+        // assert results
+        assertEquals(synchronizer.synchronizedUsers, Arrays.asList("foo", "bar", "baz"), "Incorrect synchronizations");
+        assertFalse(synchronizer.submit("qux"), "Submissions should be refused once stopped");
+    }
+
+    @Test
+    public void submissionsShouldOnlyBeQueuedOnceCommitted() throws InterruptedException {
+        synchronizer.start();
+
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            // run test
+            assertTrue(synchronizer.submit("foo"), "Deferred submission expected");
+
+            // assert results
+            assertEquals(synchronizer.getSubmittedCount(), 0L, "No submission expected before commit");
+            assertEquals(synchronizer.getQueuedCount(), 0, "No queued user expected before commit");
+            assertTrue(synchronizer.synchronizedUsers.isEmpty(), "No synchronization expected before commit");
+
+            for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+                synchronization.afterCommit();
+            }
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+
+        synchronizer.awaitStarted();
+        assertEquals(synchronizer.getSubmittedCount(), 1L, "Submission expected once committed");
+    }
+
+    @Test
+    public void submissionsShouldBeDroppedUponRollback() throws InterruptedException {
+        synchronizer.start();
+
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            assertTrue(synchronizer.submit("foo"), "Deferred submission expected");
+
+            for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+                synchronization.afterCompletion(TransactionSynchronization.STATUS_ROLLED_BACK);
+            }
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+
+        // assert results: nothing queued, and the next login is not coalesced with the rolled back one
+        assertEquals(synchronizer.getSubmittedCount(), 0L, "No submission expected after rollback");
+        assertTrue(synchronizer.submit("foo"), "Submission expected");
+        assertEquals(synchronizer.getSubmittedCount(), 1L, "Incorrect submissions count");
+        assertEquals(synchronizer.getCoalescedCount(), 0L, "Incorrect coalesced count");
+    }
+
+    /**
+     * Records the synchronized usernames instead of running them within an OMERO context.
+     * The first synchronization blocks until released.
+     */
+    private static class RecordingSynchronizer extends AsyncUserSynchronizer {
+
+        private final List<String> synchronizedUsers = new CopyOnWriteArrayList<String>();
+
+        private final CountDownLatch started = new CountDownLatch(1);
+
+        private final CountDownLatch released = new CountDownLatch(1);
+
+        private RecordingSynchronizer(
+                        SynchronizingPasswordProvider synchronizingProvider,
+                        Executor executor,
+                        PrincipalHolder principalHolder) {
+            super(synchronizingProvider, executor, principalHolder);
+        }
+
+        @Override
+        protected void runInSystemContext(String username) {
+            started.countDown();
+            try {
+                released.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronizedUsers.add(username);
+        }
+
+        private void awaitStarted() throws InterruptedException {
+            assertTrue(started.await(5, TimeUnit.SECONDS), "Worker should have started");
+        }
+
+        private void release() {
+            released.countDown();
+        }
+    }
+
+}
@@ -13,12 +13,15 @@ import org.imagopole.omero.auth.TestsUtil.Data;
 import org.imagopole.omero.auth.api.ExternalAuthConfig;
 import org.imagopole.omero.auth.api.ExternalServiceException;
 import org.imagopole.omero.auth.impl.ppms.user.PpmsExternalNewUserService;
+import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 import org.unitils.UnitilsTestNG;
 import org.unitils.mock.Mock;
 import org.unitils.mock.annotation.Dummy;
 import org.unitils.mock.core.MockObject;
+import org.unitils.mock.core.proxy.ProxyInvocation;
+import org.unitils.mock.mockbehavior.MockBehavior;
 
 public class SynchronizingPasswordProvidersTest extends UnitilsTestNG {
 
@@ -34,6 +37,12 @@ public class SynchronizingPasswordProvidersTest extends UnitilsTestNG {
     /** Collaborator for secondary provider */
     private Mock<PpmsExternalNewUserService> ppmsNewUserServiceMock;
 
+    /** OMERO accounts lookup for the speculative mode */
+    private Mock<PasswordUtil> omeroAccountsMock;
+
+    /** Identifier of the test user's OMERO account */
+    private final Long omeroUserId = 123L;
+
     @Dummy
     private Experimenter dummyUser;
 
@@ -63,6 +72,12 @@ public class SynchronizingPasswordProvidersTest extends UnitilsTestNG {
 
         synchronizingProviders =
             new SynchronizingPasswordProviders(ldapProviderMock.getMock(), ppmsPasswordProvider);
+        synchronizingProviders.setPasswordUtil(omeroAccountsMock.getMock());
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        synchronizingProviders.shutdown();
     }
 
     @Test(expectedExceptions = { IllegalStateException.class },
@@ -125,6 +140,7 @@ public class SynchronizingPasswordProvidersTest extends UnitilsTestNG {
         Boolean result = synchronizingProviders.checkPassword(Data.USERNAME, Data.PASSWORD, readOnly);
         assertNotNull(result, "Non-null result expected");
         assertTrue(result, "Incorrect result");
+        assertNull(ExternalLoginContext.current(), "Login context should be cleared");
 
         ppmsNewUserServiceMock.assertNotInvoked().validatePassword(Data.USERNAME, Data.PASSWORD);
         ppmsNewUserServiceMock.assertInvoked().findExperimenterFromExternalSource(Data.USERNAME);
@@ -196,4 +212,117 @@ public class SynchronizingPasswordProvidersTest extends UnitilsTestNG {
         ldapProviderMock.assertInvoked().checkPassword(Data.USERNAME, Data.PASSWORD, readOnly);
     }
 
+    @Test
+    public void speculativeChainShouldDiscardPrimaryResultWhenSecondaryUnsynchronizable() {
+        ldapProviderMock.returns(true).checkPassword(Data.USERNAME, Data.PASSWORD, readOnly);
+        ppmsNewUserServiceMock.returns(true).isEnabled();
+        ppmsNewUserServiceMock.returns(null).findExperimenterFromExternalSource(Data.USERNAME);
+        omeroAccountsMock.returns(omeroUserId).userId(Data.USERNAME);
+        synchronizingProviders.setSpeculative(true);
+
+        Boolean result = synchronizingProviders.checkPassword(Data.USERNAME, Data.PASSWORD, readOnly);
+        assertNull(result, "Null result expected");
+
+        ppmsNewUserServiceMock.assertNotInvoked().validatePassword(Data.USERNAME, Data.PASSWORD);
+        ppmsNewUserServiceMock.assertInvoked().findExperimenterFromExternalSource(Data.USERNAME);
+        ppmsNewUserServiceMock.assertNotInvoked().synchronizeUserFromExternalSource(Data.USERNAME);
+        ldapProviderMock.assertInvoked().checkPassword(Data.USERNAME, Data.PASSWORD, readOnly);
+    }
+
+    @Test
+    public void speculativeChainShouldNotInvokePrimaryForUserUnknownToOmero() {
+        String newUsername = "new.username";
+        ldapProviderMock.returns(true).checkPassword(newUsername, Data.PASSWORD, readOnly);
+        ppmsNewUserServiceMock.returns(true).isEnabled();
+        ppmsNewUserServiceMock.returns(null).findExperimenterFromExternalSource(newUsername);
+        // (a null value would otherwise be replaced by the mock's default value)
+        omeroAccountsMock.performs(new MockBehavior() {
+            @Override
+            public Object execute(ProxyInvocation proxyInvocation) {
+                return null;
+            }
+        }).userId(newUsername);
+        synchronizingProviders.setSpeculative(true);
+
+        Boolean result = synchronizingProviders.checkPassword(newUsername, Data.PASSWORD, readOnly);
+        assertNull(result, "Null result expected");
+
+        ppmsNewUserServiceMock.assertInvoked().findExperimenterFromExternalSource(newUsername);
+        ldapProviderMock.assertNotInvoked().checkPassword(newUsername, Data.PASSWORD, readOnly);
+    }
+
+    @Test
+    public void speculativeChainShouldIgnorePrimaryFailureWhenSecondaryUnsynchronizable() {
+        ldapProviderMock.raises(IllegalStateException.class).checkPassword(Data.USERNAME, Data.PASSWORD, readOnly);
+        ppmsNewUserServiceMock.returns(true).isEnabled();
+        ppmsNewUserServiceMock.returns(null).findExperimenterFromExternalSource(Data.USERNAME);
+        omeroAccountsMock.returns(omeroUserId).userId(Data.USERNAME);
+        synchronizingProviders.setSpeculative(true);
+
+        Boolean result = synchronizingProviders.checkPassword(Data.USERNAME, Data.PASSWORD, readOnly);
+        assertNull(result, "Null result expected");
+        assertNull(ExternalLoginContext.current(), "Login context should be cleared");
+    }
+
+    @Test
+    public void speculativeChainShouldSynchronizeWhenUserPrimarySucceeds() {
+        ldapProviderMock.returns(true).checkPassword(Data.USERNAME, Data.PASSWORD, readOnly);
+        ppmsNewUserServiceMock.returns(true).isEnabled();
+        ppmsNewUserServiceMock.returns(dummyUser).findExperimenterFromExternalSource(Data.USERNAME);
+        omeroAccountsMock.returns(omeroUserId).userId(Data.USERNAME);
+        synchronizingProviders.setSpeculative(true);
+
+        Boolean result = synchronizingProviders.checkPassword(Data.USERNAME, Data.PASSWORD, readOnly);
+        assertNotNull(result, "Non-null result expected");
+        assertTrue(result, "Incorrect result");
+        assertNull(ExternalLoginContext.current(), "Login context should be cleared");
+
+        ppmsNewUserServiceMock.assertNotInvoked().validatePassword(Data.USERNAME, Data.PASSWORD);
+        ppmsNewUserServiceMock.assertInvoked().synchronizeUserFromExternalSource(Data.USERNAME);
+        ldapProviderMock.assertInvoked().checkPassword(Data.USERNAME, Data.PASSWORD, readOnly);
+    }
+
+    @Test
+    public void speculativeChainShouldCheckSecondaryAuthWhenUserPrimaryDefaults() {
+        ldapProviderMock.returns(null).checkPassword(Data.USERNAME, Data.PASSWORD, readOnly);
+        ppmsNewUserServiceMock.returns(true).isEnabled();
+        ppmsNewUserServiceMock.returns(new Experimenter()).findExperimenterFromExternalSource(Data.USERNAME);
+        ppmsNewUserServiceMock.returns(false).validatePassword(Data.USERNAME, Data.PASSWORD);
+        omeroAccountsMock.returns(omeroUserId).userId(Data.USERNAME);
+        synchronizingProviders.setSpeculative(true);
+
+        Boolean result = synchronizingProviders.checkPassword(Data.USERNAME, Data.PASSWORD, readOnly);
+        assertNotNull(result, "Non-null result expected");
+        assertFalse(result, "Incorrect result");
+
+        ppmsNewUserServiceMock.assertInvoked().validatePassword(Data.USERNAME, Data.PASSWORD);
+        ppmsNewUserServiceMock.assertNotInvoked().synchronizeUserFromExternalSource(Data.USERNAME);
+    }
+
+    @Test
+    public void speculativeFailoverShouldReusePrimaryResultWhenSecondaryUnavailable() {
+        // a second (failover) authentication would default to a null result
+        ldapProviderMock.onceReturns(true).checkPassword(Data.USERNAME, Data.PASSWORD, readOnly);
+        ppmsNewUserServiceMock.returns(true).isEnabled();
+        ppmsNewUserServiceMock.raises(ExternalServiceException.class).findExperimenterFromExternalSource(Data.USERNAME);
+
+        SynchronizingPasswordProviders failoverProviders =
+            new SynchronizingPasswordProviders(
+                            ldapProviderMock.getMock(), ppmsPasswordProvider, ldapProviderMock.getMock());
+        omeroAccountsMock.returns(omeroUserId).userId(Data.USERNAME);
+        failoverProviders.setPasswordUtil(omeroAccountsMock.getMock());
+        failoverProviders.setSpeculative(true);
+
+        try {
+            Boolean result = failoverProviders.checkPassword(Data.USERNAME, Data.PASSWORD, readOnly);
+            assertNotNull(result, "Non-null result expected");
+            assertTrue(result, "Incorrect result");
+
+            ppmsNewUserServiceMock.assertNotInvoked().synchronizeUserFromExternalSource(Data.USERNAME);
+            ldapProviderMock.assertInvoked().checkPassword(Data.USERNAME, Data.PASSWORD, readOnly);
+        } finally {
+            failoverProviders.shutdown();
+        }
+    }
+
 }
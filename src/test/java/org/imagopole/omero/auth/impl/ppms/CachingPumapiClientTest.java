@@ -1,18 +1,34 @@
 package org.imagopole.omero.auth.impl.ppms;
 
+import static org.imagopole.omero.auth.TestsUtil.activeSystem;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertNotNull;
 import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
 import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.ehcache.Cache;
 import net.sf.ehcache.CacheManager;
 import net.sf.ehcache.Element;
 
 import org.imagopole.omero.auth.TestsUtil.Data;
 import org.imagopole.ppms.api.PumapiClient;
+import org.imagopole.ppms.api.PumapiException;
+import org.imagopole.ppms.api.config.PumapiConfig;
 import org.imagopole.ppms.api.dto.PpmsGroup;
 import org.imagopole.ppms.api.dto.PpmsPrivilege;
 import org.imagopole.ppms.api.dto.PpmsSystem;
@@ -35,14 +51,34 @@ public class CachingPumapiClientTest extends UnitilsTestNG {
 
     private Mock<PumapiClient> pumapiClientMockDelegate;
 
-    private static final String CACHE_NAME = "pumapiClientCache";
+    private static final String USER_CACHE_NAME = "pumapiUserCache";
+
+    private static final String GROUP_CACHE_NAME = "pumapiGroupCache";
+
+    private static final String SYSTEM_CACHE_NAME = "pumapiSystemCache";
+
+    private static final String RIGHTS_CACHE_NAME = "pumapiRightsCache";
+
+    private static final String NEGATIVE_CACHE_NAME = "pumapiNegativeCache";
+
+    private static final String STALE_CACHE_NAME = "pumapiStaleCache";
+
+    private static final Long NEGATIVE_TTL = 60L;
 
     @BeforeClass
     public void setup() {
         cacheManager = CacheManager.create();
-        cacheManager.addCache(CACHE_NAME);
+        cacheManager.addCache(USER_CACHE_NAME);
+        cacheManager.addCache(GROUP_CACHE_NAME);
+        cacheManager.addCache(SYSTEM_CACHE_NAME);
+        cacheManager.addCache(RIGHTS_CACHE_NAME);
+        cacheManager.addCache(NEGATIVE_CACHE_NAME);
         pumapiClientMockDelegate = new MockObject<PumapiClient>(PumapiClient.class, null);
-        this.cachingClient = new CachingPumapiClient(pumapiClientMockDelegate.getMock(), this.cacheManager);
+
+        List<CacheRegionSettings> regionsSettings =
+            Arrays.asList(new CacheRegionSettings(NEGATIVE_CACHE_NAME, NEGATIVE_TTL, null));
+        this.cachingClient =
+            new CachingPumapiClient(pumapiClientMockDelegate.getMock(), this.cacheManager, regionsSettings);
     }
 
     @AfterMethod
@@ -60,7 +96,7 @@ public class CachingPumapiClientTest extends UnitilsTestNG {
         List<String> result = cachingClient.getUsers(Boolean.TRUE);
 
         // check cache content
-        Element cachedValue = cacheManager.getCache(CACHE_NAME).get("getUsers-true");
+        Element cachedValue = cacheManager.getCache(USER_CACHE_NAME).get("getUsers-true");
 
         // assert results and invocations
         assertNotNull(result, "Non null results expected");
@@ -71,9 +107,9 @@ public class CachingPumapiClientTest extends UnitilsTestNG {
     }
 
     @Test
-    public void getUserRightsShouldNotCache() {
+    public void getUserRightsShouldInvokeDelegateOnColdCache() {
         // define behaviour
-        String username = Data.USERNAME;
+        String username = "some.user.rights.not.yet.in.cache";
         List<PpmsUserPrivilege> fixture =
             Arrays.asList(new PpmsUserPrivilege[] { new PpmsUserPrivilege(555L, PpmsPrivilege.Novice) });
         pumapiClientMockDelegate.returns(fixture).getUserRights(username);
@@ -82,16 +118,38 @@ public class CachingPumapiClientTest extends UnitilsTestNG {
         List<PpmsUserPrivilege> result = cachingClient.getUserRights(username);
 
         // check cache content
-        Element cachedValue = cacheManager.getCache(CACHE_NAME).get("getUserRights-" + username);
+        Element cachedValue = cacheManager.getCache(RIGHTS_CACHE_NAME).get(PumapiCacheKey.forUserRights(username));
 
         // assert results and invocations
         assertNotNull(result, "Non null results expected");
         assertEquals(result.size(), 1, "Incorrect results");
-        assertNull(cachedValue, "Null result expected");
+        assertNotNull(cachedValue, "Non null result expected");
+        assertEquals(cachedValue.getObjectValue(), fixture, "Incorrect results");
 
         pumapiClientMockDelegate.assertInvoked().getUserRights(username);
     }
 
+    @Test
+    public void getUserRightsShouldNotInvokeDelegateOnWarmCache() {
+        // define behaviour
+        String username = "some.user.rights.already.in.cache";
+        List<PpmsUserPrivilege> fixture =
+            Arrays.asList(new PpmsUserPrivilege[] { new PpmsUserPrivilege(555L, PpmsPrivilege.Novice) });
+        pumapiClientMockDelegate.returns(fixture).getUserRights(username);
+
+        // warm-up cache
+        cacheManager.getCache(RIGHTS_CACHE_NAME).put(new Element(PumapiCacheKey.forUserRights(username), fixture));
+
+        // run test
+        List<PpmsUserPrivilege> result = cachingClient.getUserRights(username);
+
+        // assert results and invocations
+        assertNotNull(result, "Non null results expected");
+        assertEquals(result.size(), 1, "Incorrect results");
+
+        pumapiClientMockDelegate.assertNotInvoked().getUserRights(username);
+    }
+
     @Test
     public void authenticateShouldNotCache() {
         // define behaviour
@@ -103,7 +161,7 @@ public class CachingPumapiClientTest extends UnitilsTestNG {
         boolean result = cachingClient.authenticate(username, password);
 
         // check cache content
-        Element cachedValue = cacheManager.getCache(CACHE_NAME).get("authenticate" + username);
+        Element cachedValue = cacheManager.getCache(USER_CACHE_NAME).get("authenticate" + username);
 
         // assert results and invocations
         assertNotNull(result, "Non null results expected");
@@ -125,7 +183,7 @@ public class CachingPumapiClientTest extends UnitilsTestNG {
         PpmsUser result = cachingClient.getUser(username);
 
         // check cache content
-        Element cachedValue = cacheManager.getCache(CACHE_NAME).get("getUser-" + username);
+        Element cachedValue = cacheManager.getCache(USER_CACHE_NAME).get(PumapiCacheKey.forUser(username));
 
         // assert results and invocations
         assertNotNull(result, "Non null results expected");
@@ -146,7 +204,7 @@ public class CachingPumapiClientTest extends UnitilsTestNG {
         pumapiClientMockDelegate.returns(dummyUser).getUser(username);
 
         // warm-up cache
-        cacheManager.getCache(CACHE_NAME).put(new Element("getUser-" + username, dummyUser));
+        cacheManager.getCache(USER_CACHE_NAME).put(new Element(PumapiCacheKey.forUser(username), dummyUser));
 
         // run test
         PpmsUser result = cachingClient.getUser(username);
@@ -168,11 +226,14 @@ public class CachingPumapiClientTest extends UnitilsTestNG {
         PpmsUser result = cachingClient.getUser(username);
 
         // check cache content
-        Element cachedValue = cacheManager.getCache(CACHE_NAME).get("getUser-" + username);
+        Element cachedValue = cacheManager.getCache(USER_CACHE_NAME).get(PumapiCacheKey.forUser(username));
+        Element negativeValue = cacheManager.getCache(NEGATIVE_CACHE_NAME).get(PumapiCacheKey.forUser(username));
 
         // assert results and invocations
         assertNull(result, "Null result expected");
         assertNull(cachedValue, "Null result expected");
+        assertNotNull(negativeValue, "Non null negative result expected");
+        assertNull(negativeValue.getObjectValue(), "Null negative value expected");
 
         pumapiClientMockDelegate.assertInvoked().getUser(username);
     }
@@ -189,7 +250,7 @@ public class CachingPumapiClientTest extends UnitilsTestNG {
         PpmsGroup result = cachingClient.getGroup(groupname);
 
         // check cache content
-        Element cachedValue = cacheManager.getCache(CACHE_NAME).get("getGroup-" + groupname);
+        Element cachedValue = cacheManager.getCache(GROUP_CACHE_NAME).get(PumapiCacheKey.forGroup(groupname));
 
         // assert results and invocations
         assertNotNull(result, "Non null results expected");
@@ -210,7 +271,7 @@ public class CachingPumapiClientTest extends UnitilsTestNG {
         pumapiClientMockDelegate.returns(dummyGroup).getGroup(groupname);
 
         // warm-up cache
-        cacheManager.getCache(CACHE_NAME).put(new Element("getGroup-" + groupname, dummyGroup));
+        cacheManager.getCache(GROUP_CACHE_NAME).put(new Element(PumapiCacheKey.forGroup(groupname), dummyGroup));
 
         // run test
         PpmsGroup result = cachingClient.getGroup(groupname);
@@ -232,11 +293,14 @@ public class CachingPumapiClientTest extends UnitilsTestNG {
         PpmsGroup result = cachingClient.getGroup(groupname);
 
         // check cache content
-        Element cachedValue = cacheManager.getCache(CACHE_NAME).get("getGroup-" + groupname);
+        Element cachedValue = cacheManager.getCache(GROUP_CACHE_NAME).get(PumapiCacheKey.forGroup(groupname));
+        Element negativeValue = cacheManager.getCache(NEGATIVE_CACHE_NAME).get(PumapiCacheKey.forGroup(groupname));
 
         // assert results and invocations
         assertNull(result, "Null result expected");
         assertNull(cachedValue, "Null result expected");
+        assertNotNull(negativeValue, "Non null negative result expected");
+        assertNull(negativeValue.getObjectValue(), "Null negative value expected");
 
         pumapiClientMockDelegate.assertInvoked().getGroup(groupname);
     }
@@ -253,7 +317,7 @@ public class CachingPumapiClientTest extends UnitilsTestNG {
         PpmsSystem result = cachingClient.getSystem(systemId);
 
         // check cache content
-        Element cachedValue = cacheManager.getCache(CACHE_NAME).get("getSystem-" + systemId);
+        Element cachedValue = cacheManager.getCache(SYSTEM_CACHE_NAME).get(PumapiCacheKey.forSystem(systemId));
 
         // assert results and invocations
         assertNotNull(result, "Non null results expected");
@@ -274,7 +338,7 @@ public class CachingPumapiClientTest extends UnitilsTestNG {
         pumapiClientMockDelegate.returns(dummySystem).getSystem(systemId);
 
         // warm-up cache
-        cacheManager.getCache(CACHE_NAME).put(new Element("getSystem-" + systemId, dummySystem));
+        cacheManager.getCache(SYSTEM_CACHE_NAME).put(new Element(PumapiCacheKey.forSystem(systemId), dummySystem));
 
         // run test
         PpmsSystem result = cachingClient.getSystem(systemId);
@@ -296,13 +360,630 @@ public class CachingPumapiClientTest extends UnitilsTestNG {
         PpmsSystem result = cachingClient.getSystem(systemId);
 
         // check cache content
-        Element cachedValue = cacheManager.getCache(CACHE_NAME).get("getSystem-" + systemId);
+        Element cachedValue = cacheManager.getCache(SYSTEM_CACHE_NAME).get(PumapiCacheKey.forSystem(systemId));
+        Element negativeValue = cacheManager.getCache(NEGATIVE_CACHE_NAME).get(PumapiCacheKey.forSystem(systemId));
 
         // assert results and invocations
         assertNull(result, "Null result expected");
         assertNull(cachedValue, "Null result expected");
+        assertNotNull(negativeValue, "Non null negative result expected");
+        assertNull(negativeValue.getObjectValue(), "Null negative value expected");
+
+        pumapiClientMockDelegate.assertInvoked().getSystem(systemId);
+    }
+
+    @Test
+    public void getUserShouldNotInvokeDelegateOnNegativeCacheHit() {
+        // define behaviour
+        String username = "some.user.already.not.found";
+        pumapiClientMockDelegate.returns(null).getUser(username);
+
+        // warm-up negative cache
+        cacheManager.getCache(NEGATIVE_CACHE_NAME).put(new Element(PumapiCacheKey.forUser(username), null));
+
+        // run test
+        PpmsUser result = cachingClient.getUser(username);
+
+        // assert results and invocations
+        assertNull(result, "Null result expected");
+
+        pumapiClientMockDelegate.assertNotInvoked().getUser(username);
+    }
+
+    @Test
+    public void getGroupShouldNotInvokeDelegateOnNegativeCacheHit() {
+        // define behaviour
+        String groupname = "some.group.already.not.found";
+        pumapiClientMockDelegate.returns(null).getGroup(groupname);
+
+        // warm-up negative cache
+        cacheManager.getCache(NEGATIVE_CACHE_NAME).put(new Element(PumapiCacheKey.forGroup(groupname), null));
+
+        // run test
+        PpmsGroup result = cachingClient.getGroup(groupname);
+
+        // assert results and invocations
+        assertNull(result, "Null result expected");
+
+        pumapiClientMockDelegate.assertNotInvoked().getGroup(groupname);
+    }
+
+    @Test
+    public void getSystemShouldNotInvokeDelegateOnNegativeCacheHit() {
+        // define behaviour
+        Long systemId = 888L;
+        pumapiClientMockDelegate.returns(null).getSystem(systemId);
+
+        // warm-up negative cache
+        cacheManager.getCache(NEGATIVE_CACHE_NAME).put(new Element(PumapiCacheKey.forSystem(systemId), null));
+
+        // run test
+        PpmsSystem result = cachingClient.getSystem(systemId);
+
+        // assert results and invocations
+        assertNull(result, "Null result expected");
+
+        pumapiClientMockDelegate.assertNotInvoked().getSystem(systemId);
+    }
+
+    @Test
+    public void regionSettingsShouldOverrideNegativeCacheTtl() {
+        long ttl = cacheManager.getCache(NEGATIVE_CACHE_NAME).getCacheConfiguration().getTimeToLiveSeconds();
+
+        assertEquals(ttl, NEGATIVE_TTL.longValue(), "Incorrect negative cache TTL");
+    }
+
+    @Test
+    public void disabledRegionShouldPassThroughToDelegate() {
+        CacheManager localCacheManager = new CacheManager();
+        localCacheManager.addCache(USER_CACHE_NAME);
+
+        // define behaviour
+        String username = "some.user.with.caching.disabled";
+        PpmsUser dummyUser = new PpmsUser();
+        dummyUser.setLogin(username);
+        pumapiClientMockDelegate.returns(dummyUser).getUser(username);
+
+        CacheRegionSettings disabled = new CacheRegionSettings(USER_CACHE_NAME, null, null);
+        disabled.setEnabled(false);
+
+        CachingPumapiClient localClient =
+            new CachingPumapiClient(pumapiClientMockDelegate.getMock(), localCacheManager, Arrays.asList(disabled));
+
+        // run test
+        PpmsUser result = localClient.getUser(username);
+        localClient.getUser(username);
+
+        // assert results and invocations
+        assertNotNull(result, "Non null results expected");
+        assertFalse(localCacheManager.cacheExists(USER_CACHE_NAME), "Disabled region should be removed");
+
+        pumapiClientMockDelegate.assertInvoked().getUser(username);
+        pumapiClientMockDelegate.assertInvoked().getUser(username);
+
+        localCacheManager.shutdown();
+    }
+
+    @Test
+    public void regionSettingsShouldOverrideEvictionPolicy() {
+        CacheManager localCacheManager = new CacheManager();
+        localCacheManager.addCache(SYSTEM_CACHE_NAME);
+
+        CacheRegionSettings settings = new CacheRegionSettings(SYSTEM_CACHE_NAME, 42L, 5);
+        settings.setTimeToIdleSeconds(0L);
+        settings.setEvictionPolicy("FIFO");
+
+        new CachingPumapiClient(pumapiClientMockDelegate.getMock(), localCacheManager, Arrays.asList(settings));
+
+        Cache cache = localCacheManager.getCache(SYSTEM_CACHE_NAME);
+        assertEquals(cache.getCacheConfiguration().getTimeToLiveSeconds(), 42L, "Incorrect TTL");
+        assertEquals(cache.getCacheConfiguration().getTimeToIdleSeconds(), 0L, "Incorrect TTI");
+        assertEquals(cache.getCacheConfiguration().getMaxElementsInMemory(), 5, "Incorrect max entries");
+        assertEquals(cache.getMemoryStoreEvictionPolicy().getName(), "FIFO", "Incorrect eviction policy");
+
+        localCacheManager.shutdown();
+    }
+
+    @Test
+    public void getUserShouldInvokeDelegateOnceUnderConcurrentMisses() throws Exception {
+        String username = "some.user.under.login.storm";
+        PpmsUser dummyUser = new PpmsUser();
+        dummyUser.setLogin(username);
+
+        BlockingPumapiClient blockingDelegate = new BlockingPumapiClient(dummyUser, null);
+        CachingPumapiClient localClient = new CachingPumapiClient(blockingDelegate, cacheManager);
+
+        List<Future<PpmsUser>> results = runConcurrentGetUser(localClient, username, blockingDelegate);
 
+        for (Future<PpmsUser> result : results) {
+            assertSame(result.get(), dummyUser, "Incorrect results");
+        }
+        assertEquals(blockingDelegate.getInvocationsCount(), 1, "Single delegate invocation expected");
+        assertNotNull(cacheManager.getCache(USER_CACHE_NAME).get(PumapiCacheKey.forUser(username)), "Non null result expected");
+    }
+
+    @Test
+    public void getUserShouldShareDelegateFailureUnderConcurrentMisses() throws Exception {
+        String username = "some.user.under.ppms.failure";
+        PumapiException failure = new PumapiException("ppms.failure/get-user");
+
+        BlockingPumapiClient blockingDelegate = new BlockingPumapiClient(null, failure);
+        CachingPumapiClient localClient = new CachingPumapiClient(blockingDelegate, cacheManager);
+
+        List<Future<PpmsUser>> results = runConcurrentGetUser(localClient, username, blockingDelegate);
+
+        for (Future<PpmsUser> result : results) {
+            try {
+                result.get();
+                fail("Delegate failure expected");
+            } catch (ExecutionException e) {
+                assertSame(e.getCause(), failure, "Shared delegate failure expected");
+            }
+        }
+        assertEquals(blockingDelegate.getInvocationsCount(), 1, "Single delegate invocation expected");
+        assertNull(cacheManager.getCache(USER_CACHE_NAME).get(PumapiCacheKey.forUser(username)), "Null result expected");
+        assertNull(cacheManager.getCache(NEGATIVE_CACHE_NAME).get(PumapiCacheKey.forUser(username)), "Null result expected");
+    }
+
+    @Test
+    public void getUserShouldRefreshAheadInBackground() throws Exception {
+        CacheManager localCacheManager = new CacheManager();
+        localCacheManager.addCache(USER_CACHE_NAME);
+
+        String username = "some.user.with.refresh.ahead";
+        PpmsUser dummyUser = new PpmsUser();
+        dummyUser.setLogin(username);
+
+        BlockingPumapiClient countingDelegate = new BlockingPumapiClient(dummyUser, null);
+        countingDelegate.release();
+
+        CacheRegionSettings settings = new CacheRegionSettings(USER_CACHE_NAME, 2L, null);
+        settings.setTimeToIdleSeconds(0L);
+        CachingPumapiClient localClient =
+            new CachingPumapiClient(countingDelegate, localCacheManager, Arrays.asList(settings));
+        localClient.setRefreshAheadRatio(0.25);
+
+        // cold cache load, then fresh hit: no refresh
+        localClient.getUser(username);
+        localClient.getUser(username);
+        assertEquals(countingDelegate.getInvocationsCount(), 1, "Single delegate invocation expected");
+
+        // hit past a quarter of the TTL: current value served + background refresh
+        Thread.sleep(700);
+        PpmsUser result = localClient.getUser(username);
+        assertSame(result, dummyUser, "Incorrect results");
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (countingDelegate.getInvocationsCount() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(countingDelegate.getInvocationsCount(), 2, "Background refresh expected");
+
+        localClient.shutdown();
+        localCacheManager.shutdown();
+    }
+
+    @Test
+    public void getUserShouldServeStaleValueOnDelegateFailure() {
+        CacheManager localCacheManager = new CacheManager();
+        localCacheManager.addCache(USER_CACHE_NAME);
+        localCacheManager.addCache(STALE_CACHE_NAME);
+
+        // define behaviour
+        String username = "some.user.during.ppms.outage";
+        PpmsUser dummyUser = new PpmsUser();
+        dummyUser.setLogin(username);
+        pumapiClientMockDelegate.onceReturns(dummyUser).getUser(username);
+        pumapiClientMockDelegate.onceRaises(new PumapiException("ppms.failure/get-user")).getUser(username);
+
+        CachingPumapiClient localClient = new CachingPumapiClient(pumapiClientMockDelegate.getMock(), localCacheManager);
+        localClient.setStaleGraceSeconds(3600);
+
+        // cold cache load, then simulated expiry
+        localClient.getUser(username);
+        localCacheManager.getCache(USER_CACHE_NAME).removeAll();
+
+        // run test
+        PpmsUser result = localClient.getUser(username);
+        PpmsUser retryResult = localClient.getUser(username);
+
+        // assert results and invocations
+        assertNotNull(result, "Non null results expected");
+        assertEquals(result.getLogin(), username, "Incorrect results");
+        assertSame(retryResult, result, "Stale value should be cached until retry");
+        assertEquals(localClient.getStaleServedCount(), 1L, "Incorrect stale values count");
+        assertTrue(localClient.getLastStaleServedTime() > 0, "Stale value timestamp expected");
+
+        pumapiClientMockDelegate.assertInvoked().getUser(username);
+        pumapiClientMockDelegate.assertInvoked().getUser(username);
+        pumapiClientMockDelegate.assertNotInvoked().getUser(username);
+
+        localCacheManager.shutdown();
+    }
+
+    @Test(expectedExceptions = { PumapiException.class })
+    public void getUserShouldRethrowDelegateFailureWithoutStaleValue() {
+        CacheManager localCacheManager = new CacheManager();
+        localCacheManager.addCache(USER_CACHE_NAME);
+        localCacheManager.addCache(STALE_CACHE_NAME);
+
+        // define behaviour
+        String username = "some.user.never.seen.during.ppms.outage";
+        pumapiClientMockDelegate.raises(new PumapiException("ppms.failure/get-user")).getUser(username);
+
+        CachingPumapiClient localClient = new CachingPumapiClient(pumapiClientMockDelegate.getMock(), localCacheManager);
+        localClient.setStaleGraceSeconds(3600);
+
+        // run test
+        try {
+            localClient.getUser(username);
+        } finally {
+            assertEquals(localClient.getStaleServedCount(), 0L, "Incorrect stale values count");
+            localCacheManager.shutdown();
+        }
+    }
+
+    @Test
+    public void getUserShouldServeStaleValueOnDelegateFailureInIdleRegion() throws Exception {
+        CacheManager localCacheManager = new CacheManager();
+        localCacheManager.addCache(USER_CACHE_NAME);
+        localCacheManager.addCache(STALE_CACHE_NAME);
+
+        // define behaviour
+        String username = "some.user.kept.alive.before.ppms.outage";
+        PpmsUser dummyUser = new PpmsUser();
+        dummyUser.setLogin(username);
+        pumapiClientMockDelegate.onceReturns(dummyUser).getUser(username);
+        pumapiClientMockDelegate.onceRaises(new PumapiException("ppms.failure/get-user")).getUser(username);
+
+        CacheRegionSettings settings = new CacheRegionSettings(USER_CACHE_NAME, 0L, null);
+        settings.setTimeToIdleSeconds(2L);
+        CachingPumapiClient localClient = new CachingPumapiClient(
+            pumapiClientMockDelegate.getMock(), localCacheManager, Arrays.asList(settings));
+        localClient.setStaleGraceSeconds(1);
+
+        // cold cache load, then hits until past the region idle time plus grace period since the load
+        localClient.getUser(username);
+        for (int i = 0; i < 5; ++i) {
+            Thread.sleep(800);
+            localClient.getUser(username);
+        }
+
+        // simulated eviction, then PUMAPI outage
+        localCacheManager.getCache(USER_CACHE_NAME).removeAll();
+
+        // run test
+        PpmsUser result = localClient.getUser(username);
+
+        // assert results and invocations
+        assertSame(result, dummyUser, "Stale value expected");
+        assertEquals(localClient.getStaleServedCount(), 1L, "Incorrect stale values count");
+
+        localCacheManager.shutdown();
+    }
+
+    @Test
+    public void getUserShouldServeStaleValueOnJoinedRefreshFailure() throws Exception {
+        CacheManager localCacheManager = new CacheManager();
+        localCacheManager.addCache(USER_CACHE_NAME);
+        localCacheManager.addCache(STALE_CACHE_NAME);
+
+        final String username = "some.user.expiring.during.failed.refresh";
+        PpmsUser dummyUser = new PpmsUser();
+        dummyUser.setLogin(username);
+
+        // cold cache load succeeds, the refresh-ahead blocks until released then fails
+        PumapiException failure = new PumapiException("ppms.failure/get-user");
+        BlockingPumapiClient blockingDelegate = new BlockingPumapiClient(dummyUser, failure, 1);
+
+        CacheRegionSettings settings = new CacheRegionSettings(USER_CACHE_NAME, 2L, null);
+        settings.setTimeToIdleSeconds(0L);
+        final CachingPumapiClient localClient =
+            new CachingPumapiClient(blockingDelegate, localCacheManager, Arrays.asList(settings));
+        localClient.setRefreshAheadRatio(0.25);
+        localClient.setStaleGraceSeconds(3600);
+
+        // cold cache load, then hit past a quarter of the TTL: background refresh
+        localClient.getUser(username);
+        Thread.sleep(700);
+        localClient.getUser(username);
+        assertTrue(blockingDelegate.awaitInvocation(), "Background refresh expected");
+
+        // simulated expiry while the refresh is in flight: the next lookup joins the refresh
+        localCacheManager.getCache(USER_CACHE_NAME).removeAll();
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<PpmsUser> joinedResult = executor.submit(new Callable<PpmsUser>() {
+            @Override
+            public PpmsUser call() throws Exception {
+                return localClient.getUser(username);
+            }
+        });
+        assertTrue(awaitMisses(localClient, USER_CACHE_NAME, 2), "Joining cache miss expected");
+        blockingDelegate.release();
+
+        // assert results
+        assertSame(joinedResult.get(10, TimeUnit.SECONDS), dummyUser, "Stale value expected");
+        assertEquals(blockingDelegate.getInvocationsCount(), 2, "No further delegate invocation expected");
+        assertEquals(localClient.getStaleServedCount(), 1L, "Incorrect stale values count");
+
+        executor.shutdown();
+        localClient.shutdown();
+        localCacheManager.shutdown();
+    }
+
+    @Test
+    public void regionsStatisticsShouldCountHitsMissesAndLoads() {
+        CacheManager localCacheManager = new CacheManager();
+        localCacheManager.addCache(USER_CACHE_NAME);
+        localCacheManager.addCache(NEGATIVE_CACHE_NAME);
+
+        // define behaviour
+        String username = "some.user.to.be.counted";
+        String unknownUsername = "some.unknown.user.to.be.counted";
+        pumapiClientMockDelegate.returns(new PpmsUser()).getUser(username);
+
+        CachingPumapiClient localClient = new CachingPumapiClient(pumapiClientMockDelegate.getMock(), localCacheManager);
+
+        // run test
+        localClient.getUser(username);
+        localClient.getUser(username);
+        localClient.getUser(unknownUsername);
+        localClient.getUser(unknownUsername);
+        List<CacheRegionStatistics> result = localClient.getRegionsStatistics();
+        localCacheManager.shutdown();
+
+        // assert results
+        assertEquals(result.size(), 1, "Incorrect results");
+        CacheRegionStatistics userStatistics = result.get(0);
+        assertEquals(userStatistics.getRegionName(), USER_CACHE_NAME, "Incorrect results");
+        assertEquals(userStatistics.getHitCount(), 1L, "Incorrect hits count");
+        assertEquals(userStatistics.getMissCount(), 3L, "Incorrect misses count");
+        assertEquals(userStatistics.getNegativeHitCount(), 1L, "Incorrect negative hits count");
+        assertEquals(userStatistics.getLoadCount(), 2L, "Incorrect loads count");
+        assertTrue(userStatistics.getLoadLatency99thMillis() >= userStatistics.getLoadLatencyMedianMillis(),
+                   "Inconsistent latency percentiles");
+    }
+
+    @Test
+    public void evictUserShouldForceReload() {
+        // define behaviour
+        String username = "some.user.to.be.evicted";
+        PpmsUser fixture = new PpmsUser();
+        List<PpmsUserPrivilege> rightsFixture =
+            Arrays.asList(new PpmsUserPrivilege[] { new PpmsUserPrivilege(555L, PpmsPrivilege.Novice) });
+
+        // warm-up cache
+        cacheManager.getCache(USER_CACHE_NAME).put(new Element(PumapiCacheKey.forUser(username), fixture));
+        cacheManager.getCache(RIGHTS_CACHE_NAME).put(new Element(PumapiCacheKey.forUserRights(username), rightsFixture));
+
+        // run test
+        int result = cachingClient.evictUser(username);
+
+        // assert results
+        assertEquals(result, 2, "Incorrect results");
+        assertNull(cacheManager.getCache(USER_CACHE_NAME).get(PumapiCacheKey.forUser(username)), "Null result expected");
+        assertNull(cacheManager.getCache(RIGHTS_CACHE_NAME).get(PumapiCacheKey.forUserRights(username)),
+                   "Null result expected");
+    }
+
+    @Test
+    public void evictRegionShouldClearNegativeEntries() {
+        // warm-up cache
+        cacheManager.getCache(SYSTEM_CACHE_NAME).put(new Element(PumapiCacheKey.forSystem(555L), new PpmsSystem()));
+        cacheManager.getCache(NEGATIVE_CACHE_NAME).put(new Element(PumapiCacheKey.forSystem(666L), null));
+        cacheManager.getCache(NEGATIVE_CACHE_NAME).put(new Element(PumapiCacheKey.forUser(Data.USERNAME), null));
+
+        // run test
+        int result = cachingClient.evictRegion(SYSTEM_CACHE_NAME);
+
+        // assert results
+        assertEquals(result, 1, "Incorrect results");
+        assertEquals(cacheManager.getCache(SYSTEM_CACHE_NAME).getSize(), 0, "Empty region expected");
+        assertNull(cacheManager.getCache(NEGATIVE_CACHE_NAME).get(PumapiCacheKey.forSystem(666L)),
+                   "Null result expected");
+        assertNotNull(cacheManager.getCache(NEGATIVE_CACHE_NAME).get(PumapiCacheKey.forUser(Data.USERNAME)),
+                      "Non null result expected");
+    }
+
+    @Test
+    public void evictSystemShouldInvalidateSystemCatalogue() {
+        // define behaviour
+        // (the catalogue looks systems up from the uncached client)
+        Mock<PumapiClient> uncachedClientMock = new MockObject<PumapiClient>(PumapiClient.class, null);
+        PpmsSystemCatalogue catalogue = new PpmsSystemCatalogue(uncachedClientMock.getMock());
+        catalogue.setEnabled(true);
+        uncachedClientMock.returns(activeSystem(9001L, "evicted")).getSystem(9001L);
+        uncachedClientMock.returns(activeSystem(9002L, "other")).getSystem(9002L);
+        catalogue.getSystems(Arrays.asList(9001L, 9002L));
+
+        // warm-up cache
+        cacheManager.getCache(SYSTEM_CACHE_NAME).put(new Element(PumapiCacheKey.forSystem(9001L), new PpmsSystem()));
+
+        // run test
+        cachingClient.setSystemCatalogue(catalogue);
+        try {
+            int systemResult = cachingClient.evictSystem(9001L);
+            int regionResult = cachingClient.evictRegion(SYSTEM_CACHE_NAME);
+
+            // assert results: cache and catalogue entries
+            assertEquals(systemResult, 2, "Incorrect results");
+            assertEquals(regionResult, 1, "Incorrect results");
+        } finally {
+            cachingClient.setSystemCatalogue(null);
+        }
+        assertEquals(catalogue.size(), 0, "Empty catalogue expected");
+        assertNull(catalogue.peekSystem(9001L), "Null result expected");
+    }
+
+    @Test
+    public void peekSystemShouldNotInvokeDelegate() {
+        // define behaviour
+        Long systemId = 9003L;
+        pumapiClientMockDelegate.returns(activeSystem(systemId, "peeked-system")).getSystem(systemId);
+
+        // run test
+        PpmsSystem uncached = cachingClient.peekSystem(systemId);
+        cachingClient.getSystem(systemId);
+        PpmsSystem cached = cachingClient.peekSystem(systemId);
+
+        // assert results and invocations
+        assertNull(uncached, "Null result expected");
+        assertNotNull(cached, "Non null result expected");
+        assertEquals(cached.getSystemId(), systemId, "Incorrect system");
         pumapiClientMockDelegate.assertInvoked().getSystem(systemId);
+        pumapiClientMockDelegate.assertNotInvoked().getSystem(systemId);
+    }
+
+    @Test(expectedExceptions = { IllegalArgumentException.class })
+    public void evictRegionShouldRejectUnknownRegion() {
+        cachingClient.evictRegion(NEGATIVE_CACHE_NAME);
+    }
+
+    private List<Future<PpmsUser>> runConcurrentGetUser(
+                    final CachingPumapiClient client,
+                    final String username,
+                    BlockingPumapiClient blockingDelegate) throws InterruptedException {
+
+        int callersCount = 16;
+        ExecutorService executor = Executors.newFixedThreadPool(callersCount);
+        final CountDownLatch startGate = new CountDownLatch(1);
+
+        List<Future<PpmsUser>> results = new ArrayList<Future<PpmsUser>>();
+        for (int i = 0; i < callersCount; ++i) {
+            results.add(executor.submit(new Callable<PpmsUser>() {
+                @Override
+                public PpmsUser call() throws Exception {
+                    startGate.await();
+                    return client.getUser(username);
+                }
+            }));
+        }
+
+        // let all callers race, then hold the first delegate invocation until every caller
+        // has missed the cache: the in-flight load stays registered while the delegate is
+        // blocked, so each of them is bound to queue up behind it
+        startGate.countDown();
+        assertTrue(blockingDelegate.awaitInvocation(), "Delegate invocation expected");
+        assertTrue(awaitMisses(client, USER_CACHE_NAME, callersCount), "Concurrent cache misses expected");
+        blockingDelegate.release();
+
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS), "Callers termination expected");
+
+        return results;
+    }
+
+    private static boolean awaitMisses(CachingPumapiClient client, String regionName, long expectedMisses)
+                    throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+
+        while (System.currentTimeMillis() < deadline) {
+            for (CacheRegionStatistics regionStatistics : client.getRegionsStatistics()) {
+                if (regionName.equals(regionStatistics.getRegionName())
+                    && regionStatistics.getMissCount() >= expectedMisses) {
+                    return true;
+                }
+            }
+            Thread.yield();
+        }
+
+        return false;
+    }
+
+    /**
+     * Delegate which blocks user lookups until released (past an optional number of immediate
+     * successful lookups), and counts its invocations.
+     */
+    private static class BlockingPumapiClient implements PumapiClient {
+
+        private final AtomicInteger invocationsCount = new AtomicInteger();
+
+        private final int immediateInvocations;
+
+        private final CountDownLatch invoked = new CountDownLatch(1);
+
+        private final CountDownLatch released = new CountDownLatch(1);
+
+        private final PpmsUser user;
+
+        private final PumapiException failure;
+
+        private BlockingPumapiClient(PpmsUser user, PumapiException failure) {
+            this(user, failure, 0);
+        }
+
+        private BlockingPumapiClient(PpmsUser user, PumapiException failure, int immediateInvocations) {
+            this.user = user;
+            this.failure = failure;
+            this.immediateInvocations = immediateInvocations;
+        }
+
+        public int getInvocationsCount() {
+            return invocationsCount.get();
+        }
+
+        public boolean awaitInvocation() throws InterruptedException {
+            return invoked.await(10, TimeUnit.SECONDS);
+        }
+
+        public void release() {
+            released.countDown();
+        }
+
+        @Override
+        public PpmsUser getUser(String login) throws PumapiException {
+            if (invocationsCount.incrementAndGet() <= immediateInvocations) {
+                return user;
+            }
+            invoked.countDown();
+
+            try {
+                released.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            if (null != failure) {
+                throw failure;
+            }
+            return user;
+        }
+
+        @Override
+        public PumapiConfig getConfig() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setConfig(PumapiConfig config) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<String> getUsers(Boolean active) throws PumapiException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<PpmsUserPrivilege> getUserRights(String login) throws PumapiException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public PpmsGroup getGroup(String unitLogin) throws PumapiException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public PpmsSystem getSystem(Long systemId) throws PumapiException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean authenticate(String login, String password) throws PumapiException {
+            throw new UnsupportedOperationException();
+        }
     }
 
 }
@@ -0,0 +1,301 @@
+package org.imagopole.omero.auth.impl.ppms;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.imagopole.omero.auth.TestsUtil.Data;
+import org.imagopole.omero.auth.api.ExternalServiceException;
+import org.imagopole.omero.auth.api.ppms.PpmsService;
+import org.imagopole.omero.auth.impl.ppms.CircuitBreakerPpmsService.State;
+import org.imagopole.ppms.api.dto.PpmsUser;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.unitils.UnitilsTestNG;
+import org.unitils.mock.Mock;
+import org.unitils.mock.core.proxy.ProxyInvocation;
+import org.unitils.mock.mockbehavior.MockBehavior;
+
+public class CircuitBreakerPpmsServiceTest extends UnitilsTestNG {
+
+    /** @TestedObject */
+    private ManualClockBreaker breaker;
+
+    /** Decorated PPMS service. */
+    private Mock<PpmsService> ppmsServiceMock;
+
+    /** Callers for the calls kept in flight. */
+    private ExecutorService callers;
+
+    @BeforeMethod
+    public void setUp() {
+        breaker = new ManualClockBreaker(ppmsServiceMock.getMock());
+        breaker.setFailureRateThreshold(50);
+        breaker.setMinimumCalls(4);
+        breaker.setWindowSize(4);
+        breaker.setCoolDownSeconds(30);
+        callers = Executors.newCachedThreadPool();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        callers.shutdownNow();
+    }
+
+    @Test
+    public void breakerShouldOpenOnceFailureRateReached() {
+        ppmsServiceMock.onceReturns(new PpmsUser()).findUserByName(Data.USERNAME);
+        ppmsServiceMock.onceReturns(null).findUserByName(Data.USERNAME);
+        ppmsServiceMock.raises(new ExternalServiceException("ppms.down")).findUserByName(Data.USERNAME);
+
+        // run test: 2 successes then 2 failures over the 4 calls window
+        breaker.findUserByName(Data.USERNAME);
+        breaker.findUserByName(Data.USERNAME);
+        callAndExpectFailure();
+        assertEquals(breaker.getCurrentState(), State.CLOSED, "Closed breaker expected below minimum calls");
+        callAndExpectFailure();
+
+        // assert results
+        assertEquals(breaker.getCurrentState(), State.OPEN, "Open breaker expected");
+        assertEquals(breaker.getFailureRate(), 50.0, "Incorrect failure rate");
+        assertEquals(breaker.getOpenedCount(), 1L, "Incorrect openings count");
+    }
+
+    @Test
+    public void openBreakerShouldFailFast() {
+        openBreaker();
+        ppmsServiceMock.resetBehavior();
+        ppmsServiceMock.returns(new PpmsUser()).findUserByName(Data.USERNAME);
+
+        // run test
+        try {
+            breaker.findUserByName(Data.USERNAME);
+            throw new AssertionError("Fast failure expected");
+        } catch (ExternalServiceException e) {
+            assertTrue(e.getMessage().contains("circuit breaker open"), "Incorrect failure: " + e.getMessage());
+        }
+
+        // assert results
+        assertEquals(breaker.getRejectedCount(), 1L, "Incorrect rejections count");
+    }
+
+    @Test
+    public void successfulTrialShouldCloseBreakerAfterCoolDown() {
+        openBreaker();
+        ppmsServiceMock.resetBehavior();
+        ppmsServiceMock.returns(false).checkAuthentication(Data.USERNAME, Data.PASSWORD);
+
+        // run test
+        breaker.advanceSeconds(30);
+        boolean result = breaker.checkAuthentication(Data.USERNAME, Data.PASSWORD);
+
+        // assert results
+        assertFalse(result, "Delegated result expected");
+        assertEquals(breaker.getCurrentState(), State.CLOSED, "Closed breaker expected");
+        assertEquals(breaker.getRecordedCalls(), 0, "Cleared window expected");
+    }
+
+    @Test
+    public void failedTrialShouldReopenBreaker() {
+        openBreaker();
+
+        // run test
+        breaker.advanceSeconds(30);
+        callAndExpectFailure();
+
+        // assert results
+        assertEquals(breaker.getCurrentState(), State.OPEN, "Reopened breaker expected");
+        assertEquals(breaker.getOpenedCount(), 2L, "Incorrect openings count");
+
+        breaker.advanceSeconds(29);
+        try {
+            breaker.findUserByName(Data.USERNAME);
+            throw new AssertionError("Fast failure expected within cool-down");
+        } catch (ExternalServiceException e) {
+            assertEquals(breaker.getRejectedCount(), 1L, "Incorrect rejections count");
+        }
+    }
+
+    @Test
+    public void staleSuccessShouldNotCloseHalfOpenBreaker() throws Exception {
+        BlockedCall staleCall = new BlockedCall("stale.user", null);
+        BlockedCall trialCall = new BlockedCall("trial.user", null);
+
+        // run test: a call issued while closed completes during the half-open trial
+        Future<PpmsUser> staleResult = staleCall.submit();
+        openBreaker();
+        breaker.advanceSeconds(30);
+        Future<PpmsUser> trialResult = trialCall.submit();
+        assertEquals(breaker.getCurrentState(), State.HALF_OPEN, "Half-open breaker expected");
+
+        staleCall.release();
+        staleResult.get(5, TimeUnit.SECONDS);
+
+        // assert results
+        assertEquals(breaker.getCurrentState(), State.HALF_OPEN, "Stale success should be ignored");
+        try {
+            breaker.findUserByName(Data.USERNAME);
+            throw new AssertionError("Fast failure expected while the trial is in flight");
+        } catch (ExternalServiceException e) {
+            assertEquals(breaker.getRejectedCount(), 1L, "Incorrect rejections count");
+        }
+
+        trialCall.release();
+        trialResult.get(5, TimeUnit.SECONDS);
+        assertEquals(breaker.getCurrentState(), State.CLOSED, "Closed breaker expected after trial");
+    }
+
+    @Test
+    public void staleFailureShouldNotReopenHalfOpenBreaker() throws Exception {
+        BlockedCall staleCall = new BlockedCall("stale.user", new ExternalServiceException("ppms.down"));
+        BlockedCall trialCall = new BlockedCall("trial.user", null);
+
+        // run test: a call issued while closed fails during the half-open trial
+        Future<PpmsUser> staleResult = staleCall.submit();
+        openBreaker();
+        breaker.advanceSeconds(30);
+        Future<PpmsUser> trialResult = trialCall.submit();
+
+        staleCall.release();
+        try {
+            staleResult.get(5, TimeUnit.SECONDS);
+            throw new AssertionError("Service failure expected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ExternalServiceException, "Incorrect failure: " + e.getCause());
+        }
+
+        // assert results
+        assertEquals(breaker.getCurrentState(), State.HALF_OPEN, "Stale failure should be ignored");
+        assertEquals(breaker.getOpenedCount(), 1L, "Incorrect openings count");
+
+        trialCall.release();
+        trialResult.get(5, TimeUnit.SECONDS);
+        assertEquals(breaker.getCurrentState(), State.CLOSED, "Closed breaker expected after trial");
+    }
+
+    @Test
+    public void nonServiceFailuresShouldNotCount() {
+        ppmsServiceMock.raises(new IllegalArgumentException("bad.argument")).findUserByName(Data.USERNAME);
+
+        for (int i = 0; i < 4; ++i) {
+            try {
+                breaker.findUserByName(Data.USERNAME);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+
+        assertEquals(breaker.getCurrentState(), State.CLOSED, "Closed breaker expected");
+        assertEquals(breaker.getRecordedCalls(), 0, "No recorded calls expected");
+    }
+
+    @Test
+    public void resetShouldCloseBreaker() {
+        openBreaker();
+
+        breaker.reset();
+
+        assertEquals(breaker.getState(), "CLOSED", "Closed breaker expected");
+        assertEquals(breaker.getOpenedCount(), 0L, "Reset statistics expected");
+        assertNull(breaker.findUserByName("unknown"), "Delegated result expected");
+    }
+
+    private void openBreaker() {
+        ppmsServiceMock.raises(new ExternalServiceException("ppms.down")).findUserByName(Data.USERNAME);
+
+        for (int i = 0; i < 4; ++i) {
+            callAndExpectFailure();
+        }
+        assertEquals(breaker.getCurrentState(), State.OPEN, "Open breaker expected");
+    }
+
+    private void callAndExpectFailure() {
+        try {
+            breaker.findUserByName(Data.USERNAME);
+            throw new AssertionError("Service failure expected");
+        } catch (ExternalServiceException e) {
+            assertEquals(e.getMessage(), "ppms.down", "Incorrect failure");
+        }
+    }
+
+    /**
+     * A breaker call kept in flight on a caller thread until released.
+     */
+    private class BlockedCall {
+
+        private final String userName;
+
+        private final CountDownLatch started = new CountDownLatch(1);
+
+        private final CountDownLatch released = new CountDownLatch(1);
+
+        private BlockedCall(String userName, final ExternalServiceException failure) {
+            this.userName = userName;
+
+            ppmsServiceMock.performs(new MockBehavior() {
+                @Override
+                public Object execute(ProxyInvocation proxyInvocation) throws Throwable {
+                    started.countDown();
+                    if (!released.await(5, TimeUnit.SECONDS)) {
+                        throw new IllegalStateException("Call never released");
+                    }
+                    if (null != failure) {
+                        throw failure;
+                    }
+                    return new PpmsUser();
+                }
+            }).findUserByName(userName);
+        }
+
+        /** Issues the call, and waits until it is in flight. */
+        private Future<PpmsUser> submit() throws InterruptedException {
+            Future<PpmsUser> result = callers.submit(new Callable<PpmsUser>() {
+                @Override
+                public PpmsUser call() {
+                    return breaker.findUserByName(userName);
+                }
+            });
+
+            if (!started.await(5, TimeUnit.SECONDS)) {
+                throw new AssertionError("Call not in flight: " + userName);
+            }
+            return result;
+        }
+
+        private void release() {
+            released.countDown();
+        }
+    }
+
+    /**
+     * Breaker with a manually advanced clock.
+     */
+    private static class ManualClockBreaker extends CircuitBreakerPpmsService {
+
+        private long nowMillis = 1000000L;
+
+        private ManualClockBreaker(PpmsService ppmsService) {
+            super(ppmsService);
+        }
+
+        @Override
+        protected long currentTimeMillis() {
+            return nowMillis;
+        }
+
+        private void advanceSeconds(int seconds) {
+            nowMillis += seconds * 1000L;
+        }
+    }
+
+}
@@ -0,0 +1,152 @@
+package org.imagopole.omero.auth.impl.ppms;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.imagopole.omero.auth.api.ExternalServiceException;
+import org.imagopole.omero.auth.api.ppms.PpmsCall;
+import org.imagopole.ppms.api.dto.PpmsGroup;
+import org.imagopole.ppms.api.dto.PpmsUser;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class DefaultAsyncPpmsServiceTest {
+
+    /** Synchronous service stub with slow lookups. */
+    private SlowPpmsService ppmsService;
+
+    /** Executor for the asynchronous lookups. */
+    private PpmsLookupsExecutor lookupsExecutor;
+
+    /** @TestedObject */
+    private DefaultAsyncPpmsService asyncPpmsService;
+
+    @BeforeMethod
+    public void setup() {
+        ppmsService = new SlowPpmsService();
+
+        lookupsExecutor = new PpmsLookupsExecutor();
+        lookupsExecutor.setThreads(2);
+        lookupsExecutor.setTimeoutMillis(5000L);
+
+        asyncPpmsService = new DefaultAsyncPpmsService(ppmsService, lookupsExecutor);
+    }
+
+    @AfterMethod
+    public void shutdown() {
+        lookupsExecutor.shutdown();
+    }
+
+    @Test
+    public void independentLookupsShouldOverlap() {
+        long startTime = System.currentTimeMillis();
+
+        // run test
+        PpmsCall<PpmsUser> pendingUser = asyncPpmsService.findUserByName("async.user");
+        PpmsCall<PpmsGroup> pendingGroup = asyncPpmsService.findGroupByUserName("async.user");
+        PpmsUser user = pendingUser.await();
+        PpmsGroup group = pendingGroup.await();
+
+        // assert results
+        long elapsedMillis = System.currentTimeMillis() - startTime;
+        assertEquals(user.getLogin(), "async.user", "Incorrect user");
+        assertEquals(group.getUnitlogin(), "async.unit", "Incorrect group");
+        assertTrue(elapsedMillis < 550, "Concurrent lookups expected: " + elapsedMillis);
+    }
+
+    @Test
+    public void callsShouldHaveTheirOwnDeadline() throws InterruptedException {
+        PpmsCall<PpmsUser> firstCall = asyncPpmsService.findUserByName("async.user");
+        TimeUnit.MILLISECONDS.sleep(20);
+        PpmsCall<PpmsUser> secondCall = asyncPpmsService.findUserByName("async.user");
+
+        assertTrue(secondCall.getDeadline() > firstCall.getDeadline(), "Distinct deadlines expected");
+    }
+
+    @Test
+    public void expiredCallsShouldBeCancelled() {
+        lookupsExecutor.setTimeoutMillis(100L);
+        ppmsService.delayMillis = 2000L;
+
+        PpmsCall<PpmsUser> pendingUser = asyncPpmsService.findUserByName("async.user");
+
+        // run test
+        try {
+            pendingUser.await();
+            throw new AssertionError("Timeout expected");
+        } catch (ExternalServiceException e) {
+            assertTrue(e.getMessage().contains("Timed out"), "Incorrect failure: " + e.getMessage());
+        }
+
+        // assert results
+        assertTrue(pendingUser.isCancelled(), "Cancelled call expected");
+    }
+
+    @Test
+    public void cancelledCallsShouldInterruptLookups() throws InterruptedException {
+        ppmsService.delayMillis = 2000L;
+
+        PpmsCall<PpmsUser> pendingUser = asyncPpmsService.findUserByName("async.user");
+        TimeUnit.MILLISECONDS.sleep(50);
+
+        // run test
+        pendingUser.cancel(true);
+        TimeUnit.MILLISECONDS.sleep(50);
+
+        // assert results
+        assertTrue(pendingUser.isDone(), "Completed call expected");
+        assertTrue(ppmsService.interrupted.get(), "Interrupted lookup expected");
+    }
+
+    @Test(expectedExceptions = { ExternalServiceException.class },
+          expectedExceptionsMessageRegExp = "ppms.failure/async")
+    public void serviceFailuresShouldBePropagated() {
+        asyncPpmsService.findUserByName("failing.user").await();
+    }
+
+    /**
+     * Service stub which sleeps before returning canned results.
+     */
+    private static class SlowPpmsService extends DefaultPpmsService {
+
+        private volatile long delayMillis = 300L;
+
+        private final AtomicBoolean interrupted = new AtomicBoolean();
+
+        @Override
+        public PpmsUser findUserByName(String userName) throws ExternalServiceException {
+            pause();
+
+            if ("failing.user".equals(userName)) {
+                throw new ExternalServiceException("ppms.failure/async");
+            }
+
+            PpmsUser result = new PpmsUser();
+            result.setLogin(userName);
+            return result;
+        }
+
+        @Override
+        public PpmsGroup findGroupByUserName(String userName) throws ExternalServiceException {
+            pause();
+
+            PpmsGroup result = new PpmsGroup();
+            result.setUnitlogin("async.unit");
+            return result;
+        }
+
+        private void pause() {
+            try {
+                TimeUnit.MILLISECONDS.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                interrupted.set(true);
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+}
@@ -1,5 +1,7 @@
 package org.imagopole.omero.auth.impl.ppms;
 
+import static org.imagopole.omero.auth.TestsUtil.activate;
+import static org.imagopole.omero.auth.TestsUtil.activeSystem;
 import static org.imagopole.omero.auth.TestsUtil.autonomousRights;
 import static org.imagopole.omero.auth.TestsUtil.inactiveRights;
 import static org.imagopole.omero.auth.TestsUtil.inactiveSystem;
@@ -8,24 +10,36 @@ import static org.imagopole.omero.auth.TestsUtil.newFooUser;
 import static org.imagopole.omero.auth.TestsUtil.newOpenSystem;
 import static org.imagopole.omero.auth.TestsUtil.newRestrictedSystem;
 import static org.imagopole.omero.auth.TestsUtil.noviceRights;
+import static org.imagopole.omero.auth.TestsUtil.rightsList;
 import static org.imagopole.omero.auth.TestsUtil.superUserRights;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertNotNull;
 import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
+import net.sf.ehcache.CacheManager;
+
 import org.imagopole.omero.auth.TestsUtil.Data;
 import org.imagopole.omero.auth.TestsUtil.PpmsUnit;
 import org.imagopole.omero.auth.api.ExternalServiceException;
+import org.imagopole.omero.auth.api.ppms.PpmsProjectSource;
+import org.imagopole.omero.auth.api.ppms.PpmsSystemFilter;
 import org.imagopole.omero.auth.api.ppms.PpmsUserDetails;
+import org.imagopole.omero.auth.api.ppms.PpmsUserProfile;
+import org.imagopole.omero.auth.impl.ExternalLoginContext;
 import org.imagopole.ppms.api.PumapiClient;
 import org.imagopole.ppms.api.PumapiException;
 import org.imagopole.ppms.api.dto.PpmsGroup;
+import org.imagopole.ppms.api.dto.PpmsPrivilege;
 import org.imagopole.ppms.api.dto.PpmsSystem;
 import org.imagopole.ppms.api.dto.PpmsUser;
 import org.imagopole.ppms.api.dto.PpmsUserPrivilege;
+import org.testng.annotations.AfterMethod;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 import org.unitils.UnitilsTestNG;
@@ -38,6 +52,25 @@ public class DefaultPpmsServiceTest extends UnitilsTestNG {
     /** Fixture exception message. */
     private static final String PUMAPI_EXCEPTION_MSG = "should.be.translated";
 
+    /** Fixture system identifier for the systems filters (not shared with the other tests scenarios). */
+    private static final long FILTERED_SYSTEM_ID = 999L;
+
+    /** Fixtures for the user profiles (not shared with the other tests scenarios). */
+    private static final String PROFILE_USER = "profile.user";
+    private static final String PROFILE_UNKNOWN_USER = "profile.unknown.user";
+    private static final String PROFILE_FAILING_USER = "profile.failing.user";
+    private static final String PROFILE_LOGIN_USER = "profile.login.user";
+    private static final String PROFILE_UNIT = "profile.unit";
+    private static final long PROFILE_OPEN_SYSTEM_ID = 997L;
+    private static final long PROFILE_RESTRICTED_SYSTEM_ID = 998L;
+    private static final long PROFILE_LOGIN_SYSTEM_ID = 996L;
+
+    /** Credentials verifiers cache name. */
+    private static final String CREDENTIALS_CACHE_NAME = "pumapiCredentialsCache";
+
+    /** PUMAPI systems cache region name. */
+    private static final String SYSTEM_CACHE_NAME = "pumapiSystemCache";
+
     /** PPMS service layer */
     @TestedObject
     private DefaultPpmsService ppmsService;
@@ -46,6 +79,9 @@ public class DefaultPpmsServiceTest extends UnitilsTestNG {
     @InjectIntoByType
     private Mock<PumapiClient> pumapiClientMock;
 
+    /** PPMS projects source */
+    private Mock<PpmsProjectSource> projectSourceMock;
+
     /**
      * Data format:
      * { fixtureUserRights, fixtureSystem, fixtureSystemId,
@@ -176,7 +212,8 @@ public class DefaultPpmsServiceTest extends UnitilsTestNG {
         pumapiClientMock.assertNotInvoked().getGroup(PpmsUnit.UNIT_LOGIN);
     }
 
-    @Test(expectedExceptions = UnsupportedOperationException.class)
+    @Test(expectedExceptions = { ExternalServiceException.class },
+          expectedExceptionsMessageRegExp = "^Projects lookup by login requires a projects index$")
     public void findProjectsByUserNameTests() {
         ppmsService.findProjectsByUserName(Data.USERNAME);
     }
@@ -282,11 +319,17 @@ public class DefaultPpmsServiceTest extends UnitilsTestNG {
         ppmsService.findGroupByUserName(Data.USERNAME);
     }
 
-    @Test(expectedExceptions = { UnsupportedOperationException.class })
+    @Test(expectedExceptions = { ExternalServiceException.class },
+          expectedExceptionsMessageRegExp = PUMAPI_EXCEPTION_MSG)
     public void findProjectsByUserNameShouldWrapExceptions() {
-        pumapiClientMock.raises(new PumapiException(PUMAPI_EXCEPTION_MSG)).getUser(Data.USERNAME);
+        projectSourceMock.raises(new PumapiException(PUMAPI_EXCEPTION_MSG)).listActiveProjects();
+        ppmsService.setProjectIndex(new PpmsProjectIndex(projectSourceMock.getMock()));
 
-        ppmsService.findProjectsByUserName(Data.USERNAME);
+        try {
+            ppmsService.findProjectsByUserName(Data.USERNAME);
+        } finally {
+            ppmsService.setProjectIndex(null);
+        }
     }
 
     @Test(expectedExceptions = { ExternalServiceException.class },
@@ -305,4 +348,328 @@ public class DefaultPpmsServiceTest extends UnitilsTestNG {
         ppmsService.findUserByName(Data.USERNAME);
     }
 
+    @Test
+    public void checkAuthenticationShouldCacheSuccessfulCredentials() {
+        enableCredentialsCache();
+
+        // define behaviour
+        pumapiClientMock.returns(true).authenticate(Data.USERNAME, Data.PASSWORD);
+
+        // run test
+        boolean firstResult = ppmsService.checkAuthentication(Data.USERNAME, Data.PASSWORD);
+        boolean secondResult = ppmsService.checkAuthentication(Data.USERNAME, Data.PASSWORD);
+
+        // assert results + invocations
+        assertTrue(firstResult, "Successful authentication expected");
+        assertTrue(secondResult, "Successful authentication expected");
+        pumapiClientMock.assertInvoked().authenticate(Data.USERNAME, Data.PASSWORD);
+        pumapiClientMock.assertNotInvoked().authenticate(Data.USERNAME, Data.PASSWORD);
+    }
+
+    @Test
+    public void checkAuthenticationShouldNotCacheFailedCredentials() {
+        enableCredentialsCache();
+
+        // define behaviour
+        pumapiClientMock.returns(false).authenticate(Data.USERNAME, Data.PASSWORD);
+
+        // run test
+        boolean firstResult = ppmsService.checkAuthentication(Data.USERNAME, Data.PASSWORD);
+        boolean secondResult = ppmsService.checkAuthentication(Data.USERNAME, Data.PASSWORD);
+
+        // assert results + invocations
+        assertFalse(firstResult, "Failed authentication expected");
+        assertFalse(secondResult, "Failed authentication expected");
+        pumapiClientMock.assertInvoked().authenticate(Data.USERNAME, Data.PASSWORD);
+        pumapiClientMock.assertInvoked().authenticate(Data.USERNAME, Data.PASSWORD);
+    }
+
+    @Test
+    public void checkAuthenticationShouldNotMatchCachedCredentialsWithOtherPassword() {
+        String otherPassword = "other-" + Data.PASSWORD;
+        enableCredentialsCache();
+
+        // define behaviour
+        pumapiClientMock.returns(true).authenticate(Data.USERNAME, Data.PASSWORD);
+        pumapiClientMock.returns(false).authenticate(Data.USERNAME, otherPassword);
+
+        // run test
+        ppmsService.checkAuthentication(Data.USERNAME, Data.PASSWORD);
+        boolean result = ppmsService.checkAuthentication(Data.USERNAME, otherPassword);
+
+        // assert results + invocations
+        assertFalse(result, "Failed authentication expected");
+        pumapiClientMock.assertInvoked().authenticate(Data.USERNAME, otherPassword);
+    }
+
+    @Test
+    public void findUserByNameShouldInvalidateInactiveUserCredentials() {
+        enableCredentialsCache();
+
+        // define behaviour
+        pumapiClientMock.returns(true).authenticate(PpmsUnit.OMERO_USER, Data.PASSWORD);
+        pumapiClientMock.returns(newFooUser()).getUser(PpmsUnit.OMERO_USER);
+
+        // run test
+        ppmsService.checkAuthentication(PpmsUnit.OMERO_USER, Data.PASSWORD);
+        ppmsService.findUserByName(PpmsUnit.OMERO_USER);
+        ppmsService.checkAuthentication(PpmsUnit.OMERO_USER, Data.PASSWORD);
+
+        // assert invocations
+        pumapiClientMock.assertInvoked().authenticate(PpmsUnit.OMERO_USER, Data.PASSWORD);
+        pumapiClientMock.assertInvoked().authenticate(PpmsUnit.OMERO_USER, Data.PASSWORD);
+    }
+
+    @Test
+    public void findUserByNameShouldKeepActiveUserCredentials() {
+        enableCredentialsCache();
+
+        // define behaviour
+        pumapiClientMock.returns(true).authenticate(PpmsUnit.OMERO_USER, Data.PASSWORD);
+        pumapiClientMock.returns(activate(newFooUser())).getUser(PpmsUnit.OMERO_USER);
+
+        // run test
+        ppmsService.checkAuthentication(PpmsUnit.OMERO_USER, Data.PASSWORD);
+        ppmsService.findUserByName(PpmsUnit.OMERO_USER);
+        ppmsService.checkAuthentication(PpmsUnit.OMERO_USER, Data.PASSWORD);
+
+        // assert invocations
+        pumapiClientMock.assertInvoked().authenticate(PpmsUnit.OMERO_USER, Data.PASSWORD);
+        pumapiClientMock.assertNotInvoked().authenticate(PpmsUnit.OMERO_USER, Data.PASSWORD);
+    }
+
+    @Test
+    public void findActiveSystemsByUserNameShouldApplySystemFilter() {
+        // define behaviour
+        PpmsSystemFilter otherFacilityFilter = new FacilityAndTypeSystemFilter(
+            Collections.singletonList(PpmsUnit.FACILITY_ID + 1),
+            Collections.singletonList(PpmsUnit.SYSTEM_TYPE));
+        pumapiClientMock.returns(noviceRights(FILTERED_SYSTEM_ID)).getUserRights(Data.USERNAME);
+        pumapiClientMock.returns(newFilteredSystem()).getSystem(FILTERED_SYSTEM_ID);
+
+        // run test
+        List<PpmsSystem> result = ppmsService.findActiveSystemsByUserName(Data.USERNAME, otherFacilityFilter);
+
+        // assert results + invocations
+        assertNotNull(result, "Non null result expected");
+        assertTrue(result.isEmpty(), "Empty results expected");
+        pumapiClientMock.assertInvoked().getSystem(FILTERED_SYSTEM_ID);
+    }
+
+    @Test
+    public void findActiveSystemsWithAutonomyByUserNameShouldRetainFilteredSystems() {
+        // define behaviour
+        PpmsSystemFilter facilityFilter = new FacilityAndTypeSystemFilter(
+            Collections.singletonList(PpmsUnit.FACILITY_ID),
+            Collections.singletonList(PpmsUnit.SYSTEM_TYPE));
+        pumapiClientMock.returns(autonomousRights(FILTERED_SYSTEM_ID)).getUserRights(Data.USERNAME);
+        pumapiClientMock.returns(newFilteredSystem()).getSystem(FILTERED_SYSTEM_ID);
+
+        // run test
+        List<PpmsSystem> result =
+            ppmsService.findActiveSystemsWithAutonomyByUserName(Data.USERNAME, facilityFilter);
+
+        // assert results
+        assertEquals(result.size(), 1, "Incorrect results");
+    }
+
+    @Test
+    public void findActiveSystemsByUserNameShouldSkipCataloguedOutOfScopeSystems() {
+        PpmsSystemCatalogue systemCatalogue = new PpmsSystemCatalogue(pumapiClientMock.getMock());
+        systemCatalogue.setEnabled(true);
+        ppmsService.setSystemCatalogue(systemCatalogue);
+
+        // define behaviour: the system is catalogued, and may not be looked up again
+        PpmsSystemFilter otherFacilityFilter = new FacilityAndTypeSystemFilter(
+            Collections.singletonList(PpmsUnit.FACILITY_ID + 1),
+            Collections.singletonList(PpmsUnit.SYSTEM_TYPE));
+        pumapiClientMock.onceReturns(newFilteredSystem()).getSystem(FILTERED_SYSTEM_ID);
+        systemCatalogue.getSystem(FILTERED_SYSTEM_ID);
+
+        pumapiClientMock.returns(noviceRights(FILTERED_SYSTEM_ID)).getUserRights(Data.USERNAME);
+        pumapiClientMock.raises(new PumapiException(PUMAPI_EXCEPTION_MSG)).getSystem(FILTERED_SYSTEM_ID);
+
+        // run test
+        List<PpmsSystem> result = ppmsService.findActiveSystemsByUserName(Data.USERNAME, otherFacilityFilter);
+
+        // assert results
+        assertNotNull(result, "Non null result expected");
+        assertTrue(result.isEmpty(), "Empty results expected");
+    }
+
+    @Test
+    public void findActiveSystemsByUserNameShouldSkipCachedOutOfScopeSystems() {
+        CacheManager cacheManager = new CacheManager();
+        cacheManager.addCache(SYSTEM_CACHE_NAME);
+        CachingPumapiClient cachingClient = new CachingPumapiClient(pumapiClientMock.getMock(), cacheManager);
+        ppmsService.setSystemsCacheClient(cachingClient);
+
+        // define behaviour: the system is cached, and may not be looked up again
+        PpmsSystemFilter otherFacilityFilter = new FacilityAndTypeSystemFilter(
+            Collections.singletonList(PpmsUnit.FACILITY_ID + 1),
+            Collections.singletonList(PpmsUnit.SYSTEM_TYPE));
+        pumapiClientMock.onceReturns(newFilteredSystem()).getSystem(FILTERED_SYSTEM_ID);
+        cachingClient.getSystem(FILTERED_SYSTEM_ID);
+
+        pumapiClientMock.returns(noviceRights(FILTERED_SYSTEM_ID)).getUserRights(Data.USERNAME);
+        pumapiClientMock.raises(new PumapiException(PUMAPI_EXCEPTION_MSG)).getSystem(FILTERED_SYSTEM_ID);
+
+        // run test
+        List<PpmsSystem> result;
+        try {
+            result = ppmsService.findActiveSystemsByUserName(Data.USERNAME, otherFacilityFilter);
+        } finally {
+            cacheManager.shutdown();
+        }
+
+        // assert results
+        assertNotNull(result, "Non null result expected");
+        assertTrue(result.isEmpty(), "Empty results expected");
+    }
+
+    @Test
+    public void setSystemsCacheClientShouldIgnoreUncachedClients() {
+        ppmsService.setSystemsCacheClient(pumapiClientMock.getMock());
+
+        assertNull(ppmsService.getSystemsCacheClient(), "Null systems cache expected");
+    }
+
+    @Test
+    public void findUserProfileShouldAggregateLookups() {
+        // define behaviour: autonomous on an "open" system, novice on a "restricted" system
+        PpmsUser ppmsUser = activate(newFooUser());
+        ppmsUser.setLogin(PROFILE_USER);
+        ppmsUser.setUnitlogin(PROFILE_UNIT);
+        PpmsSystem restrictedSystem = activeSystem(PROFILE_RESTRICTED_SYSTEM_ID, "profile-restricted");
+        restrictedSystem.setAutonomyRequired(true);
+
+        List<PpmsUserPrivilege> rights = new ArrayList<PpmsUserPrivilege>();
+        rights.addAll(rightsList(PROFILE_OPEN_SYSTEM_ID, PpmsPrivilege.Autonomous));
+        rights.addAll(rightsList(PROFILE_RESTRICTED_SYSTEM_ID, PpmsPrivilege.Novice));
+
+        pumapiClientMock.returns(ppmsUser).getUser(PROFILE_USER);
+        pumapiClientMock.returns(inactiveUnit(PROFILE_UNIT)).getGroup(PROFILE_UNIT);
+        pumapiClientMock.returns(rights).getUserRights(PROFILE_USER);
+        pumapiClientMock.returns(activeSystem(PROFILE_OPEN_SYSTEM_ID, "profile-open")).getSystem(PROFILE_OPEN_SYSTEM_ID);
+        pumapiClientMock.returns(restrictedSystem).getSystem(PROFILE_RESTRICTED_SYSTEM_ID);
+
+        // run test
+        PpmsUserProfile result = ppmsService.findUserProfile(PROFILE_USER);
+
+        // assert results
+        assertNotNull(result, "Non null result expected");
+        assertEquals(result.getUser().getLogin(), PROFILE_USER, "Incorrect user");
+        assertEquals(result.getGroup().getUnitlogin(), PROFILE_UNIT, "Incorrect group");
+        assertEquals(result.getPrivilegesBySystem().size(), 2, "Incorrect privileges");
+        assertTrue(result.getPrivileges(PROFILE_RESTRICTED_SYSTEM_ID).contains(PpmsPrivilege.Novice),
+                   "Incorrect privileges");
+        assertEquals(result.getActiveSystems().size(), 2, "Incorrect active systems");
+        assertEquals(result.getActiveSystemsWithAutonomy().size(), 1, "Incorrect active systems with autonomy");
+        assertEquals(result.getActiveSystemsWithAutonomy().get(0).getSystemId(),
+                     Long.valueOf(PROFILE_OPEN_SYSTEM_ID), "Incorrect active systems with autonomy");
+    }
+
+    @Test
+    public void findUserProfileShouldMemoizeBackgroundLookupsInLoginContext() {
+        // define behaviour
+        PpmsUser ppmsUser = activate(newFooUser());
+        ppmsUser.setLogin(PROFILE_LOGIN_USER);
+        ppmsUser.setUnitlogin(PROFILE_UNIT);
+
+        pumapiClientMock.returns(ppmsUser).getUser(PROFILE_LOGIN_USER);
+        pumapiClientMock.returns(inactiveUnit(PROFILE_UNIT)).getGroup(PROFILE_UNIT);
+        pumapiClientMock.returns(rightsList(PROFILE_LOGIN_SYSTEM_ID, PpmsPrivilege.Autonomous))
+                        .getUserRights(PROFILE_LOGIN_USER);
+        pumapiClientMock.returns(activeSystem(PROFILE_LOGIN_SYSTEM_ID, "profile-login")).getSystem(PROFILE_LOGIN_SYSTEM_ID);
+
+        PpmsLookupsExecutor lookupsExecutor = new PpmsLookupsExecutor();
+        lookupsExecutor.setParallel(true);
+        LoginScopedPumapiClient loginScopedClient = new LoginScopedPumapiClient(pumapiClientMock.getMock());
+        ppmsService.setLookupsExecutor(lookupsExecutor);
+        ppmsService.setPpmsClient(loginScopedClient);
+
+        // run test: profile lookup, then rights and systems lookups later on during the same login
+        ExternalLoginContext loginContext = ExternalLoginContext.open(PROFILE_LOGIN_USER);
+        try {
+            ppmsService.findUserProfile(PROFILE_LOGIN_USER);
+            loginScopedClient.getUserRights(PROFILE_LOGIN_USER);
+            loginScopedClient.getSystem(PROFILE_LOGIN_SYSTEM_ID);
+
+            // assert results
+            assertTrue(loginContext.contains(PumapiCacheKey.forUserRights(PROFILE_LOGIN_USER)),
+                       "Memoized rights expected");
+            assertTrue(loginContext.contains(PumapiCacheKey.forSystem(PROFILE_LOGIN_SYSTEM_ID)),
+                       "Memoized system expected");
+        } finally {
+            ExternalLoginContext.close();
+            lookupsExecutor.shutdown();
+            ppmsService.setLookupsExecutor(null);
+            ppmsService.setPpmsClient(pumapiClientMock.getMock());
+        }
+
+        // assert invocations: the background lookups were issued once
+        pumapiClientMock.assertInvoked().getUserRights(PROFILE_LOGIN_USER);
+        pumapiClientMock.assertNotInvoked().getUserRights(PROFILE_LOGIN_USER);
+        pumapiClientMock.assertInvoked().getSystem(PROFILE_LOGIN_SYSTEM_ID);
+        pumapiClientMock.assertNotInvoked().getSystem(PROFILE_LOGIN_SYSTEM_ID);
+    }
+
+    @Test
+    public void findUserProfileShouldReturnNullForUnknownUser() {
+        // define behaviour
+        pumapiClientMock.returns(null).getUser(PROFILE_UNKNOWN_USER);
+
+        // run test
+        PpmsUserProfile result = ppmsService.findUserProfile(PROFILE_UNKNOWN_USER);
+
+        // assert results
+        assertNull(result, "Null results expected");
+    }
+
+    @Test(expectedExceptions = { ExternalServiceException.class },
+          expectedExceptionsMessageRegExp = PUMAPI_EXCEPTION_MSG)
+    public void findUserProfileShouldWrapExceptions() {
+        pumapiClientMock.returns(activate(newFooUser())).getUser(PROFILE_FAILING_USER);
+        pumapiClientMock.raises(new PumapiException(PUMAPI_EXCEPTION_MSG)).getUserRights(PROFILE_FAILING_USER);
+
+        ppmsService.findUserProfile(PROFILE_FAILING_USER);
+    }
+
+    @AfterMethod
+    public void disableSystemCatalogue() {
+        ppmsService.setSystemCatalogue(null);
+    }
+
+    @AfterMethod
+    public void disableSystemsCache() {
+        ppmsService.setSystemsCacheClient(null);
+    }
+
+    @AfterMethod
+    public void disableCredentialsCache() {
+        ppmsService.setCredentialsCache(null);
+
+        CacheManager cacheManager = CacheManager.create();
+        if (cacheManager.cacheExists(CREDENTIALS_CACHE_NAME)) {
+            cacheManager.getCache(CREDENTIALS_CACHE_NAME).removeAll();
+        }
+    }
+
+    private static PpmsSystem newFilteredSystem() {
+        return activeSystem(FILTERED_SYSTEM_ID, "filtered-system");
+    }
+
+    private void enableCredentialsCache() {
+        CacheManager cacheManager = CacheManager.create();
+        if (!cacheManager.cacheExists(CREDENTIALS_CACHE_NAME)) {
+            cacheManager.addCache(CREDENTIALS_CACHE_NAME);
+        }
+
+        CredentialsVerifierCache credentialsCache = new CredentialsVerifierCache(cacheManager);
+        credentialsCache.setEnabled(true);
+        credentialsCache.setIterations(1000);
+
+        ppmsService.setCredentialsCache(credentialsCache);
+    }
+
 }
@@ -0,0 +1,235 @@
+package org.imagopole.omero.auth.impl.ppms;
+
+import static org.imagopole.omero.auth.TestsUtil.activate;
+import static org.imagopole.omero.auth.TestsUtil.activeSystem;
+import static org.imagopole.omero.auth.TestsUtil.inactiveUnit;
+import static org.imagopole.omero.auth.TestsUtil.newFooUser;
+import static org.imagopole.omero.auth.TestsUtil.rightsList;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.imagopole.omero.auth.TestsUtil.PpmsUnit;
+import org.imagopole.omero.auth.impl.ExternalLoginContext;
+import org.imagopole.ppms.api.PumapiClient;
+import org.imagopole.ppms.api.PumapiException;
+import org.imagopole.ppms.api.config.PumapiConfig;
+import org.imagopole.ppms.api.dto.PpmsGroup;
+import org.imagopole.ppms.api.dto.PpmsPrivilege;
+import org.imagopole.ppms.api.dto.PpmsSystem;
+import org.imagopole.ppms.api.dto.PpmsUser;
+import org.imagopole.ppms.api.dto.PpmsUserPrivilege;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class LoginScopedPumapiClientTest {
+
+    /** PUMAPI client stub counting the delegate invocations. */
+    private CountingPumapiClient delegate;
+
+    /** @TestedObject */
+    private LoginScopedPumapiClient loginScopedClient;
+
+    /** PPMS service layer on top of the login-scoped client. */
+    private DefaultPpmsService ppmsService;
+
+    @BeforeMethod
+    public void setup() {
+        delegate = new CountingPumapiClient();
+        loginScopedClient = new LoginScopedPumapiClient(delegate);
+
+        ppmsService = new DefaultPpmsService();
+        ppmsService.setPpmsClient(loginScopedClient);
+    }
+
+    @AfterMethod
+    public void closeLoginContext() {
+        // make sure a failed test does not leak its context onto the next one
+        while (null != ExternalLoginContext.current()) {
+            ExternalLoginContext.close();
+        }
+    }
+
+    @Test
+    public void lookupsShouldBeDelegatedOnceInLoginContext() {
+        ExternalLoginContext.open(PpmsUnit.OMERO_USER);
+        try {
+            // run test: the lookups issued by the providers chain, new user service and group beans
+            ppmsService.findUserByName(PpmsUnit.OMERO_USER);
+            ppmsService.findUserByName(PpmsUnit.OMERO_USER);
+            ppmsService.findUserAndGroupByName(PpmsUnit.OMERO_USER);
+            ppmsService.findGroupByUserName(PpmsUnit.OMERO_USER);
+            List<PpmsSystem> systems = ppmsService.findActiveSystemsByUserName(PpmsUnit.OMERO_USER);
+            ppmsService.findActiveSystemsWithAutonomyByUserName(PpmsUnit.OMERO_USER);
+
+            // assert results + invocations
+            assertEquals(systems.size(), 2, "Incorrect results");
+        } finally {
+            ExternalLoginContext.close();
+        }
+
+        assertEquals(delegate.getUserCount.get(), 1, "Incorrect getUser invocations count");
+        assertEquals(delegate.getGroupCount.get(), 1, "Incorrect getGroup invocations count");
+        assertEquals(delegate.getUserRightsCount.get(), 1, "Incorrect getUserRights invocations count");
+        assertEquals(delegate.getSystemCount.get(), 2, "Incorrect getSystem invocations count");
+    }
+
+    @Test
+    public void lookupsShouldBeDelegatedOutsideLoginContext() {
+        // run test
+        loginScopedClient.getUser(PpmsUnit.OMERO_USER);
+        loginScopedClient.getUser(PpmsUnit.OMERO_USER);
+        loginScopedClient.getUserRights(PpmsUnit.OMERO_USER);
+        loginScopedClient.getUserRights(PpmsUnit.OMERO_USER);
+
+        // assert invocations
+        assertEquals(delegate.getUserCount.get(), 2, "Incorrect getUser invocations count");
+        assertEquals(delegate.getUserRightsCount.get(), 2, "Incorrect getUserRights invocations count");
+    }
+
+    @Test
+    public void lookupsShouldNotBeSharedAcrossLogins() {
+        for (int i = 0; i < 3; ++i) {
+            ExternalLoginContext.open(PpmsUnit.OMERO_USER);
+            try {
+                loginScopedClient.getUser(PpmsUnit.OMERO_USER);
+                loginScopedClient.getUser(PpmsUnit.OMERO_USER);
+            } finally {
+                ExternalLoginContext.close();
+            }
+        }
+
+        // assert results + invocations
+        assertNull(ExternalLoginContext.current(), "Login context should be cleared");
+        assertEquals(delegate.getUserCount.get(), 3, "Incorrect getUser invocations count");
+    }
+
+    @Test
+    public void nestedLoginContextsShouldBeShared() {
+        ExternalLoginContext.open(PpmsUnit.OMERO_USER);
+        try {
+            loginScopedClient.getUser(PpmsUnit.OMERO_USER);
+
+            ExternalLoginContext.open(PpmsUnit.OMERO_USER);
+            try {
+                loginScopedClient.getUser(PpmsUnit.OMERO_USER);
+            } finally {
+                ExternalLoginContext.close();
+            }
+
+            assertNotNull(ExternalLoginContext.current(), "Outer login context should be kept");
+            loginScopedClient.getUser(PpmsUnit.OMERO_USER);
+        } finally {
+            ExternalLoginContext.close();
+        }
+
+        // assert results + invocations
+        assertNull(ExternalLoginContext.current(), "Login context should be cleared");
+        assertEquals(delegate.getUserCount.get(), 1, "Incorrect getUser invocations count");
+    }
+
+    @Test
+    public void nullResultsShouldBeMemoizedButNotFailures() {
+        ExternalLoginContext.open(PpmsUnit.OMERO_USER);
+        try {
+            loginScopedClient.getSystem(CountingPumapiClient.UNKNOWN_SYSTEM_ID);
+            PpmsSystem result = loginScopedClient.getSystem(CountingPumapiClient.UNKNOWN_SYSTEM_ID);
+            assertNull(result, "Null results expected");
+
+            for (int i = 0; i < 2; ++i) {
+                try {
+                    loginScopedClient.getSystem(CountingPumapiClient.FAILING_SYSTEM_ID);
+                } catch (PumapiException e) {
+                    // expected
+                }
+            }
+        } finally {
+            ExternalLoginContext.close();
+        }
+
+        // assert invocations
+        assertEquals(delegate.getSystemCount.get(), 3, "Incorrect getSystem invocations count");
+    }
+
+    /**
+     * PUMAPI client stub counting the invocations per lookup type.
+     */
+    private static class CountingPumapiClient implements PumapiClient {
+
+        private static final Long UNKNOWN_SYSTEM_ID = 404L;
+
+        private static final Long FAILING_SYSTEM_ID = 500L;
+
+        private final AtomicInteger getUserCount = new AtomicInteger();
+
+        private final AtomicInteger getGroupCount = new AtomicInteger();
+
+        private final AtomicInteger getUserRightsCount = new AtomicInteger();
+
+        private final AtomicInteger getSystemCount = new AtomicInteger();
+
+        @Override
+        public PpmsUser getUser(String login) throws PumapiException {
+            getUserCount.incrementAndGet();
+
+            PpmsUser ppmsUser = activate(newFooUser());
+            ppmsUser.setUnitlogin(PpmsUnit.UNIT_LOGIN);
+
+            return ppmsUser;
+        }
+
+        @Override
+        public PpmsGroup getGroup(String unitLogin) throws PumapiException {
+            getGroupCount.incrementAndGet();
+            return inactiveUnit(unitLogin);
+        }
+
+        @Override
+        public List<PpmsUserPrivilege> getUserRights(String login) throws PumapiException {
+            getUserRightsCount.incrementAndGet();
+
+            List<PpmsUserPrivilege> result = new ArrayList<PpmsUserPrivilege>();
+            result.addAll(rightsList(PpmsUnit.OPEN_SYSTEM_ID, PpmsPrivilege.Autonomous));
+            result.addAll(rightsList(PpmsUnit.RESTRICTED_SYSTEM_ID, PpmsPrivilege.Novice));
+
+            return result;
+        }
+
+        @Override
+        public PpmsSystem getSystem(Long systemId) throws PumapiException {
+            getSystemCount.incrementAndGet();
+
+            if (FAILING_SYSTEM_ID.equals(systemId)) {
+                throw new PumapiException("ppms.failure/get-system");
+            }
+
+            return (UNKNOWN_SYSTEM_ID.equals(systemId) ? null : activeSystem(systemId, "system-" + systemId));
+        }
+
+        @Override
+        public PumapiConfig getConfig() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setConfig(PumapiConfig config) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<String> getUsers(Boolean active) throws PumapiException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean authenticate(String login, String password) throws PumapiException {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+}
@@ -0,0 +1,194 @@
+package org.imagopole.omero.auth.impl.ppms;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.imagopole.omero.auth.api.ppms.PumapiRecordHandler;
+import org.imagopole.ppms.api.PumapiException;
+import org.imagopole.ppms.api.config.PumapiConfig;
+import org.imagopole.ppms.api.dto.PpmsGroup;
+import org.imagopole.ppms.api.dto.PpmsPrivilege;
+import org.imagopole.ppms.api.dto.PpmsSystem;
+import org.imagopole.ppms.api.dto.PpmsUser;
+import org.imagopole.ppms.api.dto.PpmsUserPrivilege;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class NativePumapiClientTest {
+
+    /** Local PUMAPI endpoint stub. */
+    private HttpServer server;
+
+    /** Pooled transport to the stub. */
+    private PumapiHttpTransport transport;
+
+    /** @TestedObject */
+    private NativePumapiClient client;
+
+    @BeforeMethod
+    public void setup() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/pumapi/", new PumapiStub());
+        server.start();
+
+        PumapiConfig config = new PumapiConfig();
+        config.setEndpoint("http://127.0.0.1:" + server.getAddress().getPort() + "/pumapi/");
+        config.setApiKey("some-api-key");
+
+        transport = new PumapiHttpTransport(config);
+        client = new NativePumapiClient(transport);
+    }
+
+    @AfterMethod
+    public void shutdown() {
+        transport.shutdown();
+        server.stop(0);
+    }
+
+    @Test
+    public void usersShouldBeStreamedFromCompressedResponse() throws PumapiException {
+        final List<String> logins = new ArrayList<String>();
+
+        // run test
+        int result = client.forEachUser(Boolean.TRUE, new PumapiRecordHandler<String>() {
+            @Override
+            public boolean handle(String login) {
+                logins.add(login);
+                return logins.size() < 2;
+            }
+        });
+
+        // assert results
+        assertEquals(result, 2, "Listing should stop upon handler request");
+        assertEquals(logins, Arrays.asList("foo", "bar"), "Incorrect logins");
+        assertEquals(client.getUsers(Boolean.TRUE), Arrays.asList("foo", "bar", "baz"), "Incorrect logins");
+        assertEquals(client.getUsers(null), Arrays.asList("foo", "bar", "baz", "inactive"), "Incorrect logins");
+    }
+
+    @Test
+    public void rightsShouldBeParsedAndInvalidRecordsSkipped() throws PumapiException {
+        List<PpmsUserPrivilege> result = client.getUserRights("foo");
+
+        assertEquals(result.size(), 3, "Incorrect rights count");
+        assertEquals(result.get(0).getSystemId(), Long.valueOf(12L), "Incorrect system");
+        assertEquals(result.get(0).getPrivilege(), PpmsPrivilege.Autonomous, "Incorrect privilege");
+        assertEquals(result.get(1).getPrivilege(), PpmsPrivilege.Novice, "Incorrect privilege");
+        assertEquals(result.get(2).getPrivilege(), PpmsPrivilege.Deactivated, "Incorrect privilege");
+    }
+
+    @Test
+    public void lookupsShouldMapColumnsByHeader() throws PumapiException {
+        PpmsUser user = client.getUser("foo");
+        PpmsGroup group = client.getGroup("unit-foo");
+        PpmsSystem system = client.getSystem(12L);
+
+        assertEquals(user.getLogin(), "foo", "Incorrect login");
+        assertEquals(user.getFname(), "Foo", "Incorrect first name");
+        assertEquals(user.getLname(), "Bar, Jr", "Incorrect last name");
+        assertEquals(user.getEmail(), "foo@example.org", "Incorrect email");
+        assertEquals(user.getUnitlogin(), "unit-foo", "Incorrect unit");
+        assertEquals(user.getActive(), Boolean.TRUE, "Incorrect status");
+        assertEquals(group.getUnitname(), "Foo Lab", "Incorrect unit name");
+        assertEquals(group.getExt(), Boolean.FALSE, "Incorrect external status");
+        assertEquals(system.getSystemId(), Long.valueOf(12L), "Incorrect system");
+        assertEquals(system.getCoreFacilityRef(), Long.valueOf(2L), "Incorrect facility");
+        assertEquals(system.getType(), "Confocal", "Incorrect type");
+        assertEquals(system.getAutonomyRequired(), Boolean.TRUE, "Incorrect autonomy");
+    }
+
+    @Test
+    public void unknownLookupsShouldReturnNull() throws PumapiException {
+        assertNull(client.getUser("unknown"), "Null user expected");
+        assertNull(client.getGroup("unknown"), "Null group expected");
+    }
+
+    @Test
+    public void authenticationShouldCheckEchoedLogin() throws PumapiException {
+        assertTrue(client.authenticate("foo", "secret"), "Successful authentication expected");
+        assertFalse(client.authenticate("foo", "wrong"), "Failed authentication expected");
+    }
+
+    /**
+     * Serves canned PUMAPI CSV responses - gzip-compressed when accepted by the client.
+     */
+    private static class PumapiStub implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            Map<String, String> form = decodeForm(exchange.getRequestBody());
+            String action = form.get("action");
+            String body = "";
+
+            if ("getusers".equals(action)) {
+                body = ("true".equals(form.get("active")) ? "foo\nbar\n\nbaz\n" : "foo\nbar\nbaz\ninactive\n");
+            } else if ("getuserrights".equals(action)) {
+                body = "A:12\nN:13\nX:14\nbogus\nD:15\n";
+            } else if ("getuser".equals(action) && "foo".equals(form.get("login"))) {
+                body = "login,lname,fname,email,phone,unitlogin,active\r\n"
+                     + "\"foo\",\"Bar, Jr\",\"Foo\",\"foo@example.org\",\"\",\"unit-foo\",true\r\n";
+            } else if ("getgroup".equals(action) && "unit-foo".equals(form.get("unitlogin"))) {
+                body = "unitlogin,unitname,headname,active,ext\nunit-foo,Foo Lab,Head,true,false\n";
+            } else if ("getsystem".equals(action)) {
+                body = "Core facility ref,System id,Type,Name,Localisation,Active,Autonomy Required\n"
+                     + "2," + form.get("id") + ",Confocal,LSM,Room 1,True,True\n";
+            } else if ("auth".equals(action)) {
+                body = ("secret".equals(form.get("pwd")) ? form.get("login") : "request not authorized") + "\n";
+            }
+
+            byte[] content = body.getBytes("UTF-8");
+            String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            if (null != acceptEncoding && acceptEncoding.contains("gzip")) {
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+                gzip.write(content);
+                gzip.close();
+                content = compressed.toByteArray();
+                exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            }
+
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+            exchange.sendResponseHeaders(200, content.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(content);
+            out.close();
+        }
+
+        private static Map<String, String> decodeForm(InputStream in) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int read = 0;
+            while ((read = in.read(buffer)) > 0) {
+                bytes.write(buffer, 0, read);
+            }
+
+            Map<String, String> result = new HashMap<String, String>();
+            for (String pair : bytes.toString("UTF-8").split("&")) {
+                String[] keyValue = pair.split("=", 2);
+                result.put(URLDecoder.decode(keyValue[0], "UTF-8"),
+                           keyValue.length > 1 ? URLDecoder.decode(keyValue[1], "UTF-8") : "");
+            }
+            return result;
+        }
+    }
+
+}
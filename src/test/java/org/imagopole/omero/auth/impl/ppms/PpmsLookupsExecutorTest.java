@@ -0,0 +1,119 @@
+package org.imagopole.omero.auth.impl.ppms;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.imagopole.ppms.api.PumapiException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class PpmsLookupsExecutorTest {
+
+    /** @TestedObject */
+    private PpmsLookupsExecutor lookupsExecutor;
+
+    @BeforeMethod
+    public void setup() {
+        lookupsExecutor = new PpmsLookupsExecutor();
+        lookupsExecutor.setThreads(2);
+        lookupsExecutor.setTimeoutMillis(5000L);
+    }
+
+    @AfterMethod
+    public void shutdown() {
+        lookupsExecutor.shutdown();
+    }
+
+    @Test
+    public void lookupsShouldOverlapInParallelMode() {
+        long deadline = lookupsExecutor.newDeadline();
+        long startTime = System.currentTimeMillis();
+
+        // run test: one background lookup, one on the calling thread
+        Future<Thread> pendingLookup = lookupsExecutor.submit(new SlowLookup(300));
+        Thread callingThread = new SlowLookup(300).call();
+        Thread lookupThread = lookupsExecutor.await(pendingLookup, deadline);
+
+        // assert results
+        long elapsedMillis = System.currentTimeMillis() - startTime;
+        assertNotSame(lookupThread, callingThread, "Background lookup expected");
+        assertTrue(elapsedMillis < 550, "Concurrent lookups expected: " + elapsedMillis);
+    }
+
+    @Test
+    public void lookupsShouldRunOnCallingThreadInSequentialMode() {
+        PpmsLookupsExecutor sequentialExecutor = PpmsLookupsExecutor.sequential();
+
+        // run test
+        Future<Thread> pendingLookup = sequentialExecutor.submit(new SlowLookup(0));
+
+        // assert results
+        assertTrue(pendingLookup.isDone(), "Completed lookup expected");
+        assertSame(sequentialExecutor.await(pendingLookup, sequentialExecutor.newDeadline()),
+                   Thread.currentThread(), "Incorrect lookup thread");
+    }
+
+    @Test(expectedExceptions = { PumapiException.class },
+          expectedExceptionsMessageRegExp = ".*Timed out.*")
+    public void awaitShouldTimeOut() {
+        lookupsExecutor.setTimeoutMillis(100L);
+
+        // run test
+        Future<Thread> pendingLookup = lookupsExecutor.submit(new SlowLookup(2000));
+        lookupsExecutor.await(pendingLookup, lookupsExecutor.newDeadline());
+    }
+
+    @Test(expectedExceptions = { PumapiException.class },
+          expectedExceptionsMessageRegExp = "ppms.failure/lookup")
+    public void awaitShouldPropagateFailures() {
+        Future<Thread> pendingLookup = lookupsExecutor.submit(new Callable<Thread>() {
+            @Override
+            public Thread call() throws PumapiException {
+                throw new PumapiException("ppms.failure/lookup");
+            }
+        });
+
+        lookupsExecutor.await(pendingLookup, lookupsExecutor.newDeadline());
+    }
+
+    @Test
+    public void settersShouldIgnoreInvalidValues() {
+        lookupsExecutor.setParallel(null);
+        lookupsExecutor.setThreads(0);
+        lookupsExecutor.setTimeoutMillis(-1L);
+
+        assertTrue(lookupsExecutor.isParallel(), "Parallel mode expected by default");
+        assertEquals(lookupsExecutor.getThreads(), 2, "Incorrect threads");
+        assertEquals(lookupsExecutor.getTimeoutMillis(), 5000L, "Incorrect timeout");
+    }
+
+    /**
+     * Lookup stub which sleeps for a fixed duration, then returns the thread it ran on.
+     */
+    private static class SlowLookup implements Callable<Thread> {
+
+        private final long delayMillis;
+
+        public SlowLookup(long delayMillis) {
+            this.delayMillis = delayMillis;
+        }
+
+        @Override
+        public Thread call() {
+            try {
+                TimeUnit.MILLISECONDS.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return Thread.currentThread();
+        }
+    }
+
+}
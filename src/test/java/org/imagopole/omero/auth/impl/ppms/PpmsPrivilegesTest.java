@@ -0,0 +1,129 @@
+package org.imagopole.omero.auth.impl.ppms;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.imagopole.ppms.api.dto.PpmsPrivilege;
+import org.imagopole.ppms.api.dto.PpmsUserPrivilege;
+import org.testng.annotations.Test;
+
+public class PpmsPrivilegesTest {
+
+    @Test
+    public void emptyRightsShouldBeIndexedAsEmpty() {
+        assertTrue(PpmsPrivileges.of(null).isEmpty(), "Empty index expected");
+        assertTrue(PpmsPrivileges.of(new ArrayList<PpmsUserPrivilege>()).isEmpty(), "Empty index expected");
+        assertEquals(PpmsPrivileges.EMPTY.getMask(1L), 0, "Empty mask expected");
+    }
+
+    @Test
+    public void privilegesShouldBeMergedBySystem() {
+        // many systems to exercise the open-addressing collisions
+        List<PpmsUserPrivilege> rights = new ArrayList<PpmsUserPrivilege>();
+        for (long systemId = 1; systemId <= 100; ++systemId) {
+            rights.add(new PpmsUserPrivilege(systemId, PpmsPrivilege.Novice));
+        }
+        rights.add(new PpmsUserPrivilege(42L, PpmsPrivilege.Autonomous));
+        rights.add(new PpmsUserPrivilege(7L, PpmsPrivilege.Deactivated));
+        rights.add(new PpmsUserPrivilege(null, PpmsPrivilege.SuperUser));
+
+        // run test
+        PpmsPrivileges privileges = PpmsPrivileges.of(rights);
+
+        // assert results
+        assertEquals(privileges.size(), 100, "Incorrect systems count");
+        assertEquals(privileges.getSystemIds()[0], 1L, "Rights list order expected");
+        assertEquals(privileges.getSystemIds()[99], 100L, "Rights list order expected");
+        assertTrue(privileges.has(42L, PpmsPrivilege.Novice), "Novice privilege expected");
+        assertTrue(privileges.has(42L, PpmsPrivilege.Autonomous), "Autonomous privilege expected");
+        assertFalse(privileges.has(43L, PpmsPrivilege.Autonomous), "Autonomous privilege not expected");
+        assertEquals(privileges.getMask(101L), 0, "Empty mask expected");
+    }
+
+    @Test
+    public void activationAndAutonomyShouldBeDerivedFromMasks() {
+        List<PpmsUserPrivilege> rights = Arrays.asList(
+            new PpmsUserPrivilege(1L, PpmsPrivilege.Novice),
+            new PpmsUserPrivilege(2L, PpmsPrivilege.Autonomous),
+            new PpmsUserPrivilege(3L, PpmsPrivilege.SuperUser),
+            new PpmsUserPrivilege(4L, PpmsPrivilege.Autonomous),
+            new PpmsUserPrivilege(4L, PpmsPrivilege.Deactivated));
+
+        // run test
+        PpmsPrivileges privileges = PpmsPrivileges.of(rights);
+
+        // assert results
+        assertTrue(privileges.isActivated(1L), "Activated user expected");
+        assertFalse(privileges.isAutonomyGranted(1L), "Novice user expected");
+        assertTrue(privileges.isAutonomyGranted(2L), "Autonomous user expected");
+        assertTrue(privileges.isAutonomyGranted(3L), "Super user expected");
+        assertFalse(privileges.isActivated(4L), "Deactivated user expected");
+        assertFalse(privileges.isActivated(5L), "No privilege expected");
+    }
+
+    @Test
+    public void privilegesShouldConvertToSetsBySystem() {
+        List<PpmsUserPrivilege> rights = Arrays.asList(
+            new PpmsUserPrivilege(2L, PpmsPrivilege.Novice),
+            new PpmsUserPrivilege(1L, PpmsPrivilege.Autonomous),
+            new PpmsUserPrivilege(2L, PpmsPrivilege.Deactivated));
+
+        // run test
+        Map<Long, Set<PpmsPrivilege>> result = PpmsPrivileges.of(rights).toPrivilegesBySystem();
+
+        // assert results
+        assertEquals(new ArrayList<Long>(result.keySet()), Arrays.asList(2L, 1L), "Rights list order expected");
+        assertEquals(result.get(2L), EnumSet.of(PpmsPrivilege.Novice, PpmsPrivilege.Deactivated),
+                     "Incorrect privileges");
+        assertEquals(result.get(1L), EnumSet.of(PpmsPrivilege.Autonomous), "Incorrect privileges");
+    }
+
+    @Test
+    public void matrixShouldIndexUsersBySystem() {
+        // more than 64 users to span several words per system
+        List<String> logins = new ArrayList<String>();
+        for (int i = 0; i < 130; ++i) {
+            logins.add("user-" + i);
+        }
+        PpmsPrivilegeMatrix matrix = new PpmsPrivilegeMatrix(logins, new long[] { 20L, 10L });
+
+        // run test
+        for (int i = 0; i < 130; ++i) {
+            PpmsPrivilege privilege = (0 == i % 2 ? PpmsPrivilege.Novice : PpmsPrivilege.Autonomous);
+            matrix.put("user-" + i, PpmsPrivileges.of(Arrays.asList(
+                new PpmsUserPrivilege(10L, privilege),
+                new PpmsUserPrivilege(30L, PpmsPrivilege.SuperUser))));
+        }
+        matrix.put("user-129", PpmsPrivileges.of(Arrays.asList(
+            new PpmsUserPrivilege(10L, PpmsPrivilege.Autonomous),
+            new PpmsUserPrivilege(10L, PpmsPrivilege.Deactivated))));
+        boolean unknownUserStored = matrix.put("unknown", PpmsPrivileges.EMPTY);
+
+        // assert results
+        assertFalse(unknownUserStored, "Unknown user should be ignored");
+        assertEquals(matrix.getUsersCount(), 130, "Incorrect users count");
+        assertEquals(matrix.getSystemsCount(), 2, "Incorrect systems count");
+
+        assertEquals(matrix.listActivatedUsers(10L).size(), 129, "Incorrect activated users count");
+        assertFalse(matrix.listActivatedUsers(10L).contains("user-129"), "Deactivated user not expected");
+        assertEquals(matrix.listActivatedUsers(10L).get(128), "user-128", "Rows order expected");
+        assertEquals(matrix.listAutonomousUsers(10L).size(), 65, "Incorrect autonomous users count");
+        assertEquals(matrix.countUsers(10L, PpmsPrivilege.Novice), 65, "Incorrect novice users count");
+
+        assertTrue(matrix.listActivatedUsers(20L).isEmpty(), "No user expected");
+        assertTrue(matrix.listActivatedUsers(30L).isEmpty(), "Out of matrix system should be ignored");
+        assertTrue(matrix.has("user-1", 10L, PpmsPrivilege.Autonomous), "Autonomous user expected");
+        assertEquals(matrix.getMask("user-129", 10L),
+                     PpmsPrivileges.maskOf(PpmsPrivilege.Autonomous) | PpmsPrivileges.DEACTIVATED_MASK,
+                     "Incorrect mask");
+    }
+
+}
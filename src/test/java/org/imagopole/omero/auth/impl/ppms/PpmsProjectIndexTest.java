@@ -0,0 +1,193 @@
+package org.imagopole.omero.auth.impl.ppms;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.imagopole.omero.auth.api.dto.NamedItem;
+import org.imagopole.omero.auth.api.ppms.PpmsProjectSource;
+import org.imagopole.ppms.api.PumapiException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class PpmsProjectIndexTest {
+
+    /** Projects source stub. */
+    private InMemoryProjectSource projectSource;
+
+    /** @TestedObject */
+    private PpmsProjectIndex projectIndex;
+
+    @BeforeMethod
+    public void setup() {
+        projectSource = new InMemoryProjectSource();
+        projectSource.put("p1", "Project One", "alice", "bob");
+        projectSource.put("p2", "Project Two", "bob");
+        projectSource.put("p3", "Project Three", "carol");
+
+        projectIndex = new PpmsProjectIndex(projectSource);
+    }
+
+    @AfterMethod
+    public void shutdown() {
+        projectIndex.shutdown();
+    }
+
+    @Test
+    public void projectsShouldBeLoadedInBulkUponFirstLookup() {
+        assertFalse(projectIndex.isLoaded(), "Lazy loading expected");
+
+        // run test
+        List<NamedItem> bobProjects = projectIndex.findProjectsByUserName("bob");
+        List<NamedItem> aliceProjects = projectIndex.findProjectsByUserName("alice");
+        List<NamedItem> unknownProjects = projectIndex.findProjectsByUserName("dave");
+
+        // assert results + invocations
+        assertEquals(names(bobProjects), Arrays.asList("Project One", "Project Two"), "Incorrect projects");
+        assertEquals(bobProjects.get(0).getIdentifier(), "p1", "Incorrect project reference");
+        assertEquals(names(aliceProjects), Arrays.asList("Project One"), "Incorrect projects");
+        assertTrue(unknownProjects.isEmpty(), "No projects expected");
+        assertEquals(projectSource.listProjectsCount, 1, "Incorrect projects listings count");
+        assertEquals(projectSource.listMembersCount, 3, "Incorrect members lookups count");
+    }
+
+    @Test
+    public void refreshShouldLoadNewProjectsAndDropInactiveOnes() {
+        projectIndex.setRefreshBatchSize(0);
+        projectIndex.reload();
+
+        projectSource.remove("p1");
+        projectSource.put("p4", "Project Four", "alice");
+
+        // run test
+        projectIndex.refresh();
+
+        // assert results + invocations
+        assertEquals(projectIndex.size(), 3, "Incorrect projects count");
+        assertEquals(names(projectIndex.findProjectsByUserName("alice")), Arrays.asList("Project Four"),
+                     "Incorrect projects");
+        assertEquals(names(projectIndex.findProjectsByUserName("bob")), Arrays.asList("Project Two"),
+                     "Incorrect projects");
+        assertEquals(projectSource.listMembersCount, 3 + 1, "Only the new project should be looked up");
+    }
+
+    @Test
+    public void refreshShouldReloadLeastRecentlyLoadedMembersInBatches() {
+        projectIndex.setRefreshBatchSize(2);
+        projectIndex.reload();
+
+        projectSource.put("p1", "Project One", "alice");
+        projectSource.put("p3", "Project Three", "carol", "bob");
+
+        // run test: p1 + p2 first, then p3 + p1
+        projectIndex.refresh();
+        List<String> p3MembersAfterFirstRefresh = projectIndex.findMembersByProject("p3");
+        projectIndex.refresh();
+
+        // assert results + invocations
+        assertEquals(p3MembersAfterFirstRefresh, Arrays.asList("carol"), "Stale members expected");
+        assertEquals(projectIndex.findMembersByProject("p3"), Arrays.asList("carol", "bob"), "Incorrect members");
+        assertEquals(names(projectIndex.findProjectsByUserName("bob")), Arrays.asList("Project Two", "Project Three"),
+                     "Incorrect projects");
+        assertEquals(projectSource.listMembersCount, 3 + 2 + 2, "Incorrect members lookups count");
+    }
+
+    @Test
+    public void failedRefreshShouldKeepCurrentIndex() {
+        projectIndex.reload();
+        projectSource.failing = true;
+
+        // run test
+        try {
+            projectIndex.refresh();
+            throw new AssertionError("Refresh failure expected");
+        } catch (PumapiException e) {
+            // expected
+        }
+
+        // assert results
+        assertEquals(projectIndex.size(), 3, "Current index should be kept");
+        assertEquals(names(projectIndex.findProjectsByUserName("carol")), Arrays.asList("Project Three"),
+                     "Incorrect projects");
+    }
+
+    @Test
+    public void serviceShouldResolveProjectsFromIndex() {
+        DefaultPpmsService ppmsService = new DefaultPpmsService();
+        ppmsService.setProjectIndex(projectIndex);
+
+        // run test
+        List<NamedItem> result = ppmsService.findProjectsByUserName("bob");
+        ppmsService.findProjectsByUserName("alice");
+
+        // assert results + invocations
+        assertEquals(names(result), Arrays.asList("Project One", "Project Two"), "Incorrect projects");
+        assertEquals(projectSource.listMembersCount, 3, "No per-user lookups expected");
+    }
+
+    @Test
+    public void csvLinesShouldBeSplitWithQuotes() {
+        String[] result = PumapiCsvReader.parseLine("12,\"Imaging, \"\"core\"\"\", true");
+
+        assertEquals(result, new String[] { "12", "Imaging, \"core\"", "true" }, "Incorrect values");
+    }
+
+    private static List<String> names(List<NamedItem> items) {
+        List<String> result = new ArrayList<String>();
+        for (NamedItem item : items) {
+            result.add(item.getName());
+        }
+        return result;
+    }
+
+    /**
+     * Projects source stub counting the invocations.
+     */
+    private static class InMemoryProjectSource implements PpmsProjectSource {
+
+        private final Map<String, NamedItem> projects = new LinkedHashMap<String, NamedItem>();
+
+        private final Map<String, List<String>> members = new LinkedHashMap<String, List<String>>();
+
+        private int listProjectsCount;
+
+        private int listMembersCount;
+
+        private boolean failing;
+
+        private void put(String projectRef, String name, String... logins) {
+            projects.put(projectRef, NamedItem.newItem(projectRef, name, null));
+            members.put(projectRef, Arrays.asList(logins));
+        }
+
+        private void remove(String projectRef) {
+            projects.remove(projectRef);
+            members.remove(projectRef);
+        }
+
+        @Override
+        public List<NamedItem> listActiveProjects() throws PumapiException {
+            ++listProjectsCount;
+
+            if (failing) {
+                throw new PumapiException("ppms.failure/list-projects");
+            }
+
+            return new ArrayList<NamedItem>(projects.values());
+        }
+
+        @Override
+        public List<String> listProjectMembers(String projectRef) throws PumapiException {
+            ++listMembersCount;
+            return members.get(projectRef);
+        }
+    }
+
+}
@@ -0,0 +1,196 @@
+package org.imagopole.omero.auth.impl.ppms;
+
+import static org.imagopole.omero.auth.TestsUtil.activeSystem;
+import static org.imagopole.omero.auth.TestsUtil.inactiveSystem;
+import static org.imagopole.omero.auth.TestsUtil.newOpenSystem;
+import static org.imagopole.omero.auth.TestsUtil.newRestrictedSystem;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.imagopole.omero.auth.TestsUtil.PpmsUnit;
+import org.imagopole.ppms.api.PumapiClient;
+import org.imagopole.ppms.api.dto.PpmsSystem;
+import org.testng.annotations.Test;
+import org.unitils.UnitilsTestNG;
+import org.unitils.mock.Mock;
+
+public class PpmsSystemCatalogueTest extends UnitilsTestNG {
+
+    /** PUMAPI HTTP client */
+    private Mock<PumapiClient> pumapiClientMock;
+
+    @Test
+    public void getSystemsShouldLookupMissingSystemsOnce() {
+        PpmsSystemCatalogue catalogue = newCatalogue();
+
+        // define behaviour: subsequent PUMAPI lookups would return null
+        pumapiClientMock.onceReturns(newOpenSystem()).getSystem(PpmsUnit.OPEN_SYSTEM_ID);
+        pumapiClientMock.onceReturns(newRestrictedSystem()).getSystem(PpmsUnit.RESTRICTED_SYSTEM_ID);
+        List<Long> systemIds = Arrays.asList(PpmsUnit.OPEN_SYSTEM_ID, PpmsUnit.RESTRICTED_SYSTEM_ID);
+
+        // run test
+        catalogue.getSystems(systemIds);
+        List<PpmsSystem> result = catalogue.getSystems(systemIds);
+
+        // assert results
+        assertEquals(result.size(), 2, "Incorrect results");
+        assertEquals(result.get(0).getSystemId(), Long.valueOf(PpmsUnit.OPEN_SYSTEM_ID), "Incorrect results");
+        assertEquals(result.get(1).getSystemId(), Long.valueOf(PpmsUnit.RESTRICTED_SYSTEM_ID), "Incorrect results");
+        assertEquals(catalogue.size(), 2, "Incorrect catalogue size");
+    }
+
+    @Test
+    public void getSystemsShouldKeepOrderAndUnknownSystems() {
+        PpmsSystemCatalogue catalogue = newCatalogue();
+
+        // define behaviour: catalogue the restricted system first
+        pumapiClientMock.returns(newOpenSystem()).getSystem(PpmsUnit.OPEN_SYSTEM_ID);
+        pumapiClientMock.returns(newRestrictedSystem()).getSystem(PpmsUnit.RESTRICTED_SYSTEM_ID);
+        catalogue.getSystem(PpmsUnit.RESTRICTED_SYSTEM_ID);
+
+        // run test
+        List<PpmsSystem> result = catalogue.getSystems(
+            Arrays.asList(PpmsUnit.OPEN_SYSTEM_ID, PpmsUnit.INACTIVE_SYSTEM_ID, PpmsUnit.RESTRICTED_SYSTEM_ID));
+
+        // assert results
+        assertEquals(result.size(), 3, "Incorrect results");
+        assertEquals(result.get(0).getSystemId(), Long.valueOf(PpmsUnit.OPEN_SYSTEM_ID), "Incorrect results");
+        assertNull(result.get(1), "Null results expected");
+        assertEquals(result.get(2).getSystemId(), Long.valueOf(PpmsUnit.RESTRICTED_SYSTEM_ID), "Incorrect results");
+        assertEquals(catalogue.size(), 2, "Unknown systems should not be catalogued");
+    }
+
+    @Test
+    public void getSystemsShouldRememberUnknownSystemsUntilRefresh() {
+        PpmsSystemCatalogue catalogue = newCatalogue();
+
+        // define behaviour: the system only becomes known to PPMS after the first lookup
+        PpmsSystem lateSystem = activeSystem(PpmsUnit.INACTIVE_SYSTEM_ID, "late");
+        pumapiClientMock.onceReturns(null).getSystem(PpmsUnit.INACTIVE_SYSTEM_ID);
+        pumapiClientMock.returns(lateSystem).getSystem(PpmsUnit.INACTIVE_SYSTEM_ID);
+
+        // run test
+        PpmsSystem firstResult = catalogue.getSystem(PpmsUnit.INACTIVE_SYSTEM_ID);
+        PpmsSystem cachedResult = catalogue.getSystem(PpmsUnit.INACTIVE_SYSTEM_ID);
+        catalogue.refresh();
+        PpmsSystem refreshedResult = catalogue.getSystem(PpmsUnit.INACTIVE_SYSTEM_ID);
+
+        // assert results
+        assertNull(firstResult, "Null results expected");
+        assertNull(cachedResult, "Unknown system should not be looked up again before refresh");
+        assertEquals(refreshedResult.getName(), "late", "Incorrect results");
+        assertEquals(catalogue.size(), 1, "Incorrect catalogue size");
+    }
+
+    @Test
+    public void refreshShouldReplaceCatalogue() {
+        PpmsSystemCatalogue catalogue = newCatalogue();
+
+        // define behaviour: the open system gets renamed, the restricted one disappears
+        PpmsSystem renamedSystem = activeSystem(PpmsUnit.OPEN_SYSTEM_ID, "renamed");
+        pumapiClientMock.onceReturns(newOpenSystem()).getSystem(PpmsUnit.OPEN_SYSTEM_ID);
+        pumapiClientMock.onceReturns(renamedSystem).getSystem(PpmsUnit.OPEN_SYSTEM_ID);
+        pumapiClientMock.onceReturns(newRestrictedSystem()).getSystem(PpmsUnit.RESTRICTED_SYSTEM_ID);
+        catalogue.getSystems(Arrays.asList(PpmsUnit.OPEN_SYSTEM_ID, PpmsUnit.RESTRICTED_SYSTEM_ID));
+
+        // run test
+        catalogue.refresh();
+
+        // assert results
+        assertEquals(catalogue.size(), 1, "Incorrect catalogue size");
+        assertEquals(catalogue.getSystem(PpmsUnit.OPEN_SYSTEM_ID).getName(), "renamed", "Incorrect results");
+        assertNull(catalogue.peekSystem(PpmsUnit.RESTRICTED_SYSTEM_ID), "Null results expected");
+    }
+
+    @Test
+    public void evictShouldForceLookup() {
+        PpmsSystemCatalogue catalogue = newCatalogue();
+
+        // define behaviour: the open system gets deactivated after the first lookup
+        PpmsSystem inactiveSystem = inactiveSystem(PpmsUnit.OPEN_SYSTEM_ID, "deactivated");
+        pumapiClientMock.onceReturns(newOpenSystem()).getSystem(PpmsUnit.OPEN_SYSTEM_ID);
+        pumapiClientMock.onceReturns(inactiveSystem).getSystem(PpmsUnit.OPEN_SYSTEM_ID);
+        pumapiClientMock.returns(newRestrictedSystem()).getSystem(PpmsUnit.RESTRICTED_SYSTEM_ID);
+        catalogue.getSystems(Arrays.asList(PpmsUnit.OPEN_SYSTEM_ID, PpmsUnit.RESTRICTED_SYSTEM_ID));
+
+        // run test
+        boolean result = catalogue.evict(PpmsUnit.OPEN_SYSTEM_ID);
+        boolean unknownResult = catalogue.evict(PpmsUnit.INACTIVE_SYSTEM_ID);
+
+        // assert results
+        assertTrue(result, "Evicted system expected");
+        assertFalse(unknownResult, "Uncatalogued system expected");
+        assertNull(catalogue.peekSystem(PpmsUnit.OPEN_SYSTEM_ID), "Null results expected");
+        assertEquals(catalogue.getSystem(PpmsUnit.OPEN_SYSTEM_ID).getName(), "deactivated", "Incorrect results");
+        assertEquals(catalogue.size(), 2, "Incorrect catalogue size");
+
+        assertEquals(catalogue.evictAll(), 2, "Incorrect evicted count");
+        assertEquals(catalogue.size(), 0, "Empty catalogue expected");
+    }
+
+    @Test
+    public void findShouldUseSecondaryIndexes() {
+        PpmsSystemCatalogue catalogue = newCatalogue();
+
+        // define behaviour
+        PpmsSystem otherFacilitySystem = activeSystem(PpmsUnit.DUPLICATE_SYSTEM_ID, "other");
+        otherFacilitySystem.setCoreFacilityRef(PpmsUnit.FACILITY_ID + 1);
+        otherFacilitySystem.setType("Other type");
+        pumapiClientMock.returns(newOpenSystem()).getSystem(PpmsUnit.OPEN_SYSTEM_ID);
+        pumapiClientMock.returns(otherFacilitySystem).getSystem(PpmsUnit.DUPLICATE_SYSTEM_ID);
+        catalogue.getSystems(Arrays.asList(PpmsUnit.OPEN_SYSTEM_ID, PpmsUnit.DUPLICATE_SYSTEM_ID));
+
+        // run test
+        List<PpmsSystem> byFacility = catalogue.findByFacility(PpmsUnit.FACILITY_ID);
+        List<PpmsSystem> byType = catalogue.findByType("Other type");
+        List<PpmsSystem> byFacilitiesAndTypes = catalogue.findByFacilitiesAndTypes(
+            Arrays.asList(PpmsUnit.FACILITY_ID, PpmsUnit.FACILITY_ID + 1),
+            Collections.singletonList(PpmsUnit.SYSTEM_TYPE));
+
+        // assert results
+        assertEquals(byFacility.size(), 1, "Incorrect results");
+        assertEquals(byFacility.get(0).getSystemId(), Long.valueOf(PpmsUnit.OPEN_SYSTEM_ID), "Incorrect results");
+        assertEquals(byType.size(), 1, "Incorrect results");
+        assertEquals(byType.get(0).getSystemId(), Long.valueOf(PpmsUnit.DUPLICATE_SYSTEM_ID), "Incorrect results");
+        assertEquals(byFacilitiesAndTypes.size(), 1, "Incorrect results");
+        assertTrue(catalogue.findByType("Unknown type").isEmpty(), "Empty results expected");
+    }
+
+    @Test
+    public void getSystemsShouldIndexLargeCatalogues() {
+        PpmsSystemCatalogue catalogue = newCatalogue();
+
+        // define behaviour
+        List<Long> systemIds = new ArrayList<Long>();
+        for (long systemId = 1; systemId <= 1000; ++systemId) {
+            pumapiClientMock.returns(activeSystem(systemId, "system-" + systemId)).getSystem(systemId);
+            systemIds.add(systemId);
+        }
+        catalogue.getSystems(systemIds);
+
+        // run test
+        Collections.reverse(systemIds);
+        List<PpmsSystem> result = catalogue.getSystems(systemIds);
+
+        // assert results
+        assertEquals(catalogue.size(), 1000, "Incorrect catalogue size");
+        for (int i = 0; i < systemIds.size(); ++i) {
+            assertEquals(result.get(i).getSystemId(), systemIds.get(i), "Incorrect results");
+        }
+    }
+
+    private PpmsSystemCatalogue newCatalogue() {
+        PpmsSystemCatalogue result = new PpmsSystemCatalogue(pumapiClientMock.getMock());
+        result.setEnabled(true);
+
+        return result;
+    }
+
+}
@@ -0,0 +1,289 @@
+package org.imagopole.omero.auth.impl.ppms;
+
+import static org.imagopole.omero.auth.TestsUtil.activeSystem;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.imagopole.ppms.api.PumapiClient;
+import org.imagopole.ppms.api.PumapiException;
+import org.imagopole.ppms.api.config.PumapiConfig;
+import org.imagopole.ppms.api.dto.PpmsGroup;
+import org.imagopole.ppms.api.dto.PpmsSystem;
+import org.imagopole.ppms.api.dto.PpmsUser;
+import org.imagopole.ppms.api.dto.PpmsUserPrivilege;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class PpmsSystemsLoaderTest {
+
+    /** @TestedObject */
+    private PpmsSystemsLoader systemsLoader;
+
+    @BeforeMethod
+    public void setup() {
+        systemsLoader = new PpmsSystemsLoader();
+        systemsLoader.setParallel(true);
+        systemsLoader.setThreads(8);
+        systemsLoader.setMaxPerLogin(3);
+        systemsLoader.setTimeoutMillis(5000L);
+    }
+
+    @AfterMethod
+    public void shutdown() {
+        systemsLoader.shutdown();
+    }
+
+    @Test
+    public void loadSystemsShouldKeepRequestOrder() {
+        // define behaviour: later systems complete first
+        SlowPumapiClient ppmsClient = new SlowPumapiClient(0);
+        List<Long> systemIds = Arrays.asList(50L, 40L, 30L, 20L, 10L, 5L);
+        ppmsClient.completeInReverseOrder(systemIds);
+        systemsLoader.setMaxPerLogin(systemIds.size());
+
+        // run test
+        List<PpmsSystem> result = systemsLoader.loadSystems(ppmsClient, systemIds);
+
+        // assert results
+        List<Long> reversedIds = new ArrayList<Long>(systemIds);
+        Collections.reverse(reversedIds);
+        assertEquals(ppmsClient.getCompletionOrder(), reversedIds, "Out of order completions expected");
+        assertEquals(result.size(), systemIds.size(), "Incorrect results");
+        for (int i = 0; i < systemIds.size(); ++i) {
+            assertEquals(result.get(i).getSystemId(), systemIds.get(i), "Incorrect results ordering");
+        }
+    }
+
+    @Test
+    public void loadSystemsShouldKeepUnknownSystemsAsNull() {
+        // define behaviour
+        SlowPumapiClient ppmsClient = new SlowPumapiClient(0);
+        List<Long> systemIds = Arrays.asList(10L, SlowPumapiClient.UNKNOWN_SYSTEM_ID, 20L);
+
+        // run test
+        List<PpmsSystem> result = systemsLoader.loadSystems(ppmsClient, systemIds);
+
+        // assert results
+        assertEquals(result.size(), 3, "Incorrect results");
+        assertNull(result.get(1), "Null results expected");
+        assertEquals(result.get(2).getSystemId(), Long.valueOf(20L), "Incorrect results");
+    }
+
+    @Test
+    public void loadSystemsShouldCapConcurrencyPerLogin() {
+        // define behaviour: lookups only complete by batches of 3 concurrent invocations
+        SlowPumapiClient ppmsClient = new SlowPumapiClient(0);
+        ppmsClient.rendezvousBy(3);
+
+        // run test
+        List<PpmsSystem> result = systemsLoader.loadSystems(ppmsClient, systemIds(12));
+
+        // assert results
+        assertEquals(result.size(), 12, "Incorrect results");
+        assertEquals(ppmsClient.getInvocationsCount(), 12, "Incorrect invocations count");
+        assertEquals(ppmsClient.getMaxConcurrency(), 3, "Incorrect maximum concurrency");
+    }
+
+    @Test(expectedExceptions = { PumapiException.class },
+          expectedExceptionsMessageRegExp = ".*Timed out.*")
+    public void loadSystemsShouldTimeOut() {
+        // define behaviour
+        SlowPumapiClient ppmsClient = new SlowPumapiClient(2000);
+        systemsLoader.setTimeoutMillis(100L);
+
+        // run test
+        systemsLoader.loadSystems(ppmsClient, systemIds(4));
+    }
+
+    @Test(expectedExceptions = { PumapiException.class },
+          expectedExceptionsMessageRegExp = "ppms.failure/get-system")
+    public void loadSystemsShouldPropagateFailures() {
+        // define behaviour
+        SlowPumapiClient ppmsClient = new SlowPumapiClient(0);
+        List<Long> systemIds = Arrays.asList(10L, SlowPumapiClient.FAILING_SYSTEM_ID, 20L);
+
+        // run test
+        systemsLoader.loadSystems(ppmsClient, systemIds);
+    }
+
+    @Test
+    public void loadSystemsShouldBeSequentialByDefault() {
+        // define behaviour
+        SlowPumapiClient ppmsClient = new SlowPumapiClient(0);
+        PpmsSystemsLoader defaultLoader = new PpmsSystemsLoader();
+
+        // run test
+        List<PpmsSystem> result = defaultLoader.loadSystems(ppmsClient, systemIds(6));
+
+        // assert results
+        assertEquals(result.size(), 6, "Incorrect results");
+        assertEquals(ppmsClient.getMaxConcurrency(), 1, "Sequential lookups expected");
+    }
+
+    private static List<Long> systemIds(int count) {
+        List<Long> result = new ArrayList<Long>();
+        for (long i = 1; i <= count; ++i) {
+            result.add(i);
+        }
+        return result;
+    }
+
+    /**
+     * PUMAPI client stub with optional systems lookups latency, rendezvous or completion ordering,
+     * tracking the maximum number of concurrent invocations.
+     */
+    private static class SlowPumapiClient implements PumapiClient {
+
+        private static final Long UNKNOWN_SYSTEM_ID = 404L;
+
+        private static final Long FAILING_SYSTEM_ID = 500L;
+
+        private final long fixedDelayMillis;
+
+        private final AtomicInteger concurrency = new AtomicInteger();
+
+        private final AtomicInteger maxConcurrency = new AtomicInteger();
+
+        private final AtomicInteger invocationsCount = new AtomicInteger();
+
+        private final List<Long> completionOrder = new CopyOnWriteArrayList<Long>();
+
+        /** Completion latches by system, and the system each lookup waits for before completing. */
+        private final Map<Long, CountDownLatch> completions = new ConcurrentHashMap<Long, CountDownLatch>();
+        private final Map<Long, Long> awaitedSystems = new ConcurrentHashMap<Long, Long>();
+
+        private volatile CyclicBarrier barrier;
+
+        public SlowPumapiClient(long fixedDelayMillis) {
+            this.fixedDelayMillis = fixedDelayMillis;
+        }
+
+        public int getMaxConcurrency() {
+            return maxConcurrency.get();
+        }
+
+        public int getInvocationsCount() {
+            return invocationsCount.get();
+        }
+
+        public List<Long> getCompletionOrder() {
+            return completionOrder;
+        }
+
+        /** Each lookup only completes once the next system in the list has completed. */
+        public void completeInReverseOrder(List<Long> systemIds) {
+            for (int i = 0; i < systemIds.size(); ++i) {
+                completions.put(systemIds.get(i), new CountDownLatch(1));
+                if (i + 1 < systemIds.size()) {
+                    awaitedSystems.put(systemIds.get(i), systemIds.get(i + 1));
+                }
+            }
+        }
+
+        /** Lookups only complete once <code>parties</code> of them are in flight. */
+        public void rendezvousBy(int parties) {
+            barrier = new CyclicBarrier(parties);
+        }
+
+        @Override
+        public PpmsSystem getSystem(Long systemId) throws PumapiException {
+            invocationsCount.incrementAndGet();
+            int current = concurrency.incrementAndGet();
+
+            int max = maxConcurrency.get();
+            while (current > max && !maxConcurrency.compareAndSet(max, current)) {
+                max = maxConcurrency.get();
+            }
+
+            try {
+                TimeUnit.MILLISECONDS.sleep(fixedDelayMillis);
+                awaitTurn(systemId);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new PumapiException("interrupted");
+            } finally {
+                concurrency.decrementAndGet();
+            }
+
+            completionOrder.add(systemId);
+            CountDownLatch completion = completions.get(systemId);
+            if (null != completion) {
+                completion.countDown();
+            }
+
+            if (FAILING_SYSTEM_ID.equals(systemId)) {
+                throw new PumapiException("ppms.failure/get-system");
+            }
+
+            return (UNKNOWN_SYSTEM_ID.equals(systemId) ? null : activeSystem(systemId, "system-" + systemId));
+        }
+
+        private void awaitTurn(Long systemId) throws InterruptedException, PumapiException {
+            try {
+                if (null != barrier) {
+                    barrier.await(5, TimeUnit.SECONDS);
+                }
+
+                Long awaitedSystem = awaitedSystems.get(systemId);
+                if (null != awaitedSystem && !completions.get(awaitedSystem).await(5, TimeUnit.SECONDS)) {
+                    throw new PumapiException("Missing concurrent lookup for: " + awaitedSystem);
+                }
+            } catch (BrokenBarrierException e) {
+                throw new PumapiException("Broken rendezvous");
+            } catch (TimeoutException e) {
+                throw new PumapiException("Missing concurrent lookups");
+            }
+        }
+
+        @Override
+        public PumapiConfig getConfig() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setConfig(PumapiConfig config) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<String> getUsers(Boolean active) throws PumapiException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public PpmsUser getUser(String login) throws PumapiException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<PpmsUserPrivilege> getUserRights(String login) throws PumapiException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public PpmsGroup getGroup(String unitLogin) throws PumapiException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean authenticate(String login, String password) throws PumapiException {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+}
@@ -0,0 +1,72 @@
+package org.imagopole.omero.auth.impl.ppms;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Field;
+
+import org.testng.annotations.Test;
+
+public class PumapiCacheKeyTest {
+
+    @Test
+    public void keysShouldMatchFreshKeysAfterSerialization() throws Exception {
+        PumapiCacheKey[] keys = new PumapiCacheKey[] {
+            PumapiCacheKey.forUser("some.user"),
+            PumapiCacheKey.forGroup("some.unit"),
+            PumapiCacheKey.forSystem(42L),
+            PumapiCacheKey.forUserRights("some.user")
+        };
+
+        for (PumapiCacheKey key : keys) {
+            PumapiCacheKey result = roundTrip(key);
+
+            assertNotSame(result, key, "Deserialized instance expected");
+            assertEquals(result, key, "Incorrect deserialized key");
+            assertEquals(result.hashCode(), key.hashCode(), "Incorrect deserialized hash code");
+        }
+    }
+
+    @Test
+    public void keysShouldMatchFreshKeysWhenPersistedWithForeignHashCode() throws Exception {
+        // simulates a key persisted by another JVM, with a different precomputed hash code
+        PumapiCacheKey foreignKey = PumapiCacheKey.forUser("some.user");
+        Field hashCodeField = PumapiCacheKey.class.getDeclaredField("hashCode");
+        hashCodeField.setAccessible(true);
+        hashCodeField.setInt(foreignKey, foreignKey.hashCode() + 1);
+
+        PumapiCacheKey result = roundTrip(foreignKey);
+
+        PumapiCacheKey freshKey = PumapiCacheKey.forUser("some.user");
+        assertEquals(result, freshKey, "Incorrect deserialized key");
+        assertEquals(result.hashCode(), freshKey.hashCode(), "Incorrect deserialized hash code");
+    }
+
+    @Test
+    public void hashCodeShouldNotDependOnInvocationIdentity() {
+        PumapiCacheKey key = PumapiCacheKey.forSystem(42L);
+
+        int expected = 31 * (31 * "GET_SYSTEM".hashCode()) + 42;
+        assertEquals(key.hashCode(), expected, "Content-based hash code expected");
+    }
+
+    private static PumapiCacheKey roundTrip(PumapiCacheKey key) throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(key);
+        out.close();
+
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        try {
+            return (PumapiCacheKey) in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+
+}
@@ -0,0 +1,59 @@
+package org.imagopole.omero.auth.impl.ppms;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import org.imagopole.omero.auth.TestsUtil.Data;
+import org.imagopole.omero.auth.impl.user.SyncFreshnessLedger;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.unitils.UnitilsTestNG;
+import org.unitils.mock.Mock;
+
+public class PumapiCacheManagementTest extends UnitilsTestNG {
+
+    /** @TestedObject */
+    private PumapiCacheManagement cacheManagement;
+
+    /** Managed caching client. */
+    private Mock<CachingPumapiClient> cachingClientMock;
+
+    /** Accounts synchronizations ledger (in-memory). */
+    private SyncFreshnessLedger syncLedger;
+
+    @BeforeMethod
+    public void setUp() {
+        syncLedger = new SyncFreshnessLedger(System.getProperty("java.io.tmpdir"));
+        syncLedger.setMinIntervalSeconds(300);
+
+        cacheManagement = new PumapiCacheManagement(cachingClientMock.getMock());
+        cacheManagement.setSyncLedger(syncLedger);
+    }
+
+    @Test
+    public void evictUserShouldInvalidateSyncLedger() {
+        cachingClientMock.returns(2).evictUser(Data.USERNAME);
+
+        syncLedger.recordSync(Data.USERNAME);
+        assertTrue(syncLedger.isFresh(Data.USERNAME), "Synchronized user should be fresh");
+
+        int result = cacheManagement.evictUser(Data.USERNAME);
+
+        assertEquals(result, 2, "Incorrect evictions count");
+        assertFalse(syncLedger.isFresh(Data.USERNAME), "Evicted user should not be fresh");
+        cachingClientMock.assertInvoked().evictUser(Data.USERNAME);
+    }
+
+    @Test
+    public void evictUserShouldIgnoreMissingSyncLedger() {
+        String login = "evicted.user";
+        cachingClientMock.returns(1).evictUser(login);
+        cacheManagement.setSyncLedger(null);
+
+        int result = cacheManagement.evictUser(login);
+
+        assertEquals(result, 1, "Incorrect evictions count");
+    }
+
+}
@@ -0,0 +1,268 @@
+package org.imagopole.omero.auth.impl.ppms;
+
+import static org.imagopole.omero.auth.TestsUtil.activate;
+import static org.imagopole.omero.auth.TestsUtil.autonomousRights;
+import static org.imagopole.omero.auth.TestsUtil.newFooUser;
+import static org.imagopole.omero.auth.TestsUtil.newOpenSystem;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+
+import org.imagopole.omero.auth.TestsUtil.Data;
+import org.imagopole.omero.auth.TestsUtil.PpmsUnit;
+import org.imagopole.ppms.api.dto.PpmsGroup;
+import org.imagopole.ppms.api.dto.PpmsSystem;
+import org.imagopole.ppms.api.dto.PpmsUser;
+import org.imagopole.ppms.api.dto.PpmsUserPrivilege;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class PumapiCacheSnapshotStoreTest {
+
+    private static final List<String> REGION_NAMES =
+        Arrays.asList("snapshotUserCache", "snapshotGroupCache", "snapshotSystemCache", "snapshotRightsCache");
+
+    /** Actual cache manager instance */
+    private CacheManager cacheManager;
+
+    private File snapshotFile;
+
+    @BeforeClass
+    public void setup() {
+        cacheManager = CacheManager.create();
+        for (String regionName : REGION_NAMES) {
+            if (!cacheManager.cacheExists(regionName)) {
+                cacheManager.addCache(regionName);
+            }
+        }
+    }
+
+    @BeforeMethod
+    public void createSnapshotFile() throws IOException {
+        snapshotFile = File.createTempFile("pumapi-cache", ".snapshot");
+        snapshotFile.delete();
+    }
+
+    @AfterMethod
+    public void clearCache() {
+        clearRegions();
+        snapshotFile.delete();
+    }
+
+    @Test
+    public void restoreShouldReturnPersistedEntries() {
+        PpmsUser ppmsUser = activate(newFooUser());
+        ppmsUser.setUnitlogin(PpmsUnit.UNIT_LOGIN);
+        PpmsGroup ppmsGroup = new PpmsGroup();
+        ppmsGroup.setUnitlogin(PpmsUnit.UNIT_LOGIN);
+        ppmsGroup.setActive(true);
+        PpmsSystem ppmsSystem = newOpenSystem();
+        List<PpmsUserPrivilege> ppmsRights = autonomousRights(PpmsUnit.OPEN_SYSTEM_ID);
+
+        userCache().put(new Element(PumapiCacheKey.forUser(Data.USERNAME), ppmsUser));
+        cache(1).put(new Element(PumapiCacheKey.forGroup(PpmsUnit.UNIT_LOGIN), ppmsGroup));
+        cache(2).put(new Element(PumapiCacheKey.forSystem(PpmsUnit.OPEN_SYSTEM_ID), ppmsSystem));
+        cache(3).put(new Element(PumapiCacheKey.forUserRights(Data.USERNAME), ppmsRights));
+
+        // run test
+        int written = newSnapshotStore().write();
+        clearRegions();
+
+        PumapiCacheSnapshotStore restarted = newSnapshotStore();
+        restarted.load();
+
+        // assert results
+        assertEquals(written, 4, "Incorrect results");
+        assertEquals(restarted.getPendingCount(), 4, "Incorrect results");
+
+        Element userElement = restarted.restore(userCache(), PumapiCacheKey.forUser(Data.USERNAME));
+        assertNotNull(userElement, "Non null results expected");
+        PpmsUser restoredUser = (PpmsUser) userElement.getObjectValue();
+        assertEquals(restoredUser.getLogin(), ppmsUser.getLogin(), "Incorrect results");
+        assertEquals(restoredUser.getEmail(), ppmsUser.getEmail(), "Incorrect results");
+        assertEquals(restoredUser.getUnitlogin(), PpmsUnit.UNIT_LOGIN, "Incorrect results");
+        assertEquals(restoredUser.getActive(), Boolean.TRUE, "Incorrect results");
+
+        PpmsGroup restoredGroup =
+            (PpmsGroup) restarted.restore(cache(1), PumapiCacheKey.forGroup(PpmsUnit.UNIT_LOGIN)).getObjectValue();
+        assertEquals(restoredGroup.getUnitlogin(), PpmsUnit.UNIT_LOGIN, "Incorrect results");
+        assertNull(restoredGroup.getExt(), "Null results expected");
+
+        PpmsSystem restoredSystem =
+            (PpmsSystem) restarted.restore(cache(2), PumapiCacheKey.forSystem(PpmsUnit.OPEN_SYSTEM_ID)).getObjectValue();
+        assertEquals(restoredSystem.getSystemId(), ppmsSystem.getSystemId(), "Incorrect results");
+        assertEquals(restoredSystem.getName(), ppmsSystem.getName(), "Incorrect results");
+        assertEquals(restoredSystem.getActive(), ppmsSystem.getActive(), "Incorrect results");
+
+        @SuppressWarnings("unchecked")
+        List<PpmsUserPrivilege> restoredRights = (List<PpmsUserPrivilege>)
+            restarted.restore(cache(3), PumapiCacheKey.forUserRights(Data.USERNAME)).getObjectValue();
+        assertEquals(restoredRights.size(), 1, "Incorrect results");
+        assertEquals(restoredRights.get(0).getSystemId(), Long.valueOf(PpmsUnit.OPEN_SYSTEM_ID), "Incorrect results");
+        assertEquals(restoredRights.get(0).getPrivilege(), ppmsRights.get(0).getPrivilege(), "Incorrect results");
+
+        assertEquals(restarted.getPendingCount(), 0, "Incorrect results");
+        assertNotNull(userCache().get(PumapiCacheKey.forUser(Data.USERNAME)), "Restored cache entry expected");
+    }
+
+    @Test
+    public void restoreShouldPreserveTimestamps() throws InterruptedException {
+        Element element = new Element(PumapiCacheKey.forUser(Data.USERNAME), activate(newFooUser()));
+        userCache().put(element);
+        long creationTime = userCache().getQuiet(element.getObjectKey()).getCreationTime();
+
+        // run test
+        newSnapshotStore().write();
+        clearRegions();
+        Thread.sleep(20);
+
+        PumapiCacheSnapshotStore restarted = newSnapshotStore();
+        restarted.load();
+        Element result = restarted.restore(userCache(), PumapiCacheKey.forUser(Data.USERNAME));
+
+        // assert results
+        assertNotNull(result, "Non null results expected");
+        assertEquals(result.getCreationTime(), creationTime, "Incorrect results");
+        assertEquals(userCache().getQuiet(element.getObjectKey()).getCreationTime(), creationTime, "Incorrect results");
+    }
+
+    @Test
+    public void restoreShouldSkipExpiredEntries() throws InterruptedException {
+        Element element = new Element(PumapiCacheKey.forUser(Data.USERNAME), activate(newFooUser()));
+        element.setTimeToLive(1);
+        userCache().put(element);
+
+        // run test
+        newSnapshotStore().write();
+        clearRegions();
+        Thread.sleep(1100);
+
+        PumapiCacheSnapshotStore restarted = newSnapshotStore();
+        restarted.load();
+        Element result = restarted.restore(userCache(), PumapiCacheKey.forUser(Data.USERNAME));
+
+        // assert results
+        assertNull(result, "Null results expected");
+        assertEquals(userCache().getSize(), 0, "Incorrect results");
+    }
+
+    @Test
+    public void writeShouldSkipExpiredEntries() {
+        Element element = new Element(
+            PumapiCacheKey.forUser(Data.USERNAME), activate(newFooUser()),
+            1L, System.currentTimeMillis() - 5000L, 0L, 0L, 0L);
+        element.setTimeToLive(1);
+        userCache().putQuiet(element);
+
+        // run test
+        int written = newSnapshotStore().write();
+
+        // assert results
+        assertEquals(written, 0, "Incorrect results");
+    }
+
+    @Test
+    public void writeShouldCarryOverPendingEntries() {
+        userCache().put(new Element(PumapiCacheKey.forUser(Data.USERNAME), activate(newFooUser())));
+        newSnapshotStore().write();
+        clearRegions();
+
+        // run test: restart, lookup another user, then snapshot again
+        PumapiCacheSnapshotStore restarted = newSnapshotStore();
+        restarted.load();
+        userCache().put(new Element(PumapiCacheKey.forUser(PpmsUnit.OMERO_USER), activate(newFooUser())));
+        int written = restarted.write();
+        clearRegions();
+
+        PumapiCacheSnapshotStore restartedAgain = newSnapshotStore();
+        restartedAgain.load();
+
+        // assert results
+        assertEquals(written, 2, "Incorrect results");
+        assertNotNull(restartedAgain.restore(userCache(), PumapiCacheKey.forUser(Data.USERNAME)),
+                      "Non null results expected");
+        assertNotNull(restartedAgain.restore(userCache(), PumapiCacheKey.forUser(PpmsUnit.OMERO_USER)),
+                      "Non null results expected");
+    }
+
+    @Test
+    public void loadShouldIgnoreUnknownFormat() throws IOException {
+        FileOutputStream out = new FileOutputStream(snapshotFile);
+        try {
+            out.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+        } finally {
+            out.close();
+        }
+
+        // run test
+        PumapiCacheSnapshotStore snapshotStore = newSnapshotStore();
+        snapshotStore.load();
+
+        // assert results
+        assertEquals(snapshotStore.getPendingCount(), 0, "Incorrect results");
+    }
+
+    @Test
+    public void startShouldBeDisabledByDefault() {
+        PumapiCacheSnapshotStore snapshotStore = new PumapiCacheSnapshotStore(cacheManager, null);
+
+        // run test
+        snapshotStore.start();
+        snapshotStore.shutdown();
+
+        // assert results
+        assertFalse(snapshotStore.isActive(), "Inactive store expected");
+        assertFalse(snapshotFile.exists(), "No snapshot expected");
+    }
+
+    @Test
+    public void shutdownShouldWriteSnapshot() {
+        userCache().put(new Element(PumapiCacheKey.forUser(Data.USERNAME), activate(newFooUser())));
+        PumapiCacheSnapshotStore snapshotStore = newSnapshotStore();
+
+        // run test
+        snapshotStore.start();
+        snapshotStore.shutdown();
+
+        // assert results
+        assertTrue(snapshotFile.isFile(), "Snapshot expected");
+    }
+
+    private PumapiCacheSnapshotStore newSnapshotStore() {
+        PumapiCacheSnapshotStore result = new PumapiCacheSnapshotStore(cacheManager, null);
+        result.setEnabled(true);
+        result.setSnapshotFile(snapshotFile.getAbsolutePath());
+        result.setRegionNames(REGION_NAMES);
+
+        return result;
+    }
+
+    private void clearRegions() {
+        for (String regionName : REGION_NAMES) {
+            cacheManager.getEhcache(regionName).removeAll();
+        }
+    }
+
+    private Ehcache userCache() {
+        return cache(0);
+    }
+
+    private Ehcache cache(int regionIndex) {
+        return cacheManager.getEhcache(REGION_NAMES.get(regionIndex));
+    }
+
+}
@@ -0,0 +1,223 @@
+package org.imagopole.omero.auth.impl.ppms;
+
+import static org.imagopole.omero.auth.TestsUtil.activate;
+import static org.imagopole.omero.auth.TestsUtil.autonomousRights;
+import static org.imagopole.omero.auth.TestsUtil.newFooUser;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.imagopole.omero.auth.TestsUtil.Data;
+import org.imagopole.omero.auth.TestsUtil.PpmsUnit;
+import org.imagopole.ppms.api.PumapiClient;
+import org.imagopole.ppms.api.PumapiException;
+import org.imagopole.ppms.api.config.PumapiConfig;
+import org.imagopole.ppms.api.dto.PpmsGroup;
+import org.imagopole.ppms.api.dto.PpmsSystem;
+import org.imagopole.ppms.api.dto.PpmsUser;
+import org.imagopole.ppms.api.dto.PpmsUserPrivilege;
+import org.testng.annotations.Test;
+import org.unitils.UnitilsTestNG;
+import org.unitils.mock.Mock;
+
+public class PumapiCacheWarmerTest extends UnitilsTestNG {
+
+    /** PUMAPI HTTP client */
+    private Mock<PumapiClient> pumapiClientMock;
+
+    @Test
+    public void warmUpShouldLoadUsersGroupsAndSystems() {
+        PumapiCacheWarmer cacheWarmer = newCacheWarmer();
+
+        // define behaviour
+        PpmsUser ppmsUser = activate(newFooUser());
+        ppmsUser.setUnitlogin(PpmsUnit.UNIT_LOGIN);
+
+        pumapiClientMock.returns(Arrays.asList(PpmsUnit.OMERO_USER)).getUsers(Boolean.TRUE);
+        pumapiClientMock.returns(ppmsUser).getUser(PpmsUnit.OMERO_USER);
+        pumapiClientMock.returns(autonomousRights(PpmsUnit.OPEN_SYSTEM_ID)).getUserRights(PpmsUnit.OMERO_USER);
+
+        // run test
+        int result = cacheWarmer.warmUp();
+
+        // assert results + invocations
+        assertEquals(result, 1, "Incorrect results");
+        pumapiClientMock.assertInvoked().getUser(PpmsUnit.OMERO_USER);
+        pumapiClientMock.assertInvoked().getGroup(PpmsUnit.UNIT_LOGIN);
+        pumapiClientMock.assertInvoked().getSystem(PpmsUnit.OPEN_SYSTEM_ID);
+    }
+
+    @Test
+    public void warmUpShouldLoadSharedSystemsOnce() {
+        PumapiCacheWarmer cacheWarmer = newCacheWarmer();
+
+        // define behaviour
+        pumapiClientMock.returns(Arrays.asList(PpmsUnit.OMERO_USER, Data.USERNAME)).getUsers(Boolean.TRUE);
+        pumapiClientMock.returns(autonomousRights(PpmsUnit.OPEN_SYSTEM_ID)).getUserRights(null);
+
+        // run test
+        int result = cacheWarmer.warmUp();
+
+        // assert results + invocations
+        assertEquals(result, 2, "Incorrect results");
+        pumapiClientMock.assertInvoked().getSystem(PpmsUnit.OPEN_SYSTEM_ID);
+        pumapiClientMock.assertNotInvoked().getSystem(PpmsUnit.OPEN_SYSTEM_ID);
+    }
+
+    @Test
+    public void warmUpShouldSkipFailedUsers() {
+        PumapiCacheWarmer cacheWarmer = newCacheWarmer();
+
+        // define behaviour
+        pumapiClientMock.returns(Arrays.asList(PpmsUnit.OMERO_USER, Data.USERNAME)).getUsers(Boolean.TRUE);
+        pumapiClientMock.raises(new PumapiException("warmup.failure")).getUser(Data.USERNAME);
+
+        // run test
+        int result = cacheWarmer.warmUp();
+
+        // assert results + invocations
+        assertEquals(result, 1, "Incorrect results");
+        pumapiClientMock.assertInvoked().getUser(PpmsUnit.OMERO_USER);
+    }
+
+    @Test
+    public void warmUpShouldSkipUsersListingFailures() {
+        PumapiCacheWarmer cacheWarmer = newCacheWarmer();
+
+        // define behaviour
+        pumapiClientMock.raises(new PumapiException("warmup.failure")).getUsers(Boolean.TRUE);
+
+        // run test
+        int result = cacheWarmer.warmUp();
+
+        // assert results
+        assertEquals(result, 0, "Incorrect results");
+    }
+
+    @Test
+    public void startShouldBeDisabledByDefault() throws InterruptedException {
+        CountingPumapiClient countingClient = new CountingPumapiClient(1);
+        PumapiCacheWarmer localWarmer = new PumapiCacheWarmer(countingClient);
+
+        // run test
+        localWarmer.start();
+
+        // assert results
+        assertTrue(localWarmer.awaitCompletion(1, TimeUnit.SECONDS), "Completion expected");
+        assertEquals(countingClient.getUserInvocationsCount(), 0, "No lookup expected");
+    }
+
+    @Test
+    public void startShouldWarmUpInBackground() throws InterruptedException {
+        PumapiCacheWarmer cacheWarmer = newCacheWarmer();
+
+        // define behaviour
+        pumapiClientMock.returns(Collections.singletonList(PpmsUnit.OMERO_USER)).getUsers(Boolean.TRUE);
+        cacheWarmer.setEnabled(true);
+
+        // run test
+        cacheWarmer.start();
+
+        // assert results + invocations
+        assertTrue(cacheWarmer.awaitCompletion(5, TimeUnit.SECONDS), "Completion expected");
+        pumapiClientMock.assertInvoked().getUser(PpmsUnit.OMERO_USER);
+    }
+
+    @Test
+    public void shutdownShouldCancelWarmUp() throws InterruptedException {
+        // non-mock delegate: lookups in flight upon cancellation must not leak into other tests
+        CountingPumapiClient countingClient = new CountingPumapiClient(100);
+        PumapiCacheWarmer localWarmer = new PumapiCacheWarmer(countingClient);
+
+        // define behaviour: slow enough to be interrupted
+        localWarmer.setRequestsPerSecond(5d);
+        localWarmer.setEnabled(true);
+
+        // run test
+        localWarmer.start();
+        TimeUnit.MILLISECONDS.sleep(500);
+        localWarmer.shutdown();
+
+        // assert results
+        assertTrue(localWarmer.awaitCompletion(5, TimeUnit.SECONDS), "Completion expected");
+        assertTrue(countingClient.getUserInvocationsCount() < 100, "Cancelled warm-up expected");
+    }
+
+    private PumapiCacheWarmer newCacheWarmer() {
+        PumapiCacheWarmer result = new PumapiCacheWarmer(pumapiClientMock.getMock());
+        result.setThreads(2);
+        result.setRequestsPerSecond(1000d);
+
+        return result;
+    }
+
+    /**
+     * PUMAPI client stub with a fixed number of active users.
+     */
+    private static class CountingPumapiClient implements PumapiClient {
+
+        private final int usersCount;
+
+        private final AtomicInteger userInvocationsCount = new AtomicInteger();
+
+        public CountingPumapiClient(int usersCount) {
+            this.usersCount = usersCount;
+        }
+
+        public int getUserInvocationsCount() {
+            return userInvocationsCount.get();
+        }
+
+        @Override
+        public List<String> getUsers(Boolean active) throws PumapiException {
+            List<String> result = new ArrayList<String>();
+            for (int i = 0; i < usersCount; ++i) {
+                result.add(Data.USERNAME + i);
+            }
+            return result;
+        }
+
+        @Override
+        public PpmsUser getUser(String login) throws PumapiException {
+            userInvocationsCount.incrementAndGet();
+            return null;
+        }
+
+        @Override
+        public List<PpmsUserPrivilege> getUserRights(String login) throws PumapiException {
+            return null;
+        }
+
+        @Override
+        public PumapiConfig getConfig() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setConfig(PumapiConfig config) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public PpmsGroup getGroup(String unitLogin) throws PumapiException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public PpmsSystem getSystem(Long systemId) throws PumapiException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean authenticate(String login, String password) throws PumapiException {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+}
@@ -0,0 +1,58 @@
+package org.imagopole.omero.auth.impl.ppms;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import java.io.IOException;
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.testng.annotations.Test;
+
+public class PumapiCsvReaderTest {
+
+    @Test
+    public void readRecordShouldKeepLineBreaksInQuotedValues() throws IOException {
+        PumapiCsvReader reader = newReader(
+            "id,name,description\r\n"
+            + "12,\"Imaging core\",\"Widefield\r\nand \"\"confocal\"\"\nsystems\"\r\n"
+            + "\r\n"
+            + "13,Cytometry,\"\"\n");
+
+        // run test
+        String[] header = reader.readRecord();
+        String[] first = reader.readRecord();
+        String[] second = reader.readRecord();
+        String[] end = reader.readRecord();
+        reader.close();
+
+        // assert results
+        assertEquals(header, new String[] { "id", "name", "description" }, "Incorrect header");
+        assertEquals(first, new String[] { "12", "Imaging core", "Widefield\r\nand \"confocal\"\nsystems" },
+                     "Incorrect multi-line record");
+        assertEquals(second, new String[] { "13", "Cytometry", "" }, "Incorrect record");
+        assertNull(end, "End of response expected");
+    }
+
+    @Test
+    public void readRecordShouldSupportLoneCarriageReturns() throws IOException {
+        PumapiCsvReader reader = newReader("login,active\rfoo,true\r\rbar,false");
+
+        // run test
+        String[] header = reader.readRecord();
+        String[] first = reader.readRecord();
+        String[] second = reader.readRecord();
+
+        // assert results
+        assertEquals(header, new String[] { "login", "active" }, "Incorrect header");
+        assertEquals(first, new String[] { "foo", "true" }, "Incorrect record");
+        assertEquals(second, new String[] { "bar", "false" }, "Incorrect record");
+        assertNull(reader.readRecord(), "End of response expected");
+        reader.close();
+    }
+
+    private static PumapiCsvReader newReader(String content) throws IOException {
+        return new PumapiCsvReader(new StringEntity(content, ContentType.create("text/csv", "UTF-8")));
+    }
+
+}
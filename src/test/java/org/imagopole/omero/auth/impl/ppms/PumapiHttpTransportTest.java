@@ -0,0 +1,243 @@
+package org.imagopole.omero.auth.impl.ppms;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.conn.SchemePortResolver;
+import org.apache.http.util.EntityUtils;
+import org.imagopole.ppms.api.PumapiException;
+import org.imagopole.ppms.api.config.PumapiConfig;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class PumapiHttpTransportTest {
+
+    /** Local PUMAPI endpoint stub. */
+    private HttpServer server;
+
+    /** Released upon test teardown, so that slow requests may complete. */
+    private CountDownLatch slowRequests;
+
+    /** @TestedObject */
+    private PumapiHttpTransport transport;
+
+    @BeforeMethod
+    public void setup() throws IOException {
+        slowRequests = new CountDownLatch(1);
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/pumapi/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String form = read(exchange.getRequestBody());
+                int status = 200;
+
+                if (form.contains("action=slow")) {
+                    try {
+                        slowRequests.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                } else if (form.contains("action=fail")) {
+                    status = 500;
+                }
+
+                byte[] body = form.getBytes("UTF-8");
+                exchange.sendResponseHeaders(status, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+
+        PumapiConfig config = new PumapiConfig();
+        config.setEndpoint("http://127.0.0.1:" + server.getAddress().getPort() + "/pumapi/");
+        config.setApiKey("some-api-key");
+
+        transport = new PumapiHttpTransport(config);
+    }
+
+    @AfterMethod
+    public void shutdown() {
+        slowRequests.countDown();
+        transport.shutdown();
+        server.stop(0);
+    }
+
+    @Test
+    public void requestsShouldReusePooledConnections() throws PumapiException {
+        transport.start();
+
+        // run test
+        String first = transport.post("getuser", Collections.singletonMap("login", "foo"), new BodyHandler());
+        String second = transport.post("getuser", Collections.singletonMap("login", "bar"), new BodyHandler());
+
+        // assert results
+        assertEquals(first, "apikey=some-api-key&action=getuser&login=foo", "Incorrect request form");
+        assertEquals(second, "apikey=some-api-key&action=getuser&login=bar", "Incorrect request form");
+        assertEquals(transport.getLeaseCount(), 2L, "Incorrect leases count");
+        assertEquals(transport.getLeasedConnections(), 0, "Connections should be released");
+        assertEquals(transport.getAvailableConnections(), 1, "Connection should be kept alive");
+    }
+
+    @Test(expectedExceptions = { PumapiException.class },
+          expectedExceptionsMessageRegExp = ".*HTTP status: 500")
+    public void unsuccessfulStatusShouldBeConvertedToPumapiException() throws PumapiException {
+        transport.post("fail", emptyParams(), new BodyHandler());
+    }
+
+    @Test
+    public void leaseTimeoutsShouldBeConvertedToPumapiException() throws Exception {
+        transport.setMaxConnectionsPerRoute(1);
+        transport.setLeaseTimeoutMillis(100);
+        transport.start();
+
+        Thread slowRequest = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    transport.post("slow", emptyParams(), new BodyHandler());
+                } catch (PumapiException e) {
+                    // ignored
+                }
+            }
+        });
+        slowRequest.start();
+
+        // wait for the slow request to hold the single connection
+        long deadline = System.currentTimeMillis() + 5000;
+        while (transport.getLeasedConnections() < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        // run test
+        try {
+            transport.post("getuser", emptyParams(), new BodyHandler());
+            throw new AssertionError("Lease timeout expected");
+        } catch (PumapiException e) {
+            assertTrue(e.getMessage().startsWith("Timed out after 100 ms"), "Incorrect error: " + e.getMessage());
+        }
+
+        // assert results
+        assertEquals(transport.getLeaseTimeoutCount(), 1L, "Incorrect lease timeouts count");
+        assertTrue(transport.getMaxLeaseWaitMillis() >= 0d, "Incorrect lease wait");
+
+        slowRequests.countDown();
+        slowRequest.join(5000);
+    }
+
+    @Test
+    public void invalidSettingsShouldBeIgnored() {
+        transport.setMaxConnections(null);
+        transport.setMaxConnectionsPerRoute(0);
+        transport.setKeepAliveSeconds(-1);
+        transport.setPreconnect(-1);
+
+        assertEquals(transport.getMaxConnections(), 20, "Default expected");
+        assertEquals(transport.getMaxConnectionsPerRoute(), 10, "Default expected");
+        assertEquals(transport.getKeepAliveSeconds(), 30, "Default expected");
+        assertEquals(transport.getPreconnect(), 0, "Default expected");
+    }
+
+    @Test
+    public void startupConnectionsShouldBeOpened() throws InterruptedException {
+        transport.setPreconnect(2);
+        transport.start();
+
+        // run test
+        long deadline = System.currentTimeMillis() + 5000;
+        while (transport.getAvailableConnections() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        // assert results
+        assertEquals(transport.getAvailableConnections(), 2, "Incorrect pre-connected connections count");
+    }
+
+    @Test
+    public void startupConnectionsShouldBeReusedForPortlessEndpoint() throws Exception {
+        final int serverPort = server.getAddress().getPort();
+
+        PumapiConfig config = new PumapiConfig();
+        config.setEndpoint("http://127.0.0.1/pumapi/");
+        config.setApiKey("some-api-key");
+
+        // resolve the default scheme port onto the local endpoint stub
+        PumapiHttpTransport portlessTransport = new PumapiHttpTransport(config) {
+            @Override
+            protected SchemePortResolver getSchemePortResolver() {
+                return new SchemePortResolver() {
+                    @Override
+                    public int resolve(HttpHost host) {
+                        return serverPort;
+                    }
+                };
+            }
+        };
+        portlessTransport.setPreconnect(1);
+
+        try {
+            portlessTransport.start();
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (portlessTransport.getAvailableConnections() < 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(portlessTransport.getAvailableConnections(), 1, "Pre-connected connection expected");
+
+            // run test
+            String result = portlessTransport.post("getuser", Collections.singletonMap("login", "foo"), new BodyHandler());
+
+            // assert results: no other connection opened on a distinct route
+            assertEquals(result, "apikey=some-api-key&action=getuser&login=foo", "Incorrect request form");
+            assertEquals(portlessTransport.getAvailableConnections(), 1, "Pre-connected connection should be reused");
+        } finally {
+            portlessTransport.shutdown();
+        }
+    }
+
+    private static Map<String, String> emptyParams() {
+        return Collections.emptyMap();
+    }
+
+    private static String read(InputStream in) throws IOException {
+        StringBuilder result = new StringBuilder();
+        byte[] buffer = new byte[1024];
+        int read = 0;
+        while ((read = in.read(buffer)) > 0) {
+            result.append(new String(buffer, 0, read, "UTF-8"));
+        }
+        return result.toString();
+    }
+
+    /**
+     * Returns the response body as a string.
+     */
+    private static class BodyHandler implements ResponseHandler<String> {
+        @Override
+        public String handleResponse(HttpResponse response) throws IOException {
+            return EntityUtils.toString(response.getEntity());
+        }
+    }
+
+}
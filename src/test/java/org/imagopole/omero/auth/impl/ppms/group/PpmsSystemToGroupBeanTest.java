@@ -46,7 +46,7 @@ public class PpmsSystemToGroupBeanTest extends UnitilsTestNG {
     public void shouldReturnEmptyGroupsListForNullSystemsList() {
        // define behaviour
        authConfigMock.returns(Data.EXTERNAL_CONFIG_ENABLED).isEnabled();
-       ppmsServiceMock.returns(null).findActiveSystemsByUserName(Data.USERNAME);
+       ppmsServiceMock.returns(null).findActiveSystemsByUserName(Data.USERNAME, null);
 
        // run test
        List<Long> result =
@@ -55,7 +55,7 @@ public class PpmsSystemToGroupBeanTest extends UnitilsTestNG {
        // assert results + invocations
        assertNotNull(result, "Non null results expected");
        assertTrue(result.isEmpty(), "Empty results expected");
-       ppmsServiceMock.assertInvoked().findActiveSystemsByUserName(Data.USERNAME);
+       ppmsServiceMock.assertInvoked().findActiveSystemsByUserName(Data.USERNAME, null);
        roleProviderMock.assertNotInvoked().createGroup(
                        null,
                        Permissions.USER_PRIVATE,
@@ -69,7 +69,7 @@ public class PpmsSystemToGroupBeanTest extends UnitilsTestNG {
     public void shouldReturnEmptyGroupsListWhenConfigDisabled() {
        // define behaviour
        authConfigMock.returns(Data.EXTERNAL_CONFIG_DISABLED).isEnabled();
-       ppmsServiceMock.returns(null).findActiveSystemsByUserName(Data.USERNAME);
+       ppmsServiceMock.returns(null).findActiveSystemsByUserName(Data.USERNAME, null);
 
        // run test
        List<Long> result =
@@ -78,7 +78,7 @@ public class PpmsSystemToGroupBeanTest extends UnitilsTestNG {
        // assert results + invocations
        assertNotNull(result, "Non null results expected");
        assertTrue(result.isEmpty(), "Empty results expected");
-       ppmsServiceMock.assertNotInvoked().findActiveSystemsByUserName(Data.USERNAME);
+       ppmsServiceMock.assertNotInvoked().findActiveSystemsByUserName(Data.USERNAME, null);
        roleProviderMock.assertNotInvoked().createGroup(
                        null,
                        Permissions.USER_PRIVATE,
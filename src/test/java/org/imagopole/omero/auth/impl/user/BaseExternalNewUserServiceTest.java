@@ -1,14 +1,27 @@
 package org.imagopole.omero.auth.impl.user;
 
 import static org.imagopole.omero.auth.TestsUtil.activate;
+import static org.imagopole.omero.auth.TestsUtil.newKnownUser;
 import static org.imagopole.omero.auth.TestsUtil.newSharedUser;
+import static org.imagopole.omero.auth.TestsUtil.wrangle;
+import static org.imagopole.omero.auth.TestsUtil.wrangleFields;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertTrue;
 
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Properties;
+import java.util.Set;
 
+import ome.api.LocalQuery;
+import ome.api.LocalUpdate;
 import ome.conditions.ApiUsageException;
+import ome.model.meta.Experimenter;
+import ome.model.meta.ExperimenterGroup;
+import ome.security.auth.NewUserGroupBean;
 import ome.security.auth.PasswordProvider;
+import ome.security.auth.RoleProvider;
 import ome.services.util.Executor;
 import ome.system.OmeroContext;
 import ome.system.ServiceFactory;
@@ -18,17 +31,33 @@ import org.imagopole.omero.auth.TestsUtil.Env;
 import org.imagopole.omero.auth.TestsUtil.LdapUnit;
 import org.imagopole.omero.auth.TestsUtil.OmeroUnit;
 import org.imagopole.omero.auth.TestsUtil.PpmsUnit;
+import org.imagopole.omero.auth.api.ppms.PpmsService;
 import org.imagopole.omero.auth.api.user.ExternalNewUserService;
 import org.imagopole.omero.auth.impl.AbstractPpmsOmeroIntegrationTest;
+import org.imagopole.omero.auth.impl.ppms.user.PpmsExternalNewUserService;
 import org.imagopole.ppms.api.dto.PpmsUser;
 import org.springframework.transaction.annotation.Transactional;
 import org.testng.annotations.Test;
+import org.unitils.mock.Mock;
 
 public class BaseExternalNewUserServiceTest extends AbstractPpmsOmeroIntegrationTest {
 
     /** @TestedObject */
     private ExternalNewUserService externalNewUserService;
 
+    /** Synchronized profiles fingerprints */
+    private ExternalProfileFingerprints profileFingerprints;
+
+    /** Accounts synchronizations ledger */
+    private SyncFreshnessLedger syncLedger;
+
+    /** Collaborators of the standalone service (freshness checks) */
+    private Mock<LocalQuery> iQueryMock;
+    private Mock<LocalUpdate> iUpdateMock;
+    private Mock<RoleProvider> roleProviderMock;
+    private Mock<OmeroContext> appContextMock;
+    private Mock<PpmsService> ppmsServiceMock;
+
     @Override
     protected void setUpBeforeServerStartup(Properties systemProps) {
         // configure a group synchronization bean
@@ -42,6 +71,8 @@ public class BaseExternalNewUserServiceTest extends AbstractPpmsOmeroIntegration
     protected void setUpAfterServerStartup(OmeroContext omeroContext) {
         //-- test case services
         this.externalNewUserService = (ExternalNewUserService) omeroContext.getBean("ppmsNewUserService");
+        this.profileFingerprints = (ExternalProfileFingerprints) omeroContext.getBean("ppmsProfileFingerprints");
+        this.syncLedger = (SyncFreshnessLedger) omeroContext.getBean("ppmsSyncLedger");
 
         //-- OMERO server boilerplate
         super.setUpAfterServerStartup(omeroContext);
@@ -168,4 +199,277 @@ public class BaseExternalNewUserServiceTest extends AbstractPpmsOmeroIntegration
         pumapiClientMock.assertNotInvoked().getUserRights(OmeroUnit.KNOWN_USER);
     }
 
+    @Test
+    public void synchronizeUserFromExternalSourceShouldSkipUnchangedProfile() {
+        String workDescription = "synchronizeUserFromExternalSourceShouldSkipUnchangedProfile";
+        String localEmail = "local.edit@example.com";
+
+        Long experimenterId = iAdmin.lookupExperimenter(OmeroUnit.KNOWN_USER).getId();
+
+        PpmsUser knownUser = wrangleFields(newKnownUser());
+        knownUser.setActive(true);
+
+        pumapiClientMock.resetBehavior();
+        pumapiClientMock.returns(knownUser).getUser(OmeroUnit.KNOWN_USER);
+        pumapiClientMock.returns(Collections.emptyList()).getUserRights(OmeroUnit.KNOWN_USER);
+
+        profileFingerprints.invalidate(experimenterId);
+        profileFingerprints.setEnabled(true);
+        try {
+            // first sync records the fingerprint
+            synchronizeUser(OmeroUnit.KNOWN_USER, workDescription);
+            assertEquals(profileFingerprints.size(), 1, "Incorrect fingerprints count");
+
+            // OMERO-side attribute edit: not part of the fingerprint
+            updateEmail(OmeroUnit.KNOWN_USER, localEmail);
+
+            synchronizeUser(OmeroUnit.KNOWN_USER, workDescription);
+        } finally {
+            profileFingerprints.invalidate(experimenterId);
+            profileFingerprints.setEnabled(false);
+        }
+
+        // check the attributes and memberships updates were skipped
+        Experimenter experimenter = iAdmin.lookupExperimenter(OmeroUnit.KNOWN_USER);
+        checkUserAttributes(experimenter,
+                            wrangle(OmeroUnit.KNOWN_USER_GN), wrangle(OmeroUnit.KNOWN_USER_SN), localEmail);
+        checkMemberships(experimenter,
+                         3,
+                         OmeroUnit.DEFAULT_GROUP, OmeroUnit.PPMS_DUPLICATE_GROUP, getRoles().getUserGroupName());
+    }
+
+    @Test
+    public void synchronizeUserFromExternalSourceShouldRecordChangedProfileAfterCommit() {
+        String workDescription = "synchronizeUserFromExternalSourceShouldRecordChangedProfileAfterCommit";
+        String changedEmail = "changed.email@example.com";
+
+        final Long experimenterId = iAdmin.lookupExperimenter(OmeroUnit.KNOWN_USER).getId();
+
+        PpmsUser knownUser = wrangleFields(newKnownUser());
+        knownUser.setActive(true);
+
+        pumapiClientMock.resetBehavior();
+        pumapiClientMock.returns(knownUser).getUser(OmeroUnit.KNOWN_USER);
+        pumapiClientMock.returns(Collections.emptyList()).getUserRights(OmeroUnit.KNOWN_USER);
+
+        profileFingerprints.invalidate(experimenterId);
+        profileFingerprints.setEnabled(true);
+        try {
+            synchronizeUser(OmeroUnit.KNOWN_USER, workDescription);
+
+            // PPMS-side profile change
+            PpmsUser changedUser = wrangleFields(newKnownUser());
+            changedUser.setActive(true);
+            changedUser.setEmail(changedEmail);
+
+            pumapiClientMock.resetBehavior();
+            pumapiClientMock.returns(changedUser).getUser(OmeroUnit.KNOWN_USER);
+            pumapiClientMock.returns(Collections.emptyList()).getUserRights(OmeroUnit.KNOWN_USER);
+
+            final String changedFingerprint = computeFingerprint(OmeroUnit.KNOWN_USER);
+            assertFalse(profileFingerprints.matches(experimenterId, changedFingerprint),
+                        "Changed fingerprint should not match");
+
+            getExecutor().execute(getLoginPrincipal(), new Executor.SimpleWork(this, workDescription) {
+
+                @Override
+                @Transactional(readOnly = false)
+                public Object doWork(org.hibernate.Session session, ServiceFactory serviceFactory) {
+                    externalNewUserService.synchronizeUserFromExternalSource(OmeroUnit.KNOWN_USER);
+
+                    assertFalse(profileFingerprints.matches(experimenterId, changedFingerprint),
+                                "Uncommitted fingerprint should not match");
+                    return null;
+                }
+
+            });
+
+            assertTrue(profileFingerprints.matches(experimenterId, changedFingerprint),
+                       "Committed fingerprint should match");
+        } finally {
+            profileFingerprints.invalidate(experimenterId);
+            profileFingerprints.setEnabled(false);
+        }
+
+        // check the changed attributes were synchronized
+        Experimenter experimenter = iAdmin.lookupExperimenter(OmeroUnit.KNOWN_USER);
+        checkUserAttributes(experimenter,
+                            wrangle(OmeroUnit.KNOWN_USER_GN), wrangle(OmeroUnit.KNOWN_USER_SN), changedEmail);
+    }
+
+    @Test
+    public void synchronizeUserFromExternalSourceShouldReconcileChangedOmeroMemberships() {
+        String workDescription = "synchronizeUserFromExternalSourceShouldReconcileChangedOmeroMemberships";
+        String localEmail = "local.edit@example.com";
+
+        Experimenter precondition = iAdmin.lookupExperimenter(OmeroUnit.KNOWN_USER);
+        Long experimenterId = precondition.getId();
+
+        PpmsUser knownUser = wrangleFields(newKnownUser());
+        knownUser.setActive(true);
+
+        pumapiClientMock.resetBehavior();
+        pumapiClientMock.returns(knownUser).getUser(OmeroUnit.KNOWN_USER);
+        pumapiClientMock.returns(Collections.emptyList()).getUserRights(OmeroUnit.KNOWN_USER);
+
+        profileFingerprints.invalidate(experimenterId);
+        profileFingerprints.setEnabled(true);
+        try {
+            synchronizeUser(OmeroUnit.KNOWN_USER, workDescription);
+
+            // OMERO-side memberships edit: part of the fingerprint
+            updateEmail(OmeroUnit.KNOWN_USER, localEmail);
+            ExperimenterGroup duplicateGroup = iAdmin.lookupGroup(OmeroUnit.PPMS_DUPLICATE_GROUP);
+            iAdmin.removeGroups(precondition, duplicateGroup);
+
+            synchronizeUser(OmeroUnit.KNOWN_USER, workDescription);
+        } finally {
+            profileFingerprints.invalidate(experimenterId);
+            profileFingerprints.setEnabled(false);
+        }
+
+        // check the full synchronization took place
+        Experimenter experimenter = iAdmin.lookupExperimenter(OmeroUnit.KNOWN_USER);
+        checkUserAttributes(experimenter,
+                            wrangle(OmeroUnit.KNOWN_USER_GN), wrangle(OmeroUnit.KNOWN_USER_SN),
+                            wrangle(OmeroUnit.KNOWN_USER_EMAIL));
+    }
+
+    @Test
+    public void synchronizeUserFromExternalSourceShouldSkipFreshUser() {
+        SyncFreshnessLedger freshLedger = new SyncFreshnessLedger(System.getProperty("java.io.tmpdir"));
+        freshLedger.setMinIntervalSeconds(300);
+        freshLedger.recordSync(OmeroUnit.KNOWN_USER);
+
+        PpmsExternalNewUserService newUserService = new PpmsExternalNewUserService();
+        newUserService.setConfig(ppmsConfig);
+        newUserService.setSyncLedger(freshLedger);
+        newUserService.setQueryService(iQueryMock.getMock());
+        newUserService.setUpdateService(iUpdateMock.getMock());
+        newUserService.setRoleProvider(roleProviderMock.getMock());
+        newUserService.setApplicationContext(appContextMock.getMock());
+        newUserService.setPpmsService(ppmsServiceMock.getMock());
+
+        newUserService.synchronizeUserFromExternalSource(OmeroUnit.KNOWN_USER);
+
+        // check no OMERO nor external lookup took place
+        iQueryMock.assertNotInvoked().findByString(Experimenter.class, "omeName", OmeroUnit.KNOWN_USER);
+        iQueryMock.assertNotInvoked().projection(null, null);
+        iUpdateMock.assertNotInvoked().flush();
+        roleProviderMock.assertNotInvoked().addGroups(null, (ExperimenterGroup[]) null);
+        roleProviderMock.assertNotInvoked().removeGroups(null, (ExperimenterGroup[]) null);
+        roleProviderMock.assertNotInvoked().setDefaultGroup(null, null);
+        appContextMock.assertNotInvoked().getBean(null, NewUserGroupBean.class);
+        ppmsServiceMock.assertNotInvoked().findUserByName(OmeroUnit.KNOWN_USER);
+    }
+
+    @Test
+    public void synchronizeUserFromExternalSourceShouldSyncUnknownUser() {
+        String workDescription = "synchronizeUserFromExternalSourceShouldSyncUnknownUser";
+
+        PpmsUser knownUser = wrangleFields(newKnownUser());
+        knownUser.setActive(true);
+
+        pumapiClientMock.resetBehavior();
+        pumapiClientMock.returns(knownUser).getUser(OmeroUnit.KNOWN_USER);
+        pumapiClientMock.returns(Collections.emptyList()).getUserRights(OmeroUnit.KNOWN_USER);
+
+        updateEmail(OmeroUnit.KNOWN_USER, "local.edit@example.com");
+
+        syncLedger.setMinIntervalSeconds(300);
+        syncLedger.invalidate(OmeroUnit.KNOWN_USER);
+        try {
+            synchronizeUser(OmeroUnit.KNOWN_USER, workDescription);
+
+            assertTrue(syncLedger.isFresh(OmeroUnit.KNOWN_USER), "Synchronized user should be fresh");
+        } finally {
+            syncLedger.invalidate(OmeroUnit.KNOWN_USER);
+            syncLedger.setMinIntervalSeconds(0);
+        }
+
+        // check the full synchronization took place
+        Experimenter experimenter = iAdmin.lookupExperimenter(OmeroUnit.KNOWN_USER);
+        checkUserAttributes(experimenter,
+                            wrangle(OmeroUnit.KNOWN_USER_GN), wrangle(OmeroUnit.KNOWN_USER_SN),
+                            wrangle(OmeroUnit.KNOWN_USER_EMAIL));
+
+        // check invocations
+        pumapiClientMock.assertInvoked().getUser(OmeroUnit.KNOWN_USER);
+        pumapiClientMock.assertInvoked().getUserRights(OmeroUnit.KNOWN_USER);
+    }
+
+    @Test
+    public void synchronizeUserFromExternalSourceShouldSyncStaleUser() throws InterruptedException {
+        String workDescription = "synchronizeUserFromExternalSourceShouldSyncStaleUser";
+
+        PpmsUser knownUser = wrangleFields(newKnownUser());
+        knownUser.setActive(true);
+
+        pumapiClientMock.resetBehavior();
+        pumapiClientMock.returns(knownUser).getUser(OmeroUnit.KNOWN_USER);
+        pumapiClientMock.returns(Collections.emptyList()).getUserRights(OmeroUnit.KNOWN_USER);
+
+        updateEmail(OmeroUnit.KNOWN_USER, "local.edit@example.com");
+
+        // let the ledger entry expire
+        syncLedger.setMinIntervalSeconds(1);
+        syncLedger.recordSync(OmeroUnit.KNOWN_USER);
+        Thread.sleep(1100L);
+        try {
+            assertFalse(syncLedger.isFresh(OmeroUnit.KNOWN_USER), "Stale user should not be fresh");
+
+            synchronizeUser(OmeroUnit.KNOWN_USER, workDescription);
+        } finally {
+            syncLedger.invalidate(OmeroUnit.KNOWN_USER);
+            syncLedger.setMinIntervalSeconds(0);
+        }
+
+        // check the full synchronization took place
+        Experimenter experimenter = iAdmin.lookupExperimenter(OmeroUnit.KNOWN_USER);
+        checkUserAttributes(experimenter,
+                            wrangle(OmeroUnit.KNOWN_USER_GN), wrangle(OmeroUnit.KNOWN_USER_SN),
+                            wrangle(OmeroUnit.KNOWN_USER_EMAIL));
+
+        // check invocations
+        pumapiClientMock.assertInvoked().getUser(OmeroUnit.KNOWN_USER);
+        pumapiClientMock.assertInvoked().getUserRights(OmeroUnit.KNOWN_USER);
+    }
+
+    private void synchronizeUser(final String username, String workDescription) {
+        getExecutor().execute(getLoginPrincipal(), new Executor.SimpleWork(this, workDescription) {
+
+            @Override
+            @Transactional(readOnly = false)
+            public Object doWork(org.hibernate.Session session, ServiceFactory serviceFactory) {
+                externalNewUserService.synchronizeUserFromExternalSource(username);
+                return null;
+            }
+
+        });
+    }
+
+    private void updateEmail(String username, String email) {
+        Experimenter experimenter = iAdmin.lookupExperimenter(username);
+        experimenter.setEmail(email);
+        iAdmin.updateExperimenter(experimenter);
+    }
+
+    private String computeFingerprint(String username) {
+        BaseExternalNewUserService newUserService = (BaseExternalNewUserService) externalNewUserService;
+
+        Experimenter omeExp = iAdmin.lookupExperimenter(username);
+        Experimenter externalExp = newUserService.findExperimenterFromExternalSource(username);
+
+        Set<Long> omeGroupIds = new HashSet<Long>();
+        for (ExperimenterGroup group : omeExp.linkedExperimenterGroupList()) {
+            omeGroupIds.add(group.getId());
+        }
+        Long omeDefaultGroupId = omeExp.getGroupExperimenterMap(0).parent().getId();
+
+        return newUserService.computeProfileFingerprint(
+                        username, externalExp, omeGroupIds, omeDefaultGroupId,
+                        ppmsConfig.syncGroupsOnLogin(), ppmsConfig.syncDefaultGroupOnLogin(),
+                        ppmsConfig.syncUserOnLogin());
+    }
+
 }
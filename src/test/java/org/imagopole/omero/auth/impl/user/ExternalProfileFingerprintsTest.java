@@ -0,0 +1,108 @@
+package org.imagopole.omero.auth.impl.user;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ome.security.auth.RoleProvider;
+
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class ExternalProfileFingerprintsTest {
+
+    /** @TestedObject */
+    private ExternalProfileFingerprints fingerprints;
+
+    @BeforeMethod
+    public void setUp() {
+        fingerprints = new ExternalProfileFingerprints();
+        fingerprints.setEnabled(true);
+    }
+
+    @Test
+    public void fingerprintsShouldBeDisabledByDefault() {
+        assertFalse(new ExternalProfileFingerprints().isEnabled(), "Disabled fingerprints expected");
+    }
+
+    @Test
+    public void fingerprintsShouldBeStable() {
+        String result = ExternalProfileFingerprints.fingerprint(Arrays.asList("foo", "bar", null));
+
+        assertEquals(result, ExternalProfileFingerprints.fingerprint(Arrays.asList("foo", "bar", null)),
+                     "Stable fingerprint expected");
+        assertEquals(result.length(), 64, "Incorrect fingerprint length");
+    }
+
+    @Test
+    public void fingerprintsShouldDependOnPartsBoundariesAndOrder() {
+        String result = ExternalProfileFingerprints.fingerprint(Arrays.asList("foo", "bar"));
+
+        assertNotEquals(result, ExternalProfileFingerprints.fingerprint(Arrays.asList("bar", "foo")),
+                        "Order-sensitive fingerprint expected");
+        assertNotEquals(result, ExternalProfileFingerprints.fingerprint(Arrays.asList("foob", "ar")),
+                        "Boundary-sensitive fingerprint expected");
+        assertNotEquals(result, ExternalProfileFingerprints.fingerprint(Arrays.asList("foobar")),
+                        "Boundary-sensitive fingerprint expected");
+    }
+
+    @Test
+    public void recordedFingerprintsShouldMatchUntilInvalidated() {
+        Long experimenterId = 123L;
+        String fingerprint = ExternalProfileFingerprints.fingerprint(Arrays.asList("foo"));
+
+        assertFalse(fingerprints.matches(experimenterId, fingerprint), "Unknown fingerprint should not match");
+
+        fingerprints.record(experimenterId, fingerprint);
+        assertTrue(fingerprints.matches(experimenterId, fingerprint), "Recorded fingerprint should match");
+        assertFalse(fingerprints.matches(experimenterId, "other"), "Changed fingerprint should not match");
+        assertFalse(fingerprints.matches(456L, fingerprint), "Other experimenter should not match");
+
+        fingerprints.invalidate(experimenterId);
+        assertFalse(fingerprints.matches(experimenterId, fingerprint), "Invalidated fingerprint should not match");
+        assertEquals(fingerprints.size(), 0, "Incorrect fingerprints count");
+    }
+
+    @Test
+    public void fingerprintsShouldOnlyBeRecordedAfterCommit() {
+        Long experimenterId = 123L;
+        String fingerprint = ExternalProfileFingerprints.fingerprint(Arrays.asList("foo"));
+
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            fingerprints.recordAfterCommit(experimenterId, fingerprint);
+            assertFalse(fingerprints.matches(experimenterId, fingerprint), "Uncommitted fingerprint should not match");
+
+            // run test
+            for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+                synchronization.afterCommit();
+            }
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+
+        // assert results
+        assertTrue(fingerprints.matches(experimenterId, fingerprint), "Committed fingerprint should match");
+    }
+
+    @Test
+    public void groupNamesRecorderShouldCaptureCreatedGroups() {
+        List<String> groupNames = new ArrayList<String>();
+        RoleProvider recorder = ExternalProfileFingerprints.newGroupNamesRecorder(groupNames);
+
+        long firstId = recorder.createGroup("foo", null, false);
+        long secondId = recorder.createGroup("bar", null, false);
+
+        assertEquals(groupNames, Arrays.asList("foo", "bar"), "Incorrect group names");
+        assertNotEquals(firstId, secondId, "Distinct placeholder identifiers expected");
+        assertTrue(firstId < 0 && secondId < 0, "Placeholder identifiers expected");
+    }
+
+}
@@ -0,0 +1,144 @@
+package org.imagopole.omero.auth.impl.user;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.imagopole.omero.auth.TestsUtil.Data;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class SyncFreshnessLedgerTest {
+
+    /** Temporary OMERO data directory. */
+    private File dataDir;
+
+    /** @TestedObject */
+    private SyncFreshnessLedger ledger;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        dataDir = File.createTempFile("omero-data", "");
+        dataDir.delete();
+        dataDir.mkdirs();
+
+        ledger = new SyncFreshnessLedger(dataDir.getPath());
+        ledger.setMinIntervalSeconds(300);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        File file = new File(new File(dataDir, "ppms"), "sync-ledger.dat");
+        file.delete();
+        file.getParentFile().delete();
+        dataDir.delete();
+    }
+
+    @Test
+    public void usersShouldBeFreshOnceSynchronized() {
+        assertFalse(ledger.isFresh(Data.USERNAME), "Unknown user should not be fresh");
+
+        ledger.recordSync(Data.USERNAME);
+
+        assertTrue(ledger.isFresh(Data.USERNAME), "Synchronized user should be fresh");
+        assertFalse(ledger.isFresh("other"), "Other user should not be fresh");
+    }
+
+    @Test
+    public void invalidatedUsersShouldNotBeFresh() {
+        ledger.recordSync(Data.USERNAME);
+
+        ledger.invalidate(Data.USERNAME);
+
+        assertFalse(ledger.isFresh(Data.USERNAME), "Invalidated user should not be fresh");
+    }
+
+    @Test
+    public void synchronizationsShouldOnlyBeRecordedAfterCommit() {
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            ledger.recordSyncAfterCommit(Data.USERNAME);
+            assertFalse(ledger.isFresh(Data.USERNAME), "Uncommitted sync should not be recorded");
+
+            // run test
+            for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+                synchronization.afterCommit();
+            }
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+
+        // assert results
+        assertTrue(ledger.isFresh(Data.USERNAME), "Committed sync should be recorded");
+    }
+
+    @Test
+    public void synchronizationsShouldNotBeRecordedAfterRollback() {
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            ledger.recordSyncAfterCommit(Data.USERNAME);
+
+            // run test
+            for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+                synchronization.afterCompletion(TransactionSynchronization.STATUS_ROLLED_BACK);
+            }
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+
+        // assert results
+        assertFalse(ledger.isFresh(Data.USERNAME), "Rolled back sync should not be recorded");
+        assertEquals(ledger.size(), 0, "No entries expected");
+    }
+
+    @Test
+    public void synchronizationsShouldBeRecordedRightAwayWithoutTransaction() {
+        ledger.recordSyncAfterCommit(Data.USERNAME);
+
+        assertTrue(ledger.isFresh(Data.USERNAME), "Sync should be recorded");
+    }
+
+    @Test
+    public void ledgerShouldBeInactiveWithoutMinimumInterval() {
+        ledger.setMinIntervalSeconds(0);
+
+        ledger.recordSync(Data.USERNAME);
+
+        assertFalse(ledger.isActive(), "Ledger should be inactive");
+        assertFalse(ledger.isFresh(Data.USERNAME), "Users should never be fresh");
+        assertEquals(ledger.size(), 0, "No entries expected");
+    }
+
+    @Test
+    public void ledgerShouldBePersistedAcrossRestarts() {
+        ledger.setPersistent(true);
+        ledger.recordSync(Data.USERNAME);
+        ledger.shutdown();
+
+        SyncFreshnessLedger restarted = new SyncFreshnessLedger(dataDir.getPath());
+        restarted.setMinIntervalSeconds(300);
+        restarted.setPersistent(true);
+
+        // run test
+        restarted.start();
+
+        // assert results
+        assertTrue(restarted.isFresh(Data.USERNAME), "Persisted user should be fresh");
+        assertEquals(restarted.size(), 1, "Incorrect entries count");
+    }
+
+    @Test
+    public void invalidSettingsShouldBeIgnored() {
+        ledger.setMinIntervalSeconds(null);
+        ledger.setMinIntervalSeconds(-1);
+
+        assertEquals(ledger.getMinIntervalSeconds(), 300, "Previous value expected");
+    }
+
+}